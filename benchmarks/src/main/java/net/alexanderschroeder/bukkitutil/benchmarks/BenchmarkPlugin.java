@@ -0,0 +1,45 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.benchmarks;
+
+import java.io.File;
+
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * A plug-in that is never loaded by a server, but initialized with a
+ * {@link Stubs#server() stub server} and a data folder of our choosing, so
+ * that code that needs a {@link JavaPlugin} can be benchmarked without a
+ * server.
+ */
+public class BenchmarkPlugin extends JavaPlugin {
+
+	/**
+	 * Creates a plug-in with the given data folder.
+	 * 
+	 * @param dataFolder
+	 *            the data folder of the plug-in
+	 */
+	public BenchmarkPlugin(final File dataFolder) {
+		final PluginDescriptionFile description = new PluginDescriptionFile("BukkitUtilBenchmarks", "1.0", BenchmarkPlugin.class.getName());
+		initialize(null, Stubs.server(), description, dataFolder, null, BenchmarkPlugin.class.getClassLoader());
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import net.alexanderschroeder.bukkitutil.DebugLogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures logging through a disabled {@link DebugLogger}, which still
+ * formats every message and looks up the calling class and method, but does
+ * not pass the message on to the server log.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DebugLoggerBenchmark {
+
+	private DebugLogger logger;
+
+	@Setup
+	public void setUp() {
+		logger = new DebugLogger(new BenchmarkPlugin(new File(System.getProperty("java.io.tmpdir"))), false);
+	}
+
+	@Benchmark
+	public void log() {
+		logger.log(Level.INFO, "Player joined");
+	}
+
+	@Benchmark
+	public void logWithParameter() {
+		logger.log(Level.INFO, "Player {0} joined", "Notch");
+	}
+}
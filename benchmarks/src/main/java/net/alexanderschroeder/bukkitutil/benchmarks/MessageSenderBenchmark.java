@@ -0,0 +1,80 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.alexanderschroeder.bukkitutil.MessageSender;
+
+import org.bukkit.command.CommandSender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures sending messages with {@link MessageSender} to a
+ * {@link Stubs#commandSender(Stubs.MessageRecorder) stub command sender}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageSenderBenchmark {
+
+	private final Stubs.MessageRecorder recorder = new Stubs.MessageRecorder();
+
+	private CommandSender sender;
+
+	private MessageSender messageSender;
+
+	@Setup
+	public void setUp() {
+		sender = Stubs.commandSender(recorder);
+		messageSender = new MessageSender();
+		messageSender.setPrefix("&6[Benchmark] ");
+	}
+
+	@Benchmark
+	public String send() {
+		MessageSender.send(sender, "&aWelcome back, &bNotch&a! You have &e3 &anew messages.");
+		return recorder.lastMessage;
+	}
+
+	@Benchmark
+	public String sendWithPrefix() {
+		messageSender.sendWithPrefix(sender, "&aYour home has been set.");
+		return recorder.lastMessage;
+	}
+
+	@Benchmark
+	public String sendTitle() {
+		messageSender.sendTitle(sender, "Help", 53);
+		return recorder.lastMessage;
+	}
+}
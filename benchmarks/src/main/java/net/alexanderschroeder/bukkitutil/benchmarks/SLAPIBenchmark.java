@@ -0,0 +1,103 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.alexanderschroeder.bukkitutil.SLAPI;
+
+import org.bukkit.util.Vector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link SLAPI#saveToStream(Object, java.io.OutputStream)
+ * saveToStream()} and {@link SLAPI#loadFromStream(java.io.InputStream)
+ * loadFromStream()} on in-memory streams. The <code>small</code> graph is a
+ * map of a handful of plain values, like the data kept about one player; the
+ * <code>large</code> graph adds a list of {@link Vector vectors}, which go
+ * through Bukkit's configuration serialization.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SLAPIBenchmark {
+
+	@Param({ "small", "large" })
+	public String graph;
+
+	private Object object;
+
+	private byte[] serialized;
+
+	private ByteArrayOutputStream output;
+
+	@Setup
+	public void setUp() throws IOException {
+		final Map<String, Object> map = new HashMap<String, Object>();
+		map.put("name", "Notch");
+		map.put("kills", 1234);
+		map.put("balance", 5678.9);
+		map.put("admin", true);
+		if (graph.equals("large")) {
+			final List<Vector> homes = new ArrayList<Vector>();
+			for (int i = 0; i < 1000; i++) {
+				homes.add(new Vector(i, 64, -i));
+			}
+			map.put("homes", homes);
+		}
+		object = map;
+
+		output = new ByteArrayOutputStream();
+		SLAPI.saveToStream(object, output);
+		serialized = output.toByteArray();
+	}
+
+	@Benchmark
+	public int saveToStream() throws IOException {
+		output.reset();
+		SLAPI.saveToStream(object, output);
+		return output.size();
+	}
+
+	@Benchmark
+	public Object loadFromStream() throws IOException {
+		return SLAPI.loadFromStream(new ByteArrayInputStream(serialized));
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import net.alexanderschroeder.bukkitutil.storage.BufferedStorage;
+import net.alexanderschroeder.bukkitutil.storage.FileConfigurationStorage;
+import net.alexanderschroeder.bukkitutil.storage.LogStructuredStorage;
+import net.alexanderschroeder.bukkitutil.storage.MappedFileStorage;
+import net.alexanderschroeder.bukkitutil.storage.Storage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the single-key operations and {@link Storage#getKeys(String)
+ * getKeys()} of the storage back-ends on a context holding
+ * <code>contextSize</code> keys. The context is stored in a new temporary
+ * directory for every trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StorageBenchmark {
+
+	private static final String CONTEXT = "benchmark";
+
+	@Param({ "yaml", "yaml-resident", "log", "mapped" })
+	public String backend;
+
+	@Param({ "10", "1000", "10000" })
+	public int contextSize;
+
+	private File directory;
+
+	private Storage storage;
+
+	private String[] keys;
+
+	private String[] missingKeys;
+
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("bukkitutil-benchmark").toFile();
+		storage = createStorage();
+		storage.initialize(new BenchmarkPlugin(directory));
+
+		keys = new String[contextSize];
+		missingKeys = new String[contextSize];
+		final Map<String, Object> values = new HashMap<String, Object>();
+		for (int i = 0; i < contextSize; i++) {
+			keys[i] = "player" + i;
+			missingKeys[i] = "missing" + i;
+			values.put(keys[i], i % 2 == 0 ? (Object) i : (Object) ("value of player " + i));
+		}
+		storage.saveAll(CONTEXT, values);
+		if (storage instanceof BufferedStorage) {
+			((BufferedStorage) storage).flush();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (storage instanceof BufferedStorage) {
+			((BufferedStorage) storage).close();
+		}
+		delete(directory);
+	}
+
+	@Benchmark
+	public void save() {
+		final int index = nextIndex();
+		storage.save(CONTEXT, keys[index], index);
+	}
+
+	@Benchmark
+	public Object load() {
+		return storage.load(CONTEXT, keys[nextIndex()]);
+	}
+
+	@Benchmark
+	public boolean exists() {
+		return storage.exists(CONTEXT, keys[nextIndex()]);
+	}
+
+	@Benchmark
+	public boolean existsMissing() {
+		return storage.exists(CONTEXT, missingKeys[nextIndex()]);
+	}
+
+	@Benchmark
+	public Set<String> getKeys() {
+		return storage.getKeys(CONTEXT);
+	}
+
+	private int nextIndex() {
+		next = next + 1 < contextSize ? next + 1 : 0;
+		return next;
+	}
+
+	private Storage createStorage() {
+		if (backend.equals("yaml")) {
+			return new FileConfigurationStorage();
+		} else if (backend.equals("yaml-resident")) {
+			final FileConfigurationStorage storage = new FileConfigurationStorage();
+			storage.setResident(true);
+			return storage;
+		} else if (backend.equals("log")) {
+			return new LogStructuredStorage();
+		} else if (backend.equals("mapped")) {
+			return new MappedFileStorage();
+		}
+		throw new IllegalArgumentException("Unknown backend " + backend);
+	}
+
+	private static void delete(final File file) {
+		final File[] children = file.listFiles();
+		if (children != null) {
+			for (final File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.logging.Logger;
+
+import org.bukkit.Server;
+import org.bukkit.command.CommandSender;
+
+/**
+ * Stand-ins for the parts of a running server that the benchmarked code
+ * needs. Every method of a stub that is not explicitly handled returns
+ * <code>null</code>, <code>false</code> or zero.
+ */
+final class Stubs {
+
+	private static final Logger LOGGER = Logger.getLogger("BukkitUtilBenchmarks");
+
+	private Stubs() {
+	}
+
+	/**
+	 * Creates a server that only knows its logger and name.
+	 * 
+	 * @return a stub server
+	 */
+	static Server server() {
+		return (Server) Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[] { Server.class }, new InvocationHandler() {
+			public Object invoke(final Object proxy, final Method method, final Object[] arguments) {
+				if (method.getName().equals("getLogger")) {
+					return LOGGER;
+				} else if (method.getName().equals("getName")) {
+					return "BukkitUtilBenchmarks";
+				}
+				return defaultValue(method.getReturnType());
+			}
+		});
+	}
+
+	/**
+	 * Creates a command sender that remembers the last message sent to it.
+	 * 
+	 * @param recorder
+	 *            the recorder to remember the message in
+	 * @return a stub command sender
+	 */
+	static CommandSender commandSender(final MessageRecorder recorder) {
+		return (CommandSender) Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[] { CommandSender.class }, new InvocationHandler() {
+			public Object invoke(final Object proxy, final Method method, final Object[] arguments) {
+				if (method.getName().equals("sendMessage") && arguments[0] instanceof String) {
+					recorder.lastMessage = (String) arguments[0];
+					return null;
+				} else if (method.getName().equals("getName")) {
+					return "BenchmarkSender";
+				}
+				return defaultValue(method.getReturnType());
+			}
+		});
+	}
+
+	private static Object defaultValue(final Class<?> type) {
+		if (!type.isPrimitive() || type == void.class) {
+			return null;
+		} else if (type == boolean.class) {
+			return false;
+		} else if (type == char.class) {
+			return '\0';
+		} else if (type == long.class) {
+			return 0L;
+		} else if (type == float.class) {
+			return 0F;
+		} else if (type == double.class) {
+			return 0D;
+		} else if (type == byte.class) {
+			return (byte) 0;
+		} else if (type == short.class) {
+			return (short) 0;
+		}
+		return 0;
+	}
+
+	/**
+	 * Holds the last message sent to a stub command sender, so the sending
+	 * cannot be optimized away.
+	 */
+	static final class MessageRecorder {
+		volatile String lastMessage;
+	}
+}
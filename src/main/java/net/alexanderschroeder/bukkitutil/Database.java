@@ -448,6 +448,15 @@ public abstract class Database {
 		// Intended to be overridden by interested plug-ins
 	}
 
+	/**
+	 * Check whether the database is a SQLite database
+	 * 
+	 * @return boolean True if the SQLite JDBC driver is being used
+	 */
+	public boolean isUsingSQLite() {
+		return usingSQLite;
+	}
+
 	/**
 	 * Get the instance of the EbeanServer
 	 * 
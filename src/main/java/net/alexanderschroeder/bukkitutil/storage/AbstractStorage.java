@@ -0,0 +1,354 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.Deflater;
+
+/**
+ * A skeletal implementation of the {@link Storage} interface. The batch
+ * operations are implemented in terms of the single-key operations, so a
+ * back-end only has to implement those to get a working storage system, and
+ * can override the batch operations where it has a cheaper way of doing them.
+ * 
+ * <p>
+ * Every storage also has a {@link CodecRegistry}, which back-ends that store
+ * objects in their own binary form use for objects of the registered types,
+ * and counts the bytes it reads from and writes to its backing medium.
+ * Back-ends that support it can also be told to {@link #setCompressed(boolean)
+ * compress} what they store.
+ */
+public abstract class AbstractStorage implements Storage {
+
+	private CodecRegistry codecRegistry = new CodecRegistry();
+
+	private final IoCounter ioCounter = new IoCounter();
+
+	private volatile boolean compressed = false;
+
+	private volatile int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+	/** Serializes the atomic operations of each context by default. */
+	private final StripedLock updateLocks = new StripedLock(64);
+
+	/**
+	 * Gets the codecs used to store objects of the registered types.
+	 * 
+	 * @return the codec registry of this storage
+	 */
+	public CodecRegistry getCodecRegistry() {
+		return codecRegistry;
+	}
+
+	/**
+	 * Sets the codecs used to store objects of the registered types, for
+	 * instance to share one registry between several storages. Should be
+	 * called before calling {@link #initialize(org.bukkit.plugin.java.JavaPlugin)
+	 * initialize()}.
+	 * 
+	 * @param codecRegistry
+	 *            the codec registry to use
+	 */
+	public void setCodecRegistry(final CodecRegistry codecRegistry) {
+		if (codecRegistry == null) {
+			throw new IllegalArgumentException("codecRegistry cannot be null");
+		}
+		this.codecRegistry = codecRegistry;
+	}
+
+	/**
+	 * Gets whether this storage compresses what it stores.
+	 * 
+	 * @return <code>true</code> if compression is enabled
+	 */
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * Sets whether this storage compresses what it stores, using the JDK's
+	 * deflate implementation. Compressed and uncompressed data are told apart
+	 * when they are read, so compression can be turned on or off at any time;
+	 * data is compressed or decompressed as it is written again. Back-ends
+	 * that cannot compress ignore this setting.
+	 * <p>
+	 * Compression is disabled by default.
+	 * 
+	 * @param compressed
+	 *            <code>true</code> to enable compression
+	 */
+	public void setCompressed(final boolean compressed) {
+		this.compressed = compressed;
+	}
+
+	/**
+	 * Gets the level used when compressing.
+	 * 
+	 * @return the compression level
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * Sets the level used when compressing, from {@link Deflater#BEST_SPEED}
+	 * (1) to {@link Deflater#BEST_COMPRESSION} (9). The default is
+	 * {@link Deflater#DEFAULT_COMPRESSION}.
+	 * 
+	 * @param compressionLevel
+	 *            the compression level
+	 */
+	public void setCompressionLevel(final int compressionLevel) {
+		if ((compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) && compressionLevel != Deflater.DEFAULT_COMPRESSION) {
+			throw new IllegalArgumentException("compressionLevel must be between 0 and 9");
+		}
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * Gets the number of bytes this storage has read from its backing medium.
+	 * 
+	 * @return the number of bytes read
+	 */
+	public long getBytesRead() {
+		return ioCounter.getBytesRead();
+	}
+
+	/**
+	 * Gets the number of bytes this storage has written to its backing
+	 * medium.
+	 * 
+	 * @return the number of bytes written
+	 */
+	public long getBytesWritten() {
+		return ioCounter.getBytesWritten();
+	}
+
+	/**
+	 * Records that bytes have been read from the backing medium. Should be
+	 * called by implementations on the thread that read them.
+	 * 
+	 * @param bytes
+	 *            the number of bytes read
+	 */
+	protected void countBytesRead(final long bytes) {
+		ioCounter.read(bytes);
+	}
+
+	/**
+	 * Records that bytes have been written to the backing medium. Should be
+	 * called by implementations on the thread that wrote them.
+	 * 
+	 * @param bytes
+	 *            the number of bytes written
+	 */
+	protected void countBytesWritten(final long bytes) {
+		ioCounter.written(bytes);
+	}
+
+	IoCounter getIoCounter() {
+		return ioCounter;
+	}
+
+	/**
+	 * Encodes a value for one of the binary back-ends, compressing it if
+	 * compression is enabled.
+	 */
+	byte[] encodeValue(final Object value) throws StorageException {
+		final byte[] encoded = ValueEncoding.encode(value, codecRegistry);
+		return compressed ? ValueEncoding.compress(encoded, compressionLevel) : encoded;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation calls {@link #load(String, String) load()} and
+	 * checks the type of the object.
+	 */
+	public <T> T load(final String context, final String key, final Class<T> type) throws StorageException {
+		final Object value = load(context, key);
+		if (value == null || type.isInstance(value)) {
+			return type.cast(value);
+		}
+		throw new StorageException("The object stored with key " + key + " in context " + context + " is a " + value.getClass().getName() + ", not a " + type.getName());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation calls {@link #load(String, String) load()}.
+	 */
+	public int loadInt(final String context, final String key, final int defaultValue) throws StorageException {
+		final Object value = load(context, key);
+		return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation calls {@link #load(String, String) load()}.
+	 */
+	public long loadLong(final String context, final String key, final long defaultValue) throws StorageException {
+		final Object value = load(context, key);
+		return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation calls {@link #load(String, String) load()}.
+	 */
+	public double loadDouble(final String context, final String key, final double defaultValue) throws StorageException {
+		final Object value = load(context, key);
+		return value instanceof Number ? ((Number) value).doubleValue() : defaultValue;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation calls {@link #getKeysInRange(String, String, String)
+	 * getKeysInRange()}.
+	 */
+	public SortedSet<String> getKeysWithPrefix(final String context, final String prefix) throws StorageException {
+		return getKeysInRange(context, prefix, KeyRange.prefixEnd(prefix));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation calls {@link #getKeys(String) getKeys()} and looks
+	 * at every key.
+	 */
+	public SortedSet<String> getKeysInRange(final String context, final String fromKey, final String toKey) throws StorageException {
+		if (KeyRange.isEmpty(fromKey, toKey)) {
+			return new TreeSet<String>();
+		}
+		return KeyRange.select(getKeys(context), fromKey, toKey);
+	}
+
+	public long increment(final String context, final String key, final long delta) throws StorageException {
+		return ((Number) update(context, key, ValueUpdate.increment(context, key, delta))).longValue();
+	}
+
+	public boolean compareAndSet(final String context, final String key, final Object expectedValue, final Object newValue) throws StorageException {
+		final ValueUpdate.CompareAndSet update = new ValueUpdate.CompareAndSet(expectedValue, newValue);
+		update(context, key, update);
+		return update.swapped;
+	}
+
+	public Object merge(final String context, final String key, final Object value, final StorageMerger merger) throws StorageException {
+		if (value == null) {
+			throw new IllegalArgumentException("value cannot be null");
+		}
+		return update(context, key, ValueUpdate.merge(value, merger));
+	}
+
+	/**
+	 * Applies an update to the object stored with a key, while no other update
+	 * to the context can happen. Back-ends override this to apply the update
+	 * under their own locks, in a single pass over the context.
+	 * <p>
+	 * This implementation calls {@link #load(String, String) load()} and then
+	 * {@link #save(String, String, Object) save()} or
+	 * {@link #deleteKey(String, String) deleteKey()}, holding a lock of its
+	 * own.
+	 * 
+	 * @return the object stored after the update
+	 */
+	Object update(final String context, final String key, final ValueUpdate update) throws StorageException {
+		final Lock lock = updateLocks.get(context).writeLock();
+		lock.lock();
+		try {
+			final Object currentValue = load(context, key);
+			final Object newValue = update.apply(currentValue);
+			if (newValue == ValueUpdate.UNCHANGED) {
+				return currentValue;
+			} else if (newValue == null) {
+				deleteKey(context, key);
+			} else {
+				save(context, key, newValue);
+			}
+			return newValue;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation calls {@link #save(String, String, Object) save()}
+	 * once for every entry.
+	 */
+	public void saveAll(final String context, final Map<String, ?> values) throws StorageException {
+		for (final Map.Entry<String, ?> entry : values.entrySet()) {
+			save(context, entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation calls {@link #load(String, String) load()} once for
+	 * every key.
+	 */
+	public Map<String, Object> loadAll(final String context, final Collection<String> keys) throws StorageException {
+		final Map<String, Object> values = new HashMap<String, Object>();
+		for (final String key : keys) {
+			final Object value = load(context, key);
+			if (value != null) {
+				values.put(key, value);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation calls {@link #deleteKey(String, String) deleteKey()}
+	 * once for every key.
+	 */
+	public void deleteKeys(final String context, final Collection<String> keys) throws StorageException {
+		for (final String key : keys) {
+			deleteKey(context, key);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation calls {@link #load(String, String) load()} once for
+	 * every key returned by {@link #getKeys(String) getKeys()}.
+	 */
+	public void forEach(final String context, final StorageVisitor visitor) throws StorageException {
+		for (final String key : getKeys(context)) {
+			final Object value = load(context, key);
+			if (value != null && !visitor.visit(key, value)) {
+				return;
+			}
+		}
+	}
+}
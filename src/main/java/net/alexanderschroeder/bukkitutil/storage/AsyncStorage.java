@@ -0,0 +1,655 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * The <code>AsyncStorage</code> class wraps any {@link Storage} and performs
+ * all its operations on a background thread pool, so that a plug-in can use
+ * the storage system from the server's main thread without blocking the tick.
+ * 
+ * <p>
+ * Every operation returns a {@link Future} for its result, and optionally
+ * takes a {@link StorageCallback} that is called once the operation has
+ * completed. If a callback plug-in has been set with
+ * {@link #setCallbackPlugin(Plugin)}, callbacks are delivered on the server's
+ * main thread through the Bukkit scheduler; otherwise they are called on the
+ * background thread that performed the operation.
+ * 
+ * <p>
+ * Operations on the same context are performed one at a time, in the order
+ * they were submitted, so a {@link #load(String, String) load()} submitted
+ * after a {@link #save(String, String, Object) save()} to the same context
+ * always sees the saved value. Operations on different contexts may run in
+ * parallel, so the wrapped storage must be safe to use from several threads
+ * as long as no two threads use the same context at the same time.
+ * 
+ * <p>
+ * A plug-in should call {@link #shutdown(long, TimeUnit) shutdown()} from its
+ * <code>onDisable()</code> method to wait for pending operations to finish.
+ */
+public class AsyncStorage {
+
+	private final Storage storage;
+
+	private final ExecutorService executor;
+
+	private final ConcurrentMap<String, ContextQueue> contextQueues = new ConcurrentHashMap<String, ContextQueue>();
+
+	private volatile Plugin callbackPlugin;
+
+	/**
+	 * Creates an <code>AsyncStorage</code> that performs the operations of the
+	 * given storage on a new thread pool with one thread per available
+	 * processor.
+	 * 
+	 * @param storage
+	 *            the storage to perform the operations on
+	 */
+	public AsyncStorage(final Storage storage) {
+		this(storage, Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new StorageThreadFactory()));
+	}
+
+	/**
+	 * Creates an <code>AsyncStorage</code> that performs the operations of the
+	 * given storage on the given executor service. The executor service will
+	 * be shut down by {@link #shutdown(long, TimeUnit) shutdown()}.
+	 * 
+	 * @param storage
+	 *            the storage to perform the operations on
+	 * @param executor
+	 *            the executor service to perform the operations on
+	 */
+	public AsyncStorage(final Storage storage, final ExecutorService executor) {
+		this.storage = storage;
+		this.executor = executor;
+	}
+
+	/**
+	 * Gets the storage this <code>AsyncStorage</code> performs its operations
+	 * on.
+	 * 
+	 * @return the wrapped storage
+	 */
+	public Storage getStorage() {
+		return storage;
+	}
+
+	/**
+	 * Gets the plug-in used to deliver callbacks on the server's main thread.
+	 * 
+	 * @return the callback plug-in, or <code>null</code> if callbacks are
+	 *         called on the background threads
+	 */
+	public Plugin getCallbackPlugin() {
+		return callbackPlugin;
+	}
+
+	/**
+	 * Sets the plug-in used to deliver callbacks on the server's main thread.
+	 * When set, every {@link StorageCallback} is scheduled with
+	 * {@link org.bukkit.scheduler.BukkitScheduler#runTask(Plugin, Runnable)
+	 * runTask()}; when <code>null</code>, callbacks are called directly on the
+	 * background thread that performed the operation.
+	 * 
+	 * @param callbackPlugin
+	 *            the plug-in to schedule callbacks with, or <code>null</code>
+	 */
+	public void setCallbackPlugin(final Plugin callbackPlugin) {
+		this.callbackPlugin = callbackPlugin;
+	}
+
+	/**
+	 * Saves an object in the storage system in the background.
+	 * 
+	 * @see Storage#save(String, String, Object)
+	 */
+	public Future<Void> save(final String context, final String key, final Object value) {
+		return save(context, key, value, null);
+	}
+
+	/**
+	 * Saves an object in the storage system in the background.
+	 * 
+	 * @see Storage#save(String, String, Object)
+	 */
+	public Future<Void> save(final String context, final String key, final Object value, final StorageCallback<Void> callback) {
+		return submit(context, new Callable<Void>() {
+			public Void call() {
+				storage.save(context, key, value);
+				return null;
+			}
+		}, callback);
+	}
+
+	/**
+	 * Loads an object from the storage system in the background.
+	 * 
+	 * @see Storage#load(String, String)
+	 */
+	public Future<Object> load(final String context, final String key) {
+		return load(context, key, null);
+	}
+
+	/**
+	 * Loads an object from the storage system in the background.
+	 * 
+	 * @see Storage#load(String, String)
+	 */
+	public Future<Object> load(final String context, final String key, final StorageCallback<Object> callback) {
+		return submit(context, new Callable<Object>() {
+			public Object call() {
+				return storage.load(context, key);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Checks whether an object is stored in the background.
+	 * 
+	 * @see Storage#exists(String, String)
+	 */
+	public Future<Boolean> exists(final String context, final String key) {
+		return exists(context, key, null);
+	}
+
+	/**
+	 * Checks whether an object is stored in the background.
+	 * 
+	 * @see Storage#exists(String, String)
+	 */
+	public Future<Boolean> exists(final String context, final String key, final StorageCallback<Boolean> callback) {
+		return submit(context, new Callable<Boolean>() {
+			public Boolean call() {
+				return storage.exists(context, key);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Deletes a context in the background.
+	 * 
+	 * @see Storage#delete(String)
+	 */
+	public Future<Void> delete(final String context) {
+		return delete(context, null);
+	}
+
+	/**
+	 * Deletes a context in the background.
+	 * 
+	 * @see Storage#delete(String)
+	 */
+	public Future<Void> delete(final String context, final StorageCallback<Void> callback) {
+		return submit(context, new Callable<Void>() {
+			public Void call() {
+				storage.delete(context);
+				return null;
+			}
+		}, callback);
+	}
+
+	/**
+	 * Deletes an object from a context in the background.
+	 * 
+	 * @see Storage#deleteKey(String, String)
+	 */
+	public Future<Void> deleteKey(final String context, final String key) {
+		return deleteKey(context, key, null);
+	}
+
+	/**
+	 * Deletes an object from a context in the background.
+	 * 
+	 * @see Storage#deleteKey(String, String)
+	 */
+	public Future<Void> deleteKey(final String context, final String key, final StorageCallback<Void> callback) {
+		return submit(context, new Callable<Void>() {
+			public Void call() {
+				storage.deleteKey(context, key);
+				return null;
+			}
+		}, callback);
+	}
+
+	/**
+	 * Gets the contexts in the storage system in the background. As this
+	 * operation does not belong to any single context, it is not ordered with
+	 * respect to other operations.
+	 * 
+	 * @see Storage#getContexts()
+	 */
+	public Future<Set<String>> getContexts() {
+		return getContexts(null);
+	}
+
+	/**
+	 * Gets the contexts in the storage system in the background. As this
+	 * operation does not belong to any single context, it is not ordered with
+	 * respect to other operations.
+	 * 
+	 * @see Storage#getContexts()
+	 */
+	public Future<Set<String>> getContexts(final StorageCallback<Set<String>> callback) {
+		return submit(null, new Callable<Set<String>>() {
+			public Set<String> call() {
+				return storage.getContexts();
+			}
+		}, callback);
+	}
+
+	/**
+	 * Gets the keys of a context in the background.
+	 * 
+	 * @see Storage#getKeys(String)
+	 */
+	public Future<Set<String>> getKeys(final String context) {
+		return getKeys(context, null);
+	}
+
+	/**
+	 * Gets the keys of a context in the background.
+	 * 
+	 * @see Storage#getKeys(String)
+	 */
+	public Future<Set<String>> getKeys(final String context, final StorageCallback<Set<String>> callback) {
+		return submit(context, new Callable<Set<String>>() {
+			public Set<String> call() {
+				return storage.getKeys(context);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Gets the keys of a context that start with a prefix in the background.
+	 * 
+	 * @see Storage#getKeysWithPrefix(String, String)
+	 */
+	public Future<SortedSet<String>> getKeysWithPrefix(final String context, final String prefix) {
+		return getKeysWithPrefix(context, prefix, null);
+	}
+
+	/**
+	 * Gets the keys of a context that start with a prefix in the background.
+	 * 
+	 * @see Storage#getKeysWithPrefix(String, String)
+	 */
+	public Future<SortedSet<String>> getKeysWithPrefix(final String context, final String prefix, final StorageCallback<SortedSet<String>> callback) {
+		return submit(context, new Callable<SortedSet<String>>() {
+			public SortedSet<String> call() {
+				return storage.getKeysWithPrefix(context, prefix);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Gets the keys of a context within a range in the background.
+	 * 
+	 * @see Storage#getKeysInRange(String, String, String)
+	 */
+	public Future<SortedSet<String>> getKeysInRange(final String context, final String fromKey, final String toKey) {
+		return getKeysInRange(context, fromKey, toKey, null);
+	}
+
+	/**
+	 * Gets the keys of a context within a range in the background.
+	 * 
+	 * @see Storage#getKeysInRange(String, String, String)
+	 */
+	public Future<SortedSet<String>> getKeysInRange(final String context, final String fromKey, final String toKey, final StorageCallback<SortedSet<String>> callback) {
+		return submit(context, new Callable<SortedSet<String>>() {
+			public SortedSet<String> call() {
+				return storage.getKeysInRange(context, fromKey, toKey);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Adds to a stored number in the background.
+	 * 
+	 * @see Storage#increment(String, String, long)
+	 */
+	public Future<Long> increment(final String context, final String key, final long delta) {
+		return increment(context, key, delta, null);
+	}
+
+	/**
+	 * Adds to a stored number in the background.
+	 * 
+	 * @see Storage#increment(String, String, long)
+	 */
+	public Future<Long> increment(final String context, final String key, final long delta, final StorageCallback<Long> callback) {
+		return submit(context, new Callable<Long>() {
+			public Long call() {
+				return storage.increment(context, key, delta);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Replaces a stored object if it is equal to the expected object in the
+	 * background.
+	 * 
+	 * @see Storage#compareAndSet(String, String, Object, Object)
+	 */
+	public Future<Boolean> compareAndSet(final String context, final String key, final Object expectedValue, final Object newValue) {
+		return compareAndSet(context, key, expectedValue, newValue, null);
+	}
+
+	/**
+	 * Replaces a stored object if it is equal to the expected object in the
+	 * background.
+	 * 
+	 * @see Storage#compareAndSet(String, String, Object, Object)
+	 */
+	public Future<Boolean> compareAndSet(final String context, final String key, final Object expectedValue, final Object newValue, final StorageCallback<Boolean> callback) {
+		return submit(context, new Callable<Boolean>() {
+			public Boolean call() {
+				return storage.compareAndSet(context, key, expectedValue, newValue);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Combines an object with a stored object in the background.
+	 * 
+	 * @see Storage#merge(String, String, Object, StorageMerger)
+	 */
+	public Future<Object> merge(final String context, final String key, final Object value, final StorageMerger merger) {
+		return merge(context, key, value, merger, null);
+	}
+
+	/**
+	 * Combines an object with a stored object in the background.
+	 * 
+	 * @see Storage#merge(String, String, Object, StorageMerger)
+	 */
+	public Future<Object> merge(final String context, final String key, final Object value, final StorageMerger merger, final StorageCallback<Object> callback) {
+		return submit(context, new Callable<Object>() {
+			public Object call() {
+				return storage.merge(context, key, value, merger);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Saves several objects in the same context in the background.
+	 * 
+	 * @see Storage#saveAll(String, Map)
+	 */
+	public Future<Void> saveAll(final String context, final Map<String, ?> values) {
+		return saveAll(context, values, null);
+	}
+
+	/**
+	 * Saves several objects in the same context in the background.
+	 * 
+	 * @see Storage#saveAll(String, Map)
+	 */
+	public Future<Void> saveAll(final String context, final Map<String, ?> values, final StorageCallback<Void> callback) {
+		return submit(context, new Callable<Void>() {
+			public Void call() {
+				storage.saveAll(context, values);
+				return null;
+			}
+		}, callback);
+	}
+
+	/**
+	 * Loads several objects from the same context in the background.
+	 * 
+	 * @see Storage#loadAll(String, Collection)
+	 */
+	public Future<Map<String, Object>> loadAll(final String context, final Collection<String> keys) {
+		return loadAll(context, keys, null);
+	}
+
+	/**
+	 * Loads several objects from the same context in the background.
+	 * 
+	 * @see Storage#loadAll(String, Collection)
+	 */
+	public Future<Map<String, Object>> loadAll(final String context, final Collection<String> keys, final StorageCallback<Map<String, Object>> callback) {
+		return submit(context, new Callable<Map<String, Object>>() {
+			public Map<String, Object> call() {
+				return storage.loadAll(context, keys);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Deletes several objects from the same context in the background.
+	 * 
+	 * @see Storage#deleteKeys(String, Collection)
+	 */
+	public Future<Void> deleteKeys(final String context, final Collection<String> keys) {
+		return deleteKeys(context, keys, null);
+	}
+
+	/**
+	 * Deletes several objects from the same context in the background.
+	 * 
+	 * @see Storage#deleteKeys(String, Collection)
+	 */
+	public Future<Void> deleteKeys(final String context, final Collection<String> keys, final StorageCallback<Void> callback) {
+		return submit(context, new Callable<Void>() {
+			public Void call() {
+				storage.deleteKeys(context, keys);
+				return null;
+			}
+		}, callback);
+	}
+
+	/**
+	 * Visits every object stored in a context in the background. The visitor
+	 * is called on the thread running the operation, not on the main thread.
+	 * 
+	 * @see Storage#forEach(String, StorageVisitor)
+	 */
+	public Future<Void> forEach(final String context, final StorageVisitor visitor) {
+		return forEach(context, visitor, null);
+	}
+
+	/**
+	 * Visits every object stored in a context in the background. The visitor
+	 * is called on the thread running the operation, not on the main thread.
+	 * 
+	 * @see Storage#forEach(String, StorageVisitor)
+	 */
+	public Future<Void> forEach(final String context, final StorageVisitor visitor, final StorageCallback<Void> callback) {
+		return submit(context, new Callable<Void>() {
+			public Void call() {
+				storage.forEach(context, visitor);
+				return null;
+			}
+		}, callback);
+	}
+
+	/**
+	 * Stops accepting new operations and waits for the pending ones to
+	 * finish.
+	 * 
+	 * @param timeout
+	 *            the maximum time to wait
+	 * @param unit
+	 *            the unit of the <code>timeout</code> argument
+	 * @return <code>true</code> if all pending operations finished,
+	 *         <code>false</code> if the timeout elapsed first
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public boolean shutdown(final long timeout, final TimeUnit unit) throws InterruptedException {
+		executor.shutdown();
+		return executor.awaitTermination(timeout, unit);
+	}
+
+	private <T> Future<T> submit(final String context, final Callable<T> operation, final StorageCallback<T> callback) {
+		final StorageTask<T> task = new StorageTask<T>(operation, callback);
+		if (context == null) {
+			executor.execute(task);
+			return task;
+		}
+
+		while (true) {
+			ContextQueue queue = contextQueues.get(context);
+			if (queue == null) {
+				final ContextQueue newQueue = new ContextQueue(context);
+				queue = contextQueues.putIfAbsent(context, newQueue);
+				if (queue == null) {
+					queue = newQueue;
+				}
+			}
+			if (queue.offer(task)) {
+				return task;
+			}
+			// The queue was retired after we looked it up; look it up again
+		}
+	}
+
+	private void deliver(final Runnable notification) {
+		final Plugin plugin = callbackPlugin;
+		if (plugin == null || !plugin.isEnabled()) {
+			notification.run();
+		} else {
+			Bukkit.getScheduler().runTask(plugin, notification);
+		}
+	}
+
+	/**
+	 * Runs the operations submitted for one context one at a time, in
+	 * submission order, borrowing a thread from the executor only while there
+	 * is work to do. A queue that runs dry is retired and removed from the map
+	 * so contexts that are no longer used do not accumulate.
+	 */
+	private final class ContextQueue implements Runnable {
+		private final String context;
+		private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+		private boolean running = false;
+		private boolean retired = false;
+
+		ContextQueue(final String context) {
+			this.context = context;
+		}
+
+		synchronized boolean offer(final Runnable task) {
+			if (retired) {
+				return false;
+			}
+			tasks.add(task);
+			if (!running) {
+				running = true;
+				try {
+					executor.execute(this);
+				} catch (final RejectedExecutionException e) {
+					tasks.remove(task);
+					running = false;
+					throw e;
+				}
+			}
+			return true;
+		}
+
+		private synchronized Runnable next() {
+			final Runnable task = tasks.poll();
+			if (task == null) {
+				running = false;
+				retired = true;
+				contextQueues.remove(context, this);
+			}
+			return task;
+		}
+
+		public void run() {
+			Runnable task;
+			while ((task = next()) != null) {
+				task.run();
+			}
+		}
+	}
+
+	private final class StorageTask<T> extends FutureTask<T> {
+		private final StorageCallback<T> callback;
+
+		StorageTask(final Callable<T> operation, final StorageCallback<T> callback) {
+			super(operation);
+			this.callback = callback;
+		}
+
+		@Override
+		protected void done() {
+			if (callback == null || isCancelled()) {
+				return;
+			}
+
+			T result = null;
+			Throwable cause = null;
+			try {
+				result = get();
+			} catch (final ExecutionException e) {
+				cause = e.getCause();
+			} catch (final InterruptedException e) {
+				cause = e;
+			}
+
+			final T finalResult = result;
+			final Throwable finalCause = cause;
+			deliver(new Runnable() {
+				public void run() {
+					if (finalCause == null) {
+						callback.onSuccess(finalResult);
+					} else {
+						callback.onFailure(finalCause);
+					}
+				}
+			});
+		}
+	}
+
+	private static final class StorageThreadFactory implements ThreadFactory {
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+		public Thread newThread(final Runnable runnable) {
+			final Thread thread = new Thread(runnable, "BukkitUtil-AsyncStorage-" + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter of strings: a set that can tell for certain that a string
+ * has never been added to it, but may wrongly claim that one has. Strings
+ * can be added from several threads at once.
+ */
+final class BloomFilter {
+
+	private static final double LN_2 = Math.log(2);
+
+	private final AtomicLongArray bits;
+
+	private final long bitCount;
+
+	private final int hashCount;
+
+	private final int capacity;
+
+	private final AtomicInteger size = new AtomicInteger();
+
+	/**
+	 * Creates a Bloom filter sized to hold the given number of strings with
+	 * the given false-positive rate.
+	 * 
+	 * @param capacity
+	 *            the number of strings the filter is expected to hold
+	 * @param falsePositiveRate
+	 *            the rate of false positives once the filter holds
+	 *            <code>capacity</code> strings
+	 */
+	BloomFilter(final int capacity, final double falsePositiveRate) {
+		this.capacity = Math.max(capacity, 1);
+		final long optimalBits = (long) Math.ceil(-this.capacity * Math.log(falsePositiveRate) / (LN_2 * LN_2));
+		final int words = (int) Math.min((Math.max(optimalBits, 64) + 63) / 64, Integer.MAX_VALUE / 64);
+		bits = new AtomicLongArray(words);
+		bitCount = words * 64L;
+		hashCount = Math.max(1, (int) Math.round((double) bitCount / this.capacity * LN_2));
+	}
+
+	/**
+	 * Gets the number of strings the filter was sized for.
+	 * 
+	 * @return the capacity of the filter
+	 */
+	int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Gets the number of strings that have been added to the filter. Adding a
+	 * string that the filter already seems to contain is not counted, so this
+	 * is slightly lower than the number of distinct strings added.
+	 * 
+	 * @return the approximate number of strings in the filter
+	 */
+	int size() {
+		return size.get();
+	}
+
+	/**
+	 * Adds a string to the filter.
+	 * 
+	 * @param string
+	 *            the string to add
+	 * @return <code>true</code> if the filter changed, <code>false</code> if
+	 *         it already seemed to contain the string
+	 */
+	boolean add(final String string) {
+		final long hash = hash(string);
+		final long increment = mix(hash);
+		long combined = hash;
+		boolean changed = false;
+		for (int i = 0; i < hashCount; i++, combined += increment) {
+			final long bit = (combined & Long.MAX_VALUE) % bitCount;
+			final int word = (int) (bit >>> 6);
+			final long mask = 1L << bit;
+			long current;
+			while (((current = bits.get(word)) & mask) == 0) {
+				if (bits.compareAndSet(word, current, current | mask)) {
+					changed = true;
+					break;
+				}
+			}
+		}
+		if (changed) {
+			size.incrementAndGet();
+		}
+		return changed;
+	}
+
+	/**
+	 * Checks whether a string may have been added to the filter.
+	 * 
+	 * @param string
+	 *            the string to check
+	 * @return <code>false</code> if the string has certainly never been
+	 *         added, <code>true</code> if it may have been
+	 */
+	boolean mightContain(final String string) {
+		final long hash = hash(string);
+		final long increment = mix(hash);
+		long combined = hash;
+		for (int i = 0; i < hashCount; i++, combined += increment) {
+			final long bit = (combined & Long.MAX_VALUE) % bitCount;
+			if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Estimates the current false-positive rate of the filter from the number
+	 * of strings it holds.
+	 * 
+	 * @return the expected rate of false positives
+	 */
+	double getExpectedFalsePositiveRate() {
+		return Math.pow(1 - Math.exp(-hashCount * (double) size.get() / bitCount), hashCount);
+	}
+
+	/**
+	 * Hashes a string with 64-bit FNV-1a over its characters.
+	 */
+	private static long hash(final String string) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < string.length(); i++) {
+			hash ^= string.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return mix(hash);
+	}
+
+	/**
+	 * Scrambles the bits of a hash (the finalizer of SplitMix64), so that a
+	 * second, independent hash can be derived from the first one.
+	 */
+	private static long mix(long hash) {
+		hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+		hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+		return hash ^ (hash >>> 31);
+	}
+}
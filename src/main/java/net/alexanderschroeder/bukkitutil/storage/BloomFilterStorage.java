@@ -0,0 +1,390 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * A {@link Storage} that keeps a Bloom filter of the keys of every context of
+ * another storage, so that looking up a key that does not exist usually
+ * returns straight away instead of reading the context.
+ * 
+ * <p>
+ * The filter of a context is built from {@link Storage#getKeys(String)
+ * getKeys()} the first time a key is looked up in the context, and every key
+ * saved through this storage is added to it. A filter cannot forget keys, so
+ * deleted keys are still looked up in the wrapped storage until the context
+ * is deleted, or the filter outgrows its capacity and is built again.
+ * 
+ * <p>
+ * Because {@link FileConfigurationStorage} only reports the top-level keys of
+ * a context, keys containing a <code>.</code> are always looked up in the
+ * wrapped storage.
+ * 
+ * <p>
+ * All changes to the wrapped storage must be made through this storage;
+ * keys saved to the wrapped storage directly may be reported as missing.
+ */
+public class BloomFilterStorage extends ForwardingStorage {
+
+	/** The smallest number of keys a filter is sized for. */
+	private static final int MINIMUM_CAPACITY = 1024;
+
+	private volatile double falsePositiveRate = 0.01;
+
+	private final ConcurrentMap<String, ContextFilter> filters = new ConcurrentHashMap<String, ContextFilter>();
+
+	private final AtomicLong avoidedLookups = new AtomicLong();
+
+	private final AtomicLong falsePositives = new AtomicLong();
+
+	/**
+	 * Creates a <code>BloomFilterStorage</code> that filters the lookups of
+	 * the given storage.
+	 * 
+	 * @param storage
+	 *            the storage to filter the lookups of
+	 */
+	public BloomFilterStorage(final Storage storage) {
+		super(storage);
+	}
+
+	/**
+	 * Gets the rate of false positives the filters are sized for.
+	 * 
+	 * @return the target false-positive rate
+	 */
+	public double getFalsePositiveRate() {
+		return falsePositiveRate;
+	}
+
+	/**
+	 * Sets the rate of false positives the filters are sized for. A lower rate
+	 * makes the filters larger; at the default rate of 1%, a filter takes up
+	 * about 10 bits per key. Filters that have already been built are
+	 * discarded.
+	 * 
+	 * @param falsePositiveRate
+	 *            the target false-positive rate, between 0 and 1
+	 */
+	public void setFalsePositiveRate(final double falsePositiveRate) {
+		if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+			throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1");
+		}
+		this.falsePositiveRate = falsePositiveRate;
+		filters.clear();
+	}
+
+	/**
+	 * Gets the number of lookups that were answered by a filter without
+	 * reading the wrapped storage.
+	 * 
+	 * @return the number of avoided lookups
+	 */
+	public long getAvoidedLookups() {
+		return avoidedLookups.get();
+	}
+
+	/**
+	 * Gets the number of lookups that a filter let through to the wrapped
+	 * storage, but that did not find anything there. This includes lookups of
+	 * deleted keys.
+	 * 
+	 * @return the number of false positives
+	 */
+	public long getFalsePositives() {
+		return falsePositives.get();
+	}
+
+	/**
+	 * Gets the observed false-positive rate: the share of lookups of missing
+	 * keys that a filter let through to the wrapped storage.
+	 * 
+	 * @return the observed false-positive rate, or 0 if no missing keys have
+	 *         been looked up
+	 */
+	public double getObservedFalsePositiveRate() {
+		final long falsePositives = this.falsePositives.get();
+		final long lookups = falsePositives + avoidedLookups.get();
+		return lookups == 0 ? 0 : (double) falsePositives / lookups;
+	}
+
+	/**
+	 * Gets the false-positive rate the filter of a context is expected to
+	 * have with the number of keys it currently holds.
+	 * 
+	 * @param context
+	 *            the context to get the expected false-positive rate of
+	 * @return the expected false-positive rate, or {@link Double#NaN} if the
+	 *         context has no filter yet
+	 */
+	public double getExpectedFalsePositiveRate(final String context) {
+		final ContextFilter contextFilter = filters.get(context);
+		final BloomFilter filter = contextFilter == null ? null : contextFilter.filter;
+		return filter == null ? Double.NaN : filter.getExpectedFalsePositiveRate();
+	}
+
+	@Override
+	public void initialize(final JavaPlugin plugin) throws StorageException {
+		filters.clear();
+		super.initialize(plugin);
+	}
+
+	@Override
+	public void save(final String context, final String key, final Object value) throws StorageException {
+		super.save(context, key, value);
+		if (value != null) {
+			addKey(context, key);
+		}
+	}
+
+	@Override
+	public Object load(final String context, final String key) throws StorageException {
+		if (isMissing(context, key)) {
+			return null;
+		}
+		final Object value = super.load(context, key);
+		if (value == null) {
+			falsePositives.incrementAndGet();
+		}
+		return value;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation calls {@link #load(String, String) load()}, so a
+	 * key that the filter lets through but is not found is counted as a false
+	 * positive.
+	 */
+	@Override
+	public <T> T load(final String context, final String key, final Class<T> type) throws StorageException {
+		final Object value = load(context, key);
+		if (value == null || type.isInstance(value)) {
+			return type.cast(value);
+		}
+		throw new StorageException("The object stored with key " + key + " in context " + context + " is a " + value.getClass().getName() + ", not a " + type.getName());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation calls {@link #load(String, String) load()}, so a
+	 * key that the filter lets through but is not found is counted as a false
+	 * positive.
+	 */
+	@Override
+	public int loadInt(final String context, final String key, final int defaultValue) throws StorageException {
+		final Object value = load(context, key);
+		return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation calls {@link #load(String, String) load()}, so a
+	 * key that the filter lets through but is not found is counted as a false
+	 * positive.
+	 */
+	@Override
+	public long loadLong(final String context, final String key, final long defaultValue) throws StorageException {
+		final Object value = load(context, key);
+		return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation calls {@link #load(String, String) load()}, so a
+	 * key that the filter lets through but is not found is counted as a false
+	 * positive.
+	 */
+	@Override
+	public double loadDouble(final String context, final String key, final double defaultValue) throws StorageException {
+		final Object value = load(context, key);
+		return value instanceof Number ? ((Number) value).doubleValue() : defaultValue;
+	}
+
+	@Override
+	public boolean exists(final String context, final String key) throws StorageException {
+		if (isMissing(context, key)) {
+			return false;
+		}
+		final boolean exists = super.exists(context, key);
+		if (!exists) {
+			falsePositives.incrementAndGet();
+		}
+		return exists;
+	}
+
+	@Override
+	public long increment(final String context, final String key, final long delta) throws StorageException {
+		final long value = super.increment(context, key, delta);
+		addKey(context, key);
+		return value;
+	}
+
+	@Override
+	public boolean compareAndSet(final String context, final String key, final Object expectedValue, final Object newValue) throws StorageException {
+		final boolean swapped = super.compareAndSet(context, key, expectedValue, newValue);
+		if (swapped && newValue != null) {
+			addKey(context, key);
+		}
+		return swapped;
+	}
+
+	@Override
+	public Object merge(final String context, final String key, final Object value, final StorageMerger merger) throws StorageException {
+		final Object mergedValue = super.merge(context, key, value, merger);
+		if (mergedValue != null) {
+			addKey(context, key);
+		}
+		return mergedValue;
+	}
+
+	@Override
+	public void delete(final String context) throws StorageException {
+		super.delete(context);
+		filters.remove(context);
+	}
+
+	@Override
+	public void saveAll(final String context, final Map<String, ?> values) throws StorageException {
+		super.saveAll(context, values);
+		for (final Map.Entry<String, ?> entry : values.entrySet()) {
+			if (entry.getValue() != null) {
+				addKey(context, entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Only the keys that may exist are loaded from the wrapped storage.
+	 */
+	@Override
+	public Map<String, Object> loadAll(final String context, final Collection<String> keys) throws StorageException {
+		final List<String> possibleKeys = new ArrayList<String>(keys.size());
+		for (final String key : keys) {
+			if (!isMissing(context, key)) {
+				possibleKeys.add(key);
+			}
+		}
+		if (possibleKeys.isEmpty()) {
+			return new HashMap<String, Object>();
+		}
+
+		final Map<String, Object> values = super.loadAll(context, possibleKeys);
+		falsePositives.addAndGet(possibleKeys.size() - values.size());
+		return values;
+	}
+
+	@Override
+	public void close() throws StorageException {
+		filters.clear();
+		super.close();
+	}
+
+	/**
+	 * Checks whether the filter of a context, building it if needed, tells
+	 * for certain that a key does not exist.
+	 */
+	private boolean isMissing(final String context, final String key) {
+		if (key.indexOf('.') >= 0) {
+			return false;
+		}
+
+		ContextFilter contextFilter = filters.get(context);
+		if (contextFilter == null) {
+			contextFilter = buildFilter(context);
+		}
+		final BloomFilter filter = contextFilter.filter;
+		if (filter == null || filter.mightContain(key)) {
+			return false;
+		}
+		avoidedLookups.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Builds the filter of a context. The filter is published before the keys
+	 * are read, so that keys saved while they are read are not missed.
+	 */
+	private ContextFilter buildFilter(final String context) {
+		final ContextFilter contextFilter = new ContextFilter();
+		final ContextFilter existing = filters.putIfAbsent(context, contextFilter);
+		if (existing != null) {
+			return existing;
+		}
+
+		try {
+			final Collection<String> keys = getStorage().getKeys(context);
+			final BloomFilter filter = new BloomFilter(Math.max(MINIMUM_CAPACITY, keys.size() * 2), falsePositiveRate);
+			for (final String key : keys) {
+				filter.add(key);
+			}
+			synchronized (contextFilter) {
+				for (final String key : contextFilter.pendingKeys) {
+					filter.add(key);
+				}
+				contextFilter.pendingKeys = null;
+				contextFilter.filter = filter;
+			}
+		} catch (final RuntimeException e) {
+			filters.remove(context, contextFilter);
+			throw e;
+		}
+		return contextFilter;
+	}
+
+	private void addKey(final String context, final String key) {
+		final ContextFilter contextFilter = filters.get(context);
+		if (contextFilter == null) {
+			return;
+		}
+
+		synchronized (contextFilter) {
+			if (contextFilter.filter == null) {
+				contextFilter.pendingKeys.add(key);
+				return;
+			}
+		}
+		contextFilter.filter.add(key);
+		if (contextFilter.filter.size() > contextFilter.filter.getCapacity()) {
+			// Too full to be useful; build a larger one on the next lookup
+			filters.remove(context, contextFilter);
+		}
+	}
+
+	private static final class ContextFilter {
+		volatile BloomFilter filter;
+		List<String> pendingKeys = new ArrayList<String>();
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+/**
+ * A {@link Storage} that may keep changes in memory before writing them to
+ * its backing medium. Changes are only guaranteed to have been written once
+ * {@link #flush()} or {@link #close()} has returned, so a plug-in using a
+ * <code>BufferedStorage</code> should at the very least call {@link #close()}
+ * from its <code>onDisable()</code> method.
+ */
+public interface BufferedStorage extends Storage {
+
+	/**
+	 * Writes all pending changes to the backing medium.
+	 * 
+	 * @throws StorageException
+	 *             if there is a problem writing the changes
+	 */
+	void flush() throws StorageException;
+
+	/**
+	 * Writes all pending changes to the backing medium and releases any
+	 * resources held by the storage system. The storage system cannot be used
+	 * again until it has been re-initialized.
+	 * 
+	 * @throws StorageException
+	 *             if there is a problem writing the changes or releasing the
+	 *             resources
+	 */
+	void close() throws StorageException;
+}
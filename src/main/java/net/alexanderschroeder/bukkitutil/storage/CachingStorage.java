@@ -0,0 +1,1092 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * A {@link Storage} that keeps the objects loaded from another storage in
+ * memory, so that loading them again does not have to reach the wrapped
+ * storage. This pays off the most in front of a storage where every lookup is
+ * expensive, such as {@link DatabaseStorage}. Keys that were looked up and
+ * found missing are cached as well.
+ * 
+ * <p>
+ * The cache is bounded by a {@link #setMaximumEntries(int) number of entries}
+ * and, optionally, by a {@link #setMaximumWeight(long) total weight}, which by
+ * default is a rough estimate of the memory taken up by the cached objects.
+ * When it is full, the least recently used entry is evicted. With the
+ * {@link EvictionPolicy#TINY_LFU TINY_LFU} policy, a new entry is only let in
+ * if it has been used more often lately than the entry it would evict, which
+ * keeps a one-off scan of many keys from flushing out the keys that are used
+ * all the time. Entries can also be {@link #setExpireAfterWrite(long, TimeUnit)
+ * expired} a fixed time after they were loaded or saved.
+ * 
+ * <p>
+ * Changes are {@link WriteMode#WRITE_THROUGH written through} to the wrapped
+ * storage by default. In {@link WriteMode#WRITE_BEHIND WRITE_BEHIND} mode,
+ * they are kept in memory, and only written to the wrapped storage when
+ * {@link #flush()} or {@link #close()} is called, which a
+ * {@link FlushScheduler} can do periodically. Pending changes are never
+ * evicted, and calls that list keys or contexts write the pending changes of
+ * what they list first.
+ * 
+ * <p>
+ * All changes to the wrapped storage must be made through this storage, or
+ * be followed by a call to one of the <code>invalidate</code> methods;
+ * otherwise, stale objects may be returned from the cache.
+ */
+public class CachingStorage extends ForwardingStorage {
+
+	/**
+	 * The ways a {@link CachingStorage} can choose what to keep when it is
+	 * full.
+	 */
+	public enum EvictionPolicy {
+		/** Evict the least recently used entry to make room for a new one. */
+		LRU,
+		/**
+		 * Evict the least recently used entry, but only if the new entry has
+		 * been used more often lately; otherwise, the new entry is not cached.
+		 */
+		TINY_LFU
+	}
+
+	/**
+	 * The ways a {@link CachingStorage} can write changes to the wrapped
+	 * storage.
+	 */
+	public enum WriteMode {
+		/** Write every change to the wrapped storage immediately. */
+		WRITE_THROUGH,
+		/** Keep changes in memory until the storage is flushed. */
+		WRITE_BEHIND
+	}
+
+	/**
+	 * Decides how much of the cache's {@link CachingStorage#setMaximumWeight(long)
+	 * maximum weight} an entry takes up.
+	 */
+	public interface Weigher {
+
+		/**
+		 * Gets the weight of an entry.
+		 * 
+		 * @param context
+		 *            the context of the entry
+		 * @param key
+		 *            the key of the entry
+		 * @param value
+		 *            the cached object, or <code>null</code> if the entry
+		 *            records that the key is missing
+		 * @return the weight of the entry; must not be negative
+		 */
+		long weigh(String context, String key, Object value);
+	}
+
+	/**
+	 * A {@link Weigher} that estimates the number of bytes an entry takes up
+	 * on the heap. Strings, numbers, booleans and collections and maps of
+	 * these are estimated from their contents; any other object is counted as
+	 * 64 bytes.
+	 */
+	public static final Weigher ESTIMATED_BYTES = new Weigher() {
+		public long weigh(final String context, final String key, final Object value) {
+			return ENTRY_OVERHEAD + estimateSize(key) + estimateSize(value);
+		}
+	};
+
+	private static final long ENTRY_OVERHEAD = 96;
+
+	/** Marks a cached key that is known to be missing, and a pending deletion. */
+	private static final Object MISSING = new Object();
+
+	private volatile int maximumEntries = 10000;
+
+	private volatile long maximumWeight = Long.MAX_VALUE;
+
+	private volatile Weigher weigher = ESTIMATED_BYTES;
+
+	private volatile long expireAfterWriteNanos = 0;
+
+	private volatile EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+
+	private volatile WriteMode writeMode = WriteMode.WRITE_THROUGH;
+
+	/** The cached entries, from least to most recently used. Guards all state. */
+	private final LinkedHashMap<CacheKey, Entry> entries = new LinkedHashMap<CacheKey, Entry>(16, 0.75f, true);
+
+	private FrequencySketch sketch = new FrequencySketch(maximumEntries);
+
+	private long weight;
+
+	/**
+	 * The changes to each context, so loads can tell if they raced a change
+	 * to their own context.
+	 */
+	private final Map<String, ContextChanges> changes = new HashMap<String, ContextChanges>();
+
+	/** Incremented by {@link #invalidateAll()}, which changes every context. */
+	private long globalGeneration;
+
+	/** Changes not yet written in write-behind mode, by context and key. */
+	private final Map<String, Map<String, Object>> pendingWrites = new HashMap<String, Map<String, Object>>();
+
+	/**
+	 * Serializes the writing of each context's pending changes, so an older
+	 * snapshot of the changes is never written over a newer one.
+	 */
+	private final StripedLock writeLocks = new StripedLock(64);
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	private final AtomicLong expirations = new AtomicLong();
+
+	/**
+	 * Creates a <code>CachingStorage</code> that caches the objects of the
+	 * given storage.
+	 * 
+	 * @param storage
+	 *            the storage to cache the objects of
+	 */
+	public CachingStorage(final Storage storage) {
+		super(storage);
+	}
+
+	/**
+	 * Gets the maximum number of entries in the cache.
+	 * 
+	 * @return the maximum number of entries
+	 */
+	public int getMaximumEntries() {
+		return maximumEntries;
+	}
+
+	/**
+	 * Sets the maximum number of entries in the cache. Entries are evicted
+	 * until the cache fits. The default maximum is 10000 entries.
+	 * 
+	 * @param maximumEntries
+	 *            the maximum number of entries
+	 */
+	public void setMaximumEntries(final int maximumEntries) {
+		if (maximumEntries < 1) {
+			throw new IllegalArgumentException("maximumEntries must be positive");
+		}
+		synchronized (entries) {
+			this.maximumEntries = maximumEntries;
+			sketch = new FrequencySketch(maximumEntries);
+			evictToFit(0, 0);
+		}
+	}
+
+	/**
+	 * Gets the maximum total weight of the entries in the cache.
+	 * 
+	 * @return the maximum weight
+	 */
+	public long getMaximumWeight() {
+		return maximumWeight;
+	}
+
+	/**
+	 * Sets the maximum total weight of the entries in the cache, as decided by
+	 * the {@link #setWeigher(Weigher) weigher}. With the default weigher, this
+	 * is the approximate number of bytes the cache may take up. Entries are
+	 * evicted until the cache fits. By default, the weight is not limited.
+	 * 
+	 * @param maximumWeight
+	 *            the maximum weight
+	 */
+	public void setMaximumWeight(final long maximumWeight) {
+		if (maximumWeight < 1) {
+			throw new IllegalArgumentException("maximumWeight must be positive");
+		}
+		synchronized (entries) {
+			this.maximumWeight = maximumWeight;
+			evictToFit(0, 0);
+		}
+	}
+
+	/**
+	 * Gets the weigher used to decide the weight of each entry.
+	 * 
+	 * @return the weigher
+	 */
+	public Weigher getWeigher() {
+		return weigher;
+	}
+
+	/**
+	 * Sets the weigher used to decide the weight of each entry. The cache is
+	 * emptied, except for entries with pending changes, which are weighed
+	 * again. The default weigher is {@link #ESTIMATED_BYTES}.
+	 * 
+	 * @param weigher
+	 *            the weigher
+	 */
+	public void setWeigher(final Weigher weigher) {
+		if (weigher == null) {
+			throw new IllegalArgumentException("weigher cannot be null");
+		}
+		synchronized (entries) {
+			this.weigher = weigher;
+			invalidateAll();
+			weight = 0;
+			for (final Map.Entry<CacheKey, Entry> entry : entries.entrySet()) {
+				final Entry oldEntry = entry.getValue();
+				final Object value = oldEntry.value == MISSING ? null : oldEntry.value;
+				final long entryWeight = weigher.weigh(entry.getKey().context, entry.getKey().key, value);
+				entry.setValue(new Entry(oldEntry.value, entryWeight, oldEntry.expiresAt));
+				weight += entryWeight;
+			}
+		}
+	}
+
+	/**
+	 * Gets the time after which an entry expires, counted from when it was
+	 * loaded or saved.
+	 * 
+	 * @param unit
+	 *            the unit to get the time in
+	 * @return the expiry time, or 0 if entries do not expire
+	 */
+	public long getExpireAfterWrite(final TimeUnit unit) {
+		return unit.convert(expireAfterWriteNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Sets the time after which an entry expires, counted from when it was
+	 * loaded or saved. An expired entry is loaded from the wrapped storage
+	 * again the next time it is used. Entries already cached keep their
+	 * expiry time. By default, entries do not expire.
+	 * 
+	 * @param duration
+	 *            the expiry time, or 0 to never expire entries
+	 * @param unit
+	 *            the unit of the <code>duration</code> argument
+	 */
+	public void setExpireAfterWrite(final long duration, final TimeUnit unit) {
+		if (duration < 0) {
+			throw new IllegalArgumentException("duration cannot be negative");
+		}
+		expireAfterWriteNanos = unit.toNanos(duration);
+	}
+
+	/**
+	 * Gets the policy used to choose what to keep when the cache is full.
+	 * 
+	 * @return the eviction policy
+	 */
+	public EvictionPolicy getEvictionPolicy() {
+		return evictionPolicy;
+	}
+
+	/**
+	 * Sets the policy used to choose what to keep when the cache is full. The
+	 * default policy is {@link EvictionPolicy#LRU LRU}.
+	 * 
+	 * @param evictionPolicy
+	 *            the eviction policy
+	 */
+	public void setEvictionPolicy(final EvictionPolicy evictionPolicy) {
+		if (evictionPolicy == null) {
+			throw new IllegalArgumentException("evictionPolicy cannot be null");
+		}
+		this.evictionPolicy = evictionPolicy;
+	}
+
+	/**
+	 * Gets the way changes are written to the wrapped storage.
+	 * 
+	 * @return the write mode
+	 */
+	public WriteMode getWriteMode() {
+		return writeMode;
+	}
+
+	/**
+	 * Sets the way changes are written to the wrapped storage. Switching from
+	 * {@link WriteMode#WRITE_BEHIND WRITE_BEHIND} to
+	 * {@link WriteMode#WRITE_THROUGH WRITE_THROUGH} writes the pending
+	 * changes. Until the pending changes of a context have been written, new
+	 * changes to it are written after them. The default mode is
+	 * <code>WRITE_THROUGH</code>.
+	 * 
+	 * @param writeMode
+	 *            the write mode
+	 * @throws StorageException
+	 *             if the pending changes cannot be written
+	 */
+	public void setWriteMode(final WriteMode writeMode) throws StorageException {
+		if (writeMode == null) {
+			throw new IllegalArgumentException("writeMode cannot be null");
+		}
+		final WriteMode oldWriteMode = this.writeMode;
+		this.writeMode = writeMode;
+		if (oldWriteMode == WriteMode.WRITE_BEHIND && writeMode == WriteMode.WRITE_THROUGH) {
+			writePending(null);
+		}
+	}
+
+	/**
+	 * Gets the number of lookups that were answered from the cache.
+	 * 
+	 * @return the number of cache hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of lookups that had to reach the wrapped storage.
+	 * 
+	 * @return the number of cache misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Gets the share of lookups that were answered from the cache.
+	 * 
+	 * @return the hit rate, or 0 if nothing has been looked up
+	 */
+	public double getHitRate() {
+		final long hits = this.hits.get();
+		final long lookups = hits + misses.get();
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	/**
+	 * Gets the number of entries that were evicted, or not let in, to keep
+	 * the cache within its bounds.
+	 * 
+	 * @return the number of evictions
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Gets the number of entries that were dropped because they had expired.
+	 * 
+	 * @return the number of expirations
+	 */
+	public long getExpirations() {
+		return expirations.get();
+	}
+
+	/**
+	 * Gets the number of entries in the cache.
+	 * 
+	 * @return the number of entries
+	 */
+	public int getSize() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Gets the total weight of the entries in the cache.
+	 * 
+	 * @return the total weight
+	 */
+	public long getWeight() {
+		synchronized (entries) {
+			return weight;
+		}
+	}
+
+	/**
+	 * Drops a key from the cache, so it is loaded from the wrapped storage the
+	 * next time it is used. A key with pending changes is kept, since the
+	 * wrapped storage does not have its latest object yet.
+	 * 
+	 * @param context
+	 *            the context of the key
+	 * @param key
+	 *            the key to drop
+	 */
+	public void invalidate(final String context, final String key) {
+		synchronized (entries) {
+			getChanges(context).generation++;
+			final CacheKey cacheKey = new CacheKey(context, key);
+			if (!isPending(cacheKey)) {
+				removeEntry(cacheKey);
+			}
+		}
+	}
+
+	/**
+	 * Drops every key of a context from the cache. Keys with pending changes
+	 * are kept.
+	 * 
+	 * @param context
+	 *            the context to drop
+	 */
+	public void invalidate(final String context) {
+		synchronized (entries) {
+			getChanges(context).generation++;
+			final Iterator<Map.Entry<CacheKey, Entry>> iterator = entries.entrySet().iterator();
+			while (iterator.hasNext()) {
+				final Map.Entry<CacheKey, Entry> entry = iterator.next();
+				if (entry.getKey().context.equals(context) && !isPending(entry.getKey())) {
+					weight -= entry.getValue().weight;
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Empties the cache, except for the keys with pending changes.
+	 */
+	public void invalidateAll() {
+		synchronized (entries) {
+			globalGeneration++;
+			final Iterator<Map.Entry<CacheKey, Entry>> iterator = entries.entrySet().iterator();
+			while (iterator.hasNext()) {
+				final Map.Entry<CacheKey, Entry> entry = iterator.next();
+				if (!isPending(entry.getKey())) {
+					weight -= entry.getValue().weight;
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	@Override
+	public void initialize(final JavaPlugin plugin) throws StorageException {
+		invalidateAll();
+		super.initialize(plugin);
+	}
+
+	@Override
+	public void save(final String context, final String key, final Object value) throws StorageException {
+		saveAll(context, Collections.singletonMap(key, value));
+	}
+
+	@Override
+	public Object load(final String context, final String key) throws StorageException {
+		final CacheKey cacheKey = new CacheKey(context, key);
+		final long loadGeneration;
+		synchronized (entries) {
+			final Object value = getCached(cacheKey);
+			if (value != null) {
+				hits.incrementAndGet();
+				return value == MISSING ? null : value;
+			}
+			loadGeneration = getGeneration(context);
+		}
+
+		misses.incrementAndGet();
+		final Object value = super.load(context, key);
+		synchronized (entries) {
+			if (getGeneration(context) == loadGeneration) {
+				putEntry(cacheKey, value);
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation calls {@link #load(String, String) load()} and
+	 * checks the type of the object.
+	 */
+	@Override
+	public <T> T load(final String context, final String key, final Class<T> type) throws StorageException {
+		final Object value = load(context, key);
+		if (value == null || type.isInstance(value)) {
+			return type.cast(value);
+		}
+		throw new StorageException("The object stored with key " + key + " in context " + context + " is a " + value.getClass().getName() + ", not a " + type.getName());
+	}
+
+	@Override
+	public int loadInt(final String context, final String key, final int defaultValue) throws StorageException {
+		final Object value = load(context, key);
+		return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+	}
+
+	@Override
+	public long loadLong(final String context, final String key, final long defaultValue) throws StorageException {
+		final Object value = load(context, key);
+		return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+	}
+
+	@Override
+	public double loadDouble(final String context, final String key, final double defaultValue) throws StorageException {
+		final Object value = load(context, key);
+		return value instanceof Number ? ((Number) value).doubleValue() : defaultValue;
+	}
+
+	@Override
+	public boolean exists(final String context, final String key) throws StorageException {
+		synchronized (entries) {
+			final Object value = getCached(new CacheKey(context, key));
+			if (value != null) {
+				hits.incrementAndGet();
+				return value != MISSING;
+			}
+		}
+		misses.incrementAndGet();
+		return super.exists(context, key);
+	}
+
+	@Override
+	public void delete(final String context) throws StorageException {
+		final Lock writeLock = writeLocks.get(context).writeLock();
+		writeLock.lock();
+		try {
+			synchronized (entries) {
+				pendingWrites.remove(context);
+			}
+			super.delete(context);
+			invalidate(context);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public void deleteKey(final String context, final String key) throws StorageException {
+		saveAll(context, Collections.singletonMap(key, null));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Pending changes to the context are written first, so that the wrapped
+	 * storage can increment the number atomically. The key is dropped from the
+	 * cache.
+	 */
+	@Override
+	public long increment(final String context, final String key, final long delta) throws StorageException {
+		writePending(context);
+		invalidate(context, key);
+		try {
+			return super.increment(context, key, delta);
+		} finally {
+			invalidate(context, key);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Pending changes to the context are written first, so that the wrapped
+	 * storage can compare and replace the object atomically. The key is
+	 * dropped from the cache.
+	 */
+	@Override
+	public boolean compareAndSet(final String context, final String key, final Object expectedValue, final Object newValue) throws StorageException {
+		writePending(context);
+		invalidate(context, key);
+		try {
+			return super.compareAndSet(context, key, expectedValue, newValue);
+		} finally {
+			invalidate(context, key);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Pending changes to the context are written first, so that the wrapped
+	 * storage can merge the object atomically. The key is dropped from the
+	 * cache.
+	 */
+	@Override
+	public Object merge(final String context, final String key, final Object value, final StorageMerger merger) throws StorageException {
+		writePending(context);
+		invalidate(context, key);
+		try {
+			return super.merge(context, key, value, merger);
+		} finally {
+			invalidate(context, key);
+		}
+	}
+
+	@Override
+	public Set<String> getContexts() throws StorageException {
+		writePending(null);
+		return super.getContexts();
+	}
+
+	@Override
+	public Set<String> getKeys(final String context) throws StorageException {
+		writePending(context);
+		return super.getKeys(context);
+	}
+
+	@Override
+	public SortedSet<String> getKeysWithPrefix(final String context, final String prefix) throws StorageException {
+		writePending(context);
+		return super.getKeysWithPrefix(context, prefix);
+	}
+
+	@Override
+	public SortedSet<String> getKeysInRange(final String context, final String fromKey, final String toKey) throws StorageException {
+		writePending(context);
+		return super.getKeysInRange(context, fromKey, toKey);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * A <code>null</code> value deletes the key.
+	 */
+	@Override
+	public void saveAll(final String context, final Map<String, ?> values) throws StorageException {
+		if (values.isEmpty()) {
+			return;
+		}
+
+		final boolean writeBehind;
+		final boolean pending;
+		final ContextChanges contextChanges;
+		final long writeGeneration;
+		synchronized (entries) {
+			writeBehind = writeMode == WriteMode.WRITE_BEHIND;
+			contextChanges = getChanges(context);
+			contextChanges.generation++;
+			// Changes still pending from write-behind mode must not be written
+			// over these, so these are written after them
+			pending = writeBehind || pendingWrites.containsKey(context);
+			if (pending) {
+				Map<String, Object> pendingChanges = pendingWrites.get(context);
+				if (pendingChanges == null) {
+					pendingChanges = new LinkedHashMap<String, Object>();
+					pendingWrites.put(context, pendingChanges);
+				}
+				for (final Map.Entry<String, ?> entry : values.entrySet()) {
+					pendingChanges.put(entry.getKey(), entry.getValue() == null ? MISSING : entry.getValue());
+					putEntry(new CacheKey(context, entry.getKey()), entry.getValue());
+				}
+				writeGeneration = 0;
+			} else {
+				contextChanges.writesInProgress++;
+				for (final String key : values.keySet()) {
+					removeEntry(new CacheKey(context, key));
+				}
+				writeGeneration = getGeneration(context);
+			}
+		}
+		if (pending) {
+			if (!writeBehind) {
+				writePendingContext(context);
+			}
+			return;
+		}
+
+		boolean written = false;
+		try {
+			writeThrough(context, values);
+			written = true;
+		} finally {
+			synchronized (entries) {
+				contextChanges.writesInProgress--;
+				// Writes that overlap may reach the wrapped storage in any
+				// order, so only cache what we wrote if nothing else changed
+				if (written && getGeneration(context) == writeGeneration && contextChanges.writesInProgress == 0) {
+					for (final Map.Entry<String, ?> entry : values.entrySet()) {
+						putEntry(new CacheKey(context, entry.getKey()), entry.getValue());
+					}
+				}
+				contextChanges.generation++;
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Only the keys that are not cached are loaded from the wrapped storage.
+	 */
+	@Override
+	public Map<String, Object> loadAll(final String context, final Collection<String> keys) throws StorageException {
+		final Map<String, Object> values = new HashMap<String, Object>();
+		final List<String> uncachedKeys = new ArrayList<String>();
+		final long loadGeneration;
+		synchronized (entries) {
+			for (final String key : keys) {
+				final Object value = getCached(new CacheKey(context, key));
+				if (value == null) {
+					uncachedKeys.add(key);
+				} else if (value != MISSING) {
+					values.put(key, value);
+				}
+			}
+			loadGeneration = getGeneration(context);
+		}
+		hits.addAndGet(keys.size() - uncachedKeys.size());
+		if (uncachedKeys.isEmpty()) {
+			return values;
+		}
+
+		misses.addAndGet(uncachedKeys.size());
+		final Map<String, Object> loadedValues = super.loadAll(context, uncachedKeys);
+		values.putAll(loadedValues);
+		synchronized (entries) {
+			if (getGeneration(context) == loadGeneration) {
+				for (final String key : uncachedKeys) {
+					putEntry(new CacheKey(context, key), loadedValues.get(key));
+				}
+			}
+		}
+		return values;
+	}
+
+	@Override
+	public void deleteKeys(final String context, final Collection<String> keys) throws StorageException {
+		final Map<String, Object> values = new LinkedHashMap<String, Object>();
+		for (final String key : keys) {
+			values.put(key, null);
+		}
+		saveAll(context, values);
+	}
+
+	@Override
+	public void forEach(final String context, final StorageVisitor visitor) throws StorageException {
+		writePending(context);
+		super.forEach(context, visitor);
+	}
+
+	/**
+	 * Writes the pending changes to the wrapped storage, then flushes the
+	 * wrapped storage if it is a {@link BufferedStorage}.
+	 */
+	@Override
+	public void flush() throws StorageException {
+		writePending(null);
+		super.flush();
+	}
+
+	@Override
+	public void close() throws StorageException {
+		writePending(null);
+		invalidateAll();
+		super.close();
+	}
+
+	/**
+	 * Gets the cached object of a key, {@link #MISSING} if the key is known
+	 * to be missing, or <code>null</code> if it is not cached. The caller must
+	 * hold the lock.
+	 */
+	private Object getCached(final CacheKey cacheKey) {
+		if (evictionPolicy == EvictionPolicy.TINY_LFU) {
+			sketch.increment(cacheKey.hashCode());
+		}
+		final Entry entry = entries.get(cacheKey);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.expiresAt != 0 && entry.expiresAt - System.nanoTime() <= 0 && !isPending(cacheKey)) {
+			removeEntry(cacheKey);
+			expirations.incrementAndGet();
+			return null;
+		}
+		return entry.value;
+	}
+
+	/**
+	 * Caches an object, evicting other entries to make room for it. The
+	 * caller must hold the lock.
+	 */
+	private void putEntry(final CacheKey cacheKey, final Object value) {
+		removeEntry(cacheKey);
+
+		final Object cachedValue = value == null ? MISSING : value;
+		final long entryWeight = weigher.weigh(cacheKey.context, cacheKey.key, value);
+		final boolean pending = isPending(cacheKey);
+		if (!pending) {
+			if (entryWeight > maximumWeight) {
+				evictions.incrementAndGet();
+				return;
+			}
+			if (evictionPolicy == EvictionPolicy.TINY_LFU && !fits(1, entryWeight)) {
+				final CacheKey victim = findVictim();
+				if (victim != null && sketch.frequency(cacheKey.hashCode()) <= sketch.frequency(victim.hashCode())) {
+					evictions.incrementAndGet();
+					return;
+				}
+			}
+		}
+
+		evictToFit(1, entryWeight);
+		final long expireAfterWriteNanos = this.expireAfterWriteNanos;
+		final long expiresAt = expireAfterWriteNanos == 0 ? 0 : (System.nanoTime() + expireAfterWriteNanos) | 1;
+		entries.put(cacheKey, new Entry(cachedValue, entryWeight, expiresAt));
+		weight += entryWeight;
+	}
+
+	private void removeEntry(final CacheKey cacheKey) {
+		final Entry entry = entries.remove(cacheKey);
+		if (entry != null) {
+			weight -= entry.weight;
+		}
+	}
+
+	private boolean fits(final int newEntries, final long newWeight) {
+		return entries.size() + newEntries <= maximumEntries && weight + newWeight <= maximumWeight;
+	}
+
+	/**
+	 * Finds the least recently used entry that can be evicted, i.e. that has
+	 * no pending change. The caller must hold the lock.
+	 */
+	private CacheKey findVictim() {
+		for (final CacheKey cacheKey : entries.keySet()) {
+			if (!isPending(cacheKey)) {
+				return cacheKey;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Evicts the least recently used entries until the given number of new
+	 * entries of the given total weight fit, or only entries with pending
+	 * changes are left. The caller must hold the lock.
+	 */
+	private void evictToFit(final int newEntries, final long newWeight) {
+		final Iterator<Map.Entry<CacheKey, Entry>> iterator = entries.entrySet().iterator();
+		while (!fits(newEntries, newWeight) && iterator.hasNext()) {
+			final Map.Entry<CacheKey, Entry> entry = iterator.next();
+			if (isPending(entry.getKey())) {
+				continue;
+			}
+			weight -= entry.getValue().weight;
+			iterator.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Gets the record of changes to a context, creating it if needed. The
+	 * records are kept for good, so a generation is never seen twice. The
+	 * caller must hold the lock.
+	 */
+	private ContextChanges getChanges(final String context) {
+		ContextChanges contextChanges = changes.get(context);
+		if (contextChanges == null) {
+			contextChanges = new ContextChanges();
+			changes.put(context, contextChanges);
+		}
+		return contextChanges;
+	}
+
+	/**
+	 * Gets a number that changes whenever a context is changed. The caller
+	 * must hold the lock.
+	 */
+	private long getGeneration(final String context) {
+		return globalGeneration + getChanges(context).generation;
+	}
+
+	private boolean isPending(final CacheKey cacheKey) {
+		final Map<String, Object> pending = pendingWrites.get(cacheKey.context);
+		return pending != null && pending.containsKey(cacheKey.key);
+	}
+
+	/**
+	 * Writes the pending changes of a context, or of every context if
+	 * <code>context</code> is <code>null</code>, to the wrapped storage. The
+	 * changes stay pending until they have been written, so they are not
+	 * evicted in the meantime; a change that is replaced while it is being
+	 * written stays pending. Only one thread at a time writes the changes of
+	 * a context.
+	 */
+	private void writePending(final String context) throws StorageException {
+		final List<String> contexts;
+		synchronized (entries) {
+			if (context == null) {
+				contexts = new ArrayList<String>(pendingWrites.keySet());
+			} else if (pendingWrites.containsKey(context)) {
+				contexts = Collections.singletonList(context);
+			} else {
+				return;
+			}
+		}
+
+		for (final String pendingContext : contexts) {
+			writePendingContext(pendingContext);
+		}
+
+		synchronized (entries) {
+			evictToFit(0, 0);
+		}
+	}
+
+	private void writePendingContext(final String context) throws StorageException {
+		final Lock writeLock = writeLocks.get(context).writeLock();
+		writeLock.lock();
+		try {
+			// Taken under the write lock, so it is newer than any snapshot
+			// written before it
+			final Map<String, Object> snapshot;
+			synchronized (entries) {
+				final Map<String, Object> pending = pendingWrites.get(context);
+				if (pending == null) {
+					return;
+				}
+				snapshot = new LinkedHashMap<String, Object>(pending);
+			}
+
+			final Map<String, Object> values = new LinkedHashMap<String, Object>();
+			for (final Map.Entry<String, Object> change : snapshot.entrySet()) {
+				values.put(change.getKey(), change.getValue() == MISSING ? null : change.getValue());
+			}
+			writeThrough(context, values);
+
+			synchronized (entries) {
+				final Map<String, Object> pending = pendingWrites.get(context);
+				if (pending == null) {
+					return;
+				}
+				for (final Map.Entry<String, Object> change : snapshot.entrySet()) {
+					if (pending.get(change.getKey()) == change.getValue()) {
+						pending.remove(change.getKey());
+					}
+				}
+				if (pending.isEmpty()) {
+					pendingWrites.remove(context);
+				}
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Saves and deletes the given keys in the wrapped storage, where a
+	 * <code>null</code> value deletes the key.
+	 */
+	private void writeThrough(final String context, final Map<String, ?> values) throws StorageException {
+		final Map<String, Object> savedValues = new LinkedHashMap<String, Object>();
+		final List<String> deletedKeys = new ArrayList<String>();
+		for (final Map.Entry<String, ?> entry : values.entrySet()) {
+			if (entry.getValue() == null) {
+				deletedKeys.add(entry.getKey());
+			} else {
+				savedValues.put(entry.getKey(), entry.getValue());
+			}
+		}
+		if (!savedValues.isEmpty()) {
+			super.saveAll(context, savedValues);
+		}
+		if (!deletedKeys.isEmpty()) {
+			super.deleteKeys(context, deletedKeys);
+		}
+	}
+
+	/**
+	 * Estimates the number of bytes an object takes up on the heap.
+	 */
+	private static long estimateSize(final Object value) {
+		if (value == null) {
+			return 0;
+		} else if (value instanceof String) {
+			return 40 + 2L * ((String) value).length();
+		} else if (value instanceof Number || value instanceof Boolean) {
+			return 16;
+		} else if (value instanceof Collection) {
+			long size = 40;
+			for (final Object element : (Collection<?>) value) {
+				size += 8 + estimateSize(element);
+			}
+			return size;
+		} else if (value instanceof Map) {
+			long size = 48;
+			for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				size += 32 + estimateSize(entry.getKey()) + estimateSize(entry.getValue());
+			}
+			return size;
+		}
+		return 64;
+	}
+
+	private static final class CacheKey {
+		final String context;
+		final String key;
+		final int hash;
+
+		CacheKey(final String context, final String key) {
+			this.context = context;
+			this.key = key;
+			this.hash = 31 * context.hashCode() + key.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(final Object object) {
+			if (!(object instanceof CacheKey)) {
+				return false;
+			}
+			final CacheKey other = (CacheKey) object;
+			return hash == other.hash && context.equals(other.context) && key.equals(other.key);
+		}
+	}
+
+	private static final class ContextChanges {
+		/** Incremented by every change to the context. */
+		long generation;
+		int writesInProgress;
+	}
+
+	private static final class Entry {
+		final Object value;
+		final long weight;
+		final long expiresAt;
+
+		Entry(final Object value, final long weight, final long expiresAt) {
+			this.value = value;
+			this.weight = weight;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Converts objects of one type to and from a compact binary form. Registering
+ * a codec for a type in a {@link CodecRegistry} lets the binary
+ * {@link Storage} back-ends store objects of that type without going through
+ * their {@link org.bukkit.configuration.serialization.ConfigurationSerializable
+ * ConfigurationSerializable} form.
+ * 
+ * <p>
+ * The encoded form is stored as-is, so a codec must keep being able to decode
+ * what earlier versions of it have encoded.
+ * 
+ * @param <T>
+ *            the type of the objects the codec converts
+ */
+public interface Codec<T> {
+
+	/**
+	 * Writes an object.
+	 * 
+	 * @param value
+	 *            the object to write; never <code>null</code>
+	 * @param output
+	 *            the output to write the object to
+	 * @throws IOException
+	 *             if the output cannot be written to
+	 */
+	void encode(T value, DataOutput output) throws IOException;
+
+	/**
+	 * Reads an object written by {@link #encode(Object, DataOutput) encode()}.
+	 * 
+	 * @param input
+	 *            the input to read the object from
+	 * @return the object that was read
+	 * @throws IOException
+	 *             if the input cannot be read from, or does not hold a valid
+	 *             object
+	 */
+	T decode(DataInput input) throws IOException;
+}
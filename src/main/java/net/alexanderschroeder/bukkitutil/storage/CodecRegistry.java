@@ -0,0 +1,111 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A set of {@link Codec codecs} used by a {@link Storage} to store objects of
+ * the registered types. Every codec is registered with an id, which is stored
+ * together with every object it encodes, so the id of a codec must never
+ * change or be reused for another codec once objects have been stored with it.
+ * 
+ * <p>
+ * Codecs are looked up by the exact class of an object; a codec is not used
+ * for subclasses of the type it was registered for. Strings, boxed
+ * primitives and types without a codec are stored as before.
+ */
+public class CodecRegistry {
+
+	private final ConcurrentMap<Class<?>, Registration<?>> registrationsByType = new ConcurrentHashMap<Class<?>, Registration<?>>();
+
+	private final ConcurrentMap<Integer, Registration<?>> registrationsById = new ConcurrentHashMap<Integer, Registration<?>>();
+
+	/**
+	 * Registers a codec.
+	 * 
+	 * @param id
+	 *            the id to store objects encoded by the codec with
+	 * @param type
+	 *            the type of the objects to encode with the codec
+	 * @param codec
+	 *            the codec
+	 * @throws IllegalArgumentException
+	 *             if a codec is already registered with the given id or for
+	 *             the given type
+	 */
+	public synchronized <T> void register(final int id, final Class<T> type, final Codec<T> codec) {
+		if (registrationsById.containsKey(id)) {
+			throw new IllegalArgumentException("A codec is already registered with id " + id);
+		}
+		if (registrationsByType.containsKey(type)) {
+			throw new IllegalArgumentException("A codec is already registered for " + type.getName());
+		}
+
+		final Registration<T> registration = new Registration<T>(id, type, codec);
+		registrationsById.put(id, registration);
+		registrationsByType.put(type, registration);
+	}
+
+	/**
+	 * Gets the codec registered for a type.
+	 * 
+	 * @param type
+	 *            the type to get the codec of
+	 * @return the codec, or <code>null</code> if no codec is registered for
+	 *         the type
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> Codec<T> getCodec(final Class<T> type) {
+		final Registration<?> registration = registrationsByType.get(type);
+		return registration == null ? null : (Codec<T>) registration.codec;
+	}
+
+	/**
+	 * Checks whether any codecs are registered.
+	 * 
+	 * @return <code>true</code> if no codecs are registered,
+	 *         <code>false</code> otherwise
+	 */
+	public boolean isEmpty() {
+		return registrationsById.isEmpty();
+	}
+
+	Registration<?> getRegistration(final Class<?> type) {
+		return registrationsByType.get(type);
+	}
+
+	Registration<?> getRegistration(final int id) {
+		return registrationsById.get(id);
+	}
+
+	static final class Registration<T> {
+		final int id;
+		final Class<T> type;
+		final Codec<T> codec;
+
+		Registration(final int id, final Class<T> type, final Codec<T> codec) {
+			this.id = id;
+			this.type = type;
+			this.codec = codec;
+		}
+	}
+}
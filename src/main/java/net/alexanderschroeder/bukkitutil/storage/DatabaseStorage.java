@@ -0,0 +1,502 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import net.alexanderschroeder.bukkitutil.Database;
+
+import org.bukkit.plugin.java.JavaPlugin;
+
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.Transaction;
+
+/**
+ * A {@link Storage} implementation that stores objects in a table of the
+ * database set up by a {@link Database}.
+ * 
+ * <p>
+ * All contexts share a single table, whose primary key is made up of the
+ * context and the key, so every single-key operation is an indexed lookup.
+ * Values are stored in the same binary encoding as {@link LogStructuredStorage}.
+ * Saving is done with an upsert, and the batch operations are sent to the
+ * database as JDBC batches within a single transaction. Key range queries
+ * only ask the database for the keys starting with the longest prefix common
+ * to every key in the range; on MySQL, the primary key index can find these.
+ * 
+ * <p>
+ * Both SQLite, with the driver that is shipped with Bukkit, and MySQL are
+ * supported. Contexts can be at most 64 characters long, and keys at most 191
+ * characters long. Contexts and keys are compared by their exact characters,
+ * as with every other back-end, so keys differing only in case are kept
+ * apart; on MySQL, the table is created with the <code>utf8mb4_bin</code>
+ * collation for this.
+ */
+public class DatabaseStorage extends AbstractStorage {
+
+	/** The maximum number of parameters we put in a single IN list. */
+	private static final int MAX_IN_LIST_SIZE = 500;
+
+	/** The number of rows we ask the driver to fetch at a time in forEach(). */
+	private static final int FETCH_SIZE = 1000;
+
+	private final Database database;
+
+	private String tableName = "bukkitutil_storage";
+
+	private volatile boolean initialized = false;
+
+	private String upsertStatement;
+
+	/**
+	 * Creates a <code>DatabaseStorage</code> that stores objects in the
+	 * database of the given {@link Database}. The database must already have
+	 * been initialized.
+	 * 
+	 * @param database
+	 *            the database to store objects in
+	 */
+	public DatabaseStorage(final Database database) {
+		this.database = database;
+	}
+
+	/**
+	 * Gets the name of the table the objects are stored in.
+	 * 
+	 * @return the name of the table
+	 */
+	public String getTableName() {
+		return tableName;
+	}
+
+	/**
+	 * Sets the name of the table the objects are stored in. The table is
+	 * created by {@link #initialize(JavaPlugin)} if it does not exist. Only
+	 * letters, digits and underscores are allowed.
+	 * <p>
+	 * The default name for the table is "bukkitutil_storage".
+	 * 
+	 * @param tableName
+	 *            the name of the table
+	 */
+	public void setTableName(String tableName) {
+		if (!tableName.matches("[A-Za-z0-9_]+")) {
+			throw new IllegalArgumentException("Invalid table name: " + tableName);
+		}
+		this.tableName = tableName;
+	}
+
+	private void throwExceptionIfNotInitialized() throws StorageException {
+		if (!initialized) {
+			throw new StorageException("Cannot use the DatabaseStorage without calling initialize() first");
+		}
+	}
+
+	public void initialize(JavaPlugin plugin) throws StorageException {
+		final boolean sqlite = database.isUsingSQLite();
+		if (sqlite) {
+			upsertStatement = "INSERT OR REPLACE INTO " + tableName + " (context, storage_key, storage_value) VALUES (?, ?, ?)";
+		} else {
+			upsertStatement = "INSERT INTO " + tableName + " (context, storage_key, storage_value) VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE storage_value = VALUES(storage_value)";
+		}
+
+		execute(new Work<Void>() {
+			public Void run(final Connection connection) throws SQLException {
+				final Statement statement = connection.createStatement();
+				// SQLite compares text by its bytes by default, but MySQL's
+				// default collation ignores case
+				final String keyType = sqlite ? "" : " CHARACTER SET utf8mb4 COLLATE utf8mb4_bin";
+				try {
+					statement.executeUpdate("CREATE TABLE IF NOT EXISTS " + tableName + " ("
+							+ "context VARCHAR(64)" + keyType + " NOT NULL, "
+							+ "storage_key VARCHAR(191)" + keyType + " NOT NULL, "
+							+ "storage_value " + (sqlite ? "BLOB" : "MEDIUMBLOB") + " NOT NULL, "
+							+ "PRIMARY KEY (context, storage_key))");
+				} finally {
+					statement.close();
+				}
+				return null;
+			}
+		});
+		initialized = true;
+	}
+
+	public void save(String context, String key, Object value) throws StorageException {
+		saveAll(context, Collections.singletonMap(key, value));
+	}
+
+	public Object load(final String context, final String key) throws StorageException {
+		throwExceptionIfNotInitialized();
+		return execute(new Work<Object>() {
+			public Object run(final Connection connection) throws SQLException {
+				final PreparedStatement statement = connection.prepareStatement("SELECT storage_value FROM " + tableName + " WHERE context = ? AND storage_key = ?");
+				try {
+					statement.setString(1, context);
+					statement.setString(2, key);
+					final ResultSet resultSet = statement.executeQuery();
+					try {
+						return resultSet.next() ? decode(resultSet.getBytes(1)) : null;
+					} finally {
+						resultSet.close();
+					}
+				} finally {
+					statement.close();
+				}
+			}
+		});
+	}
+
+	public boolean exists(final String context, final String key) throws StorageException {
+		throwExceptionIfNotInitialized();
+		return execute(new Work<Boolean>() {
+			public Boolean run(final Connection connection) throws SQLException {
+				final PreparedStatement statement = connection.prepareStatement("SELECT 1 FROM " + tableName + " WHERE context = ? AND storage_key = ?");
+				try {
+					statement.setString(1, context);
+					statement.setString(2, key);
+					final ResultSet resultSet = statement.executeQuery();
+					try {
+						return resultSet.next();
+					} finally {
+						resultSet.close();
+					}
+				} finally {
+					statement.close();
+				}
+			}
+		});
+	}
+
+	public void delete(final String context) throws StorageException {
+		throwExceptionIfNotInitialized();
+		execute(new Work<Void>() {
+			public Void run(final Connection connection) throws SQLException {
+				final PreparedStatement statement = connection.prepareStatement("DELETE FROM " + tableName + " WHERE context = ?");
+				try {
+					statement.setString(1, context);
+					statement.executeUpdate();
+				} finally {
+					statement.close();
+				}
+				return null;
+			}
+		});
+	}
+
+	public void deleteKey(String context, String key) throws StorageException {
+		deleteKeys(context, Collections.singleton(key));
+	}
+
+	public Set<String> getContexts() throws StorageException {
+		throwExceptionIfNotInitialized();
+		return execute(new Work<Set<String>>() {
+			public Set<String> run(final Connection connection) throws SQLException {
+				final PreparedStatement statement = connection.prepareStatement("SELECT DISTINCT context FROM " + tableName);
+				try {
+					return readStrings(statement);
+				} finally {
+					statement.close();
+				}
+			}
+		});
+	}
+
+	public Set<String> getKeys(final String context) throws StorageException {
+		throwExceptionIfNotInitialized();
+		return execute(new Work<Set<String>>() {
+			public Set<String> run(final Connection connection) throws SQLException {
+				final PreparedStatement statement = connection.prepareStatement("SELECT storage_key FROM " + tableName + " WHERE context = ?");
+				try {
+					statement.setString(1, context);
+					return readStrings(statement);
+				} finally {
+					statement.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The database is asked for the keys that start with the longest prefix
+	 * the two bounds have in common, using <code>LIKE</code>. On MySQL, the
+	 * primary key index can answer this. SQLite's <code>LIKE</code> ignores
+	 * case, so it cannot use the index, and checks every key of the context
+	 * instead. As the database may order or match keys differently than Java
+	 * does, the range itself is checked afterwards.
+	 */
+	@Override
+	public SortedSet<String> getKeysInRange(final String context, final String fromKey, final String toKey) throws StorageException {
+		throwExceptionIfNotInitialized();
+		if (KeyRange.isEmpty(fromKey, toKey)) {
+			return new TreeSet<String>();
+		}
+		final String prefix = KeyRange.commonPrefix(fromKey, toKey);
+		final Set<String> keys = execute(new Work<Set<String>>() {
+			public Set<String> run(final Connection connection) throws SQLException {
+				final PreparedStatement statement;
+				if (prefix.isEmpty()) {
+					statement = connection.prepareStatement("SELECT storage_key FROM " + tableName + " WHERE context = ?");
+				} else {
+					statement = connection.prepareStatement("SELECT storage_key FROM " + tableName + " WHERE context = ? AND storage_key LIKE ? ESCAPE '!'");
+				}
+				try {
+					statement.setString(1, context);
+					if (!prefix.isEmpty()) {
+						statement.setString(2, prefix.replace("!", "!!").replace("%", "!%").replace("_", "!_") + "%");
+					}
+					return readStrings(statement);
+				} finally {
+					statement.close();
+				}
+			}
+		});
+		return KeyRange.select(keys, fromKey, toKey);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * All objects are upserted in a single JDBC batch, and all
+	 * <code>null</code> values deleted in another, within one transaction.
+	 */
+	@Override
+	public void saveAll(final String context, final Map<String, ?> values) throws StorageException {
+		throwExceptionIfNotInitialized();
+		if (values.isEmpty()) {
+			return;
+		}
+
+		final Map<String, byte[]> upserts = new LinkedHashMap<String, byte[]>();
+		final List<String> deletions = new ArrayList<String>();
+		for (final Map.Entry<String, ?> entry : values.entrySet()) {
+			if (entry.getValue() == null) {
+				deletions.add(entry.getKey());
+			} else {
+				upserts.put(entry.getKey(), encodeValue(entry.getValue()));
+			}
+		}
+
+		execute(new Work<Void>() {
+			public Void run(final Connection connection) throws SQLException {
+				if (!upserts.isEmpty()) {
+					final PreparedStatement statement = connection.prepareStatement(upsertStatement);
+					try {
+						for (final Map.Entry<String, byte[]> entry : upserts.entrySet()) {
+							statement.setString(1, context);
+							statement.setString(2, entry.getKey());
+							statement.setBytes(3, entry.getValue());
+							statement.addBatch();
+							countBytesWritten(entry.getValue().length);
+						}
+						statement.executeBatch();
+					} finally {
+						statement.close();
+					}
+				}
+				if (!deletions.isEmpty()) {
+					deleteKeys(connection, context, deletions);
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The objects are selected with one query per 500
+	 * keys.
+	 */
+	@Override
+	public Map<String, Object> loadAll(final String context, final Collection<String> keys) throws StorageException {
+		throwExceptionIfNotInitialized();
+		final Map<String, Object> values = new LinkedHashMap<String, Object>();
+		if (keys.isEmpty()) {
+			return values;
+		}
+
+		final List<String> keyList = new ArrayList<String>(keys);
+		return execute(new Work<Map<String, Object>>() {
+			public Map<String, Object> run(final Connection connection) throws SQLException {
+				for (int start = 0; start < keyList.size(); start += MAX_IN_LIST_SIZE) {
+					final List<String> chunk = keyList.subList(start, Math.min(start + MAX_IN_LIST_SIZE, keyList.size()));
+					final PreparedStatement statement = connection.prepareStatement("SELECT storage_key, storage_value FROM " + tableName + " WHERE context = ? AND storage_key IN (" + placeholders(chunk.size()) + ")");
+					try {
+						statement.setString(1, context);
+						for (int i = 0; i < chunk.size(); i++) {
+							statement.setString(i + 2, chunk.get(i));
+						}
+						final ResultSet resultSet = statement.executeQuery();
+						try {
+							while (resultSet.next()) {
+								values.put(resultSet.getString(1), decode(resultSet.getBytes(2)));
+							}
+						} finally {
+							resultSet.close();
+						}
+					} finally {
+						statement.close();
+					}
+				}
+				return values;
+			}
+		});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The context is read with a single query, whose rows are decoded and
+	 * visited as they are fetched. Stopping the iteration closes the query
+	 * without reading the remaining rows. Note that the MySQL driver only
+	 * fetches rows in chunks when <code>useCursorFetch</code> is enabled on
+	 * the connection.
+	 */
+	@Override
+	public void forEach(final String context, final StorageVisitor visitor) throws StorageException {
+		throwExceptionIfNotInitialized();
+		execute(new Work<Void>() {
+			public Void run(final Connection connection) throws SQLException {
+				final PreparedStatement statement = connection.prepareStatement("SELECT storage_key, storage_value FROM " + tableName + " WHERE context = ?");
+				try {
+					statement.setFetchSize(FETCH_SIZE);
+					statement.setString(1, context);
+					final ResultSet resultSet = statement.executeQuery();
+					try {
+						while (resultSet.next()) {
+							if (!visitor.visit(resultSet.getString(1), decode(resultSet.getBytes(2)))) {
+								break;
+							}
+						}
+					} finally {
+						resultSet.close();
+					}
+				} finally {
+					statement.close();
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * All keys are deleted in a single JDBC batch.
+	 */
+	@Override
+	public void deleteKeys(final String context, final Collection<String> keys) throws StorageException {
+		throwExceptionIfNotInitialized();
+		if (keys.isEmpty()) {
+			return;
+		}
+		execute(new Work<Void>() {
+			public Void run(final Connection connection) throws SQLException {
+				deleteKeys(connection, context, keys);
+				return null;
+			}
+		});
+	}
+
+	private void deleteKeys(Connection connection, String context, Collection<String> keys) throws SQLException {
+		final PreparedStatement statement = connection.prepareStatement("DELETE FROM " + tableName + " WHERE context = ? AND storage_key = ?");
+		try {
+			for (final String key : keys) {
+				statement.setString(1, context);
+				statement.setString(2, key);
+				statement.addBatch();
+			}
+			statement.executeBatch();
+		} finally {
+			statement.close();
+		}
+	}
+
+	private static Set<String> readStrings(PreparedStatement statement) throws SQLException {
+		final Set<String> strings = new HashSet<String>();
+		final ResultSet resultSet = statement.executeQuery();
+		try {
+			while (resultSet.next()) {
+				strings.add(resultSet.getString(1));
+			}
+		} finally {
+			resultSet.close();
+		}
+		return strings;
+	}
+
+	private Object decode(byte[] bytes) {
+		countBytesRead(bytes.length);
+		return ValueEncoding.decode(ByteBuffer.wrap(bytes), getCodecRegistry());
+	}
+
+	private static String placeholders(int count) {
+		final StringBuilder builder = new StringBuilder(count * 3);
+		for (int i = 0; i < count; i++) {
+			builder.append(i == 0 ? "?" : ", ?");
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Runs a piece of work with a connection from a new transaction, which is
+	 * committed if the work succeeds and rolled back if it fails.
+	 */
+	private <T> T execute(Work<T> work) throws StorageException {
+		final EbeanServer server = database.getDatabase();
+		if (server == null) {
+			throw new StorageException("The database has not been initialized");
+		}
+
+		final Transaction transaction = server.createTransaction();
+		try {
+			final T result = work.run(transaction.getConnection());
+			transaction.commit();
+			return result;
+		} catch (StorageException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new StorageException(e);
+		} finally {
+			transaction.end();
+		}
+	}
+
+	private interface Work<T> {
+		T run(Connection connection) throws SQLException;
+	}
+}
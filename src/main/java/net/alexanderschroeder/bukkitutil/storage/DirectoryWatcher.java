@@ -0,0 +1,173 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches a directory and its immediate sub-directories for changed files on
+ * a thread of its own, and tells a {@link Listener} about every file that is
+ * created, modified or deleted. Sub-directories created while watching are
+ * watched as well.
+ */
+final class DirectoryWatcher {
+
+	/**
+	 * Receives the changes seen by a {@link DirectoryWatcher}. The methods
+	 * are called on the watcher's thread.
+	 */
+	interface Listener {
+
+		/**
+		 * Called when a file has been created, modified or deleted.
+		 * 
+		 * @param file
+		 *            the file that changed
+		 */
+		void fileChanged(File file);
+
+		/**
+		 * Called when changes have been lost, so any file may have changed.
+		 */
+		void changesLost();
+	}
+
+	private static final Logger LOGGER = Logger.getLogger(DirectoryWatcher.class.getName());
+
+	private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+
+	private final File directory;
+
+	private final Listener listener;
+
+	private final WatchService watchService;
+
+	private final Thread thread;
+
+	/**
+	 * Starts watching a directory.
+	 * 
+	 * @param directory
+	 *            the directory to watch
+	 * @param listener
+	 *            the listener to tell about changes
+	 * @param threadName
+	 *            the name of the watching thread
+	 * @throws IOException
+	 *             if the directory cannot be watched
+	 */
+	DirectoryWatcher(final File directory, final Listener listener, final String threadName) throws IOException {
+		this.directory = directory;
+		this.listener = listener;
+		watchService = FileSystems.getDefault().newWatchService();
+		register(directory.toPath());
+		final File[] subdirectories = directory.listFiles();
+		if (subdirectories != null) {
+			for (final File subdirectory : subdirectories) {
+				if (subdirectory.isDirectory()) {
+					register(subdirectory.toPath());
+				}
+			}
+		}
+
+		thread = new Thread(new Runnable() {
+			public void run() {
+				watch();
+			}
+		}, threadName);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops watching the directory and waits for the watching thread to end.
+	 */
+	void close() {
+		try {
+			watchService.close();
+			thread.join(CLOSE_TIMEOUT_MILLIS);
+		} catch (final IOException e) {
+			LOGGER.log(Level.WARNING, "Could not stop watching " + directory, e);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void register(final Path path) throws IOException {
+		path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+	}
+
+	private void watch() {
+		try {
+			while (true) {
+				final WatchKey key = watchService.take();
+				final Path directory = (Path) key.watchable();
+				for (final WatchEvent<?> event : key.pollEvents()) {
+					try {
+						handle(directory, event);
+					} catch (final RuntimeException e) {
+						LOGGER.log(Level.WARNING, "Could not handle change to " + event.context() + " in " + directory, e);
+					}
+				}
+				key.reset();
+			}
+		} catch (final ClosedWatchServiceException e) {
+			// close() was called
+		} catch (final InterruptedException e) {
+			// The thread is a daemon, so nobody else is waiting for it
+		}
+	}
+
+	private void handle(final Path directory, final WatchEvent<?> event) {
+		if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+			listener.changesLost();
+			return;
+		}
+
+		final Path path = directory.resolve((Path) event.context());
+		final File file = path.toFile();
+		if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && file.isDirectory() && directory.toFile().equals(this.directory)) {
+			try {
+				register(path);
+			} catch (final IOException e) {
+				LOGGER.log(Level.WARNING, "Could not watch " + file, e);
+			}
+			// Files may have been created before the directory was watched
+			final File[] files = file.listFiles();
+			if (files != null) {
+				for (final File createdFile : files) {
+					listener.fileChanged(createdFile);
+				}
+			}
+			return;
+		}
+		listener.fileChanged(file);
+	}
+}
@@ -0,0 +1,747 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * A {@link Storage} that lets keys of another storage expire a given time
+ * after they were saved, for temporary data such as cooldowns or pending
+ * requests.
+ * 
+ * <p>
+ * A key expires the moment its deadline passes: from then on, it is reported
+ * as missing by every method of this storage. The expired keys are removed
+ * from the wrapped storage in the background by a sweeper, which keeps the
+ * deadlines in a {@link TimingWheel} so that finding the expired keys never
+ * means looking at the others. All keys of a context that expire within the
+ * same {@link #setSweepInterval(long, TimeUnit) sweep interval} are removed
+ * with a single {@link Storage#deleteKeys(String, Collection) deleteKeys()}
+ * call.
+ * 
+ * <p>
+ * The deadlines of a context are saved in the wrapped storage as well, in a
+ * context whose name is the name of the context followed by
+ * {@link #EXPIRY_CONTEXT_SUFFIX}, and are read again by
+ * {@link #initialize(JavaPlugin) initialize()}. These contexts are not
+ * reported by {@link #getContexts()}. Because {@link FileConfigurationStorage}
+ * saves keys containing a <code>.</code> as nested sections, the deadlines of
+ * such keys are lost when the plug-in is restarted.
+ * 
+ * <p>
+ * Saving a key without a time to live, or deleting it, clears its deadline;
+ * {@link #increment(String, String, long) increment()},
+ * {@link #compareAndSet(String, String, Object, Object) compareAndSet()} and
+ * {@link #merge(String, String, Object, StorageMerger) merge()} keep it. All
+ * changes to the wrapped storage must be made through this storage.
+ */
+public class ExpiringStorage extends ForwardingStorage {
+
+	/**
+	 * Appended to the name of a context to get the name of the context its
+	 * deadlines are saved in.
+	 */
+	public static final String EXPIRY_CONTEXT_SUFFIX = ".expiry";
+
+	private static final Logger LOGGER = Logger.getLogger(ExpiringStorage.class.getName());
+
+	private volatile long sweepIntervalMillis = 1000;
+
+	/** The timer of every key that has a deadline; also guards the wheel. */
+	private final ConcurrentMap<String, ConcurrentMap<String, TimingWheel.Timer<ExpiringKey>>> timers = new ConcurrentHashMap<String, ConcurrentMap<String, TimingWheel.Timer<ExpiringKey>>>();
+
+	private TimingWheel<ExpiringKey> wheel;
+
+	/**
+	 * Held for reading while a context is changed, and for writing while the
+	 * sweeper removes the expired keys of a context, so that a key saved
+	 * again is never removed.
+	 */
+	private final StripedLock contextLocks = new StripedLock(64);
+
+	private ScheduledExecutorService sweeper;
+
+	private final AtomicLong expirations = new AtomicLong();
+
+	/**
+	 * Creates an <code>ExpiringStorage</code> that lets the keys of the given
+	 * storage expire.
+	 * 
+	 * @param storage
+	 *            the storage to let the keys of expire
+	 */
+	public ExpiringStorage(final Storage storage) {
+		super(storage);
+	}
+
+	/**
+	 * Gets the time between two sweeps for expired keys.
+	 * 
+	 * @param unit
+	 *            the unit to get the interval in
+	 * @return the sweep interval
+	 */
+	public long getSweepInterval(final TimeUnit unit) {
+		return unit.convert(sweepIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sets the time between two sweeps for expired keys, which is also how
+	 * precisely the sweeper tells deadlines apart. A longer interval removes
+	 * more keys at once. The default is one second. The interval must be set
+	 * before {@link #initialize(JavaPlugin) initialize()} is called.
+	 * 
+	 * @param interval
+	 *            the sweep interval
+	 * @param unit
+	 *            the unit of the <code>interval</code> argument
+	 */
+	public void setSweepInterval(final long interval, final TimeUnit unit) {
+		final long millis = unit.toMillis(interval);
+		if (millis < 1) {
+			throw new IllegalArgumentException("interval must be at least one millisecond");
+		}
+		sweepIntervalMillis = millis;
+	}
+
+	/**
+	 * Gets the number of keys the sweeper has removed from the wrapped storage
+	 * because they expired.
+	 * 
+	 * @return the number of expired keys removed
+	 */
+	public long getExpirations() {
+		return expirations.get();
+	}
+
+	/**
+	 * Saves an object in the storage system that expires after the given
+	 * time.
+	 * 
+	 * @param context
+	 *            the context in which to save the object
+	 * @param key
+	 *            the key to save the object with
+	 * @param value
+	 *            the object to save; <code>null</code> deletes the key
+	 * @param timeToLive
+	 *            the time after which the object expires
+	 * @param unit
+	 *            the unit of the <code>timeToLive</code> argument
+	 * @throws StorageException
+	 *             if there is a problem saving the object to the storage
+	 *             system
+	 */
+	public void save(final String context, final String key, final Object value, final long timeToLive, final TimeUnit unit) throws StorageException {
+		if (timeToLive <= 0) {
+			throw new IllegalArgumentException("timeToLive must be positive");
+		}
+		if (value == null) {
+			deleteKey(context, key);
+			return;
+		}
+
+		final long deadline = System.currentTimeMillis() + unit.toMillis(timeToLive);
+		final Lock lock = contextLocks.get(context).readLock();
+		lock.lock();
+		try {
+			setTimer(context, key, deadline);
+			// The deadline goes first, so that a crash never leaves the key
+			// without one
+			super.save(getExpiryContext(context), key, deadline);
+			super.save(context, key, value);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Makes an existing key expire after the given time, replacing its
+	 * deadline if it already has one.
+	 * 
+	 * @param context
+	 *            the context of the key
+	 * @param key
+	 *            the key
+	 * @param timeToLive
+	 *            the time after which the key expires
+	 * @param unit
+	 *            the unit of the <code>timeToLive</code> argument
+	 * @return <code>true</code> if the key exists and was given the deadline
+	 * @throws StorageException
+	 *             if there is a problem saving the deadline to the storage
+	 *             system
+	 */
+	public boolean expire(final String context, final String key, final long timeToLive, final TimeUnit unit) throws StorageException {
+		if (timeToLive <= 0) {
+			throw new IllegalArgumentException("timeToLive must be positive");
+		}
+
+		final long deadline = System.currentTimeMillis() + unit.toMillis(timeToLive);
+		final Lock lock = contextLocks.get(context).readLock();
+		lock.lock();
+		try {
+			if (!exists(context, key)) {
+				return false;
+			}
+			setTimer(context, key, deadline);
+			super.save(getExpiryContext(context), key, deadline);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the time left until a key expires.
+	 * 
+	 * @param context
+	 *            the context of the key
+	 * @param key
+	 *            the key
+	 * @param unit
+	 *            the unit to get the time in
+	 * @return the time left, which is 0 if the key has expired, or -1 if the
+	 *         key does not expire
+	 */
+	public long getTimeToLive(final String context, final String key, final TimeUnit unit) {
+		final TimingWheel.Timer<ExpiringKey> timer = getTimer(context, key);
+		if (timer == null) {
+			return -1;
+		}
+		return unit.convert(Math.max(0, timer.deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Removes the keys that have expired from the wrapped storage now, instead
+	 * of waiting for the sweeper.
+	 * 
+	 * @throws StorageException
+	 *             if there is a problem removing the keys from the storage
+	 *             system
+	 */
+	public void sweep() throws StorageException {
+		final List<TimingWheel.Timer<ExpiringKey>> expired;
+		synchronized (timers) {
+			if (wheel == null) {
+				return;
+			}
+			expired = wheel.advance(System.currentTimeMillis());
+		}
+		if (expired.isEmpty()) {
+			return;
+		}
+
+		final Map<String, List<TimingWheel.Timer<ExpiringKey>>> expiredByContext = new HashMap<String, List<TimingWheel.Timer<ExpiringKey>>>();
+		for (final TimingWheel.Timer<ExpiringKey> timer : expired) {
+			List<TimingWheel.Timer<ExpiringKey>> contextTimers = expiredByContext.get(timer.element.context);
+			if (contextTimers == null) {
+				contextTimers = new ArrayList<TimingWheel.Timer<ExpiringKey>>();
+				expiredByContext.put(timer.element.context, contextTimers);
+			}
+			contextTimers.add(timer);
+		}
+
+		StorageException failure = null;
+		for (final Map.Entry<String, List<TimingWheel.Timer<ExpiringKey>>> entry : expiredByContext.entrySet()) {
+			try {
+				removeExpired(entry.getKey(), entry.getValue());
+			} catch (final StorageException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	@Override
+	public void initialize(final JavaPlugin plugin) throws StorageException {
+		stopSweeper();
+		super.initialize(plugin);
+
+		synchronized (timers) {
+			timers.clear();
+			wheel = new TimingWheel<ExpiringKey>(sweepIntervalMillis, System.currentTimeMillis());
+		}
+		for (final String expiryContext : super.getContexts()) {
+			if (!expiryContext.endsWith(EXPIRY_CONTEXT_SUFFIX)) {
+				continue;
+			}
+			final String context = expiryContext.substring(0, expiryContext.length() - EXPIRY_CONTEXT_SUFFIX.length());
+			super.forEach(expiryContext, new StorageVisitor() {
+				public boolean visit(final String key, final Object value) {
+					if (value instanceof Number) {
+						setTimer(context, key, ((Number) value).longValue());
+					}
+					return true;
+				}
+			});
+		}
+
+		final long interval = sweepIntervalMillis;
+		sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "BukkitUtil-ExpiringStorage-Sweeper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		sweeper.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					sweep();
+				} catch (final RuntimeException e) {
+					LOGGER.log(Level.WARNING, "Could not remove expired keys", e);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The key's deadline, if it has one, is cleared.
+	 */
+	@Override
+	public void save(final String context, final String key, final Object value) throws StorageException {
+		final Lock lock = contextLocks.get(context).readLock();
+		lock.lock();
+		try {
+			super.save(context, key, value);
+			clearTimers(context, Collections.singleton(key));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Object load(final String context, final String key) throws StorageException {
+		return isExpired(context, key) ? null : super.load(context, key);
+	}
+
+	@Override
+	public <T> T load(final String context, final String key, final Class<T> type) throws StorageException {
+		return isExpired(context, key) ? null : super.load(context, key, type);
+	}
+
+	@Override
+	public int loadInt(final String context, final String key, final int defaultValue) throws StorageException {
+		return isExpired(context, key) ? defaultValue : super.loadInt(context, key, defaultValue);
+	}
+
+	@Override
+	public long loadLong(final String context, final String key, final long defaultValue) throws StorageException {
+		return isExpired(context, key) ? defaultValue : super.loadLong(context, key, defaultValue);
+	}
+
+	@Override
+	public double loadDouble(final String context, final String key, final double defaultValue) throws StorageException {
+		return isExpired(context, key) ? defaultValue : super.loadDouble(context, key, defaultValue);
+	}
+
+	@Override
+	public boolean exists(final String context, final String key) throws StorageException {
+		return !isExpired(context, key) && super.exists(context, key);
+	}
+
+	@Override
+	public void delete(final String context) throws StorageException {
+		final Lock lock = contextLocks.get(context).writeLock();
+		lock.lock();
+		try {
+			super.delete(context);
+			super.delete(getExpiryContext(context));
+			synchronized (timers) {
+				final Map<String, TimingWheel.Timer<ExpiringKey>> contextTimers = timers.remove(context);
+				if (contextTimers != null) {
+					for (final TimingWheel.Timer<ExpiringKey> timer : contextTimers.values()) {
+						wheel.cancel(timer);
+					}
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void deleteKey(final String context, final String key) throws StorageException {
+		deleteKeys(context, Collections.singleton(key));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The contexts holding the deadlines are left out.
+	 */
+	@Override
+	public Set<String> getContexts() throws StorageException {
+		final Set<String> contexts = new HashSet<String>(super.getContexts());
+		final Iterator<String> iterator = contexts.iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().endsWith(EXPIRY_CONTEXT_SUFFIX)) {
+				iterator.remove();
+			}
+		}
+		return contexts;
+	}
+
+	@Override
+	public Set<String> getKeys(final String context) throws StorageException {
+		final Set<String> keys = super.getKeys(context);
+		return timers.containsKey(context) ? withoutExpired(context, new HashSet<String>(keys)) : keys;
+	}
+
+	@Override
+	public SortedSet<String> getKeysWithPrefix(final String context, final String prefix) throws StorageException {
+		final SortedSet<String> keys = super.getKeysWithPrefix(context, prefix);
+		return timers.containsKey(context) ? withoutExpired(context, new TreeSet<String>(keys)) : keys;
+	}
+
+	@Override
+	public SortedSet<String> getKeysInRange(final String context, final String fromKey, final String toKey) throws StorageException {
+		final SortedSet<String> keys = super.getKeysInRange(context, fromKey, toKey);
+		return timers.containsKey(context) ? withoutExpired(context, new TreeSet<String>(keys)) : keys;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * An expired number counts as 0. The key's deadline is kept.
+	 */
+	@Override
+	public long increment(final String context, final String key, final long delta) throws StorageException {
+		final Lock lock = lockForUpdate(context, key);
+		try {
+			return super.increment(context, key, delta);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * An expired object counts as missing. The key's deadline is kept.
+	 */
+	@Override
+	public boolean compareAndSet(final String context, final String key, final Object expectedValue, final Object newValue) throws StorageException {
+		final Lock lock = lockForUpdate(context, key);
+		try {
+			final boolean swapped = super.compareAndSet(context, key, expectedValue, newValue);
+			if (swapped && newValue == null) {
+				clearTimers(context, Collections.singleton(key));
+			}
+			return swapped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * An expired object counts as missing. The key's deadline is kept.
+	 */
+	@Override
+	public Object merge(final String context, final String key, final Object value, final StorageMerger merger) throws StorageException {
+		final Lock lock = lockForUpdate(context, key);
+		try {
+			final Object mergedValue = super.merge(context, key, value, merger);
+			if (mergedValue == null) {
+				clearTimers(context, Collections.singleton(key));
+			}
+			return mergedValue;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The deadlines of the keys, if they have any, are cleared.
+	 */
+	@Override
+	public void saveAll(final String context, final Map<String, ?> values) throws StorageException {
+		final Lock lock = contextLocks.get(context).readLock();
+		lock.lock();
+		try {
+			super.saveAll(context, values);
+			clearTimers(context, values.keySet());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Map<String, Object> loadAll(final String context, final Collection<String> keys) throws StorageException {
+		final Map<String, Object> values = super.loadAll(context, keys);
+		if (!timers.containsKey(context)) {
+			return values;
+		}
+		final Map<String, Object> unexpiredValues = new HashMap<String, Object>(values);
+		withoutExpired(context, unexpiredValues.keySet());
+		return unexpiredValues;
+	}
+
+	@Override
+	public void deleteKeys(final String context, final Collection<String> keys) throws StorageException {
+		final Lock lock = contextLocks.get(context).readLock();
+		lock.lock();
+		try {
+			super.deleteKeys(context, keys);
+			clearTimers(context, keys);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void forEach(final String context, final StorageVisitor visitor) throws StorageException {
+		super.forEach(context, new StorageVisitor() {
+			public boolean visit(final String key, final Object value) {
+				return isExpired(context, key) || visitor.visit(key, value);
+			}
+		});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The keys that have expired are removed first.
+	 */
+	@Override
+	public void flush() throws StorageException {
+		sweep();
+		super.flush();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The sweeper is stopped. Keys that expire while the storage is closed
+	 * are removed after it is initialized again.
+	 */
+	@Override
+	public void close() throws StorageException {
+		stopSweeper();
+		synchronized (timers) {
+			timers.clear();
+			wheel = null;
+		}
+		super.close();
+	}
+
+	private static String getExpiryContext(final String context) {
+		return context + EXPIRY_CONTEXT_SUFFIX;
+	}
+
+	private TimingWheel.Timer<ExpiringKey> getTimer(final String context, final String key) {
+		final Map<String, TimingWheel.Timer<ExpiringKey>> contextTimers = timers.get(context);
+		return contextTimers == null ? null : contextTimers.get(key);
+	}
+
+	private boolean isExpired(final String context, final String key) {
+		final TimingWheel.Timer<ExpiringKey> timer = getTimer(context, key);
+		return timer != null && timer.deadline <= System.currentTimeMillis();
+	}
+
+	private <C extends Collection<String>> C withoutExpired(final String context, final C keys) {
+		final Iterator<String> iterator = keys.iterator();
+		while (iterator.hasNext()) {
+			if (isExpired(context, iterator.next())) {
+				iterator.remove();
+			}
+		}
+		return keys;
+	}
+
+	private void setTimer(final String context, final String key, final long deadline) {
+		synchronized (timers) {
+			if (wheel == null) {
+				throw new StorageException("Cannot use the ExpiringStorage without calling initialize() first");
+			}
+			ConcurrentMap<String, TimingWheel.Timer<ExpiringKey>> contextTimers = timers.get(context);
+			if (contextTimers == null) {
+				contextTimers = new ConcurrentHashMap<String, TimingWheel.Timer<ExpiringKey>>();
+				timers.put(context, contextTimers);
+			}
+			final TimingWheel.Timer<ExpiringKey> previous = contextTimers.put(key, wheel.schedule(new ExpiringKey(context, key), deadline));
+			if (previous != null) {
+				wheel.cancel(previous);
+			}
+		}
+	}
+
+	/**
+	 * Clears the deadlines of the given keys, in memory and in the wrapped
+	 * storage.
+	 */
+	private void clearTimers(final String context, final Collection<String> keys) {
+		if (!timers.containsKey(context)) {
+			return;
+		}
+
+		final List<String> clearedKeys = new ArrayList<String>();
+		synchronized (timers) {
+			final Map<String, TimingWheel.Timer<ExpiringKey>> contextTimers = timers.get(context);
+			if (contextTimers == null) {
+				return;
+			}
+			for (final String key : keys) {
+				final TimingWheel.Timer<ExpiringKey> timer = contextTimers.remove(key);
+				if (timer != null) {
+					wheel.cancel(timer);
+					clearedKeys.add(key);
+				}
+			}
+		}
+		if (!clearedKeys.isEmpty()) {
+			super.deleteKeys(getExpiryContext(context), clearedKeys);
+		}
+	}
+
+	/**
+	 * Locks a context for an atomic operation on a key. If the key has a
+	 * deadline, the context is locked for writing, and the key is removed if
+	 * it has expired, so that the operation does not see its old object.
+	 */
+	private Lock lockForUpdate(final String context, final String key) {
+		if (getTimer(context, key) == null) {
+			final Lock lock = contextLocks.get(context).readLock();
+			lock.lock();
+			return lock;
+		}
+
+		final Lock lock = contextLocks.get(context).writeLock();
+		lock.lock();
+		try {
+			if (isExpired(context, key)) {
+				super.deleteKey(context, key);
+				clearTimers(context, Collections.singleton(key));
+			}
+		} catch (final RuntimeException e) {
+			lock.unlock();
+			throw e;
+		}
+		return lock;
+	}
+
+	/**
+	 * Removes the expired keys of a context from the wrapped storage, in one
+	 * batch. Keys that were given a new deadline or saved again since their
+	 * timer went off are left alone. The timers stay in place until the keys
+	 * have been removed, so the keys are reported as missing all along. If the
+	 * keys cannot be removed, their timers are set again, so that the next
+	 * sweep tries again.
+	 */
+	private void removeExpired(final String context, final List<TimingWheel.Timer<ExpiringKey>> expired) {
+		final Lock lock = contextLocks.get(context).writeLock();
+		lock.lock();
+		try {
+			final List<TimingWheel.Timer<ExpiringKey>> current = new ArrayList<TimingWheel.Timer<ExpiringKey>>(expired.size());
+			final List<String> keys = new ArrayList<String>(expired.size());
+			final ConcurrentMap<String, TimingWheel.Timer<ExpiringKey>> contextTimers = timers.get(context);
+			if (contextTimers == null) {
+				return;
+			}
+			for (final TimingWheel.Timer<ExpiringKey> timer : expired) {
+				if (contextTimers.get(timer.element.key) == timer) {
+					current.add(timer);
+					keys.add(timer.element.key);
+				}
+			}
+			if (keys.isEmpty()) {
+				return;
+			}
+
+			try {
+				super.deleteKeys(context, keys);
+				super.deleteKeys(getExpiryContext(context), keys);
+			} catch (final RuntimeException e) {
+				for (final TimingWheel.Timer<ExpiringKey> timer : current) {
+					if (getTimer(context, timer.element.key) == timer) {
+						setTimer(context, timer.element.key, timer.deadline);
+					}
+				}
+				throw e;
+			}
+
+			synchronized (timers) {
+				for (final TimingWheel.Timer<ExpiringKey> timer : current) {
+					contextTimers.remove(timer.element.key, timer);
+				}
+				if (contextTimers.isEmpty()) {
+					timers.remove(context, contextTimers);
+				}
+			}
+			expirations.addAndGet(keys.size());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void stopSweeper() {
+		if (sweeper != null) {
+			sweeper.shutdown();
+			try {
+				sweeper.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			sweeper = null;
+		}
+	}
+
+	private static final class ExpiringKey {
+		final String context;
+		final String key;
+
+		ExpiringKey(final String context, final String key) {
+			this.context = context;
+			this.key = key;
+		}
+	}
+}
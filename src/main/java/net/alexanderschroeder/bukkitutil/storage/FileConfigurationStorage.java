@@ -19,12 +19,54 @@
 
 package net.alexanderschroeder.bukkitutil.storage;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.plugin.java.JavaPlugin;
@@ -32,8 +74,91 @@ import org.bukkit.plugin.java.JavaPlugin;
 /**
  * A {@link Storage} implementation that uses Bukkit's {@link FileConfiguration}
  * to store objects.
+ * 
+ * <p>
+ * By default, every call reads (and, if it changes anything, writes) the
+ * context's file. When {@link #setResident(boolean) resident mode} is enabled,
+ * each context is parsed only once and then kept in memory; reads are served
+ * from the parsed {@link FileConfiguration}, and changes are only written back
+ * to disk when {@link #flush()} or {@link #close()} is called, which a
+ * {@link FlushScheduler} can do periodically.
+ * 
+ * <p>
+ * Very large contexts can be split into {@link #setShardCount(int) shards}:
+ * a directory of several files, each holding the keys whose hash falls into
+ * it, so that reading or writing a key only touches one of the files.
+ * 
+ * <p>
+ * To keep the first use of every context from reading its file on the
+ * server's main thread, contexts can be {@link #preload(Collection)
+ * preloaded} when the plug-in is enabled, reading many files at once on
+ * several threads.
+ * 
+ * <p>
+ * When not in resident mode, the storage remembers the top-level keys of
+ * every file it has read or written, together with the file's modification
+ * time and size. As long as the file has not changed, {@link #getKeys(String)
+ * getKeys()} and {@link #exists(String, String) exists()} are answered from
+ * those keys without parsing the file. While {@linkplain
+ * #setWatchingFiles(boolean) watching files}, {@link #getContexts()} also
+ * only lists the storage directory once: the contexts are then kept up to
+ * date as they are written and deleted, and listed again after files were
+ * changed by others. The keys
+ * are kept sorted, so {@link #getKeysWithPrefix(String, String)
+ * getKeysWithPrefix()} and {@link #getKeysInRange(String, String, String)
+ * getKeysInRange()} only look at the keys they return.
+ * 
+ * <p>
+ * The storage is safe to use from several threads at once. Each context is
+ * guarded by a read/write lock, taken from a fixed set of locks the contexts
+ * are spread over: any number of threads can read a context at the same time,
+ * while changing it, including the read-modify-write of its file, is done by
+ * one thread at a time. Threads working on different contexts rarely wait for
+ * each other.
+ * 
+ * <p>
+ * Objects are always stored in their YAML form, so that the files stay
+ * readable by Bukkit; the {@link #getCodecRegistry() codec registry} is not
+ * used by this storage.
+ * 
+ * <p>
+ * When {@link #setCompressed(boolean) compression} is enabled, context files
+ * are written gzip-compressed, keeping their names. Compressed and plain files
+ * are told apart by their first bytes when they are read, so existing files
+ * keep working and are compressed the next time they are written.
+ * 
+ * <p>
+ * Files that are edited by hand or by other programs while the server is
+ * running are normally only noticed once their modification time or size has
+ * changed, and not at all in resident mode. When {@link #setWatchingFiles(boolean)
+ * file watching} is enabled, the storage directory is watched for changes, and
+ * a context whose files are changed by anyone else is dropped from memory and
+ * read again the next time it is used. The exception is a resident file with
+ * changes that have not been flushed yet: the changes made through this
+ * storage win, and the next flush overwrites the file as it was edited. A
+ * warning is logged when this happens.
+ * 
+ * <p>
+ * Context files are never written in place: the new contents are written to
+ * a temporary file which is then renamed over the old file, so a crash in the
+ * middle of a write cannot leave a truncated context behind.
  */
-public class FileConfigurationStorage implements Storage {
+public class FileConfigurationStorage extends AbstractStorage implements BufferedStorage {
+
+	private static final Logger LOGGER = Logger.getLogger(FileConfigurationStorage.class.getName());
+
+	private static final String FILE_EXTENSION = ".yml";
+
+	private static final String TEMPORARY_FILE_EXTENSION = ".tmp";
+
+	private static final String SHARD_PREFIX = "shard-";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** The number of locks the contexts are spread over. */
+	private static final int LOCK_STRIPES = 64;
 
 	private String storageDirectoryName = "storage";
 
@@ -41,6 +166,59 @@ public class FileConfigurationStorage implements Storage {
 	
 	private boolean initialized = false;
 
+	private boolean resident = false;
+
+	private int shardCount = 1;
+
+	private boolean watchingFiles = false;
+
+	private volatile DirectoryWatcher watcher;
+
+	/** The files as this storage last wrote them, while watching files. */
+	private final ConcurrentMap<String, FileStamp> ownWrites = new ConcurrentHashMap<String, FileStamp>();
+
+	private final AtomicLong externalChanges = new AtomicLong();
+
+	private int preloadParallelism = Runtime.getRuntime().availableProcessors();
+
+	private long preloadMemoryLimit = Runtime.getRuntime().maxMemory() / 4;
+
+	/**
+	 * The parsed files of resident mode, by part. A part is the name of a
+	 * file relative to the storage directory, without the extension: either
+	 * the context itself, or a shard within the context's directory.
+	 */
+	private final ConcurrentMap<String, FileConfiguration> residentParts = new ConcurrentHashMap<String, FileConfiguration>();
+
+	private final Set<String> dirtyParts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/** Contexts that are known to be stored in the current shard layout. */
+	private final Set<String> migratedContexts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/** The top-level keys of the files read or written outside resident mode. */
+	private final ConcurrentMap<String, KeyIndex> keyIndexes = new ConcurrentHashMap<String, KeyIndex>();
+
+	/**
+	 * The contexts stored in the storage directory, while watching files, or
+	 * {@code null} if the directory has to be listed again.
+	 */
+	private volatile Set<String> knownContexts;
+
+	/**
+	 * Counts the changes to the contexts, so a listing that raced with one is
+	 * not kept. Guarded by {@link #knownContextsLock}.
+	 */
+	private long contextChanges;
+
+	private final Object knownContextsLock = new Object();
+
+	/** Guards the files and resident configurations of each context. */
+	private final StripedLock contextLocks = new StripedLock(LOCK_STRIPES);
+
+	private final AtomicLong requestedWrites = new AtomicLong();
+
+	private final AtomicLong performedWrites = new AtomicLong();
+
 	/**
 	 * Gets the name of the directory where the configuration files are saved.
 	 * 
@@ -64,15 +242,569 @@ public class FileConfigurationStorage implements Storage {
 		this.storageDirectoryName = storageDirectoryName;
 	}
 
-	private FileConfiguration getContextFile(String context) {
-		final File file = new File(dataFolder, context + ".yml");
-		if (!file.exists()) {
+	/**
+	 * Gets whether this storage keeps parsed contexts in memory.
+	 * 
+	 * @return <code>true</code> if resident mode is enabled
+	 */
+	public boolean isResident() {
+		return resident;
+	}
+
+	/**
+	 * Sets whether this storage keeps parsed contexts in memory. In resident
+	 * mode, a context's file is parsed the first time the context is used, and
+	 * all later reads are served from memory. Changes are kept in memory until
+	 * {@link #flush()} or {@link #close()} is called, at which point each
+	 * changed context is written to disk exactly once.
+	 * <p>
+	 * Turning resident mode off flushes and discards all resident contexts.
+	 * <p>
+	 * Resident mode is disabled by default.
+	 * 
+	 * @param resident
+	 *            <code>true</code> to enable resident mode
+	 * @throws StorageException
+	 *             if turning resident mode off fails to flush the pending
+	 *             changes
+	 */
+	public void setResident(boolean resident) throws StorageException {
+		if (this.resident && !resident && initialized) {
+			flush();
+			residentParts.clear();
+		}
+		this.resident = resident;
+	}
+
+	/**
+	 * Gets the number of shards every context is split into.
+	 * 
+	 * @return the number of shards
+	 */
+	public int getShardCount() {
+		return shardCount;
+	}
+
+	/**
+	 * Sets the number of shards every context is split into. With a single
+	 * shard, a context is stored in the file <code>context.yml</code>. With
+	 * more, it is stored in the directory <code>context</code>, in files named
+	 * <code>shard-i-of-n.yml</code>, and every key is stored in the shard its
+	 * hash falls into. Keys containing dots are sharded by the part before the
+	 * first dot, so that a configuration section and everything within it are
+	 * always stored in the same shard.
+	 * <p>
+	 * A context that was stored with a different number of shards is
+	 * migrated to the new number the first time it is used.
+	 * <p>
+	 * This must be set before the storage is initialized. The default number
+	 * of shards is 1.
+	 * 
+	 * @param shardCount
+	 *            the number of shards
+	 */
+	public void setShardCount(int shardCount) {
+		if (shardCount < 1) {
+			throw new IllegalArgumentException("The shard count must be at least 1");
+		}
+		this.shardCount = shardCount;
+	}
+
+	/**
+	 * Gets whether this storage watches its directory for files changed by
+	 * others.
+	 * 
+	 * @return <code>true</code> if file watching is enabled
+	 */
+	public boolean isWatchingFiles() {
+		return watchingFiles;
+	}
+
+	/**
+	 * Sets whether this storage watches its directory for files changed by
+	 * others, using a {@link java.nio.file.WatchService} on a thread of its
+	 * own. When a context file is created, changed or deleted by anything but
+	 * this storage, the parts of the context held in memory are discarded, so
+	 * the file is read again the next time the context is used.
+	 * <p>
+	 * In resident mode, a file that is changed while the storage holds
+	 * unflushed changes to it is not read again; the next {@link #flush()}
+	 * overwrites it.
+	 * <p>
+	 * This must be set before the storage is initialized. File watching is
+	 * disabled by default.
+	 * 
+	 * @param watchingFiles
+	 *            <code>true</code> to enable file watching
+	 */
+	public void setWatchingFiles(boolean watchingFiles) {
+		this.watchingFiles = watchingFiles;
+	}
+
+	/**
+	 * Gets the number of times a context file changed by others has made this
+	 * storage discard what it held in memory about the file.
+	 * 
+	 * @return the number of external changes seen
+	 */
+	public long getExternalChanges() {
+		return externalChanges.get();
+	}
+
+	/**
+	 * Gets the number of threads used to preload contexts.
+	 * 
+	 * @return the number of preloading threads
+	 */
+	public int getPreloadParallelism() {
+		return preloadParallelism;
+	}
+
+	/**
+	 * Sets the number of threads used to preload contexts. The default is the
+	 * number of available processors.
+	 * 
+	 * @param preloadParallelism
+	 *            the number of preloading threads
+	 */
+	public void setPreloadParallelism(int preloadParallelism) {
+		if (preloadParallelism < 1) {
+			throw new IllegalArgumentException("preloadParallelism must be positive");
+		}
+		this.preloadParallelism = preloadParallelism;
+	}
+
+	/**
+	 * Gets the number of bytes of YAML a single call to
+	 * {@link #preload(Collection) preload()} reads at most.
+	 * 
+	 * @return the preload memory limit, in bytes
+	 */
+	public long getPreloadMemoryLimit() {
+		return preloadMemoryLimit;
+	}
+
+	/**
+	 * Sets the number of bytes of YAML a single call to
+	 * {@link #preload(Collection) preload()} reads at most, which bounds the
+	 * memory taken up by the preloaded contexts. Compressed files are counted
+	 * by their uncompressed size. The limit is not a measure of heap use: the
+	 * parsed objects of a file take up several times more memory than its
+	 * YAML. Contexts that would exceed the limit are skipped and read when
+	 * they are first used instead.
+	 * <p>
+	 * The default limit is a quarter of the maximum heap size.
+	 * 
+	 * @param preloadMemoryLimit
+	 *            the preload memory limit, in bytes
+	 */
+	public void setPreloadMemoryLimit(long preloadMemoryLimit) {
+		if (preloadMemoryLimit < 0) {
+			throw new IllegalArgumentException("preloadMemoryLimit cannot be negative");
+		}
+		this.preloadMemoryLimit = preloadMemoryLimit;
+	}
+
+	/**
+	 * Gets the number of times a change to a context has been requested, i.e.
+	 * the number of file writes this storage would have performed if it wrote
+	 * every change immediately.
+	 * 
+	 * @return the number of requested writes
+	 */
+	public long getRequestedWrites() {
+		return requestedWrites.get();
+	}
+
+	/**
+	 * Gets the number of times a context file has actually been written.
+	 * 
+	 * @return the number of performed writes
+	 */
+	public long getPerformedWrites() {
+		return performedWrites.get();
+	}
+
+	/**
+	 * Gets the number of file writes that have been saved by merging several
+	 * changes to a context into a single write. This is only ever non-zero in
+	 * resident mode.
+	 * 
+	 * @return the number of writes saved by coalescing changes
+	 */
+	public long getCoalescedWrites() {
+		return Math.max(0, requestedWrites.get() - dirtyParts.size() - performedWrites.get());
+	}
+
+	private File getFile(String part) {
+		return new File(dataFolder, part + FILE_EXTENSION);
+	}
+
+	private String getPart(String context, String key) {
+		if (shardCount == 1) {
+			return context;
+		}
+		final int separator = key.indexOf('.');
+		final String topLevelKey = separator < 0 ? key : key.substring(0, separator);
+		return getShardPart(context, (topLevelKey.hashCode() & Integer.MAX_VALUE) % shardCount);
+	}
+
+	private String getShardPart(String context, int shard) {
+		return context + "/" + SHARD_PREFIX + shard + "-of-" + shardCount;
+	}
+
+	private List<String> getParts(String context) {
+		if (shardCount == 1) {
+			return Collections.singletonList(context);
+		}
+		final List<String> parts = new ArrayList<String>(shardCount);
+		for (int shard = 0; shard < shardCount; shard++) {
+			parts.add(getShardPart(context, shard));
+		}
+		return parts;
+	}
+
+	private String getPart(File file) {
+		final File parent = file.getParentFile();
+		final String name = file.getName().substring(0, file.getName().length() - FILE_EXTENSION.length());
+		return parent.equals(dataFolder) ? name : parent.getName() + "/" + name;
+	}
+
+	private static String getContext(String part) {
+		final int separator = part.indexOf('/');
+		return separator < 0 ? part : part.substring(0, separator);
+	}
+
+	private <T> Map<String, Map<String, T>> groupByPart(String context, Map<String, T> values) {
+		final Map<String, Map<String, T>> parts = new LinkedHashMap<String, Map<String, T>>();
+		for (final Map.Entry<String, T> entry : values.entrySet()) {
+			final String part = getPart(context, entry.getKey());
+			Map<String, T> partValues = parts.get(part);
+			if (partValues == null) {
+				partValues = new LinkedHashMap<String, T>();
+				parts.put(part, partValues);
+			}
+			partValues.put(entry.getKey(), entry.getValue());
+		}
+		return parts;
+	}
+
+	/**
+	 * Writes a configuration to a temporary file next to the context's file,
+	 * forces it to disk and renames it into place. The caller must hold at
+	 * least the read lock of the context.
+	 */
+	private void writeAtomically(FileConfiguration config, File file) throws IOException {
+		final File temporaryFile = new File(file.getPath() + TEMPORARY_FILE_EXTENSION);
+		file.getParentFile().mkdirs();
+		if (isCompressed()) {
+			final int level = getCompressionLevel();
+			final Writer writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(temporaryFile), BUFFER_SIZE) {
+				{
+					def.setLevel(level);
+				}
+			}, UTF_8);
+			try {
+				writer.write(config.saveToString());
+			} finally {
+				writer.close();
+			}
+		} else {
+			config.save(temporaryFile);
+		}
+		countBytesWritten(temporaryFile.length());
+
+		final FileChannel channel = FileChannel.open(temporaryFile.toPath(), StandardOpenOption.WRITE);
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+
+		try {
+			Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		if (watcher != null) {
+			ownWrites.put(file.getPath(), new FileStamp(file));
+		}
+		contextCreated(getContext(getPart(file)));
+		performedWrites.incrementAndGet();
+	}
+
+	/**
+	 * Deletes a file, remembering that this storage deleted it so the
+	 * deletion is not taken for a change made by others.
+	 */
+	private void deleteFile(File file) {
+		file.delete();
+		if (watcher != null) {
+			ownWrites.put(file.getPath(), new FileStamp(file));
+		}
+	}
+
+	/**
+	 * Reads a context file, which may or may not be compressed. A file that
+	 * does not exist is read as an empty configuration.
+	 */
+	private FileConfiguration readFile(File file) {
+		countBytesRead(file.length());
+		final InputStream stream;
+		try {
+			stream = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+		} catch (FileNotFoundException e) {
+			return new YamlConfiguration();
+		}
+
+		try {
+			try {
+				if (!isGzipStream(stream)) {
+					return YamlConfiguration.loadConfiguration(stream);
+				}
+
+				final Reader reader = new InputStreamReader(new GZIPInputStream(stream, BUFFER_SIZE), UTF_8);
+				final StringBuilder contents = new StringBuilder();
+				final char[] buffer = new char[BUFFER_SIZE];
+				int read;
+				while ((read = reader.read(buffer)) >= 0) {
+					contents.append(buffer, 0, read);
+				}
+
+				final YamlConfiguration config = new YamlConfiguration();
+				config.loadFromString(contents.toString());
+				return config;
+			} finally {
+				stream.close();
+			}
+		} catch (Exception e) {
+			throw new StorageException("Could not read " + file, e);
+		}
+	}
+
+	/**
+	 * Gets the number of bytes of YAML in a file, which for a compressed file
+	 * is read from the size recorded at the end of the file.
+	 */
+	private static long getContentLength(File file) throws IOException {
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			final long length = randomAccessFile.length();
+			if (length < 4 || randomAccessFile.read() != (GZIPInputStream.GZIP_MAGIC & 0xff) || randomAccessFile.read() != (GZIPInputStream.GZIP_MAGIC >>> 8)) {
+				return length;
+			}
+			// The size is stored modulo 2^32 in little-endian order
+			randomAccessFile.seek(length - 4);
+			return Integer.reverseBytes(randomAccessFile.readInt()) & 0xffffffffL;
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Checks whether a stream starts with the magic number of a gzip file,
+	 * leaving the stream where it was. The stream must support marks.
+	 */
+	private static boolean isGzipStream(InputStream stream) throws IOException {
+		stream.mark(2);
+		try {
+			return stream.read() == (GZIPInputStream.GZIP_MAGIC & 0xff) && stream.read() == (GZIPInputStream.GZIP_MAGIC >>> 8);
+		} finally {
+			stream.reset();
+		}
+	}
+
+	/**
+	 * Moves the keys of a context that is stored in another shard layout
+	 * than the current one into the current layout. The new files are written
+	 * before the old ones are deleted, so an interrupted migration is simply
+	 * done again.
+	 */
+	private void migrateIfNeeded(String context) throws IOException {
+		if (migratedContexts.contains(context)) {
+			return;
+		}
+
+		final Lock lock = contextLocks.get(context).writeLock();
+		lock.lock();
+		try {
+			if (migratedContexts.contains(context)) {
+				return;
+			}
+
+			final List<File> oldFiles = new ArrayList<File>();
+			final File singleFile = getFile(context);
+			if (shardCount > 1 && singleFile.exists()) {
+				oldFiles.add(singleFile);
+			}
+			final String currentShardSuffix = "-of-" + shardCount + FILE_EXTENSION;
+			final File[] shardFiles = new File(dataFolder, context).listFiles(new FilenameFilter() {
+				public boolean accept(final File folder, final String fileName) {
+					return fileName.startsWith(SHARD_PREFIX) && fileName.endsWith(FILE_EXTENSION) && (shardCount == 1 || !fileName.endsWith(currentShardSuffix));
+				}
+			});
+			if (shardFiles != null) {
+				Collections.addAll(oldFiles, shardFiles);
+			}
+
+			if (!oldFiles.isEmpty()) {
+				final Map<String, Object> values = new LinkedHashMap<String, Object>();
+				for (final File oldFile : oldFiles) {
+					values.putAll(readFile(oldFile).getValues(false));
+				}
+				for (final Map.Entry<String, Map<String, Object>> part : groupByPart(context, values).entrySet()) {
+					final File file = getFile(part.getKey());
+					final FileConfiguration config = readFile(file);
+					for (final Map.Entry<String, Object> entry : part.getValue().entrySet()) {
+						config.set(entry.getKey(), entry.getValue());
+					}
+					writeAtomically(config, file);
+				}
+				for (final File oldFile : oldFiles) {
+					deleteFile(oldFile);
+				}
+				// Only succeeds if the context is no longer sharded
+				new File(dataFolder, context).delete();
+			}
+
+			migratedContexts.add(context);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private FileConfiguration getContextFile(String part) {
+		if (resident) {
+			final FileConfiguration config = residentParts.get(part);
+			if (config != null) {
+				return config;
+			}
+		}
+
+		final File file = getFile(part);
+		final long lastModified = file.lastModified();
+		final long length = file.length();
+		if (lastModified == 0) {
 			return null;
 		}
 
-		final FileConfiguration config = YamlConfiguration.loadConfiguration(file);
+		final FileConfiguration config = readFile(file);
+		if (resident) {
+			final FileConfiguration existing = residentParts.putIfAbsent(part, config);
+			if (existing != null) {
+				return existing;
+			}
+		} else {
+			keyIndexes.put(part, new KeyIndex(config.getKeys(false), lastModified, length));
+		}
 		return config;
 	}
+
+	/**
+	 * Gets the top-level keys of a file, if they are known and the file has
+	 * not changed since, or <code>null</code> otherwise.
+	 */
+	private KeyIndex getKeyIndex(String part) {
+		final KeyIndex index = keyIndexes.get(part);
+		if (index == null) {
+			return null;
+		}
+		final File file = getFile(part);
+		if (file.lastModified() != index.lastModified || file.length() != index.length) {
+			keyIndexes.remove(part, index);
+			return null;
+		}
+		return index;
+	}
+
+	private void indexKeys(String part, File file, FileConfiguration config) {
+		keyIndexes.put(part, new KeyIndex(config.getKeys(false), file.lastModified(), file.length()));
+	}
+
+	private void contextCreated(String context) {
+		final Set<String> contexts = knownContexts;
+		if (watcher == null || contexts != null && contexts.contains(context)) {
+			return;
+		}
+		synchronized (knownContextsLock) {
+			contextChanges++;
+			if (knownContexts != null) {
+				knownContexts.add(context);
+			}
+		}
+	}
+
+	private void contextDeleted(String context) {
+		synchronized (knownContextsLock) {
+			contextChanges++;
+			if (knownContexts != null) {
+				knownContexts.remove(context);
+			}
+		}
+	}
+
+	private void forgetContexts() {
+		synchronized (knownContextsLock) {
+			contextChanges++;
+			knownContexts = null;
+		}
+	}
+
+	/**
+	 * Discards what is held in memory about a file that may have been changed
+	 * by others, unless this storage wrote the file as it is now.
+	 */
+	private void fileChanged(File file) {
+		if (!file.getName().endsWith(FILE_EXTENSION)) {
+			return;
+		}
+		final String part = getPart(file);
+
+		final Lock lock = contextLocks.get(getContext(part)).writeLock();
+		lock.lock();
+		try {
+			final FileStamp stamp = ownWrites.get(file.getPath());
+			if (stamp != null && stamp.matches(file)) {
+				return;
+			}
+			ownWrites.remove(file.getPath());
+			if (dirtyParts.contains(part)) {
+				LOGGER.log(Level.WARNING, file + " was changed while it had unflushed changes; the next flush will overwrite the changes made to the file");
+			} else {
+				residentParts.remove(part);
+			}
+			keyIndexes.remove(part);
+			migratedContexts.remove(getContext(part));
+			forgetContexts();
+			externalChanges.incrementAndGet();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Discards what is held in memory about every file, as any of them may
+	 * have been changed by others.
+	 */
+	private void allFilesChanged() {
+		final Set<String> parts = new HashSet<String>(residentParts.keySet());
+		parts.addAll(keyIndexes.keySet());
+		for (final String part : parts) {
+			fileChanged(getFile(part));
+		}
+		forgetContexts();
+	}
+
+	private FileConfiguration getOrCreateResidentContext(String part) {
+		final FileConfiguration config = getContextFile(part);
+		if (config != null) {
+			return config;
+		}
+
+		final FileConfiguration newConfig = new YamlConfiguration();
+		final FileConfiguration existing = residentParts.putIfAbsent(part, newConfig);
+		return existing != null ? existing : newConfig;
+	}
 	
 	private void throwExceptionIfNotInitialized() throws StorageException {
 		if (!initialized) {
@@ -86,6 +818,17 @@ public class FileConfigurationStorage implements Storage {
 			if (!dataFolder.exists()) {
 				dataFolder.mkdirs();
 			}
+			if (watchingFiles) {
+				watcher = new DirectoryWatcher(dataFolder, new DirectoryWatcher.Listener() {
+					public void fileChanged(final File file) {
+						FileConfigurationStorage.this.fileChanged(file);
+					}
+
+					public void changesLost() {
+						allFilesChanged();
+					}
+				}, "BukkitUtil-FileConfigurationStorage-Watcher");
+			}
 			initialized = true;
 		} catch (Exception e) {
 			throw new StorageException(e);
@@ -94,79 +837,240 @@ public class FileConfigurationStorage implements Storage {
 
 	public void save(String context, String key, Object value) throws StorageException {
 		throwExceptionIfNotInitialized();
+		write(context, Collections.singletonMap(key, value), true);
+	}
+
+	/**
+	 * Sets the given keys of a context to the given values, where a
+	 * <code>null</code> value removes the key, reading and writing every file
+	 * of the context involved at most once.
+	 */
+	private void write(String context, Map<String, ?> values, boolean create) throws StorageException {
 		try {
-			final File file = new File(dataFolder, context + ".yml");
-			final FileConfiguration config = YamlConfiguration.loadConfiguration(file);
-			config.set(key, value);
-			config.save(file);
+			migrateIfNeeded(context);
+			final Lock lock = contextLocks.get(context).writeLock();
+			lock.lock();
+			try {
+				for (final Map.Entry<String, ? extends Map<String, ?>> part : groupByPart(context, values).entrySet()) {
+					writePart(part.getKey(), part.getValue(), create);
+				}
+			} finally {
+				lock.unlock();
+			}
 		} catch (final Exception e) {
 			throw new StorageException(e);
 		}
 	}
 
-	public Object load(String context, String key) throws StorageException {
+	private void writePart(String part, Map<String, ?> values, boolean create) throws IOException {
+		if (resident) {
+			final FileConfiguration config = create ? getOrCreateResidentContext(part) : getContextFile(part);
+			if (config == null) {
+				return;
+			}
+			for (final Map.Entry<String, ?> entry : values.entrySet()) {
+				config.set(entry.getKey(), entry.getValue());
+			}
+			requestedWrites.incrementAndGet();
+			dirtyParts.add(part);
+			return;
+		}
+
+		final File file = getFile(part);
+		if (!create && !file.exists()) {
+			return;
+		}
+		writeFile(part, readFile(file), values);
+	}
+
+	/**
+	 * Sets the given keys of a file that has already been read, and writes
+	 * it. Only used outside resident mode.
+	 */
+	private void writeFile(String part, FileConfiguration config, Map<String, ?> values) throws IOException {
+		final File file = getFile(part);
+		for (final Map.Entry<String, ?> entry : values.entrySet()) {
+			config.set(entry.getKey(), entry.getValue());
+		}
+		requestedWrites.incrementAndGet();
+		writeAtomically(config, file);
+		indexKeys(part, file, config);
+	}
+
+	/**
+	 * The stored object is read and the new one written while the context is
+	 * locked for writing, so only the file holding the key is read and
+	 * written, once.
+	 */
+	@Override
+	Object update(String context, String key, ValueUpdate update) throws StorageException {
 		throwExceptionIfNotInitialized();
 		try {
-			final FileConfiguration config = getContextFile(context);
-			if (config == null) {
-				return null;
+			migrateIfNeeded(context);
+			final Lock lock = contextLocks.get(context).writeLock();
+			lock.lock();
+			try {
+				final String part = getPart(context, key);
+				final FileConfiguration config = getContextFile(part);
+				final Object currentValue = config == null ? null : config.get(key);
+				final Object newValue = update.apply(currentValue);
+				if (newValue == ValueUpdate.UNCHANGED) {
+					return currentValue;
+				}
+				if (newValue == null && currentValue == null) {
+					return null;
+				}
+				if (resident) {
+					writePart(part, Collections.singletonMap(key, newValue), newValue != null);
+				} else {
+					// Outside resident mode, the file we just read is ours to
+					// change, so it does not have to be read again
+					writeFile(part, config == null ? new YamlConfiguration() : config, Collections.singletonMap(key, newValue));
+				}
+				return newValue;
+			} finally {
+				lock.unlock();
 			}
-			return config.get(key);
+		} catch (StorageException e) {
+			throw e;
 		} catch (Exception e) {
 			throw new StorageException(e);
 		}
 	}
 
-	public boolean exists(String context, String key) throws StorageException {
+	public Object load(String context, String key) throws StorageException {
 		throwExceptionIfNotInitialized();
 		try {
-			final FileConfiguration config = getContextFile(context);
-			if (config == null) {
-				return false;
+			migrateIfNeeded(context);
+			final Lock lock = contextLocks.get(context).readLock();
+			lock.lock();
+			try {
+				final FileConfiguration config = getContextFile(getPart(context, key));
+				return config == null ? null : config.get(key);
+			} finally {
+				lock.unlock();
 			}
-			return config.isSet(key);
 		} catch (Exception e) {
 			throw new StorageException(e);
 		}
 	}
 
-	public void delete(String context) throws StorageException {
+	public boolean exists(String context, String key) throws StorageException {
 		throwExceptionIfNotInitialized();
 		try {
-			final File file = new File(dataFolder, context + ".yml");
-			file.delete();
+			migrateIfNeeded(context);
+			final Lock lock = contextLocks.get(context).readLock();
+			lock.lock();
+			try {
+				final String part = getPart(context, key);
+				final KeyIndex index = resident ? null : getKeyIndex(part);
+				if (index != null) {
+					final int separator = key.indexOf('.');
+					if (!index.keys.contains(separator < 0 ? key : key.substring(0, separator))) {
+						return false;
+					} else if (separator < 0) {
+						return true;
+					}
+				}
+
+				final FileConfiguration config = getContextFile(part);
+				return config != null && config.isSet(key);
+			} finally {
+				lock.unlock();
+			}
 		} catch (Exception e) {
 			throw new StorageException(e);
 		}
 	}
 
-	public void deleteKey(String context, String key) throws StorageException {
+	public void delete(String context) throws StorageException {
 		throwExceptionIfNotInitialized();
 		try {
-			final File file = new File(dataFolder, context + ".yml");
-			if (!file.exists()) {
-				return;
+			final Lock lock = contextLocks.get(context).writeLock();
+			lock.lock();
+			try {
+				for (final String part : residentParts.keySet()) {
+					if (getContext(part).equals(context)) {
+						residentParts.remove(part);
+						dirtyParts.remove(part);
+					}
+				}
+				for (final String part : keyIndexes.keySet()) {
+					if (getContext(part).equals(context)) {
+						keyIndexes.remove(part);
+					}
+				}
+				contextDeleted(context);
+				deleteFile(getFile(context));
+				final File directory = new File(dataFolder, context);
+				final File[] shardFiles = directory.listFiles();
+				if (shardFiles != null) {
+					for (final File shardFile : shardFiles) {
+						deleteFile(shardFile);
+					}
+					directory.delete();
+				}
+			} finally {
+				lock.unlock();
 			}
 		} catch (Exception e) {
 			throw new StorageException(e);
 		}
-		save(context, key, null);
+	}
+
+	public void deleteKey(String context, String key) throws StorageException {
+		throwExceptionIfNotInitialized();
+		write(context, Collections.singletonMap(key, null), false);
 	}
 
 	public Set<String> getContexts() throws StorageException {
 		throwExceptionIfNotInitialized();
 		try {
+			final Set<String> known = knownContexts;
+			if (known != null) {
+				final Set<String> contexts = new HashSet<String>(known);
+				for (final String part : dirtyParts) {
+					contexts.add(getContext(part));
+				}
+				return contexts;
+			}
+
+			final long changes;
+			synchronized (knownContextsLock) {
+				changes = contextChanges;
+			}
 			final String[] fileNames = dataFolder.list(new FilenameFilter() {
 				public boolean accept(final File folder, final String fileName) {
-					return fileName.endsWith(".yml");
+					return fileName.endsWith(FILE_EXTENSION);
+				}
+			});
+			final File[] directories = dataFolder.listFiles(new FileFilter() {
+				public boolean accept(final File file) {
+					return file.isDirectory();
 				}
 			});
 
 			final HashSet<String> fileSet = new HashSet<String>();
 			for (String fileName : fileNames) {
-				fileName = fileName.substring(0, fileName.lastIndexOf(".yml"));
+				fileName = fileName.substring(0, fileName.lastIndexOf(FILE_EXTENSION));
 				fileSet.add(fileName);
 			}
+			for (final File directory : directories) {
+				fileSet.add(directory.getName());
+			}
+			if (watcher != null) {
+				synchronized (knownContextsLock) {
+					if (contextChanges == changes) {
+						final Set<String> contexts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+						contexts.addAll(fileSet);
+						knownContexts = contexts;
+					}
+				}
+			}
+			// Contexts created in resident mode have no file until flushed
+			for (final String part : dirtyParts) {
+				fileSet.add(getContext(part));
+			}
 			return fileSet;
 		} catch (Exception e) {
 			throw new StorageException(e);
@@ -176,16 +1080,505 @@ public class FileConfigurationStorage implements Storage {
 	public Set<String> getKeys(String context) throws StorageException {
 		throwExceptionIfNotInitialized();
 		try {
-			final FileConfiguration config = getContextFile(context);
-			if (config == null) {
-				return Collections.emptySet();
+			migrateIfNeeded(context);
+			final Set<String> keys = new HashSet<String>();
+			final Lock lock = contextLocks.get(context).readLock();
+			lock.lock();
+			try {
+				for (final String part : getParts(context)) {
+					final KeyIndex index = resident ? null : getKeyIndex(part);
+					if (index != null) {
+						keys.addAll(index.keys);
+						continue;
+					}
+
+					final FileConfiguration config = getContextFile(part);
+					if (config != null) {
+						keys.addAll(config.getKeys(false));
+					}
+				}
+			} finally {
+				lock.unlock();
 			}
+			return keys;
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Keys containing a <code>.</code> are stored as configuration sections.
+	 * If the prefix contains a <code>.</code>, the keys within the section it
+	 * points into are returned, one level below the section: with the keys
+	 * <code>player.a.home</code> and <code>player.b.home</code> saved, the
+	 * prefix <code>player.</code> returns <code>player.a</code> and
+	 * <code>player.b</code>.
+	 */
+	@Override
+	public SortedSet<String> getKeysWithPrefix(String context, String prefix) throws StorageException {
+		final int separator = prefix.lastIndexOf('.');
+		return getKeysInRange(context, separator < 0 ? null : prefix.substring(0, separator), prefix, KeyRange.prefixEnd(prefix));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * If every key within the range is within the same configuration section,
+	 * because both bounds start with the section's path and a <code>.</code>,
+	 * the keys within the section are returned, one level below the section.
+	 */
+	@Override
+	public SortedSet<String> getKeysInRange(String context, String fromKey, String toKey) throws StorageException {
+		final String commonPrefix = KeyRange.commonPrefix(fromKey, toKey);
+		final int separator = commonPrefix.lastIndexOf('.');
+		return getKeysInRange(context, separator < 0 ? null : commonPrefix.substring(0, separator), fromKey, toKey);
+	}
 
-			return config.getKeys(false);
+	/**
+	 * Gets the keys within a range, either among the top-level keys if
+	 * <code>section</code> is <code>null</code>, or among the keys of the
+	 * given section.
+	 */
+	private SortedSet<String> getKeysInRange(String context, String section, String fromKey, String toKey) throws StorageException {
+		throwExceptionIfNotInitialized();
+		final SortedSet<String> keys = new TreeSet<String>();
+		if (KeyRange.isEmpty(fromKey, toKey)) {
+			return keys;
+		}
+		try {
+			migrateIfNeeded(context);
+			final Lock lock = contextLocks.get(context).readLock();
+			lock.lock();
+			try {
+				if (section == null) {
+					for (final String part : getParts(context)) {
+						final KeyIndex index = resident ? null : getKeyIndex(part);
+						if (index != null) {
+							keys.addAll(KeyRange.subSet(index.keys, fromKey, toKey));
+							continue;
+						}
+
+						final FileConfiguration config = getContextFile(part);
+						if (config != null) {
+							keys.addAll(KeyRange.select(config.getKeys(false), fromKey, toKey));
+						}
+					}
+					return keys;
+				}
+
+				final String part = getPart(context, section);
+				final KeyIndex index = resident ? null : getKeyIndex(part);
+				final int separator = section.indexOf('.');
+				if (index != null && !index.keys.contains(separator < 0 ? section : section.substring(0, separator))) {
+					return keys;
+				}
+				final FileConfiguration config = getContextFile(part);
+				final ConfigurationSection configSection = config == null ? null : config.getConfigurationSection(section);
+				if (configSection != null) {
+					for (final String key : configSection.getKeys(false)) {
+						final String fullKey = section + "." + key;
+						if (KeyRange.contains(fullKey, fromKey, toKey)) {
+							keys.add(fullKey);
+						}
+					}
+				}
+				return keys;
+			} finally {
+				lock.unlock();
+			}
 		} catch (Exception e) {
 			throw new StorageException(e);
 		}
+	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Each file of the context is read and written at most once, regardless
+	 * of the number of objects.
+	 */
+	@Override
+	public void saveAll(String context, Map<String, ?> values) throws StorageException {
+		throwExceptionIfNotInitialized();
+		if (values.isEmpty()) {
+			return;
+		}
+		write(context, values, true);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Each file of the context is read at most once, regardless of the number
+	 * of keys.
+	 */
+	@Override
+	public Map<String, Object> loadAll(String context, Collection<String> keys) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			migrateIfNeeded(context);
+			final Map<String, Object> values = new HashMap<String, Object>();
+			final Map<String, Object> keyMap = new LinkedHashMap<String, Object>();
+			for (final String key : keys) {
+				keyMap.put(key, null);
+			}
+			final Lock lock = contextLocks.get(context).readLock();
+			lock.lock();
+			try {
+				for (final Map.Entry<String, Map<String, Object>> part : groupByPart(context, keyMap).entrySet()) {
+					final FileConfiguration config = getContextFile(part.getKey());
+					if (config == null) {
+						continue;
+					}
+					for (final String key : part.getValue().keySet()) {
+						final Object value = config.get(key);
+						if (value != null) {
+							values.put(key, value);
+						}
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+			return values;
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Each file of the context is read once, and the visitor is given its
+	 * top-level keys and their values. Keys containing a <code>.</code> are
+	 * visited as the sections they were saved into.
+	 * <p>
+	 * Each value is only looked up right before it is visited, and the
+	 * visitor is called while the context is unlocked, so the visitor may
+	 * write to other contexts of this storage. In resident mode, the visitor
+	 * is given the keys the context had when the visit of the file started.
+	 */
+	@Override
+	public void forEach(String context, StorageVisitor visitor) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			migrateIfNeeded(context);
+			final Lock lock = contextLocks.get(context).readLock();
+			for (final String part : getParts(context)) {
+				final FileConfiguration config;
+				final boolean shared;
+				final Set<String> keys;
+				lock.lock();
+				try {
+					config = getContextFile(part);
+					if (config == null) {
+						continue;
+					}
+					// Outside resident mode, the file we just read is ours alone
+					shared = resident;
+					keys = config.getKeys(false);
+				} finally {
+					lock.unlock();
+				}
+
+				for (final String key : keys) {
+					final Object value;
+					if (shared) {
+						lock.lock();
+						try {
+							value = config.get(key);
+						} finally {
+							lock.unlock();
+						}
+					} else {
+						value = config.get(key);
+					}
+					if (value != null && !visitor.visit(key, value)) {
+						return;
+					}
+				}
+			}
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Each file of the context is read and written at most once, regardless
+	 * of the number of keys.
+	 */
+	@Override
+	public void deleteKeys(String context, Collection<String> keys) throws StorageException {
+		throwExceptionIfNotInitialized();
+		if (keys.isEmpty()) {
+			return;
+		}
+		final Map<String, Object> values = new HashMap<String, Object>();
+		for (final String key : keys) {
+			values.put(key, null);
+		}
+		write(context, values, false);
+	}
+
+	/**
+	 * Reads the files of the given contexts in parallel on a fork/join pool of
+	 * {@link #setPreloadParallelism(int) several threads}, so that using the
+	 * contexts later does not have to. In resident mode, the parsed contexts
+	 * are kept in memory; otherwise, only their keys are remembered, which
+	 * speeds up {@link #getKeys(String) getKeys()} and
+	 * {@link #exists(String, String) exists()}.
+	 * <p>
+	 * Before anything is read, the contexts are measured in the given order,
+	 * and a context that would take the total past the
+	 * {@link #setPreloadMemoryLimit(long) memory limit} is skipped, so which
+	 * contexts are preloaded does not depend on the order the threads read
+	 * them in. Contexts that are already in memory, or that do not exist, are
+	 * skipped as well.
+	 * <p>
+	 * This method blocks until every context has been preloaded, so it is
+	 * best called from the plug-in's <code>onEnable()</code> method, before
+	 * the contexts are used.
+	 * 
+	 * @param contexts
+	 *            the contexts to preload
+	 * @return what was preloaded, and how long it took
+	 * @throws StorageException
+	 *             if a context cannot be read
+	 */
+	public PreloadResult preload(Collection<String> contexts) throws StorageException {
+		throwExceptionIfNotInitialized();
+		final long start = System.nanoTime();
+		final AtomicInteger preloadedContexts = new AtomicInteger();
+		int skippedContexts = 0;
+		long bytesRead = 0;
+		final long memoryLimit = preloadMemoryLimit;
+
+		// Reserve the memory in the given order before forking, so the
+		// contexts that fit do not depend on which thread is fastest
+		final List<String> contextList = new ArrayList<String>();
+		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final String context : contexts) {
+			final List<String> parts = new ArrayList<String>();
+			long length = 0;
+			try {
+				migrateIfNeeded(context);
+				for (final String part : getParts(context)) {
+					final File file = getFile(part);
+					if ((resident ? !residentParts.containsKey(part) : getKeyIndex(part) == null) && file.exists()) {
+						parts.add(part);
+						length += getContentLength(file);
+					}
+				}
+			} catch (IOException e) {
+				throw new StorageException("Could not preload context " + context, e);
+			}
+			if (parts.isEmpty()) {
+				continue;
+			}
+			if (bytesRead + length > memoryLimit) {
+				skippedContexts++;
+				continue;
+			}
+			bytesRead += length;
+
+			contextList.add(context);
+			tasks.add(new Callable<Void>() {
+				public Void call() throws Exception {
+					final Lock lock = contextLocks.get(context).readLock();
+					lock.lock();
+					try {
+						for (final String part : parts) {
+							getContextFile(part);
+						}
+					} finally {
+						lock.unlock();
+					}
+					preloadedContexts.incrementAndGet();
+					return null;
+				}
+			});
+		}
+
+		final ForkJoinPool pool = new ForkJoinPool(preloadParallelism);
+		try {
+			final List<Future<Void>> results = pool.invokeAll(tasks);
+			for (int i = 0; i < results.size(); i++) {
+				try {
+					results.get(i).get();
+				} catch (ExecutionException e) {
+					throw new StorageException("Could not preload context " + contextList.get(i), e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StorageException("Interrupted while preloading contexts", e);
+		} finally {
+			pool.shutdown();
+		}
+
+		return new PreloadResult(preloadedContexts.get(), skippedContexts, bytesRead, System.nanoTime() - start);
+	}
+
+	/**
+	 * Preloads every context in the storage, as if calling
+	 * {@link #preload(Collection) preload(getContexts())}.
+	 * 
+	 * @return what was preloaded, and how long it took
+	 * @throws StorageException
+	 *             if a context cannot be read
+	 */
+	public PreloadResult preloadAll() throws StorageException {
+		return preload(getContexts());
+	}
+
+	/**
+	 * Writes every context that has been changed in resident mode to disk,
+	 * once per file no matter how many changes were made to it. If resident
+	 * mode is not enabled, this method does nothing, as every change has
+	 * already been written.
+	 * <p>
+	 * This method may be called from any thread, so long as the storage is not
+	 * closed or re-configured at the same time.
+	 */
+	public void flush() throws StorageException {
+		throwExceptionIfNotInitialized();
+		for (final String part : dirtyParts) {
+			// Changes cannot be made while we hold the read lock, so a part
+			// that is changed after we are done is simply marked dirty again
+			final Lock lock = contextLocks.get(getContext(part)).readLock();
+			lock.lock();
+			try {
+				final FileConfiguration config = residentParts.get(part);
+				if (!dirtyParts.remove(part) || config == null) {
+					continue;
+				}
+
+				try {
+					writeAtomically(config, getFile(part));
+				} catch (Exception e) {
+					dirtyParts.add(part);
+					throw new StorageException("Could not write context " + getContext(part), e);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Flushes all pending changes and discards all resident contexts. The
+	 * storage must be {@link #initialize(JavaPlugin) initialized} again before
+	 * it can be used.
+	 */
+	public void close() throws StorageException {
+		if (!initialized) {
+			return;
+		}
+		flush();
+		if (watcher != null) {
+			watcher.close();
+			watcher = null;
+			ownWrites.clear();
+		}
+		residentParts.clear();
+		migratedContexts.clear();
+		keyIndexes.clear();
+		forgetContexts();
+		initialized = false;
+	}
+
+	/**
+	 * The outcome of a call to {@link FileConfigurationStorage#preload(Collection)
+	 * preload()}.
+	 */
+	public static final class PreloadResult {
+		private final int preloadedContexts;
+		private final int skippedContexts;
+		private final long bytesRead;
+		private final long elapsedNanos;
+
+		PreloadResult(int preloadedContexts, int skippedContexts, long bytesRead, long elapsedNanos) {
+			this.preloadedContexts = preloadedContexts;
+			this.skippedContexts = skippedContexts;
+			this.bytesRead = bytesRead;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		/**
+		 * Gets the number of contexts that were preloaded.
+		 * 
+		 * @return the number of preloaded contexts
+		 */
+		public int getPreloadedContexts() {
+			return preloadedContexts;
+		}
+
+		/**
+		 * Gets the number of contexts that were skipped because they would
+		 * have exceeded the memory limit.
+		 * 
+		 * @return the number of skipped contexts
+		 */
+		public int getSkippedContexts() {
+			return skippedContexts;
+		}
+
+		/**
+		 * Gets the number of bytes of YAML that were read, counting compressed
+		 * files by their uncompressed size.
+		 * 
+		 * @return the number of bytes read
+		 */
+		public long getBytesRead() {
+			return bytesRead;
+		}
+
+		/**
+		 * Gets the time it took to preload the contexts.
+		 * 
+		 * @param unit
+		 *            the unit to get the time in
+		 * @return the elapsed time
+		 */
+		public long getElapsedTime(TimeUnit unit) {
+			return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Preloaded %d contexts (%d bytes) in %.1f ms, skipped %d", preloadedContexts, bytesRead, elapsedNanos / 1e6, skippedContexts);
+		}
+	}
+
+	private static final class KeyIndex {
+		final NavigableSet<String> keys;
+		final long lastModified;
+		final long length;
+
+		KeyIndex(Set<String> keys, long lastModified, long length) {
+			this.keys = new TreeSet<String>(keys);
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+	}
+
+	private static final class FileStamp {
+		final long lastModified;
+		final long length;
+
+		FileStamp(File file) {
+			this.lastModified = file.lastModified();
+			this.length = file.length();
+		}
+
+		boolean matches(File file) {
+			return file.lastModified() == lastModified && file.length() == length;
+		}
 	}
 
 }
@@ -0,0 +1,192 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * The <code>FlushScheduler</code> class periodically {@link BufferedStorage#flush()
+ * flushes} a {@link BufferedStorage}, so that all changes made to a context
+ * within one interval are merged into a single write of that context.
+ * 
+ * <p>
+ * The interval can either be given in server ticks, in which case the flushes
+ * are run as asynchronous Bukkit tasks, or as a wall-clock duration, in which
+ * case the scheduler uses a thread of its own. Either way, flushing never
+ * happens on the server's main thread.
+ * 
+ * <p>
+ * {@link #stop()} cancels the periodic flushing and performs a final flush,
+ * so it should be called from the plug-in's <code>onDisable()</code> method.
+ */
+public class FlushScheduler {
+
+	private final BufferedStorage storage;
+
+	private final AtomicLong flushes = new AtomicLong();
+
+	private final AtomicLong failedFlushes = new AtomicLong();
+
+	private Logger logger = Logger.getLogger(FlushScheduler.class.getName());
+
+	private BukkitTask task;
+
+	private ScheduledExecutorService executor;
+
+	/**
+	 * Creates a <code>FlushScheduler</code> for the given storage.
+	 * 
+	 * @param storage
+	 *            the storage to flush
+	 */
+	public FlushScheduler(final BufferedStorage storage) {
+		this.storage = storage;
+	}
+
+	/**
+	 * Starts flushing the storage every <code>periodTicks</code> server ticks,
+	 * using an asynchronous Bukkit task. Failed flushes are logged to the
+	 * plug-in's logger.
+	 * 
+	 * @param plugin
+	 *            the plug-in to schedule the task with
+	 * @param periodTicks
+	 *            the number of ticks between flushes
+	 * @throws IllegalStateException
+	 *             if the scheduler has already been started
+	 */
+	public synchronized void start(final Plugin plugin, final long periodTicks) {
+		throwExceptionIfStarted();
+		logger = plugin.getLogger();
+		task = Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, new Runnable() {
+			public void run() {
+				flushNow();
+			}
+		}, periodTicks, periodTicks);
+	}
+
+	/**
+	 * Starts flushing the storage every <code>period</code>, using a thread
+	 * owned by this scheduler.
+	 * 
+	 * @param period
+	 *            the time between flushes
+	 * @param unit
+	 *            the unit of the <code>period</code> argument
+	 * @throws IllegalStateException
+	 *             if the scheduler has already been started
+	 */
+	public synchronized void start(final long period, final TimeUnit unit) {
+		throwExceptionIfStarted();
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "BukkitUtil-FlushScheduler");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				flushNow();
+			}
+		}, period, period, unit);
+	}
+
+	/**
+	 * Stops the periodic flushing and flushes the storage one last time.
+	 * 
+	 * @throws StorageException
+	 *             if the final flush fails
+	 */
+	public synchronized void stop() throws StorageException {
+		if (task != null) {
+			task.cancel();
+			task = null;
+		}
+		if (executor != null) {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			executor = null;
+		}
+		storage.flush();
+		flushes.incrementAndGet();
+	}
+
+	/**
+	 * Gets whether the scheduler is currently flushing the storage
+	 * periodically.
+	 * 
+	 * @return <code>true</code> if the scheduler has been started and not yet
+	 *         stopped
+	 */
+	public synchronized boolean isRunning() {
+		return task != null || executor != null;
+	}
+
+	/**
+	 * Gets the number of times the storage has been flushed by this
+	 * scheduler.
+	 * 
+	 * @return the number of flushes
+	 */
+	public long getFlushes() {
+		return flushes.get();
+	}
+
+	/**
+	 * Gets the number of periodic flushes that failed. A failed flush leaves
+	 * the changes pending, so they will be retried by the next flush.
+	 * 
+	 * @return the number of failed flushes
+	 */
+	public long getFailedFlushes() {
+		return failedFlushes.get();
+	}
+
+	private void flushNow() {
+		try {
+			storage.flush();
+			flushes.incrementAndGet();
+		} catch (final Exception e) {
+			failedFlushes.incrementAndGet();
+			logger.log(Level.SEVERE, "Could not flush storage", e);
+		}
+	}
+
+	private void throwExceptionIfStarted() {
+		if (isRunning()) {
+			throw new IllegalStateException("The FlushScheduler has already been started");
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * A {@link Storage} that forwards every call to another storage. Storages
+ * that add a feature on top of any other storage extend this class and
+ * override the calls the feature is concerned with.
+ * 
+ * <p>
+ * {@link #flush()} and {@link #close()} are forwarded if the wrapped storage
+ * is a {@link BufferedStorage}, and do nothing otherwise, so a forwarding
+ * storage can always be treated as a <code>BufferedStorage</code>.
+ */
+public abstract class ForwardingStorage implements BufferedStorage {
+
+	private final Storage storage;
+
+	/**
+	 * Creates a storage that forwards every call to the given storage.
+	 * 
+	 * @param storage
+	 *            the storage to forward the calls to
+	 */
+	protected ForwardingStorage(final Storage storage) {
+		if (storage == null) {
+			throw new IllegalArgumentException("storage cannot be null");
+		}
+		this.storage = storage;
+	}
+
+	/**
+	 * Gets the storage the calls are forwarded to.
+	 * 
+	 * @return the wrapped storage
+	 */
+	public Storage getStorage() {
+		return storage;
+	}
+
+	public void initialize(final JavaPlugin plugin) throws StorageException {
+		storage.initialize(plugin);
+	}
+
+	public void save(final String context, final String key, final Object value) throws StorageException {
+		storage.save(context, key, value);
+	}
+
+	public Object load(final String context, final String key) throws StorageException {
+		return storage.load(context, key);
+	}
+
+	public <T> T load(final String context, final String key, final Class<T> type) throws StorageException {
+		return storage.load(context, key, type);
+	}
+
+	public int loadInt(final String context, final String key, final int defaultValue) throws StorageException {
+		return storage.loadInt(context, key, defaultValue);
+	}
+
+	public long loadLong(final String context, final String key, final long defaultValue) throws StorageException {
+		return storage.loadLong(context, key, defaultValue);
+	}
+
+	public double loadDouble(final String context, final String key, final double defaultValue) throws StorageException {
+		return storage.loadDouble(context, key, defaultValue);
+	}
+
+	public boolean exists(final String context, final String key) throws StorageException {
+		return storage.exists(context, key);
+	}
+
+	public void delete(final String context) throws StorageException {
+		storage.delete(context);
+	}
+
+	public void deleteKey(final String context, final String key) throws StorageException {
+		storage.deleteKey(context, key);
+	}
+
+	public Set<String> getContexts() throws StorageException {
+		return storage.getContexts();
+	}
+
+	public Set<String> getKeys(final String context) throws StorageException {
+		return storage.getKeys(context);
+	}
+
+	public SortedSet<String> getKeysWithPrefix(final String context, final String prefix) throws StorageException {
+		return storage.getKeysWithPrefix(context, prefix);
+	}
+
+	public SortedSet<String> getKeysInRange(final String context, final String fromKey, final String toKey) throws StorageException {
+		return storage.getKeysInRange(context, fromKey, toKey);
+	}
+
+	public long increment(final String context, final String key, final long delta) throws StorageException {
+		return storage.increment(context, key, delta);
+	}
+
+	public boolean compareAndSet(final String context, final String key, final Object expectedValue, final Object newValue) throws StorageException {
+		return storage.compareAndSet(context, key, expectedValue, newValue);
+	}
+
+	public Object merge(final String context, final String key, final Object value, final StorageMerger merger) throws StorageException {
+		return storage.merge(context, key, value, merger);
+	}
+
+	public void saveAll(final String context, final Map<String, ?> values) throws StorageException {
+		storage.saveAll(context, values);
+	}
+
+	public Map<String, Object> loadAll(final String context, final Collection<String> keys) throws StorageException {
+		return storage.loadAll(context, keys);
+	}
+
+	public void deleteKeys(final String context, final Collection<String> keys) throws StorageException {
+		storage.deleteKeys(context, keys);
+	}
+
+	public void forEach(final String context, final StorageVisitor visitor) throws StorageException {
+		storage.forEach(context, visitor);
+	}
+
+	public void flush() throws StorageException {
+		if (storage instanceof BufferedStorage) {
+			((BufferedStorage) storage).flush();
+		}
+	}
+
+	public void close() throws StorageException {
+		if (storage instanceof BufferedStorage) {
+			((BufferedStorage) storage).close();
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+/**
+ * A count-min sketch that estimates how often each of a large number of
+ * items has been seen recently, in a fixed amount of memory. Every item
+ * counts up to 15; once the sketch has seen ten times as many items as it is
+ * sized for, all counts are halved, so items that are no longer seen are
+ * slowly forgotten.
+ * <p>
+ * The sketch is not thread-safe.
+ */
+final class FrequencySketch {
+
+	private static final int MAXIMUM_COUNT = 15;
+
+	private static final int[] SEEDS = { 0x97cb3127, 0x2f1e8c4b, 0x61c88647, 0x7fe4a3b5 };
+
+	private final byte[] counts;
+
+	private final int mask;
+
+	private final int sampleSize;
+
+	private int additions;
+
+	/**
+	 * Creates a sketch sized for the given number of distinct items.
+	 * 
+	 * @param capacity
+	 *            the number of distinct items the sketch is expected to tell
+	 *            apart
+	 */
+	FrequencySketch(final int capacity) {
+		int width = 16;
+		while (width < capacity && width < (1 << 30)) {
+			width <<= 1;
+		}
+		counts = new byte[width];
+		mask = width - 1;
+		sampleSize = (int) Math.min(10L * width, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Counts an item as seen once more.
+	 * 
+	 * @param hash
+	 *            the hash code of the item
+	 */
+	void increment(final int hash) {
+		boolean added = false;
+		for (final int seed : SEEDS) {
+			final int index = index(hash, seed);
+			if (counts[index] < MAXIMUM_COUNT) {
+				counts[index]++;
+				added = true;
+			}
+		}
+		if (added && ++additions >= sampleSize) {
+			halve();
+		}
+	}
+
+	/**
+	 * Estimates how often an item has been seen recently.
+	 * 
+	 * @param hash
+	 *            the hash code of the item
+	 * @return the estimated count, from 0 to 15
+	 */
+	int frequency(final int hash) {
+		int frequency = MAXIMUM_COUNT;
+		for (final int seed : SEEDS) {
+			frequency = Math.min(frequency, counts[index(hash, seed)]);
+		}
+		return frequency;
+	}
+
+	private int index(final int hash, final int seed) {
+		int h = (hash ^ seed) * 0x9e3779b9;
+		h ^= h >>> 16;
+		return h & mask;
+	}
+
+	private void halve() {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] >>= 1;
+		}
+		additions /= 2;
+	}
+}
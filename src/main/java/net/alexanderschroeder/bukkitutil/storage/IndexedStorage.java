@@ -0,0 +1,472 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * A {@link Storage} that keeps secondary indexes on fields of the objects of
+ * another storage, so that the keys of the objects with a given field value
+ * can be found without loading every object of the context.
+ * 
+ * <p>
+ * A field is a key of the {@link ConfigurationSerializable#serialize()
+ * serialized} form of an object; objects that are {@link Map maps} or
+ * {@link ConfigurationSection configuration sections} are indexed on their
+ * own keys. A field may name a field of a nested object by joining the field
+ * names with a <code>.</code>, such as <code>location.world</code>. Whole
+ * numbers are indexed as {@link Long}s and other numbers as {@link Double}s,
+ * so a number is found regardless of the type it was saved as.
+ * 
+ * <p>
+ * Indexes are {@link #addIndex(String, String) declared} for a context and
+ * kept in memory. The indexes of a context are built by reading the context
+ * once, the first time one of them is queried, and are kept up to date with
+ * every change made through this storage from then on. Changes to a context
+ * with indexes are made one at a time. All changes to the wrapped storage
+ * must be made through this storage.
+ */
+public class IndexedStorage extends ForwardingStorage {
+
+	private final ConcurrentMap<String, ConcurrentMap<String, FieldIndex>> indexes = new ConcurrentHashMap<String, ConcurrentMap<String, FieldIndex>>();
+
+	/**
+	 * Held for reading while an index of a context is queried, and for
+	 * writing while the context is changed or an index is built.
+	 */
+	private final StripedLock contextLocks = new StripedLock(64);
+
+	/**
+	 * Creates an <code>IndexedStorage</code> that indexes the objects of the
+	 * given storage.
+	 * 
+	 * @param storage
+	 *            the storage to index the objects of
+	 */
+	public IndexedStorage(final Storage storage) {
+		super(storage);
+	}
+
+	/**
+	 * Declares an index on a field of the objects of a context. Nothing
+	 * happens if the index has already been declared.
+	 * 
+	 * @param context
+	 *            the context to index
+	 * @param field
+	 *            the field to index the objects on
+	 */
+	public void addIndex(final String context, final String field) {
+		if (field.isEmpty()) {
+			throw new IllegalArgumentException("field cannot be empty");
+		}
+
+		final Lock lock = contextLocks.get(context).writeLock();
+		lock.lock();
+		try {
+			ConcurrentMap<String, FieldIndex> contextIndexes = indexes.get(context);
+			if (contextIndexes == null) {
+				contextIndexes = new ConcurrentHashMap<String, FieldIndex>();
+				indexes.put(context, contextIndexes);
+			}
+			if (!contextIndexes.containsKey(field)) {
+				contextIndexes.put(field, new FieldIndex(field));
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes an index declared with {@link #addIndex(String, String)
+	 * addIndex()}.
+	 * 
+	 * @param context
+	 *            the indexed context
+	 * @param field
+	 *            the indexed field
+	 */
+	public void removeIndex(final String context, final String field) {
+		final Lock lock = contextLocks.get(context).writeLock();
+		lock.lock();
+		try {
+			final Map<String, FieldIndex> contextIndexes = indexes.get(context);
+			if (contextIndexes != null) {
+				contextIndexes.remove(field);
+				if (contextIndexes.isEmpty()) {
+					indexes.remove(context);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the fields a context has indexes on.
+	 * 
+	 * @param context
+	 *            the context
+	 * @return the indexed fields
+	 */
+	public Set<String> getIndexedFields(final String context) {
+		final Map<String, FieldIndex> contextIndexes = indexes.get(context);
+		return contextIndexes == null ? Collections.<String> emptySet() : new HashSet<String>(contextIndexes.keySet());
+	}
+
+	/**
+	 * Finds the keys of the objects of a context whose field has the given
+	 * value. Only the index is looked at, except when it has to be built.
+	 * 
+	 * @param context
+	 *            the context to search
+	 * @param field
+	 *            the indexed field
+	 * @param value
+	 *            the value to look for
+	 * @return the keys of the objects with the value
+	 * @throws IllegalArgumentException
+	 *             if the field of the context has no index
+	 * @throws StorageException
+	 *             if there is a problem reading the context to build the
+	 *             index
+	 */
+	public Set<String> findKeys(final String context, final String field, final Object value) throws StorageException {
+		final Map<String, FieldIndex> contextIndexes = indexes.get(context);
+		final FieldIndex index = contextIndexes == null ? null : contextIndexes.get(field);
+		if (index == null) {
+			throw new IllegalArgumentException("There is no index on field " + field + " of context " + context);
+		}
+
+		if (!index.built) {
+			build(context);
+		}
+		final Lock lock = contextLocks.get(context).readLock();
+		lock.lock();
+		try {
+			final Set<String> keys = index.keysByValue.get(normalize(value));
+			return keys == null ? new HashSet<String>() : new HashSet<String>(keys);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Indexes that have been built are discarded, to be built again the next
+	 * time they are queried.
+	 */
+	@Override
+	public void initialize(final JavaPlugin plugin) throws StorageException {
+		discardIndexes();
+		super.initialize(plugin);
+	}
+
+	@Override
+	public void save(final String context, final String key, final Object value) throws StorageException {
+		saveAll(context, Collections.singletonMap(key, value));
+	}
+
+	@Override
+	public void delete(final String context) throws StorageException {
+		final Lock lock = lockForChange(context);
+		try {
+			super.delete(context);
+			for (final FieldIndex index : getIndexes(context)) {
+				index.clear();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void deleteKey(final String context, final String key) throws StorageException {
+		deleteKeys(context, Collections.singleton(key));
+	}
+
+	@Override
+	public long increment(final String context, final String key, final long delta) throws StorageException {
+		final Lock lock = lockForChange(context);
+		try {
+			final long value = super.increment(context, key, delta);
+			// A number has no fields
+			update(context, key, null);
+			return value;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean compareAndSet(final String context, final String key, final Object expectedValue, final Object newValue) throws StorageException {
+		final Lock lock = lockForChange(context);
+		try {
+			final boolean swapped = super.compareAndSet(context, key, expectedValue, newValue);
+			if (swapped) {
+				update(context, key, newValue);
+			}
+			return swapped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Object merge(final String context, final String key, final Object value, final StorageMerger merger) throws StorageException {
+		final Lock lock = lockForChange(context);
+		try {
+			final Object mergedValue = super.merge(context, key, value, merger);
+			update(context, key, mergedValue);
+			return mergedValue;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * A <code>null</code> value deletes the key.
+	 */
+	@Override
+	public void saveAll(final String context, final Map<String, ?> values) throws StorageException {
+		final Lock lock = lockForChange(context);
+		try {
+			super.saveAll(context, values);
+			for (final Map.Entry<String, ?> entry : values.entrySet()) {
+				update(context, entry.getKey(), entry.getValue());
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void deleteKeys(final String context, final Collection<String> keys) throws StorageException {
+		final Lock lock = lockForChange(context);
+		try {
+			super.deleteKeys(context, keys);
+			for (final String key : keys) {
+				update(context, key, null);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Indexes that have been built are discarded, to be built again the next
+	 * time they are queried.
+	 */
+	@Override
+	public void close() throws StorageException {
+		discardIndexes();
+		super.close();
+	}
+
+	/**
+	 * Gets the value of a field of an object, in the form it is indexed in.
+	 * 
+	 * @return the value, or <code>null</code> if the object does not have
+	 *         the field
+	 */
+	static Object getField(final Object value, final String field) {
+		Object current = value;
+		int start = 0;
+		while (current != null && start <= field.length()) {
+			int end = field.indexOf('.', start);
+			if (end < 0) {
+				end = field.length();
+			}
+			final String name = field.substring(start, end);
+			if (current instanceof Map) {
+				current = ((Map<?, ?>) current).get(name);
+			} else if (current instanceof ConfigurationSerializable) {
+				current = ((ConfigurationSerializable) current).serialize().get(name);
+			} else if (current instanceof ConfigurationSection) {
+				current = ((ConfigurationSection) current).get(name);
+			} else {
+				return null;
+			}
+			start = end + 1;
+		}
+		return normalize(current);
+	}
+
+	private static Object normalize(final Object value) {
+		if (value instanceof Double || value instanceof Float) {
+			return ((Number) value).doubleValue();
+		} else if (value instanceof Number) {
+			return ((Number) value).longValue();
+		}
+		return value;
+	}
+
+	private Collection<FieldIndex> getIndexes(final String context) {
+		final Map<String, FieldIndex> contextIndexes = indexes.get(context);
+		return contextIndexes == null ? Collections.<FieldIndex> emptyList() : contextIndexes.values();
+	}
+
+	/**
+	 * Locks a context for a change: for writing if it has indexes, and
+	 * otherwise only for reading, so that changes to contexts without indexes
+	 * do not wait for each other, but no index can be declared while they
+	 * are made.
+	 */
+	private Lock lockForChange(final String context) {
+		final ReadWriteLock contextLock = contextLocks.get(context);
+		while (true) {
+			if (indexes.containsKey(context)) {
+				final Lock lock = contextLock.writeLock();
+				lock.lock();
+				return lock;
+			}
+			final Lock lock = contextLock.readLock();
+			lock.lock();
+			if (!indexes.containsKey(context)) {
+				return lock;
+			}
+			// An index was declared before we got the lock
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Brings the built indexes of a context up to date with the object now
+	 * stored with a key.
+	 */
+	private void update(final String context, final String key, final Object value) {
+		for (final FieldIndex index : getIndexes(context)) {
+			if (index.built) {
+				index.put(key, value == null ? null : getField(value, index.field));
+			}
+		}
+	}
+
+	/**
+	 * Builds the indexes of a context that have not been built by reading
+	 * every object of the context once, holding the context's lock so that no
+	 * change is missed.
+	 */
+	private void build(final String context) {
+		final Lock lock = contextLocks.get(context).writeLock();
+		lock.lock();
+		try {
+			final List<FieldIndex> unbuilt = new ArrayList<FieldIndex>();
+			for (final FieldIndex index : getIndexes(context)) {
+				if (!index.built) {
+					index.clear();
+					unbuilt.add(index);
+				}
+			}
+			if (unbuilt.isEmpty()) {
+				return;
+			}
+			super.forEach(context, new StorageVisitor() {
+				public boolean visit(final String key, final Object value) {
+					for (final FieldIndex index : unbuilt) {
+						index.put(key, getField(value, index.field));
+					}
+					return true;
+				}
+			});
+			for (final FieldIndex index : unbuilt) {
+				index.built = true;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void discardIndexes() {
+		for (final String context : indexes.keySet()) {
+			final Lock lock = contextLocks.get(context).writeLock();
+			lock.lock();
+			try {
+				for (final FieldIndex index : getIndexes(context)) {
+					index.built = false;
+					index.clear();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * The index of one field of a context. It maps values both to keys and
+	 * back, so that the old entry of a key can be removed without loading
+	 * its old object.
+	 */
+	private static final class FieldIndex {
+		final String field;
+		final Map<Object, Set<String>> keysByValue = new HashMap<Object, Set<String>>();
+		final Map<String, Object> valuesByKey = new HashMap<String, Object>();
+		volatile boolean built;
+
+		FieldIndex(final String field) {
+			this.field = field;
+		}
+
+		void put(final String key, final Object value) {
+			final Object oldValue = value == null ? valuesByKey.remove(key) : valuesByKey.put(key, value);
+			if (oldValue != null) {
+				final Set<String> keys = keysByValue.get(oldValue);
+				keys.remove(key);
+				if (keys.isEmpty()) {
+					keysByValue.remove(oldValue);
+				}
+			}
+			if (value != null) {
+				Set<String> keys = keysByValue.get(value);
+				if (keys == null) {
+					keys = new HashSet<String>();
+					keysByValue.put(value, keys);
+				}
+				keys.add(key);
+			}
+		}
+
+		void clear() {
+			keysByValue.clear();
+			valuesByKey.clear();
+		}
+	}
+}
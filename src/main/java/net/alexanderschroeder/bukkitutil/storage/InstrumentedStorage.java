@@ -0,0 +1,651 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import net.alexanderschroeder.bukkitutil.DebugLogger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * A {@link Storage} that measures every call made to another storage. For
+ * every operation and context, it counts the calls and the calls that threw
+ * an exception, keeps a {@link LatencyHistogram} of how long the calls took,
+ * and counts the bytes read and written by the calls.
+ * 
+ * <p>
+ * Bytes are only counted if the wrapped storage, or the storage at the bottom
+ * of a chain of {@link ForwardingStorage forwarding storages}, is an
+ * {@link AbstractStorage}. Bytes read or written on other threads than the
+ * calling one, such as by a resident {@link FileConfigurationStorage} being
+ * flushed, are not attributed to any call.
+ * 
+ * <p>
+ * The statistics can be read with {@link #getSnapshots()}, or written to a
+ * {@link DebugLogger} periodically with
+ * {@link #startReporting(Plugin, DebugLogger, long) startReporting()}. To keep
+ * the memory used bounded, only the first {@link #setMaxContexts(int)
+ * maxContexts} contexts are measured separately; calls to all later contexts
+ * are measured together under {@link #OTHER_CONTEXTS}.
+ */
+public class InstrumentedStorage extends ForwardingStorage {
+
+	/** The context that calls to contexts beyond the limit are measured as. */
+	public static final String OTHER_CONTEXTS = "*";
+
+	/**
+	 * The operations that are measured.
+	 */
+	public enum Operation {
+		INITIALIZE, SAVE, LOAD, EXISTS, DELETE, DELETE_KEY, GET_CONTEXTS, GET_KEYS, GET_KEY_RANGE, UPDATE, SAVE_ALL, LOAD_ALL, DELETE_KEYS, FOR_EACH, FLUSH, CLOSE
+	}
+
+	private final ConcurrentMap<StatisticsKey, Statistics> statistics = new ConcurrentHashMap<StatisticsKey, Statistics>();
+
+	private final Set<String> measuredContexts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private volatile int maxContexts = 256;
+
+	private final IoCounter ioCounter;
+
+	private BukkitTask reportTask;
+
+	/**
+	 * Creates an <code>InstrumentedStorage</code> that measures the calls
+	 * made to the given storage.
+	 * 
+	 * @param storage
+	 *            the storage to measure the calls to
+	 */
+	public InstrumentedStorage(final Storage storage) {
+		super(storage);
+
+		Storage bottom = storage;
+		while (bottom instanceof ForwardingStorage) {
+			bottom = ((ForwardingStorage) bottom).getStorage();
+		}
+		ioCounter = bottom instanceof AbstractStorage ? ((AbstractStorage) bottom).getIoCounter() : null;
+	}
+
+	/**
+	 * Gets the number of contexts that are measured separately.
+	 * 
+	 * @return the maximum number of contexts
+	 */
+	public int getMaxContexts() {
+		return maxContexts;
+	}
+
+	/**
+	 * Sets the number of contexts that are measured separately. Calls to
+	 * contexts beyond this number are measured together under
+	 * {@link #OTHER_CONTEXTS}. The default is 256.
+	 * 
+	 * @param maxContexts
+	 *            the maximum number of contexts
+	 */
+	public void setMaxContexts(final int maxContexts) {
+		if (maxContexts < 0) {
+			throw new IllegalArgumentException("maxContexts cannot be negative");
+		}
+		this.maxContexts = maxContexts;
+	}
+
+	/**
+	 * Gets the statistics of every operation and context that has been
+	 * called, ordered by the total time spent in the calls, longest first.
+	 * 
+	 * @return a snapshot of the statistics
+	 */
+	public List<Snapshot> getSnapshots() {
+		final List<Snapshot> snapshots = new ArrayList<Snapshot>(statistics.size());
+		for (final Map.Entry<StatisticsKey, Statistics> entry : statistics.entrySet()) {
+			snapshots.add(entry.getValue().snapshot(entry.getKey()));
+		}
+		Collections.sort(snapshots, new Comparator<Snapshot>() {
+			public int compare(final Snapshot first, final Snapshot second) {
+				final long firstTotal = first.getLatency().getTotal();
+				final long secondTotal = second.getLatency().getTotal();
+				return firstTotal < secondTotal ? 1 : firstTotal > secondTotal ? -1 : 0;
+			}
+		});
+		return snapshots;
+	}
+
+	/**
+	 * Discards all statistics gathered so far.
+	 */
+	public void reset() {
+		statistics.clear();
+		measuredContexts.clear();
+	}
+
+	/**
+	 * Starts writing the statistics to a debug logger every
+	 * <code>periodTicks</code> server ticks, using an asynchronous Bukkit
+	 * task.
+	 * 
+	 * @param plugin
+	 *            the plug-in to schedule the task with
+	 * @param logger
+	 *            the logger to write the statistics to
+	 * @param periodTicks
+	 *            the number of ticks between reports
+	 * @throws IllegalStateException
+	 *             if reporting has already been started
+	 */
+	public synchronized void startReporting(final Plugin plugin, final DebugLogger logger, final long periodTicks) {
+		if (reportTask != null) {
+			throw new IllegalStateException("Reporting has already been started");
+		}
+		reportTask = Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, new Runnable() {
+			public void run() {
+				report(logger);
+			}
+		}, periodTicks, periodTicks);
+	}
+
+	/**
+	 * Stops writing the statistics periodically.
+	 */
+	public synchronized void stopReporting() {
+		if (reportTask != null) {
+			reportTask.cancel();
+			reportTask = null;
+		}
+	}
+
+	/**
+	 * Writes the statistics to a logger, one line per operation and context,
+	 * ordered by the total time spent in the calls.
+	 * 
+	 * @param logger
+	 *            the logger to write the statistics to
+	 */
+	public void report(final DebugLogger logger) {
+		for (final Snapshot snapshot : getSnapshots()) {
+			logger.log(Level.INFO, snapshot.toString());
+		}
+	}
+
+	@Override
+	public void initialize(final JavaPlugin plugin) throws StorageException {
+		final Call call = begin();
+		try {
+			super.initialize(plugin);
+			call.succeeded = true;
+		} finally {
+			end(call, Operation.INITIALIZE, null);
+		}
+	}
+
+	@Override
+	public void save(final String context, final String key, final Object value) throws StorageException {
+		final Call call = begin();
+		try {
+			super.save(context, key, value);
+			call.succeeded = true;
+		} finally {
+			end(call, Operation.SAVE, context);
+		}
+	}
+
+	@Override
+	public Object load(final String context, final String key) throws StorageException {
+		final Call call = begin();
+		try {
+			final Object value = super.load(context, key);
+			call.succeeded = true;
+			return value;
+		} finally {
+			end(call, Operation.LOAD, context);
+		}
+	}
+
+	@Override
+	public <T> T load(final String context, final String key, final Class<T> type) throws StorageException {
+		final Call call = begin();
+		try {
+			final T value = super.load(context, key, type);
+			call.succeeded = true;
+			return value;
+		} finally {
+			end(call, Operation.LOAD, context);
+		}
+	}
+
+	@Override
+	public int loadInt(final String context, final String key, final int defaultValue) throws StorageException {
+		final Call call = begin();
+		try {
+			final int value = super.loadInt(context, key, defaultValue);
+			call.succeeded = true;
+			return value;
+		} finally {
+			end(call, Operation.LOAD, context);
+		}
+	}
+
+	@Override
+	public long loadLong(final String context, final String key, final long defaultValue) throws StorageException {
+		final Call call = begin();
+		try {
+			final long value = super.loadLong(context, key, defaultValue);
+			call.succeeded = true;
+			return value;
+		} finally {
+			end(call, Operation.LOAD, context);
+		}
+	}
+
+	@Override
+	public double loadDouble(final String context, final String key, final double defaultValue) throws StorageException {
+		final Call call = begin();
+		try {
+			final double value = super.loadDouble(context, key, defaultValue);
+			call.succeeded = true;
+			return value;
+		} finally {
+			end(call, Operation.LOAD, context);
+		}
+	}
+
+	@Override
+	public boolean exists(final String context, final String key) throws StorageException {
+		final Call call = begin();
+		try {
+			final boolean exists = super.exists(context, key);
+			call.succeeded = true;
+			return exists;
+		} finally {
+			end(call, Operation.EXISTS, context);
+		}
+	}
+
+	@Override
+	public void delete(final String context) throws StorageException {
+		final Call call = begin();
+		try {
+			super.delete(context);
+			call.succeeded = true;
+		} finally {
+			end(call, Operation.DELETE, context);
+		}
+	}
+
+	@Override
+	public void deleteKey(final String context, final String key) throws StorageException {
+		final Call call = begin();
+		try {
+			super.deleteKey(context, key);
+			call.succeeded = true;
+		} finally {
+			end(call, Operation.DELETE_KEY, context);
+		}
+	}
+
+	@Override
+	public Set<String> getContexts() throws StorageException {
+		final Call call = begin();
+		try {
+			final Set<String> contexts = super.getContexts();
+			call.succeeded = true;
+			return contexts;
+		} finally {
+			end(call, Operation.GET_CONTEXTS, null);
+		}
+	}
+
+	@Override
+	public Set<String> getKeys(final String context) throws StorageException {
+		final Call call = begin();
+		try {
+			final Set<String> keys = super.getKeys(context);
+			call.succeeded = true;
+			return keys;
+		} finally {
+			end(call, Operation.GET_KEYS, context);
+		}
+	}
+
+	@Override
+	public SortedSet<String> getKeysWithPrefix(final String context, final String prefix) throws StorageException {
+		final Call call = begin();
+		try {
+			final SortedSet<String> keys = super.getKeysWithPrefix(context, prefix);
+			call.succeeded = true;
+			return keys;
+		} finally {
+			end(call, Operation.GET_KEY_RANGE, context);
+		}
+	}
+
+	@Override
+	public SortedSet<String> getKeysInRange(final String context, final String fromKey, final String toKey) throws StorageException {
+		final Call call = begin();
+		try {
+			final SortedSet<String> keys = super.getKeysInRange(context, fromKey, toKey);
+			call.succeeded = true;
+			return keys;
+		} finally {
+			end(call, Operation.GET_KEY_RANGE, context);
+		}
+	}
+
+	@Override
+	public long increment(final String context, final String key, final long delta) throws StorageException {
+		final Call call = begin();
+		try {
+			final long value = super.increment(context, key, delta);
+			call.succeeded = true;
+			return value;
+		} finally {
+			end(call, Operation.UPDATE, context);
+		}
+	}
+
+	@Override
+	public boolean compareAndSet(final String context, final String key, final Object expectedValue, final Object newValue) throws StorageException {
+		final Call call = begin();
+		try {
+			final boolean swapped = super.compareAndSet(context, key, expectedValue, newValue);
+			call.succeeded = true;
+			return swapped;
+		} finally {
+			end(call, Operation.UPDATE, context);
+		}
+	}
+
+	@Override
+	public Object merge(final String context, final String key, final Object value, final StorageMerger merger) throws StorageException {
+		final Call call = begin();
+		try {
+			final Object mergedValue = super.merge(context, key, value, merger);
+			call.succeeded = true;
+			return mergedValue;
+		} finally {
+			end(call, Operation.UPDATE, context);
+		}
+	}
+
+	@Override
+	public void saveAll(final String context, final Map<String, ?> values) throws StorageException {
+		final Call call = begin();
+		try {
+			super.saveAll(context, values);
+			call.succeeded = true;
+		} finally {
+			end(call, Operation.SAVE_ALL, context);
+		}
+	}
+
+	@Override
+	public Map<String, Object> loadAll(final String context, final Collection<String> keys) throws StorageException {
+		final Call call = begin();
+		try {
+			final Map<String, Object> values = super.loadAll(context, keys);
+			call.succeeded = true;
+			return values;
+		} finally {
+			end(call, Operation.LOAD_ALL, context);
+		}
+	}
+
+	@Override
+	public void deleteKeys(final String context, final Collection<String> keys) throws StorageException {
+		final Call call = begin();
+		try {
+			super.deleteKeys(context, keys);
+			call.succeeded = true;
+		} finally {
+			end(call, Operation.DELETE_KEYS, context);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The time spent in the visitor is included in the measured latency.
+	 */
+	@Override
+	public void forEach(final String context, final StorageVisitor visitor) throws StorageException {
+		final Call call = begin();
+		try {
+			super.forEach(context, visitor);
+			call.succeeded = true;
+		} finally {
+			end(call, Operation.FOR_EACH, context);
+		}
+	}
+
+	@Override
+	public void flush() throws StorageException {
+		final Call call = begin();
+		try {
+			super.flush();
+			call.succeeded = true;
+		} finally {
+			end(call, Operation.FLUSH, null);
+		}
+	}
+
+	@Override
+	public void close() throws StorageException {
+		stopReporting();
+		final Call call = begin();
+		try {
+			super.close();
+			call.succeeded = true;
+		} finally {
+			end(call, Operation.CLOSE, null);
+		}
+	}
+
+	private Call begin() {
+		final Call call = new Call();
+		if (ioCounter != null) {
+			call.bytesRead = ioCounter.getThreadBytesRead();
+			call.bytesWritten = ioCounter.getThreadBytesWritten();
+		}
+		call.start = System.nanoTime();
+		return call;
+	}
+
+	private void end(final Call call, final Operation operation, final String context) {
+		final long latency = System.nanoTime() - call.start;
+
+		String measuredContext = context;
+		if (context != null && !measuredContexts.contains(context)) {
+			if (measuredContexts.size() < maxContexts) {
+				measuredContexts.add(context);
+			} else {
+				measuredContext = OTHER_CONTEXTS;
+			}
+		}
+
+		final StatisticsKey key = new StatisticsKey(operation, measuredContext);
+		Statistics operationStatistics = statistics.get(key);
+		if (operationStatistics == null) {
+			final Statistics newStatistics = new Statistics();
+			operationStatistics = statistics.putIfAbsent(key, newStatistics);
+			if (operationStatistics == null) {
+				operationStatistics = newStatistics;
+			}
+		}
+
+		operationStatistics.latency.record(latency);
+		if (!call.succeeded) {
+			operationStatistics.errors.incrementAndGet();
+		}
+		if (ioCounter != null) {
+			operationStatistics.bytesRead.addAndGet(ioCounter.getThreadBytesRead() - call.bytesRead);
+			operationStatistics.bytesWritten.addAndGet(ioCounter.getThreadBytesWritten() - call.bytesWritten);
+		}
+	}
+
+	/**
+	 * The statistics of one operation on one context at the time the snapshot
+	 * was taken.
+	 */
+	public static final class Snapshot {
+		private final Operation operation;
+		private final String context;
+		private final long errors;
+		private final long bytesRead;
+		private final long bytesWritten;
+		private final LatencyHistogram latency;
+
+		Snapshot(final Operation operation, final String context, final long errors, final long bytesRead, final long bytesWritten, final LatencyHistogram latency) {
+			this.operation = operation;
+			this.context = context;
+			this.errors = errors;
+			this.bytesRead = bytesRead;
+			this.bytesWritten = bytesWritten;
+			this.latency = latency;
+		}
+
+		/**
+		 * Gets the operation.
+		 * 
+		 * @return the operation
+		 */
+		public Operation getOperation() {
+			return operation;
+		}
+
+		/**
+		 * Gets the context the operation was called on.
+		 * 
+		 * @return the context, {@link InstrumentedStorage#OTHER_CONTEXTS} for
+		 *         contexts beyond the limit, or <code>null</code> for
+		 *         operations that do not take a context
+		 */
+		public String getContext() {
+			return context;
+		}
+
+		/**
+		 * Gets the number of calls.
+		 * 
+		 * @return the number of calls
+		 */
+		public long getCalls() {
+			return latency.getCount();
+		}
+
+		/**
+		 * Gets the number of calls that threw an exception.
+		 * 
+		 * @return the number of failed calls
+		 */
+		public long getErrors() {
+			return errors;
+		}
+
+		/**
+		 * Gets the number of bytes the calls read from the backing medium.
+		 * 
+		 * @return the number of bytes read
+		 */
+		public long getBytesRead() {
+			return bytesRead;
+		}
+
+		/**
+		 * Gets the number of bytes the calls wrote to the backing medium.
+		 * 
+		 * @return the number of bytes written
+		 */
+		public long getBytesWritten() {
+			return bytesWritten;
+		}
+
+		/**
+		 * Gets the latencies of the calls.
+		 * 
+		 * @return a copy of the latency histogram
+		 */
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s %s: %d calls, %d errors, p50 %.3f ms, p99 %.3f ms, max %.3f ms, %d bytes read, %d bytes written", operation, context != null ? context : "-", getCalls(), errors, latency.getPercentile(50) / 1e6, latency.getPercentile(99) / 1e6, latency.getMax() / 1e6, bytesRead, bytesWritten);
+		}
+	}
+
+	private static final class Statistics {
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong bytesRead = new AtomicLong();
+		final AtomicLong bytesWritten = new AtomicLong();
+
+		Snapshot snapshot(final StatisticsKey key) {
+			return new Snapshot(key.operation, key.context, errors.get(), bytesRead.get(), bytesWritten.get(), latency.copy());
+		}
+	}
+
+	private static final class StatisticsKey {
+		final Operation operation;
+		final String context;
+
+		StatisticsKey(final Operation operation, final String context) {
+			this.operation = operation;
+			this.context = context;
+		}
+
+		@Override
+		public int hashCode() {
+			return operation.hashCode() * 31 + (context == null ? 0 : context.hashCode());
+		}
+
+		@Override
+		public boolean equals(final Object object) {
+			if (!(object instanceof StatisticsKey)) {
+				return false;
+			}
+			final StatisticsKey other = (StatisticsKey) object;
+			return operation == other.operation && (context == null ? other.context == null : context.equals(other.context));
+		}
+	}
+
+	private static final class Call {
+		long start;
+		long bytesRead;
+		long bytesWritten;
+		boolean succeeded;
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the bytes a storage reads from and writes to its backing medium,
+ * both in total and for the calling thread, so that the bytes of a single
+ * call can be told apart from those of calls made on other threads.
+ */
+final class IoCounter {
+
+	private final AtomicLong bytesRead = new AtomicLong();
+
+	private final AtomicLong bytesWritten = new AtomicLong();
+
+	private final ThreadLocal<long[]> threadBytes = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[2];
+		}
+	};
+
+	void read(final long bytes) {
+		bytesRead.addAndGet(bytes);
+		threadBytes.get()[0] += bytes;
+	}
+
+	void written(final long bytes) {
+		bytesWritten.addAndGet(bytes);
+		threadBytes.get()[1] += bytes;
+	}
+
+	long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	/**
+	 * Gets the number of bytes read on the calling thread so far.
+	 */
+	long getThreadBytesRead() {
+		return threadBytes.get()[0];
+	}
+
+	/**
+	 * Gets the number of bytes written on the calling thread so far.
+	 */
+	long getThreadBytesWritten() {
+		return threadBytes.get()[1];
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.NavigableSet;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Helpers for the key range queries of {@link Storage}. A range goes from a
+ * key, inclusive, to another key, exclusive, in the order of
+ * {@link String#compareTo(String)}; a <code>null</code> bound leaves that end
+ * of the range open.
+ */
+final class KeyRange {
+
+	private KeyRange() {
+	}
+
+	/**
+	 * Gets the smallest key that is greater than every key starting with the
+	 * given prefix, so that the keys starting with the prefix are the range
+	 * from the prefix to that key.
+	 * 
+	 * @param prefix
+	 *            the prefix
+	 * @return the end of the prefix's range, or <code>null</code> if the range
+	 *         has no end
+	 */
+	static String prefixEnd(final String prefix) {
+		int end = prefix.length();
+		while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+			end--;
+		}
+		if (end == 0) {
+			return null;
+		}
+		return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+	}
+
+	/**
+	 * Checks whether a key is within a range.
+	 */
+	static boolean contains(final String key, final String fromKey, final String toKey) {
+		return (fromKey == null || key.compareTo(fromKey) >= 0) && (toKey == null || key.compareTo(toKey) < 0);
+	}
+
+	/**
+	 * Checks whether a range cannot contain any key.
+	 */
+	static boolean isEmpty(final String fromKey, final String toKey) {
+		return fromKey != null && toKey != null && fromKey.compareTo(toKey) >= 0;
+	}
+
+	/**
+	 * Gets the keys of an unordered collection that are within a range, by
+	 * looking at every key.
+	 */
+	static SortedSet<String> select(final Iterable<String> keys, final String fromKey, final String toKey) {
+		final SortedSet<String> selected = new TreeSet<String>();
+		for (final String key : keys) {
+			if (contains(key, fromKey, toKey)) {
+				selected.add(key);
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * Gets a copy of the keys of a sorted set that are within a range, only
+	 * looking at the keys within the range.
+	 */
+	static SortedSet<String> subSet(final NavigableSet<String> keys, final String fromKey, final String toKey) {
+		if (isEmpty(fromKey, toKey)) {
+			return new TreeSet<String>();
+		}
+		NavigableSet<String> range = keys;
+		if (fromKey != null) {
+			range = range.tailSet(fromKey, true);
+		}
+		if (toKey != null) {
+			range = range.headSet(toKey, false);
+		}
+		return new TreeSet<String>(range);
+	}
+
+	/**
+	 * Gets the longest prefix that every key within a range starts with.
+	 */
+	static String commonPrefix(final String fromKey, final String toKey) {
+		if (fromKey == null || toKey == null) {
+			return "";
+		}
+		int length = 0;
+		while (length < fromKey.length() && length < toKey.length() && fromKey.charAt(length) == toKey.charAt(length)) {
+			length++;
+		}
+		return fromKey.substring(0, length);
+	}
+}
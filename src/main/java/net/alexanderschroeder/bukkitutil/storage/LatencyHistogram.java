@@ -0,0 +1,188 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds. Latencies are counted in buckets
+ * that are at most 12.5% wide, so percentiles are reported with at most that
+ * error, while recording a latency is only a few atomic increments.
+ * Latencies can be recorded from several threads at once.
+ */
+public class LatencyHistogram {
+
+	/** The number of buckets each power of two is split into. */
+	private static final int SUB_BUCKET_BITS = 3;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** Latencies of 2^40 ns (about 18 minutes) or more share the last bucket. */
+	private static final int MAX_EXPONENT = 40;
+
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts;
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong total = new AtomicLong();
+
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Creates an empty histogram.
+	 */
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(BUCKETS);
+	}
+
+	private LatencyHistogram(final LatencyHistogram histogram) {
+		counts = new AtomicLongArray(BUCKETS);
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, histogram.counts.get(i));
+		}
+		count.set(histogram.count.get());
+		total.set(histogram.total.get());
+		max.set(histogram.max.get());
+	}
+
+	/**
+	 * Records a latency.
+	 * 
+	 * @param nanos
+	 *            the latency in nanoseconds
+	 */
+	public void record(final long nanos) {
+		final long latency = Math.max(nanos, 0);
+		counts.incrementAndGet(bucket(latency));
+		count.incrementAndGet();
+		total.addAndGet(latency);
+		long current;
+		while (latency > (current = max.get()) && !max.compareAndSet(current, latency)) {
+			// Another thread raised the maximum; check again
+		}
+	}
+
+	/**
+	 * Gets the number of latencies recorded.
+	 * 
+	 * @return the number of latencies
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Gets the sum of all latencies recorded.
+	 * 
+	 * @return the total latency in nanoseconds
+	 */
+	public long getTotal() {
+		return total.get();
+	}
+
+	/**
+	 * Gets the mean of the latencies recorded.
+	 * 
+	 * @return the mean latency in nanoseconds, or 0 if nothing has been
+	 *         recorded
+	 */
+	public double getMean() {
+		final long count = this.count.get();
+		return count == 0 ? 0 : (double) total.get() / count;
+	}
+
+	/**
+	 * Gets the highest latency recorded.
+	 * 
+	 * @return the maximum latency in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Gets a percentile of the latencies recorded, such as 50 for the median
+	 * or 99 for the latency that 99% of the calls stayed within.
+	 * 
+	 * @param percentile
+	 *            the percentile, between 0 and 100
+	 * @return the upper bound of the bucket the percentile falls in, in
+	 *         nanoseconds, or 0 if nothing has been recorded
+	 */
+	public long getPercentile(final double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("percentile must be between 0 and 100");
+		}
+
+		long remaining = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			remaining += counts.get(i);
+		}
+		if (remaining == 0) {
+			return 0;
+		}
+
+		final long rank = Math.max(1, (long) Math.ceil(remaining * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Creates a copy of this histogram, which is not affected by latencies
+	 * recorded later.
+	 * 
+	 * @return a copy of the histogram
+	 */
+	public LatencyHistogram copy() {
+		return new LatencyHistogram(this);
+	}
+
+	private static int bucket(final long nanos) {
+		if (nanos < SUB_BUCKETS) {
+			return (int) nanos;
+		}
+		final int exponent = Math.min(63 - Long.numberOfLeadingZeros(nanos), MAX_EXPONENT);
+		if (exponent == MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		final int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long upperBound(final int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		} else if (bucket == BUCKETS - 1) {
+			return Long.MAX_VALUE;
+		}
+		final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		final long subBucket = bucket % SUB_BUCKETS;
+		return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+}
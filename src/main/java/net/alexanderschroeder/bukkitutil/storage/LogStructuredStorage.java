@@ -0,0 +1,1244 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * A {@link Storage} implementation that keeps each context as an append-only
+ * log, which makes it well suited for write-heavy data such as per-player
+ * statistics.
+ * 
+ * <p>
+ * Every context is a directory of segment files. Saving or deleting an object
+ * appends a single record to the context's active segment, and an in-memory
+ * index maps every key to the location of its latest record, so both writes
+ * and reads cost a single I/O operation no matter how large the context is.
+ * The first {@link #getKeysInRange(String, String, String) range query} on a
+ * context also gives the index a sorted copy of its keys, which is kept up to
+ * date from then on.
+ * Once the active segment reaches {@link #setMaxSegmentSize(long) its maximum
+ * size}, it is sealed and a new one is started.
+ * 
+ * <p>
+ * Records that have been overwritten or deleted are garbage. A background
+ * thread periodically checks every context and, once the share of garbage
+ * exceeds {@link #setCompactionThreshold(double) the compaction threshold},
+ * merges its segments into a single segment holding only the live records.
+ * 
+ * <p>
+ * When {@link #setCompressed(boolean) compression} is enabled, every value of
+ * a worthwhile size is deflated before it is appended, so both the log and
+ * the time spent reading it on startup shrink.
+ * 
+ * <p>
+ * Next to every sealed segment, a small hint file records the keys in the
+ * segment and where their records are, so opening a context only has to read
+ * the hint files instead of replaying the full log. Only segments that were
+ * not sealed properly, e.g. because the server crashed, are replayed, and
+ * any partially written record at the end of them is discarded.
+ * 
+ * <p>
+ * Appended records are handed to the operating system immediately, but are
+ * only forced to disk by {@link #flush()} and {@link #close()}.
+ */
+public class LogStructuredStorage extends AbstractStorage implements BufferedStorage {
+
+	private static final Logger LOGGER = Logger.getLogger(LogStructuredStorage.class.getName());
+
+	private static final String SEGMENT_EXTENSION = ".log";
+
+	private static final String HINT_EXTENSION = ".hint";
+
+	private static final String TEMPORARY_FILE_EXTENSION = ".tmp";
+
+	/** CRC32 of the rest of the record, key length and value length. */
+	private static final int RECORD_HEADER_SIZE = 12;
+
+	private static final int TOMBSTONE = -1;
+
+	/** Contexts with less garbage than this are never compacted. */
+	private static final long MINIMUM_COMPACTION_GARBAGE = 64 * 1024;
+
+	private String storageDirectoryName = "log-storage";
+
+	private long maxSegmentSize = 4 * 1024 * 1024;
+
+	private double compactionThreshold = 0.5;
+
+	private long compactionInterval = 30;
+
+	private File dataFolder;
+
+	private volatile boolean initialized = false;
+
+	private final ConcurrentMap<String, ContextLog> contexts = new ConcurrentHashMap<String, ContextLog>();
+
+	private ScheduledExecutorService compactor;
+
+	/**
+	 * Gets the name of the directory where the context logs are saved.
+	 * 
+	 * @return the name of the storage directory
+	 */
+	public String getStorageDirectoryName() {
+		return storageDirectoryName;
+	}
+
+	/**
+	 * Sets the name of the directory where the context logs are saved. This
+	 * directory will be created as a sub-directory of
+	 * {@link JavaPlugin#getDataFolder()}.
+	 * <p>
+	 * The default name for the directory is "log-storage".
+	 * 
+	 * @param storageDirectoryName
+	 *            the name of the storage directory
+	 */
+	public void setStorageDirectoryName(String storageDirectoryName) {
+		this.storageDirectoryName = storageDirectoryName;
+	}
+
+	/**
+	 * Gets the size, in bytes, a segment may grow to before it is sealed.
+	 * 
+	 * @return the maximum segment size
+	 */
+	public long getMaxSegmentSize() {
+		return maxSegmentSize;
+	}
+
+	/**
+	 * Sets the size, in bytes, a segment may grow to before it is sealed and a
+	 * new segment is started. Smaller segments make replaying after a crash
+	 * cheaper, larger segments mean fewer files.
+	 * <p>
+	 * The default maximum segment size is 4 MiB.
+	 * 
+	 * @param maxSegmentSize
+	 *            the maximum segment size
+	 */
+	public void setMaxSegmentSize(long maxSegmentSize) {
+		this.maxSegmentSize = maxSegmentSize;
+	}
+
+	/**
+	 * Gets the share of garbage a context must contain before it is compacted.
+	 * 
+	 * @return the compaction threshold, between 0 and 1
+	 */
+	public double getCompactionThreshold() {
+		return compactionThreshold;
+	}
+
+	/**
+	 * Sets the share of garbage (overwritten and deleted records) a context
+	 * must contain before it is compacted.
+	 * <p>
+	 * The default compaction threshold is 0.5.
+	 * 
+	 * @param compactionThreshold
+	 *            the compaction threshold, between 0 and 1
+	 */
+	public void setCompactionThreshold(double compactionThreshold) {
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	/**
+	 * Gets the number of seconds between checks for contexts that need to be
+	 * compacted.
+	 * 
+	 * @return the compaction interval in seconds
+	 */
+	public long getCompactionInterval() {
+		return compactionInterval;
+	}
+
+	/**
+	 * Sets the number of seconds between checks for contexts that need to be
+	 * compacted. Must be set before the storage is initialized.
+	 * <p>
+	 * The default compaction interval is 30 seconds.
+	 * 
+	 * @param compactionInterval
+	 *            the compaction interval in seconds
+	 */
+	public void setCompactionInterval(long compactionInterval) {
+		this.compactionInterval = compactionInterval;
+	}
+
+	private void throwExceptionIfNotInitialized() throws StorageException {
+		if (!initialized) {
+			throw new StorageException("Cannot use the LogStructuredStorage without calling initialize() first");
+		}
+	}
+
+	public void initialize(JavaPlugin plugin) throws StorageException {
+		try {
+			dataFolder = new File(plugin.getDataFolder(), storageDirectoryName);
+			if (!dataFolder.exists()) {
+				dataFolder.mkdirs();
+			}
+
+			compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(final Runnable runnable) {
+					final Thread thread = new Thread(runnable, "BukkitUtil-LogStructuredStorage-Compactor");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			compactor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					for (final ContextLog log : contexts.values()) {
+						compactIfNeeded(log);
+					}
+				}
+			}, compactionInterval, compactionInterval, TimeUnit.SECONDS);
+
+			initialized = true;
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	public void save(String context, String key, Object value) throws StorageException {
+		saveAll(context, Collections.singletonMap(key, value));
+	}
+
+	public Object load(String context, String key) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final ContextLog log = lockContext(context, false, false);
+			if (log == null) {
+				return null;
+			}
+			try {
+				final Entry entry = log.index.get(key);
+				return entry == null ? null : readValue(entry);
+			} finally {
+				log.lock.readLock().unlock();
+			}
+		} catch (StorageException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Numbers are read without being boxed.
+	 */
+	@Override
+	public int loadInt(String context, String key, int defaultValue) throws StorageException {
+		return (int) loadLong(context, key, defaultValue);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Numbers are read without being boxed.
+	 */
+	@Override
+	public long loadLong(String context, String key, long defaultValue) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final ContextLog log = lockContext(context, false, false);
+			if (log == null) {
+				return defaultValue;
+			}
+			try {
+				final Entry entry = log.index.get(key);
+				return entry == null ? defaultValue : ValueEncoding.decodeLong(readBuffer(entry), getCodecRegistry(), defaultValue);
+			} finally {
+				log.lock.readLock().unlock();
+			}
+		} catch (StorageException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Numbers are read without being boxed.
+	 */
+	@Override
+	public double loadDouble(String context, String key, double defaultValue) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final ContextLog log = lockContext(context, false, false);
+			if (log == null) {
+				return defaultValue;
+			}
+			try {
+				final Entry entry = log.index.get(key);
+				return entry == null ? defaultValue : ValueEncoding.decodeDouble(readBuffer(entry), getCodecRegistry(), defaultValue);
+			} finally {
+				log.lock.readLock().unlock();
+			}
+		} catch (StorageException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	public boolean exists(String context, String key) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final ContextLog log = lockContext(context, false, false);
+			if (log == null) {
+				return false;
+			}
+			try {
+				return log.index.containsKey(key);
+			} finally {
+				log.lock.readLock().unlock();
+			}
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	public void delete(String context) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			// The files are deleted before the lock is released, so getContext()
+			// cannot open the old segments again in the meantime
+			synchronized (contexts) {
+				final ContextLog log = contexts.remove(context);
+				if (log != null) {
+					log.lock.writeLock().lock();
+					try {
+						log.closeSegments();
+					} finally {
+						log.lock.writeLock().unlock();
+					}
+				}
+
+				final File directory = new File(dataFolder, context);
+				final File[] files = directory.listFiles();
+				if (files != null) {
+					for (final File file : files) {
+						file.delete();
+					}
+				}
+				directory.delete();
+			}
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	public void deleteKey(String context, String key) throws StorageException {
+		deleteKeys(context, Collections.singleton(key));
+	}
+
+	/**
+	 * The stored object is read and the new one appended while the context is
+	 * locked for writing.
+	 */
+	@Override
+	Object update(String context, String key, ValueUpdate update) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final ContextLog log = lockContext(context, true, true);
+			try {
+				final Entry entry = log.index.get(key);
+				final Object currentValue = entry == null ? null : readValue(entry);
+				final Object newValue = update.apply(currentValue);
+				if (newValue == ValueUpdate.UNCHANGED) {
+					return currentValue;
+				}
+				if (newValue != null || entry != null) {
+					append(log, Collections.singletonList(key), Collections.singletonList(newValue == null ? null : encodeValue(newValue)));
+				}
+				return newValue;
+			} finally {
+				log.lock.writeLock().unlock();
+			}
+		} catch (StorageException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	public Set<String> getContexts() throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final File[] directories = dataFolder.listFiles(new FileFilter() {
+				public boolean accept(final File file) {
+					return file.isDirectory();
+				}
+			});
+
+			final Set<String> contextSet = new HashSet<String>(contexts.keySet());
+			for (final File directory : directories) {
+				contextSet.add(directory.getName());
+			}
+			return contextSet;
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	public Set<String> getKeys(String context) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final ContextLog log = lockContext(context, false, false);
+			if (log == null) {
+				return Collections.emptySet();
+			}
+			try {
+				return new HashSet<String>(log.index.keySet());
+			} finally {
+				log.lock.readLock().unlock();
+			}
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Only the keys within the range are looked at, once the context's keys
+	 * have been sorted by the first range query on it.
+	 */
+	@Override
+	public SortedSet<String> getKeysInRange(String context, String fromKey, String toKey) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final ContextLog log = lockContext(context, false, false);
+			if (log == null) {
+				return new TreeSet<String>();
+			}
+			try {
+				return KeyRange.subSet(log.getSortedKeys(), fromKey, toKey);
+			} finally {
+				log.lock.readLock().unlock();
+			}
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * All the objects are appended to the log with a single write.
+	 */
+	@Override
+	public void saveAll(String context, Map<String, ?> values) throws StorageException {
+		throwExceptionIfNotInitialized();
+		if (values.isEmpty()) {
+			return;
+		}
+		try {
+			final List<String> keys = new ArrayList<String>(values.size());
+			final List<byte[]> encodedValues = new ArrayList<byte[]>(values.size());
+			for (final Map.Entry<String, ?> entry : values.entrySet()) {
+				keys.add(entry.getKey());
+				encodedValues.add(entry.getValue() == null ? null : encodeValue(entry.getValue()));
+			}
+
+			final ContextLog log = lockContext(context, true, true);
+			try {
+				append(log, keys, encodedValues);
+			} finally {
+				log.lock.writeLock().unlock();
+			}
+		} catch (StorageException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The context is locked only once, regardless of the number of keys.
+	 */
+	@Override
+	public Map<String, Object> loadAll(String context, Collection<String> keys) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final Map<String, Object> values = new LinkedHashMap<String, Object>();
+			final ContextLog log = lockContext(context, false, false);
+			if (log == null) {
+				return values;
+			}
+			try {
+				for (final String key : keys) {
+					final Entry entry = log.index.get(key);
+					if (entry != null) {
+						values.put(key, readValue(entry));
+					}
+				}
+			} finally {
+				log.lock.readLock().unlock();
+			}
+			return values;
+		} catch (StorageException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The context is read-locked for the whole iteration, so writers to the
+	 * context wait until the visitor has finished or stopped.
+	 */
+	@Override
+	public void forEach(String context, StorageVisitor visitor) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final ContextLog log = lockContext(context, false, false);
+			if (log == null) {
+				return;
+			}
+			try {
+				for (final Map.Entry<String, Entry> entry : log.index.entrySet()) {
+					if (!visitor.visit(entry.getKey(), readValue(entry.getValue()))) {
+						return;
+					}
+				}
+			} finally {
+				log.lock.readLock().unlock();
+			}
+		} catch (StorageException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The deletions of all keys that exist are appended to the log with a
+	 * single write.
+	 */
+	@Override
+	public void deleteKeys(String context, Collection<String> keys) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final ContextLog log = lockContext(context, false, true);
+			if (log == null) {
+				return;
+			}
+			try {
+				final List<String> existingKeys = new ArrayList<String>();
+				for (final String key : keys) {
+					if (log.index.containsKey(key)) {
+						existingKeys.add(key);
+					}
+				}
+				if (!existingKeys.isEmpty()) {
+					append(log, existingKeys, Collections.<byte[]> nCopies(existingKeys.size(), null));
+				}
+			} finally {
+				log.lock.writeLock().unlock();
+			}
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * Forces every appended record to disk. This includes the records of
+	 * segments that were sealed recently, whose hint files have not been
+	 * written yet.
+	 */
+	public void flush() throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			for (final ContextLog log : contexts.values()) {
+				log.lock.readLock().lock();
+				try {
+					if (log.closed) {
+						continue;
+					}
+					// A segment is forced before its hint file is written, so
+					// only segments without one may hold unforced records
+					for (final Segment segment : log.segments.values()) {
+						if (!segment.hasHint()) {
+							segment.channel.force(false);
+						}
+					}
+				} finally {
+					log.lock.readLock().unlock();
+				}
+			}
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * Stops the background compaction, forces every appended record to disk
+	 * and writes hint files for every segment that does not have one yet, so
+	 * no log has to be replayed the next time the contexts are opened.
+	 */
+	public void close() throws StorageException {
+		if (!initialized) {
+			return;
+		}
+		initialized = false;
+		try {
+			compactor.shutdown();
+			compactor.awaitTermination(1, TimeUnit.MINUTES);
+
+			synchronized (contexts) {
+				for (final ContextLog log : contexts.values()) {
+					log.lock.writeLock().lock();
+					try {
+						for (final Segment segment : log.segments.values()) {
+							if (!segment.hasHint()) {
+								segment.channel.force(false);
+								writeHint(segment, scan(segment, false));
+							}
+						}
+						log.closeSegments();
+					} finally {
+						log.lock.writeLock().unlock();
+					}
+				}
+				contexts.clear();
+			}
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * Compacts a context right away, regardless of how much garbage it
+	 * contains. This is normally done automatically in the background.
+	 * 
+	 * @param context
+	 *            the context to compact
+	 * @throws StorageException
+	 *             if there is a problem compacting the context
+	 */
+	public void compact(String context) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final ContextLog log = getContext(context, false);
+			if (log != null) {
+				compactContext(log);
+			}
+		} catch (StorageException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	private ContextLog getContext(String context, boolean create) throws IOException {
+		ContextLog log = contexts.get(context);
+		if (log != null) {
+			return log;
+		}
+
+		synchronized (contexts) {
+			log = contexts.get(context);
+			if (log != null) {
+				return log;
+			}
+
+			final File directory = new File(dataFolder, context);
+			if (!directory.isDirectory()) {
+				if (!create) {
+					return null;
+				}
+				directory.mkdirs();
+			}
+			log = openContext(directory);
+			contexts.put(context, log);
+			return log;
+		}
+	}
+
+	/**
+	 * Gets a context and locks it for reading or writing. If the context is
+	 * deleted while we wait for the lock, we try again with the new one.
+	 */
+	private ContextLog lockContext(String context, boolean create, boolean write) throws IOException {
+		while (true) {
+			final ContextLog log = getContext(context, create);
+			if (log == null) {
+				return null;
+			}
+
+			final Lock lock = write ? log.lock.writeLock() : log.lock.readLock();
+			lock.lock();
+			if (!log.closed) {
+				return log;
+			}
+			lock.unlock();
+		}
+	}
+
+	private ContextLog openContext(File directory) throws IOException {
+		final ContextLog log = new ContextLog(directory);
+
+		final File[] files = directory.listFiles();
+		final TreeMap<Long, File> segmentFiles = new TreeMap<Long, File>();
+		for (final File file : files) {
+			final String name = file.getName();
+			if (name.endsWith(TEMPORARY_FILE_EXTENSION)) {
+				// Left behind by an interrupted compaction
+				file.delete();
+			} else if (name.endsWith(SEGMENT_EXTENSION)) {
+				try {
+					segmentFiles.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_EXTENSION.length())), file);
+				} catch (NumberFormatException e) {
+					// Not one of ours
+				}
+			}
+		}
+
+		for (final Map.Entry<Long, File> segmentFile : segmentFiles.entrySet()) {
+			final Segment segment = new Segment(segmentFile.getKey(), segmentFile.getValue());
+			segment.channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			segment.size = segment.channel.size();
+
+			Map<String, Entry> records = null;
+			if (segment.hasHint()) {
+				records = readHint(segment);
+			}
+			if (records == null) {
+				records = scan(segment, true);
+				countBytesRead(segment.size);
+				writeHint(segment, records);
+			} else {
+				countBytesRead(segment.hintFile().length());
+			}
+
+			log.segments.put(segment.id, segment);
+			for (final Map.Entry<String, Entry> record : records.entrySet()) {
+				log.apply(record.getKey(), record.getValue());
+			}
+		}
+
+		log.nextSegmentId = segmentFiles.isEmpty() ? 1 : segmentFiles.lastKey() + 1;
+		return log;
+	}
+
+	private void append(ContextLog log, List<String> keys, List<byte[]> values) throws IOException {
+		final List<byte[]> encodedKeys = new ArrayList<byte[]>(keys.size());
+		int length = 0;
+		for (int i = 0; i < keys.size(); i++) {
+			final byte[] key = keys.get(i).getBytes(ValueEncoding.UTF_8);
+			final byte[] value = values.get(i);
+			encodedKeys.add(key);
+			length += RECORD_HEADER_SIZE + key.length + (value == null ? 0 : value.length);
+		}
+
+		if (log.active == null || (log.active.size > 0 && log.active.size + length > maxSegmentSize)) {
+			rotate(log);
+		}
+
+		final Segment segment = log.active;
+		final ByteBuffer buffer = ByteBuffer.allocate(length);
+		final CRC32 crc = new CRC32();
+		final List<Entry> entries = new ArrayList<Entry>(keys.size());
+		for (int i = 0; i < keys.size(); i++) {
+			final byte[] key = encodedKeys.get(i);
+			final byte[] value = values.get(i);
+			final int start = buffer.position();
+			buffer.putInt(0);
+			buffer.putInt(key.length);
+			buffer.putInt(value == null ? TOMBSTONE : value.length);
+			buffer.put(key);
+			if (value != null) {
+				buffer.put(value);
+			}
+			crc.reset();
+			crc.update(buffer.array(), start + 4, buffer.position() - start - 4);
+			buffer.putInt(start, (int) crc.getValue());
+			entries.add(new Entry(segment, segment.size + start, key.length, value == null ? TOMBSTONE : value.length));
+		}
+		buffer.flip();
+
+		long position = segment.size;
+		while (buffer.hasRemaining()) {
+			position += segment.channel.write(buffer, position);
+		}
+		countBytesWritten(position - segment.size);
+		segment.size = position;
+
+		for (int i = 0; i < keys.size(); i++) {
+			log.apply(keys.get(i), entries.get(i));
+		}
+	}
+
+	/**
+	 * Seals the active segment, if there is one, and starts a new one. Writing
+	 * the hint file of the sealed segment and checking whether the context
+	 * needs compaction is left to the background thread.
+	 */
+	private void rotate(final ContextLog log) throws IOException {
+		final Segment sealed = log.active;
+		final Segment segment = new Segment(log.nextSegmentId++, null);
+		segment.file = new File(log.directory, segmentFileName(segment.id));
+		segment.channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		log.segments.put(segment.id, segment);
+		log.active = segment;
+
+		if (sealed != null) {
+			try {
+				compactor.execute(new Runnable() {
+					public void run() {
+						writeHintForSealedSegment(log, sealed);
+						compactIfNeeded(log);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// We are closing, which writes all missing hints
+			}
+		}
+	}
+
+	private void writeHintForSealedSegment(ContextLog log, Segment segment) {
+		log.lock.readLock().lock();
+		try {
+			if (log.closed || !log.segments.containsKey(segment.id) || segment.hasHint()) {
+				return;
+			}
+			segment.channel.force(false);
+			writeHint(segment, scan(segment, false));
+		} catch (IOException e) {
+			// flush() and close() force the segment again, and without a hint
+			// file, it is replayed the next time the context is opened
+			LOGGER.log(Level.WARNING, "Could not write the hint file of " + segment.file, e);
+		} finally {
+			log.lock.readLock().unlock();
+		}
+	}
+
+	private void compactIfNeeded(ContextLog log) {
+		long size = 0;
+		long live = 0;
+		log.lock.readLock().lock();
+		try {
+			if (log.closed) {
+				return;
+			}
+			for (final Segment segment : log.segments.values()) {
+				size += segment.size;
+				live += segment.liveBytes;
+			}
+		} finally {
+			log.lock.readLock().unlock();
+		}
+
+		final long garbage = size - live;
+		if (garbage >= MINIMUM_COMPACTION_GARBAGE && garbage >= compactionThreshold * size) {
+			try {
+				compactContext(log);
+			} catch (Exception e) {
+				// Leave the context as it is and try again next time
+				LOGGER.log(Level.WARNING, "Could not compact " + log.directory, e);
+			}
+		}
+	}
+
+	/**
+	 * Merges all segments of a context into a single segment holding only the
+	 * live records. The active segment is sealed first, so new writes go to a
+	 * segment newer than the merged one. The live records are copied without
+	 * holding the context's lock; only records that have not been overwritten
+	 * or deleted in the meantime are pointed at their new location.
+	 */
+	private synchronized void compactContext(ContextLog log) throws IOException {
+		final List<Segment> victims;
+		final List<Map.Entry<String, Entry>> liveRecords;
+		final Segment output;
+
+		log.lock.writeLock().lock();
+		try {
+			if (log.closed || log.segments.isEmpty()) {
+				return;
+			}
+			victims = new ArrayList<Segment>(log.segments.values());
+			log.active = null;
+			// The index's own entries would change when a key is written while
+			// the records are copied, so they are copied as well
+			liveRecords = new ArrayList<Map.Entry<String, Entry>>(log.index.size());
+			for (final Map.Entry<String, Entry> record : log.index.entrySet()) {
+				liveRecords.add(new AbstractMap.SimpleImmutableEntry<String, Entry>(record));
+			}
+			output = new Segment(log.nextSegmentId++, null);
+			output.file = new File(log.directory, segmentFileName(output.id));
+		} finally {
+			log.lock.writeLock().unlock();
+		}
+
+		final File temporaryFile = new File(output.file.getPath() + TEMPORARY_FILE_EXTENSION);
+		final Map<String, Entry> copied = new LinkedHashMap<String, Entry>();
+		final FileChannel channel = FileChannel.open(temporaryFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			long position = 0;
+			for (final Map.Entry<String, Entry> record : liveRecords) {
+				final Entry entry = record.getValue();
+				final ByteBuffer buffer = ByteBuffer.allocate(entry.recordSize());
+				readFully(entry.segment.channel, buffer, entry.offset);
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					channel.write(buffer, position + buffer.position());
+				}
+				copied.put(record.getKey(), new Entry(output, position, entry.keyLength, entry.valueLength));
+				position += entry.recordSize();
+			}
+			channel.force(false);
+			output.size = position;
+		} catch (IOException e) {
+			channel.close();
+			temporaryFile.delete();
+			throw e;
+		}
+		channel.close();
+
+		log.lock.writeLock().lock();
+		try {
+			if (log.closed) {
+				// The context was deleted or closed while the records were
+				// copied, so the merged segment must not be found on disk
+				temporaryFile.delete();
+				return;
+			}
+
+			// The merged segment is only moved into place while the context
+			// is locked, so a context deleted and opened again in the meantime
+			// never sees it
+			output.file.delete();
+			if (!temporaryFile.renameTo(output.file)) {
+				temporaryFile.delete();
+				throw new IOException("Could not rename " + temporaryFile + " to " + output.file);
+			}
+			writeHint(output, copied);
+			output.channel = FileChannel.open(output.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+			for (int i = 0; i < liveRecords.size(); i++) {
+				final Map.Entry<String, Entry> record = liveRecords.get(i);
+				if (log.index.get(record.getKey()) == record.getValue()) {
+					log.apply(record.getKey(), copied.get(record.getKey()));
+				}
+			}
+
+			log.segments.put(output.id, output);
+			for (final Segment victim : victims) {
+				log.segments.remove(victim.id);
+				victim.channel.close();
+				victim.file.delete();
+				victim.hintFile().delete();
+			}
+		} finally {
+			log.lock.writeLock().unlock();
+		}
+	}
+
+	private Object readValue(Entry entry) throws IOException {
+		return ValueEncoding.decode(readBuffer(entry), getCodecRegistry());
+	}
+
+	private ByteBuffer readBuffer(Entry entry) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(entry.valueLength);
+		readFully(entry.segment.channel, buffer, entry.valueOffset());
+		countBytesRead(entry.valueLength);
+		buffer.flip();
+		return buffer;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		final int start = buffer.position();
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position() - start) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	/**
+	 * Reads every record of a segment and returns the last record of every
+	 * key. If <code>repair</code> is set, a damaged or partially written
+	 * record and everything after it is cut off the segment.
+	 */
+	private static Map<String, Entry> scan(Segment segment, boolean repair) throws IOException {
+		final Map<String, Entry> records = new LinkedHashMap<String, Entry>();
+		final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+		final CRC32 crc = new CRC32();
+		long position = 0;
+		try {
+			while (position < segment.size) {
+				final int checksum;
+				final int keyLength;
+				final int valueLength;
+				final byte[] data;
+				try {
+					checksum = input.readInt();
+					keyLength = input.readInt();
+					valueLength = input.readInt();
+					if (keyLength < 0 || valueLength < TOMBSTONE || position + RECORD_HEADER_SIZE + keyLength + Math.max(valueLength, 0) > segment.size) {
+						break;
+					}
+					data = new byte[keyLength + Math.max(valueLength, 0)];
+					input.readFully(data);
+				} catch (EOFException e) {
+					break;
+				}
+
+				crc.reset();
+				crc.update(ByteBuffer.allocate(8).putInt(keyLength).putInt(valueLength).array());
+				crc.update(data);
+				if ((int) crc.getValue() != checksum) {
+					break;
+				}
+
+				final String key = new String(data, 0, keyLength, ValueEncoding.UTF_8);
+				records.remove(key);
+				records.put(key, new Entry(segment, position, keyLength, valueLength));
+				position += RECORD_HEADER_SIZE + data.length;
+			}
+		} finally {
+			input.close();
+		}
+
+		if (position < segment.size && repair) {
+			segment.channel.truncate(position);
+			segment.size = position;
+		}
+		return records;
+	}
+
+	private static void writeHint(Segment segment, Map<String, Entry> records) throws IOException {
+		final File hintFile = segment.hintFile();
+		final File temporaryFile = new File(hintFile.getPath() + TEMPORARY_FILE_EXTENSION);
+		final FileOutputStream stream = new FileOutputStream(temporaryFile);
+		try {
+			final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream));
+			output.writeLong(segment.size);
+			output.writeInt(records.size());
+			for (final Map.Entry<String, Entry> record : records.entrySet()) {
+				final byte[] key = record.getKey().getBytes(ValueEncoding.UTF_8);
+				output.writeInt(key.length);
+				output.write(key);
+				output.writeLong(record.getValue().offset);
+				output.writeInt(record.getValue().valueLength);
+			}
+			output.flush();
+			stream.getFD().sync();
+		} finally {
+			stream.close();
+		}
+
+		hintFile.delete();
+		if (!temporaryFile.renameTo(hintFile)) {
+			temporaryFile.delete();
+		}
+	}
+
+	/**
+	 * Reads the hint file of a segment, or returns <code>null</code> if it
+	 * cannot be read or does not describe the segment as it is on disk.
+	 */
+	private static Map<String, Entry> readHint(Segment segment) {
+		try {
+			final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.hintFile())));
+			try {
+				if (input.readLong() != segment.size) {
+					return null;
+				}
+				final int count = input.readInt();
+				final Map<String, Entry> records = new LinkedHashMap<String, Entry>();
+				for (int i = 0; i < count; i++) {
+					final byte[] key = new byte[input.readInt()];
+					input.readFully(key);
+					final long offset = input.readLong();
+					final int valueLength = input.readInt();
+					records.put(new String(key, ValueEncoding.UTF_8), new Entry(segment, offset, key.length, valueLength));
+				}
+				return records;
+			} finally {
+				input.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static String segmentFileName(long id) {
+		return String.format("%016d%s", id, SEGMENT_EXTENSION);
+	}
+
+	private static final class ContextLog {
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		final Map<String, Entry> index = new HashMap<String, Entry>();
+		final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+		final File directory;
+		Segment active;
+		long nextSegmentId;
+		boolean closed = false;
+
+		/**
+		 * The keys of the index in order, or <code>null</code> until they are
+		 * first needed. Changed along with the index under the write lock.
+		 */
+		private NavigableSet<String> sortedKeys;
+
+		ContextLog(File directory) {
+			this.directory = directory;
+		}
+
+		/**
+		 * Gets the keys of the index in order, sorting them if this is the
+		 * first time. The caller must hold at least the read lock.
+		 */
+		synchronized NavigableSet<String> getSortedKeys() {
+			if (sortedKeys == null) {
+				sortedKeys = new TreeSet<String>(index.keySet());
+			}
+			return sortedKeys;
+		}
+
+		/**
+		 * Makes a record the latest one for its key, keeping track of how
+		 * many bytes of each segment are still live. A tombstone removes the
+		 * key and is itself garbage.
+		 */
+		void apply(String key, Entry entry) {
+			final Entry previous = entry.valueLength == TOMBSTONE ? index.remove(key) : index.put(key, entry);
+			if (sortedKeys != null) {
+				if (entry.valueLength == TOMBSTONE) {
+					sortedKeys.remove(key);
+				} else if (previous == null) {
+					sortedKeys.add(key);
+				}
+			}
+			if (previous != null) {
+				previous.segment.liveBytes -= previous.recordSize();
+			}
+			if (entry.valueLength != TOMBSTONE) {
+				entry.segment.liveBytes += entry.recordSize();
+			}
+		}
+
+		void closeSegments() throws IOException {
+			closed = true;
+			for (final Segment segment : segments.values()) {
+				segment.channel.close();
+			}
+		}
+	}
+
+	private static final class Segment {
+		final long id;
+		File file;
+		FileChannel channel;
+		long size;
+		long liveBytes;
+
+		Segment(long id, File file) {
+			this.id = id;
+			this.file = file;
+		}
+
+		File hintFile() {
+			final String path = file.getPath();
+			return new File(path.substring(0, path.length() - SEGMENT_EXTENSION.length()) + HINT_EXTENSION);
+		}
+
+		boolean hasHint() {
+			return hintFile().exists();
+		}
+	}
+
+	private static final class Entry {
+		final Segment segment;
+		final long offset;
+		final int keyLength;
+		final int valueLength;
+
+		Entry(Segment segment, long offset, int keyLength, int valueLength) {
+			this.segment = segment;
+			this.offset = offset;
+			this.keyLength = keyLength;
+			this.valueLength = valueLength;
+		}
+
+		long valueOffset() {
+			return offset + RECORD_HEADER_SIZE + keyLength;
+		}
+
+		int recordSize() {
+			return RECORD_HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+		}
+	}
+}
@@ -0,0 +1,1055 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * A {@link Storage} implementation that keeps each context in a binary file
+ * which is memory-mapped with a {@link MappedByteBuffer}, which makes it well
+ * suited for contexts with very many keys.
+ * 
+ * <p>
+ * Every context file starts with an open-addressing hash table mapping the
+ * hash of every key to the location of its record in the rest of the file, so
+ * {@link #load(String, String) load()} and {@link #exists(String, String)
+ * exists()} are a hash probe followed by a read straight from the mapped
+ * file, with no parsing of anything but the requested value. Saving an
+ * object appends a new record and points the key's slot at it; when the table
+ * gets too full, or too much of the file is taken up by overwritten records,
+ * the file is rebuilt.
+ * 
+ * <p>
+ * Values are stored in the same binary encoding as
+ * {@link LogStructuredStorage}, so every value {@link FileConfigurationStorage}
+ * accepts can be stored. A context file cannot grow beyond 2 GiB. When
+ * {@link #setCompressed(boolean) compression} is enabled, larger values are
+ * deflated one by one, and inflated again when they are read instead of being
+ * decoded straight from the file.
+ * 
+ * <p>
+ * Changes are written to the mapped file immediately, so they survive the
+ * server crashing, but are only forced to disk by {@link #flush()} and
+ * {@link #close()}.
+ * 
+ * <p>
+ * Java cannot unmap a file explicitly; a mapping is only released once it
+ * has been garbage collected. As Windows does not allow a mapped file to be
+ * renamed, truncated or deleted, this storage never does so to a file it has
+ * mapped, so it works on Windows as well as on Linux and macOS. A rebuilt
+ * context is written to a separate file first, which is then copied over the
+ * context file in place; if the server crashes during the copy, the copy is
+ * finished the next time the context is opened. A deleted context whose file
+ * is still mapped is emptied and marked as deleted instead, and its file is
+ * removed the next time the storage is initialized.
+ */
+public class MappedFileStorage extends AbstractStorage implements BufferedStorage {
+
+	private static final String FILE_EXTENSION = ".dat";
+
+	private static final String TEMPORARY_FILE_EXTENSION = ".tmp";
+
+	private static final String REBUILD_FILE_EXTENSION = ".rebuild";
+
+	private static final int MAGIC = 0x42554d46;
+
+	private static final int VERSION = 1;
+
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = 4;
+	private static final int SLOT_COUNT_OFFSET = 8;
+	private static final int ENTRY_COUNT_OFFSET = 12;
+	private static final int TOMBSTONE_COUNT_OFFSET = 16;
+	private static final int FLAGS_OFFSET = 20;
+	private static final int DATA_END_OFFSET = 24;
+	private static final int GARBAGE_OFFSET = 32;
+	private static final int HEADER_SIZE = 40;
+
+	/** The key hash and the offset of the record. */
+	private static final int SLOT_SIZE = 16;
+
+	/** Key length and value length. */
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	/** Set on the file of a context that was deleted while it was mapped. */
+	private static final int DELETED_FLAG = 1;
+
+	private static final long EMPTY = 0;
+
+	private static final long TOMBSTONE = -1;
+
+	private static final int INITIAL_SLOT_COUNT = 1024;
+
+	private static final int INITIAL_DATA_CAPACITY = 64 * 1024;
+
+	private static final double MAX_LOAD_FACTOR = 0.7;
+
+	private String storageDirectoryName = "mapped-storage";
+
+	private File dataFolder;
+
+	private volatile boolean initialized = false;
+
+	private final ConcurrentMap<String, MappedContext> contexts = new ConcurrentHashMap<String, MappedContext>();
+
+	/**
+	 * Deleted contexts whose emptied files could not be removed yet, because
+	 * they are still mapped.
+	 */
+	private final Set<String> deletedContexts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Gets the name of the directory where the context files are saved.
+	 * 
+	 * @return the name of the storage directory
+	 */
+	public String getStorageDirectoryName() {
+		return storageDirectoryName;
+	}
+
+	/**
+	 * Sets the name of the directory where the context files are saved. This
+	 * directory will be created as a sub-directory of
+	 * {@link JavaPlugin#getDataFolder()}.
+	 * <p>
+	 * The default name for the directory is "mapped-storage".
+	 * 
+	 * @param storageDirectoryName
+	 *            the name of the storage directory
+	 */
+	public void setStorageDirectoryName(String storageDirectoryName) {
+		this.storageDirectoryName = storageDirectoryName;
+	}
+
+	private void throwExceptionIfNotInitialized() throws StorageException {
+		if (!initialized) {
+			throw new StorageException("Cannot use the MappedFileStorage without calling initialize() first");
+		}
+	}
+
+	public void initialize(JavaPlugin plugin) throws StorageException {
+		try {
+			dataFolder = new File(plugin.getDataFolder(), storageDirectoryName);
+			if (!dataFolder.exists()) {
+				dataFolder.mkdirs();
+			}
+			removeDeletedFiles();
+			initialized = true;
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * Removes the files of contexts that were deleted while their files were
+	 * still mapped, which left them empty and marked as deleted.
+	 */
+	private void removeDeletedFiles() throws IOException {
+		final File[] files = dataFolder.listFiles(new FilenameFilter() {
+			public boolean accept(final File folder, final String fileName) {
+				return fileName.endsWith(FILE_EXTENSION);
+			}
+		});
+		if (files == null) {
+			return;
+		}
+		for (final File file : files) {
+			final String context = file.getName().substring(0, file.getName().length() - FILE_EXTENSION.length());
+			if (contexts.containsKey(context)) {
+				continue;
+			}
+			recover(file);
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+			try {
+				randomAccessFile.getChannel().read(header, 0);
+			} finally {
+				randomAccessFile.close();
+			}
+			if (header.getInt(MAGIC_OFFSET) == MAGIC && (header.getInt(FLAGS_OFFSET) & DELETED_FLAG) != 0 && !file.delete() && file.exists()) {
+				deletedContexts.add(context);
+			}
+		}
+	}
+
+	public void save(String context, String key, Object value) throws StorageException {
+		saveAll(context, Collections.singletonMap(key, value));
+	}
+
+	public Object load(String context, String key) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final MappedContext mapped = lockContext(context, false, false);
+			if (mapped == null) {
+				return null;
+			}
+			try {
+				final int slot = mapped.find(key.getBytes(ValueEncoding.UTF_8));
+				return slot < 0 ? null : ValueEncoding.decode(readValue(mapped, slot), getCodecRegistry());
+			} finally {
+				mapped.lock.readLock().unlock();
+			}
+		} catch (StorageException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Numbers are read straight from the mapped file without being boxed.
+	 */
+	@Override
+	public int loadInt(String context, String key, int defaultValue) throws StorageException {
+		return (int) loadLong(context, key, defaultValue);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Numbers are read straight from the mapped file without being boxed.
+	 */
+	@Override
+	public long loadLong(String context, String key, long defaultValue) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final MappedContext mapped = lockContext(context, false, false);
+			if (mapped == null) {
+				return defaultValue;
+			}
+			try {
+				final int slot = mapped.find(key.getBytes(ValueEncoding.UTF_8));
+				return slot < 0 ? defaultValue : ValueEncoding.decodeLong(readValue(mapped, slot), getCodecRegistry(), defaultValue);
+			} finally {
+				mapped.lock.readLock().unlock();
+			}
+		} catch (StorageException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Numbers are read straight from the mapped file without being boxed.
+	 */
+	@Override
+	public double loadDouble(String context, String key, double defaultValue) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final MappedContext mapped = lockContext(context, false, false);
+			if (mapped == null) {
+				return defaultValue;
+			}
+			try {
+				final int slot = mapped.find(key.getBytes(ValueEncoding.UTF_8));
+				return slot < 0 ? defaultValue : ValueEncoding.decodeDouble(readValue(mapped, slot), getCodecRegistry(), defaultValue);
+			} finally {
+				mapped.lock.readLock().unlock();
+			}
+		} catch (StorageException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	public boolean exists(String context, String key) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final MappedContext mapped = lockContext(context, false, false);
+			if (mapped == null) {
+				return false;
+			}
+			try {
+				return mapped.find(key.getBytes(ValueEncoding.UTF_8)) >= 0;
+			} finally {
+				mapped.lock.readLock().unlock();
+			}
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	public void delete(String context) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			synchronized (contexts) {
+				final MappedContext mapped = contexts.remove(context);
+				if (mapped != null) {
+					mapped.lock.writeLock().lock();
+					try {
+						// The file stays mapped until the mapping is garbage
+						// collected, so it may not be possible to delete it
+						mapped.clear();
+						mapped.setDeleted(true);
+						mapped.close();
+					} finally {
+						mapped.lock.writeLock().unlock();
+					}
+				}
+				final File file = getFile(context);
+				// Must not be copied over the file when it is recovered
+				new File(file.getPath() + REBUILD_FILE_EXTENSION).delete();
+				if (!file.delete() && file.exists()) {
+					if (mapped == null && !deletedContexts.contains(context)) {
+						// Still mapped by a context closed earlier
+						final MappedContext closed = new MappedContext(file);
+						closed.clear();
+						closed.setDeleted(true);
+						closed.close();
+					}
+					deletedContexts.add(context);
+				}
+			}
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	public void deleteKey(String context, String key) throws StorageException {
+		deleteKeys(context, Collections.singleton(key));
+	}
+
+	/**
+	 * The stored object is read and the new one written while the context is
+	 * locked for writing.
+	 */
+	@Override
+	Object update(String context, String key, ValueUpdate update) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final byte[] encodedKey = key.getBytes(ValueEncoding.UTF_8);
+			final MappedContext mapped = lockContext(context, true, true);
+			final Object newValue;
+			long length = 0;
+			try {
+				final int slot = mapped.find(encodedKey);
+				final Object currentValue = slot < 0 ? null : ValueEncoding.decode(readValue(mapped, slot), getCodecRegistry());
+				newValue = update.apply(currentValue);
+				if (newValue == ValueUpdate.UNCHANGED) {
+					return currentValue;
+				}
+				if (newValue == null) {
+					mapped.remove(encodedKey);
+				} else {
+					final byte[] value = encodeValue(newValue);
+					length = RECORD_HEADER_SIZE + encodedKey.length + value.length;
+					mapped.ensureCapacity(1, length);
+					mapped.put(encodedKey, value);
+				}
+			} finally {
+				mapped.lock.writeLock().unlock();
+			}
+			countBytesWritten(length);
+			return newValue;
+		} catch (StorageException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	public Set<String> getContexts() throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final String[] fileNames = dataFolder.list(new FilenameFilter() {
+				public boolean accept(final File folder, final String fileName) {
+					return fileName.endsWith(FILE_EXTENSION);
+				}
+			});
+
+			final Set<String> contextSet = new HashSet<String>(contexts.keySet());
+			for (final String fileName : fileNames) {
+				final String context = fileName.substring(0, fileName.length() - FILE_EXTENSION.length());
+				if (!deletedContexts.contains(context)) {
+					contextSet.add(context);
+				}
+			}
+			return contextSet;
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	public Set<String> getKeys(String context) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final MappedContext mapped = lockContext(context, false, false);
+			if (mapped == null) {
+				return Collections.emptySet();
+			}
+			try {
+				final Set<String> keys = new HashSet<String>();
+				for (int slot = 0; slot < mapped.slotCount; slot++) {
+					if (mapped.recordOffset(slot) > 0) {
+						keys.add(mapped.readKey(slot));
+					}
+				}
+				return keys;
+			} finally {
+				mapped.lock.readLock().unlock();
+			}
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The context is locked only once, and the file is grown or rebuilt at
+	 * most once, regardless of the number of objects.
+	 */
+	@Override
+	public void saveAll(String context, Map<String, ?> values) throws StorageException {
+		throwExceptionIfNotInitialized();
+		if (values.isEmpty()) {
+			return;
+		}
+		try {
+			final Map<byte[], byte[]> encoded = new LinkedHashMap<byte[], byte[]>();
+			long length = 0;
+			for (final Map.Entry<String, ?> entry : values.entrySet()) {
+				final byte[] key = entry.getKey().getBytes(ValueEncoding.UTF_8);
+				final byte[] value = entry.getValue() == null ? null : encodeValue(entry.getValue());
+				encoded.put(key, value);
+				if (value != null) {
+					length += RECORD_HEADER_SIZE + key.length + value.length;
+				}
+			}
+
+			final MappedContext mapped = lockContext(context, true, true);
+			try {
+				mapped.ensureCapacity(encoded.size(), length);
+				for (final Map.Entry<byte[], byte[]> entry : encoded.entrySet()) {
+					if (entry.getValue() == null) {
+						mapped.remove(entry.getKey());
+					} else {
+						mapped.put(entry.getKey(), entry.getValue());
+					}
+				}
+			} finally {
+				mapped.lock.writeLock().unlock();
+			}
+			countBytesWritten(length);
+		} catch (StorageException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The context is locked only once, regardless of the number of keys.
+	 */
+	@Override
+	public Map<String, Object> loadAll(String context, Collection<String> keys) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final Map<String, Object> values = new LinkedHashMap<String, Object>();
+			final MappedContext mapped = lockContext(context, false, false);
+			if (mapped == null) {
+				return values;
+			}
+			try {
+				for (final String key : keys) {
+					final int slot = mapped.find(key.getBytes(ValueEncoding.UTF_8));
+					if (slot >= 0) {
+						values.put(key, ValueEncoding.decode(readValue(mapped, slot), getCodecRegistry()));
+					}
+				}
+			} finally {
+				mapped.lock.readLock().unlock();
+			}
+			return values;
+		} catch (StorageException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The context is locked only once, regardless of the number of keys.
+	 */
+	@Override
+	public void deleteKeys(String context, Collection<String> keys) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final MappedContext mapped = lockContext(context, false, true);
+			if (mapped == null) {
+				return;
+			}
+			try {
+				for (final String key : keys) {
+					mapped.remove(key.getBytes(ValueEncoding.UTF_8));
+				}
+			} finally {
+				mapped.lock.writeLock().unlock();
+			}
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The slot table is walked in order and every value is decoded straight
+	 * from the mapped file. The context is read-locked for the whole
+	 * iteration, so writers to the context wait until the visitor has
+	 * finished or stopped.
+	 */
+	@Override
+	public void forEach(String context, StorageVisitor visitor) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final MappedContext mapped = lockContext(context, false, false);
+			if (mapped == null) {
+				return;
+			}
+			try {
+				for (int slot = 0; slot < mapped.slotCount; slot++) {
+					if (mapped.recordOffset(slot) > 0 && !visitor.visit(mapped.readKey(slot), ValueEncoding.decode(readValue(mapped, slot), getCodecRegistry()))) {
+						return;
+					}
+				}
+			} finally {
+				mapped.lock.readLock().unlock();
+			}
+		} catch (StorageException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * Forces the changes made to every open context file to disk.
+	 */
+	public void flush() throws StorageException {
+		throwExceptionIfNotInitialized();
+		for (final MappedContext mapped : contexts.values()) {
+			mapped.lock.readLock().lock();
+			try {
+				if (!mapped.closed) {
+					mapped.buffer.force();
+				}
+			} finally {
+				mapped.lock.readLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Forces the changes made to every open context file to disk and closes
+	 * the files.
+	 */
+	public void close() throws StorageException {
+		if (!initialized) {
+			return;
+		}
+		initialized = false;
+		try {
+			synchronized (contexts) {
+				for (final MappedContext mapped : contexts.values()) {
+					mapped.lock.writeLock().lock();
+					try {
+						mapped.close();
+					} finally {
+						mapped.lock.writeLock().unlock();
+					}
+				}
+				contexts.clear();
+			}
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	private ByteBuffer readValue(MappedContext mapped, int slot) {
+		final ByteBuffer value = mapped.readValue(slot);
+		countBytesRead(value.remaining());
+		return value;
+	}
+
+	private File getFile(String context) {
+		return new File(dataFolder, context + FILE_EXTENSION);
+	}
+
+	private MappedContext getContext(String context, boolean create) throws IOException {
+		MappedContext mapped = contexts.get(context);
+		if (mapped != null) {
+			return mapped;
+		}
+
+		synchronized (contexts) {
+			mapped = contexts.get(context);
+			if (mapped != null) {
+				return mapped;
+			}
+
+			final File file = getFile(context);
+			final boolean reused = deletedContexts.contains(context);
+			if (reused) {
+				// The file is still there, but empty
+				if (!create) {
+					return null;
+				}
+			} else if (!file.exists()) {
+				if (!create) {
+					return null;
+				}
+				createFile(file, INITIAL_SLOT_COUNT, INITIAL_DATA_CAPACITY);
+			} else {
+				recover(file);
+			}
+			mapped = new MappedContext(file);
+			if (reused) {
+				mapped.setDeleted(false);
+				deletedContexts.remove(context);
+			}
+			contexts.put(context, mapped);
+			return mapped;
+		}
+	}
+
+	/**
+	 * Gets a context and locks it for reading or writing. If the context is
+	 * deleted while we wait for the lock, we try again with the new one.
+	 */
+	private MappedContext lockContext(String context, boolean create, boolean write) throws IOException {
+		while (true) {
+			final MappedContext mapped = getContext(context, create);
+			if (mapped == null) {
+				return null;
+			}
+
+			final Lock lock = write ? mapped.lock.writeLock() : mapped.lock.readLock();
+			lock.lock();
+			if (!mapped.closed) {
+				return mapped;
+			}
+			lock.unlock();
+		}
+	}
+
+	private static void createFile(File file, int slotCount, long dataCapacity) throws IOException {
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			final long dataStart = HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+			randomAccessFile.setLength(dataStart + dataCapacity);
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC_OFFSET, MAGIC);
+			header.putInt(VERSION_OFFSET, VERSION);
+			header.putInt(SLOT_COUNT_OFFSET, slotCount);
+			header.putLong(DATA_END_OFFSET, dataStart);
+			randomAccessFile.getChannel().write(header, 0);
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Finishes copying a rebuilt context over its file, if the server crashed
+	 * while doing so, and removes a rebuilt context that was never finished.
+	 * The file must not be mapped.
+	 */
+	private static void recover(File file) throws IOException {
+		final File rebuildFile = new File(file.getPath() + REBUILD_FILE_EXTENSION);
+		if (rebuildFile.exists()) {
+			final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+			try {
+				copyRebuild(rebuildFile, randomAccessFile);
+			} finally {
+				randomAccessFile.close();
+			}
+		}
+		new File(file.getPath() + TEMPORARY_FILE_EXTENSION).delete();
+	}
+
+	/**
+	 * Copies a rebuilt context over the start of a context file, growing the
+	 * file if the rebuilt one is larger, and removes the rebuilt file. The
+	 * context file is written through its channel, so this works while it is
+	 * mapped.
+	 */
+	private static void copyRebuild(File rebuildFile, RandomAccessFile target) throws IOException {
+		final RandomAccessFile source = new RandomAccessFile(rebuildFile, "r");
+		try {
+			final FileChannel sourceChannel = source.getChannel();
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			sourceChannel.read(header, 0);
+			final long dataEnd = header.getLong(DATA_END_OFFSET);
+
+			if (target.length() < source.length()) {
+				target.setLength(source.length());
+			}
+			final FileChannel targetChannel = target.getChannel();
+			long copied = 0;
+			while (copied < dataEnd) {
+				targetChannel.position(copied);
+				copied += sourceChannel.transferTo(copied, dataEnd - copied, targetChannel);
+			}
+			targetChannel.force(true);
+		} finally {
+			source.close();
+		}
+		rebuildFile.delete();
+	}
+
+	/**
+	 * The 64-bit FNV-1a hash of a key's bytes.
+	 */
+	private static long hash(byte[] key) {
+		long hash = 0xcbf29ce484222325L;
+		for (final byte b : key) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private static final class MappedContext {
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		final File file;
+		RandomAccessFile randomAccessFile;
+		MappedByteBuffer buffer;
+		int slotCount;
+		boolean closed = false;
+
+		MappedContext(File file) throws IOException {
+			this.file = file;
+			map();
+		}
+
+		private void map() throws IOException {
+			randomAccessFile = new RandomAccessFile(file, "rw");
+			buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, randomAccessFile.length());
+			if (buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(VERSION_OFFSET) != VERSION) {
+				randomAccessFile.close();
+				throw new StorageException(file + " is not a context file");
+			}
+			slotCount = buffer.getInt(SLOT_COUNT_OFFSET);
+		}
+
+		void close() throws IOException {
+			closed = true;
+			buffer.force();
+			randomAccessFile.close();
+		}
+
+		/**
+		 * Removes every key, without shrinking the file.
+		 */
+		void clear() {
+			for (int slot = 0; slot < slotCount; slot++) {
+				setSlot(slot, 0, EMPTY);
+			}
+			buffer.putInt(ENTRY_COUNT_OFFSET, 0);
+			buffer.putInt(TOMBSTONE_COUNT_OFFSET, 0);
+			buffer.putLong(DATA_END_OFFSET, dataStart());
+			buffer.putLong(GARBAGE_OFFSET, 0);
+		}
+
+		void setDeleted(boolean deleted) {
+			final int flags = buffer.getInt(FLAGS_OFFSET);
+			buffer.putInt(FLAGS_OFFSET, deleted ? flags | DELETED_FLAG : flags & ~DELETED_FLAG);
+		}
+
+		int entryCount() {
+			return buffer.getInt(ENTRY_COUNT_OFFSET);
+		}
+
+		int tombstoneCount() {
+			return buffer.getInt(TOMBSTONE_COUNT_OFFSET);
+		}
+
+		long dataEnd() {
+			return buffer.getLong(DATA_END_OFFSET);
+		}
+
+		long dataStart() {
+			return HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+		}
+
+		long garbage() {
+			return buffer.getLong(GARBAGE_OFFSET);
+		}
+
+		private int slotPosition(int slot) {
+			return HEADER_SIZE + slot * SLOT_SIZE;
+		}
+
+		long slotHash(int slot) {
+			return buffer.getLong(slotPosition(slot));
+		}
+
+		long recordOffset(int slot) {
+			return buffer.getLong(slotPosition(slot) + 8);
+		}
+
+		private void setSlot(int slot, long hash, long offset) {
+			buffer.putLong(slotPosition(slot), hash);
+			buffer.putLong(slotPosition(slot) + 8, offset);
+		}
+
+		/**
+		 * Finds the slot holding a key, or returns <code>-(s + 1)</code>,
+		 * where <code>s</code> is the slot the key should be inserted in.
+		 */
+		int find(byte[] key) {
+			final long hash = hash(key);
+			final int mask = slotCount - 1;
+			int insertionSlot = -1;
+			for (int slot = (int) (hash ^ (hash >>> 32)) & mask, probes = 0; probes < slotCount; slot = (slot + 1) & mask, probes++) {
+				final long offset = recordOffset(slot);
+				if (offset == EMPTY) {
+					return -((insertionSlot >= 0 ? insertionSlot : slot) + 1);
+				} else if (offset == TOMBSTONE) {
+					if (insertionSlot < 0) {
+						insertionSlot = slot;
+					}
+				} else if (slotHash(slot) == hash && keyEquals(offset, key)) {
+					return slot;
+				}
+			}
+			if (insertionSlot < 0) {
+				throw new StorageException(file + " has no free slots");
+			}
+			return -(insertionSlot + 1);
+		}
+
+		private boolean keyEquals(long offset, byte[] key) {
+			final int position = (int) offset;
+			if (buffer.getInt(position) != key.length) {
+				return false;
+			}
+			for (int i = 0; i < key.length; i++) {
+				if (buffer.get(position + RECORD_HEADER_SIZE + i) != key[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		String readKey(int slot) {
+			final int position = (int) recordOffset(slot);
+			final byte[] key = new byte[buffer.getInt(position)];
+			final ByteBuffer view = buffer.duplicate();
+			view.position(position + RECORD_HEADER_SIZE);
+			view.get(key);
+			return new String(key, ValueEncoding.UTF_8);
+		}
+
+		ByteBuffer readValue(int slot) {
+			final int position = (int) recordOffset(slot);
+			final int valueStart = position + RECORD_HEADER_SIZE + buffer.getInt(position);
+			final ByteBuffer view = buffer.duplicate();
+			view.limit(valueStart + buffer.getInt(position + 4));
+			view.position(valueStart);
+			return view.slice();
+		}
+
+		private int recordSize(long offset) {
+			final int position = (int) offset;
+			return RECORD_HEADER_SIZE + buffer.getInt(position) + buffer.getInt(position + 4);
+		}
+
+		void put(byte[] key, byte[] value) {
+			final int found = find(key);
+			final long offset = dataEnd();
+			final int position = (int) offset;
+			buffer.putInt(position, key.length);
+			buffer.putInt(position + 4, value.length);
+			final ByteBuffer view = buffer.duplicate();
+			view.position(position + RECORD_HEADER_SIZE);
+			view.put(key);
+			view.put(value);
+			buffer.putLong(DATA_END_OFFSET, offset + RECORD_HEADER_SIZE + key.length + value.length);
+
+			if (found >= 0) {
+				buffer.putLong(GARBAGE_OFFSET, garbage() + recordSize(recordOffset(found)));
+				setSlot(found, hash(key), offset);
+			} else {
+				final int slot = -found - 1;
+				if (recordOffset(slot) == TOMBSTONE) {
+					buffer.putInt(TOMBSTONE_COUNT_OFFSET, tombstoneCount() - 1);
+				}
+				setSlot(slot, hash(key), offset);
+				buffer.putInt(ENTRY_COUNT_OFFSET, entryCount() + 1);
+			}
+		}
+
+		void remove(byte[] key) {
+			final int slot = find(key);
+			if (slot < 0) {
+				return;
+			}
+			buffer.putLong(GARBAGE_OFFSET, garbage() + recordSize(recordOffset(slot)));
+			setSlot(slot, 0, TOMBSTONE);
+			buffer.putInt(ENTRY_COUNT_OFFSET, entryCount() - 1);
+			buffer.putInt(TOMBSTONE_COUNT_OFFSET, tombstoneCount() + 1);
+		}
+
+		/**
+		 * Makes sure the given number of new keys and bytes of records fit,
+		 * by rebuilding the file with a larger table and without garbage, or
+		 * just growing the file, as needed.
+		 */
+		void ensureCapacity(int newKeys, long newBytes) throws IOException {
+			final long liveBytes = dataEnd() - dataStart() - garbage();
+			final long used = entryCount() + tombstoneCount() + newKeys;
+			if (used > slotCount * MAX_LOAD_FACTOR || garbage() > liveBytes + newBytes) {
+				int newSlotCount = slotCount;
+				while ((entryCount() + newKeys) > newSlotCount * MAX_LOAD_FACTOR / 2) {
+					newSlotCount *= 2;
+				}
+				rebuild(newSlotCount, liveBytes + newBytes);
+			} else if (dataEnd() + newBytes > buffer.capacity()) {
+				grow(dataEnd() + newBytes);
+			}
+		}
+
+		private void grow(long minimumSize) throws IOException {
+			long size = Math.max(buffer.capacity(), INITIAL_DATA_CAPACITY);
+			while (size < minimumSize) {
+				size *= 2;
+			}
+			size = Math.min(size, Integer.MAX_VALUE);
+			if (size < minimumSize) {
+				throw new StorageException(file + " cannot grow beyond 2 GiB");
+			}
+			buffer.force();
+			randomAccessFile.setLength(size);
+			buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+
+		/**
+		 * Copies every live record into a new file with the given number of
+		 * slots, and then copies that file over the current one in place. The
+		 * file is never made smaller, as a mapped file cannot be truncated on
+		 * every platform; any space beyond the rebuilt records is free for new
+		 * records.
+		 */
+		private void rebuild(int newSlotCount, long dataCapacity) throws IOException {
+			final long newDataStart = HEADER_SIZE + (long) newSlotCount * SLOT_SIZE;
+			final long capacity = Math.max(dataCapacity * 2, INITIAL_DATA_CAPACITY);
+			if (newDataStart + capacity > Integer.MAX_VALUE) {
+				throw new StorageException(file + " cannot grow beyond 2 GiB");
+			}
+
+			final File temporaryFile = new File(file.getPath() + TEMPORARY_FILE_EXTENSION);
+			final File rebuildFile = new File(file.getPath() + REBUILD_FILE_EXTENSION);
+			final ByteBuffer table = ByteBuffer.allocate(newSlotCount * SLOT_SIZE);
+			final int mask = newSlotCount - 1;
+			int entryCount = 0;
+			long dataEnd = newDataStart;
+			final RandomAccessFile output = new RandomAccessFile(temporaryFile, "rw");
+			try {
+				output.setLength(0);
+				output.setLength(newDataStart + capacity);
+				final FileChannel channel = output.getChannel();
+				for (int slot = 0; slot < slotCount; slot++) {
+					final long offset = recordOffset(slot);
+					if (offset <= 0) {
+						continue;
+					}
+					final long hash = slotHash(slot);
+					int newSlot = (int) (hash ^ (hash >>> 32)) & mask;
+					while (table.getLong(newSlot * SLOT_SIZE + 8) != EMPTY) {
+						newSlot = (newSlot + 1) & mask;
+					}
+					table.putLong(newSlot * SLOT_SIZE, hash);
+					table.putLong(newSlot * SLOT_SIZE + 8, dataEnd);
+					entryCount++;
+
+					final ByteBuffer record = buffer.duplicate();
+					record.limit((int) offset + recordSize(offset));
+					record.position((int) offset);
+					while (record.hasRemaining()) {
+						dataEnd += channel.write(record, dataEnd);
+					}
+				}
+
+				final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC_OFFSET, MAGIC);
+				header.putInt(VERSION_OFFSET, VERSION);
+				header.putInt(SLOT_COUNT_OFFSET, newSlotCount);
+				header.putInt(ENTRY_COUNT_OFFSET, entryCount);
+				header.putLong(DATA_END_OFFSET, dataEnd);
+				writeFully(channel, header, 0);
+				writeFully(channel, table, HEADER_SIZE);
+				channel.force(true);
+			} finally {
+				output.close();
+			}
+
+			// Once renamed, the rebuilt file is complete, and is copied over
+			// the context file again if we crash while copying it
+			try {
+				Files.move(temporaryFile.toPath(), rebuildFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temporaryFile.toPath(), rebuildFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			copyRebuild(rebuildFile, randomAccessFile);
+
+			buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, randomAccessFile.length());
+			slotCount = newSlotCount;
+		}
+
+		private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+			buffer.rewind();
+			while (buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+		}
+	}
+}
@@ -19,9 +19,11 @@
 
 package net.alexanderschroeder.bukkitutil.storage;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
 
 import org.bukkit.configuration.Configuration;
 import org.bukkit.configuration.serialization.ConfigurationSerializable;
@@ -102,6 +104,74 @@ public interface Storage {
 	 */
 	Object load(String context, String key) throws StorageException;
 
+	/**
+	 * Load an object of a known type from the storage system.
+	 * 
+	 * @param context
+	 *            the context to load the object from
+	 * @param key
+	 *            the key the object was saved with
+	 * @param type
+	 *            the type of the object
+	 * @return the object that was loaded, or null if no object was saved with
+	 *         the given <code>context</code> and <code>key</code>.
+	 * @throws StorageException
+	 *             if there is a problem loading the object from the storage
+	 *             system, or if the object is not of the given type
+	 */
+	<T> T load(String context, String key, Class<T> type) throws StorageException;
+
+	/**
+	 * Load a number from the storage system as an <code>int</code>.
+	 * 
+	 * @param context
+	 *            the context to load the number from
+	 * @param key
+	 *            the key the number was saved with
+	 * @param defaultValue
+	 *            the value to return if no number was saved with the given
+	 *            <code>context</code> and <code>key</code>
+	 * @return the number that was loaded, or <code>defaultValue</code>
+	 * @throws StorageException
+	 *             if there is a problem loading the number from the storage
+	 *             system
+	 */
+	int loadInt(String context, String key, int defaultValue) throws StorageException;
+
+	/**
+	 * Load a number from the storage system as a <code>long</code>.
+	 * 
+	 * @param context
+	 *            the context to load the number from
+	 * @param key
+	 *            the key the number was saved with
+	 * @param defaultValue
+	 *            the value to return if no number was saved with the given
+	 *            <code>context</code> and <code>key</code>
+	 * @return the number that was loaded, or <code>defaultValue</code>
+	 * @throws StorageException
+	 *             if there is a problem loading the number from the storage
+	 *             system
+	 */
+	long loadLong(String context, String key, long defaultValue) throws StorageException;
+
+	/**
+	 * Load a number from the storage system as a <code>double</code>.
+	 * 
+	 * @param context
+	 *            the context to load the number from
+	 * @param key
+	 *            the key the number was saved with
+	 * @param defaultValue
+	 *            the value to return if no number was saved with the given
+	 *            <code>context</code> and <code>key</code>
+	 * @return the number that was loaded, or <code>defaultValue</code>
+	 * @throws StorageException
+	 *             if there is a problem loading the number from the storage
+	 *             system
+	 */
+	double loadDouble(String context, String key, double defaultValue) throws StorageException;
+
 	/**
 	 * Checks whether an object is stored in the given <code>context</code> with
 	 * the given <code>key</code>.
@@ -163,4 +233,177 @@ public interface Storage {
 	 *             context in the storage system
 	 */
 	Set<String> getKeys(String context) throws StorageException;
+
+	/**
+	 * Gets the keys within a context that start with the given prefix, in
+	 * order. Which keys are found is decided in the same way as by
+	 * {@link #getKeys(String) getKeys()}, but an implementation will usually
+	 * only look at the matching keys.
+	 * @param context
+	 *            the context to get the keys of
+	 * @param prefix
+	 *            the prefix of the keys to get
+	 * @return the keys starting with <code>prefix</code>, sorted as by
+	 *         {@link String#compareTo(String)}
+	 * @throws StorageException
+	 *             if there is a problem enumerating the keys in the given
+	 *             context in the storage system
+	 */
+	SortedSet<String> getKeysWithPrefix(String context, String prefix) throws StorageException;
+
+	/**
+	 * Gets the keys within a context that are within the given range, in
+	 * order, comparing keys as by {@link String#compareTo(String)}. Which keys
+	 * are found is decided in the same way as by {@link #getKeys(String)
+	 * getKeys()}, but an implementation will usually only look at the keys
+	 * within the range.
+	 * @param context
+	 *            the context to get the keys of
+	 * @param fromKey
+	 *            the lowest key to get, or <code>null</code> to start with
+	 *            the lowest key in the context
+	 * @param toKey
+	 *            the key to stop before, or <code>null</code> to stop after
+	 *            the highest key in the context
+	 * @return the keys from <code>fromKey</code>, inclusive, to
+	 *         <code>toKey</code>, exclusive, in order
+	 * @throws StorageException
+	 *             if there is a problem enumerating the keys in the given
+	 *             context in the storage system
+	 */
+	SortedSet<String> getKeysInRange(String context, String fromKey, String toKey) throws StorageException;
+
+	/**
+	 * Adds to a number stored in the storage system, as a single atomic
+	 * operation. A missing number counts as 0.
+	 * <p>
+	 * This and the other atomic operations,
+	 * {@link #compareAndSet(String, String, Object, Object) compareAndSet()} and
+	 * {@link #merge(String, String, Object, StorageMerger) merge()}, are
+	 * atomic with respect to each other when called on the same storage
+	 * object; a change made with {@link #save(String, String, Object) save()}
+	 * at the same time may be lost.
+	 * @param context
+	 *            the context of the number
+	 * @param key
+	 *            the key the number is saved with
+	 * @param delta
+	 *            the amount to add, which may be negative
+	 * @return the new number
+	 * @throws StorageException
+	 *             if there is a problem updating the number in the storage
+	 *             system, or if the object stored with the key is not a number
+	 */
+	long increment(String context, String key, long delta) throws StorageException;
+
+	/**
+	 * Replaces an object in the storage system if it is equal to the expected
+	 * object, as a single atomic operation. Numbers are compared by their
+	 * value; other objects with {@link Object#equals(Object) equals()}.
+	 * @param context
+	 *            the context of the object
+	 * @param key
+	 *            the key the object is saved with
+	 * @param expectedValue
+	 *            the object that must be stored for it to be replaced, or
+	 *            <code>null</code> if no object must be stored
+	 * @param newValue
+	 *            the object to store instead, or <code>null</code> to delete
+	 *            the object
+	 * @return <code>true</code> if the object was replaced
+	 * @throws StorageException
+	 *             if there is a problem updating the object in the storage
+	 *             system
+	 */
+	boolean compareAndSet(String context, String key, Object expectedValue, Object newValue) throws StorageException;
+
+	/**
+	 * Combines an object with the object stored in the storage system, as a
+	 * single atomic operation. If no object is stored with the key, the given
+	 * object is stored; otherwise, the result of the merger is.
+	 * @param context
+	 *            the context of the object
+	 * @param key
+	 *            the key the object is saved with
+	 * @param value
+	 *            the object to merge into the stored object
+	 * @param merger
+	 *            the function combining the stored object and
+	 *            <code>value</code>
+	 * @return the object now stored, or <code>null</code> if the merger
+	 *         deleted it
+	 * @throws StorageException
+	 *             if there is a problem updating the object in the storage
+	 *             system
+	 */
+	Object merge(String context, String key, Object value, StorageMerger merger) throws StorageException;
+
+	/**
+	 * Save several objects in the same context of the storage system. This
+	 * has the same effect as calling {@link #save(String, String, Object)
+	 * save()} once for every entry of <code>values</code>, but an
+	 * implementation will usually read and write the context only once.
+	 * 
+	 * @param context
+	 *            the context to save the objects in
+	 * @param values
+	 *            the objects to store, mapped by the keys to save them with
+	 * @throws StorageException
+	 *             if there is a problem saving the objects in the storage
+	 *             system
+	 */
+	void saveAll(String context, Map<String, ?> values) throws StorageException;
+
+	/**
+	 * Load several objects from the same context of the storage system. This
+	 * has the same effect as calling {@link #load(String, String) load()} once
+	 * for every key, but an implementation will usually read the context only
+	 * once.
+	 * 
+	 * @param context
+	 *            the context to load the objects from
+	 * @param keys
+	 *            the keys the objects were saved with
+	 * @return the objects that were loaded, mapped by their keys. Keys that no
+	 *         object was saved with are left out.
+	 * @throws StorageException
+	 *             if there is a problem loading the objects from the storage
+	 *             system
+	 */
+	Map<String, Object> loadAll(String context, Collection<String> keys) throws StorageException;
+
+	/**
+	 * Deletes several objects from the same context. This has the same effect
+	 * as calling {@link #deleteKey(String, String) deleteKey()} once for every
+	 * key, but an implementation will usually read and write the context only
+	 * once.
+	 * 
+	 * @param context
+	 *            the context to delete the objects from
+	 * @param keys
+	 *            the keys the objects are stored with
+	 * @throws StorageException
+	 *             if there is a problem deleting the objects from the storage
+	 *             system
+	 */
+	void deleteKeys(String context, Collection<String> keys) throws StorageException;
+
+	/**
+	 * Visits every object stored in a context, in no particular order,
+	 * without loading the keys and objects into memory all at once. The
+	 * iteration stops as soon as the visitor returns <code>false</code>.
+	 * 
+	 * <p>
+	 * The visitor must not modify the context it is visiting; depending on the
+	 * implementation, doing so may fail or block.
+	 * 
+	 * @param context
+	 *            the context to visit the objects of
+	 * @param visitor
+	 *            the visitor to give each key and object to
+	 * @throws StorageException
+	 *             if there is a problem reading the objects from the storage
+	 *             system
+	 */
+	void forEach(String context, StorageVisitor visitor) throws StorageException;
 }
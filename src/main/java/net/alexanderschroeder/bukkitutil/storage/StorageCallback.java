@@ -0,0 +1,49 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+/**
+ * A callback that receives the result of an operation submitted to an
+ * {@link AsyncStorage}. Exactly one of the methods will be called once the
+ * operation has completed.
+ * 
+ * @param <T>
+ *            the type of the operation's result
+ */
+public interface StorageCallback<T> {
+
+	/**
+	 * Called when the operation completed successfully.
+	 * 
+	 * @param result
+	 *            the result of the operation; <code>null</code> for
+	 *            operations that do not return anything
+	 */
+	void onSuccess(T result);
+
+	/**
+	 * Called when the operation failed.
+	 * 
+	 * @param cause
+	 *            the exception that made the operation fail; usually a
+	 *            {@link StorageException}
+	 */
+	void onFailure(Throwable cause);
+}
@@ -0,0 +1,1052 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * Copies the contents of one {@link Storage} into another, or into an
+ * archive file and back, for moving data to a different back-end and for
+ * backups.
+ * 
+ * <p>
+ * Contexts are copied one at a time per thread, several at once, by
+ * {@link Storage#forEach(String, StorageVisitor) visiting} the objects of the
+ * source and {@link Storage#saveAll(String, Map) saving} them in batches, so
+ * that no more than the {@link #setMemoryLimit(long) memory limit} is taken
+ * up by objects in transit, however large the storage is. A context is
+ * deleted from the target before it is copied, so that the target ends up
+ * with an exact copy of it.
+ * 
+ * <p>
+ * The contexts that have been copied completely can be recorded in a
+ * {@link #setProgressFile(File) progress file}, so that a copy that was
+ * interrupted skips them when it is run again. Exporting to an archive that
+ * already exists resumes the export in the same way. After copying,
+ * {@link #verify(Storage, Storage) verify()} and
+ * {@link #verifyArchive(File, Storage) verifyArchive()} compare the copy with
+ * the original.
+ * 
+ * <p>
+ * An archive is a text file with one line per object. The first line of an
+ * archive is {@value #ARCHIVE_HEADER}, and every context in it is written as
+ * <ul>
+ * <li><code>C</code> <i>context</i></li>
+ * <li><code>E</code> <i>key</i> <i>value</i>, for each object</li>
+ * <li><code>D</code> <i>number of objects</i> <i>checksum</i></li>
+ * </ul>
+ * where the context and the keys are URL-encoded, the values are in the
+ * binary form of the binary back-ends, written in hexadecimal, and the
+ * checksum is the CRC-32 of the <code>E</code> lines of the context. Objects
+ * of types with a {@link Codec} are only read back correctly with the same
+ * {@link #setCodecRegistry(CodecRegistry) codec registry} they were written
+ * with.
+ * 
+ * <p>
+ * The storages must be initialized, and should not be changed while they
+ * are copied.
+ */
+public class StorageCopier {
+
+	/** The first line of every archive. */
+	public static final String ARCHIVE_HEADER = "# BukkitUtil storage archive 1";
+
+	private static final String PART_EXTENSION = ".part";
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+
+	private long memoryLimit = Runtime.getRuntime().maxMemory() / 8;
+
+	private int batchSize = 1000;
+
+	private File progressFile;
+
+	private CodecRegistry codecRegistry = new CodecRegistry();
+
+	/**
+	 * Gets the number of contexts that are copied at once.
+	 * 
+	 * @return the number of copying threads
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Sets the number of contexts that are copied at once. The default is the
+	 * number of available processors.
+	 * 
+	 * @param parallelism
+	 *            the number of copying threads
+	 */
+	public void setParallelism(final int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be positive");
+		}
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Gets the estimated number of bytes the objects in transit take up at
+	 * most.
+	 * 
+	 * @return the memory limit, in bytes
+	 */
+	public long getMemoryLimit() {
+		return memoryLimit;
+	}
+
+	/**
+	 * Sets the estimated number of bytes the objects in transit take up at
+	 * most, which is shared evenly between the copying threads. Objects are
+	 * estimated by {@link CachingStorage#ESTIMATED_BYTES}. The default is an
+	 * eighth of the maximum heap size.
+	 * 
+	 * @param memoryLimit
+	 *            the memory limit, in bytes
+	 */
+	public void setMemoryLimit(final long memoryLimit) {
+		if (memoryLimit < 1) {
+			throw new IllegalArgumentException("memoryLimit must be positive");
+		}
+		this.memoryLimit = memoryLimit;
+	}
+
+	/**
+	 * Gets the largest number of objects saved to the target at once.
+	 * 
+	 * @return the batch size
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Sets the largest number of objects saved to the target at once. A batch
+	 * is saved early if it reaches its share of the memory limit. The default
+	 * is 1000.
+	 * 
+	 * @param batchSize
+	 *            the batch size
+	 */
+	public void setBatchSize(final int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be positive");
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Gets the file the contexts that have been copied or imported completely
+	 * are recorded in.
+	 * 
+	 * @return the progress file, or <code>null</code> if progress is not
+	 *         recorded
+	 */
+	public File getProgressFile() {
+		return progressFile;
+	}
+
+	/**
+	 * Sets the file the contexts that have been copied or imported completely
+	 * are recorded in. {@link #copy(Storage, Storage) copy()} and
+	 * {@link #importArchive(File, Storage) importArchive()} skip the contexts
+	 * recorded in it, so an interrupted copy continues where it stopped when
+	 * it is run again. The file should be deleted once the copy has finished.
+	 * By default, progress is not recorded.
+	 * 
+	 * @param progressFile
+	 *            the progress file, or <code>null</code> to not record
+	 *            progress
+	 */
+	public void setProgressFile(final File progressFile) {
+		this.progressFile = progressFile;
+	}
+
+	/**
+	 * Gets the codecs objects are written to and read from archives with.
+	 * 
+	 * @return the codec registry
+	 */
+	public CodecRegistry getCodecRegistry() {
+		return codecRegistry;
+	}
+
+	/**
+	 * Sets the codecs objects are written to and read from archives with.
+	 * 
+	 * @param codecRegistry
+	 *            the codec registry
+	 */
+	public void setCodecRegistry(final CodecRegistry codecRegistry) {
+		if (codecRegistry == null) {
+			throw new IllegalArgumentException("codecRegistry cannot be null");
+		}
+		this.codecRegistry = codecRegistry;
+	}
+
+	/**
+	 * Copies every context of a storage into another storage.
+	 * 
+	 * @param source
+	 *            the storage to copy
+	 * @param target
+	 *            the storage to copy into
+	 * @return what was copied, and how long it took
+	 * @throws StorageException
+	 *             if a context cannot be copied
+	 */
+	public Result copy(final Storage source, final Storage target) throws StorageException {
+		final long start = System.nanoTime();
+		final Set<String> done = readProgress();
+		final AtomicLong entries = new AtomicLong();
+		final long batchMemory = Math.max(1, memoryLimit / parallelism);
+
+		final List<String> contexts = new ArrayList<String>();
+		int skipped = 0;
+		for (final String context : source.getContexts()) {
+			if (done.contains(context)) {
+				skipped++;
+			} else {
+				contexts.add(context);
+			}
+		}
+
+		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(contexts.size());
+		for (final String context : contexts) {
+			tasks.add(new Callable<Void>() {
+				public Void call() throws Exception {
+					target.delete(context);
+					final Batch batch = new Batch(target, context, batchMemory);
+					source.forEach(context, new StorageVisitor() {
+						public boolean visit(final String key, final Object value) {
+							batch.add(key, value);
+							if (batch.isFull()) {
+								batch.save();
+							}
+							return true;
+						}
+					});
+					batch.save();
+					entries.addAndGet(batch.saved);
+					recordProgress(context);
+					return null;
+				}
+			});
+		}
+		run(tasks, contexts, "copy");
+
+		return new Result(contexts.size(), skipped, entries.get(), Collections.<String> emptySet(), System.nanoTime() - start);
+	}
+
+	/**
+	 * Exports every context of a storage to an archive file. If the archive
+	 * already exists, the export is resumed: the contexts that are already
+	 * complete in the archive are skipped, and anything after them is
+	 * discarded.
+	 * <p>
+	 * Each thread writes the context it is exporting to a file of its own next
+	 * to the archive, which is added to the end of the archive once the
+	 * context is complete.
+	 * 
+	 * @param source
+	 *            the storage to export
+	 * @param archive
+	 *            the archive file to write
+	 * @return what was exported, and how long it took
+	 * @throws StorageException
+	 *             if a context cannot be exported, or the archive cannot be
+	 *             written
+	 */
+	public Result exportArchive(final Storage source, final File archive) throws StorageException {
+		final long start = System.nanoTime();
+		final Set<String> done;
+		try {
+			done = prepareArchive(archive);
+		} catch (final IOException e) {
+			throw new StorageException("Could not open archive " + archive, e);
+		}
+		final AtomicLong entries = new AtomicLong();
+		final AtomicInteger partNumber = new AtomicInteger();
+
+		final List<String> contexts = new ArrayList<String>();
+		int skipped = 0;
+		for (final String context : source.getContexts()) {
+			if (done.contains(context)) {
+				skipped++;
+			} else {
+				contexts.add(context);
+			}
+		}
+
+		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(contexts.size());
+		for (final String context : contexts) {
+			tasks.add(new Callable<Void>() {
+				public Void call() throws Exception {
+					final File part = new File(archive.getPath() + "." + partNumber.incrementAndGet() + PART_EXTENSION);
+					try {
+						entries.addAndGet(writePart(source, context, part));
+						appendPart(archive, part);
+					} finally {
+						part.delete();
+					}
+					return null;
+				}
+			});
+		}
+		run(tasks, contexts, "export");
+
+		return new Result(contexts.size(), skipped, entries.get(), Collections.<String> emptySet(), System.nanoTime() - start);
+	}
+
+	/**
+	 * Imports every context of an archive file into a storage. The archive is
+	 * read by the calling thread, and the objects are saved by the copying
+	 * threads.
+	 * 
+	 * @param archive
+	 *            the archive file to read
+	 * @param target
+	 *            the storage to import into
+	 * @return what was imported, and how long it took
+	 * @throws StorageException
+	 *             if the archive cannot be read or is damaged, or a context
+	 *             cannot be saved
+	 */
+	public Result importArchive(final File archive, final Storage target) throws StorageException {
+		final long start = System.nanoTime();
+		final Set<String> done = readProgress();
+		final long batchMemory = Math.max(1, memoryLimit / (2L * parallelism));
+		final Semaphore batchesInTransit = new Semaphore(2 * parallelism);
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		final AtomicLong entries = new AtomicLong();
+		int imported = 0;
+		int skipped = 0;
+
+		final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		try {
+			final ArchiveReader reader = new ArchiveReader(archive);
+			try {
+				while (failure.get() == null && reader.nextContext()) {
+					final String context = reader.context;
+					if (done.contains(context)) {
+						reader.skipContext();
+						skipped++;
+						continue;
+					}
+
+					target.delete(context);
+					// Recorded as imported by whoever finishes last: the last
+					// batch, or this thread once the context has been checked
+					final AtomicInteger unfinished = new AtomicInteger(1);
+					Batch batch = new Batch(target, context, batchMemory);
+					while (reader.nextEntry()) {
+						batch.add(reader.key, decodeValue(reader.value));
+						if (batch.isFull()) {
+							submit(executor, batch, unfinished, batchesInTransit, failure, entries);
+							batch = new Batch(target, context, batchMemory);
+						}
+					}
+					submit(executor, batch, unfinished, batchesInTransit, failure, entries);
+					if (unfinished.decrementAndGet() == 0) {
+						recordProgress(context);
+					}
+					imported++;
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (final IOException e) {
+			failure.compareAndSet(null, e);
+		} catch (final RuntimeException e) {
+			failure.compareAndSet(null, e);
+		} finally {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failure.compareAndSet(null, e);
+			}
+		}
+
+		if (failure.get() != null) {
+			throw new StorageException("Could not import archive " + archive, failure.get());
+		}
+		return new Result(imported, skipped, entries.get(), Collections.<String> emptySet(), System.nanoTime() - start);
+	}
+
+	/**
+	 * Compares every context of a storage with a copy of it. A context
+	 * matches if the copy has the same keys, and every object is equal to the
+	 * original, or has the same stored form.
+	 * 
+	 * @param source
+	 *            the original storage
+	 * @param target
+	 *            the copy
+	 * @return what was compared, and which contexts did not match
+	 * @throws StorageException
+	 *             if a context cannot be read
+	 */
+	public Result verify(final Storage source, final Storage target) throws StorageException {
+		final long start = System.nanoTime();
+		final AtomicLong entries = new AtomicLong();
+		final Set<String> mismatchedContexts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final long batchMemory = Math.max(1, memoryLimit / parallelism);
+
+		final List<String> contexts = new ArrayList<String>(source.getContexts());
+		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(contexts.size());
+		for (final String context : contexts) {
+			tasks.add(new Callable<Void>() {
+				public Void call() throws Exception {
+					final Comparison comparison = new Comparison(target, context, batchMemory);
+					source.forEach(context, new StorageVisitor() {
+						public boolean visit(final String key, final Object value) {
+							return comparison.add(key, value);
+						}
+					});
+					if (!comparison.finish()) {
+						mismatchedContexts.add(context);
+					}
+					entries.addAndGet(comparison.compared);
+					return null;
+				}
+			});
+		}
+		run(tasks, contexts, "verify");
+
+		final Set<String> targetContexts = new HashSet<String>(target.getContexts());
+		targetContexts.removeAll(contexts);
+		for (final String context : targetContexts) {
+			if (!target.getKeys(context).isEmpty()) {
+				mismatchedContexts.add(context);
+			}
+		}
+
+		return new Result(contexts.size(), 0, entries.get(), mismatchedContexts, System.nanoTime() - start);
+	}
+
+	/**
+	 * Compares every context of an archive with a storage, and checks the
+	 * archive's checksums. A context matches if the storage has the same keys,
+	 * and every object is equal to the one in the archive, or has the same
+	 * stored form.
+	 * 
+	 * @param archive
+	 *            the archive file
+	 * @param storage
+	 *            the storage to compare the archive with
+	 * @return what was compared, and which contexts did not match
+	 * @throws StorageException
+	 *             if the archive cannot be read or is damaged, or a context
+	 *             cannot be read
+	 */
+	public Result verifyArchive(final File archive, final Storage storage) throws StorageException {
+		final long start = System.nanoTime();
+		final Set<String> mismatchedContexts = new HashSet<String>();
+		final long batchMemory = Math.max(1, memoryLimit);
+		long entries = 0;
+		int contexts = 0;
+
+		try {
+			final ArchiveReader reader = new ArchiveReader(archive);
+			try {
+				while (reader.nextContext()) {
+					final Comparison comparison = new Comparison(storage, reader.context, batchMemory);
+					boolean matching = true;
+					while (reader.nextEntry()) {
+						if (matching) {
+							matching = comparison.add(reader.key, decodeValue(reader.value));
+						}
+					}
+					if (!comparison.finish() || !matching) {
+						mismatchedContexts.add(reader.context);
+					}
+					entries += comparison.compared;
+					contexts++;
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (final IOException e) {
+			throw new StorageException("Could not read archive " + archive, e);
+		}
+
+		return new Result(contexts, 0, entries, mismatchedContexts, System.nanoTime() - start);
+	}
+
+	/**
+	 * Runs one task per context, <code>parallelism</code> at a time.
+	 */
+	private void run(final List<Callable<Void>> tasks, final List<String> contexts, final String action) {
+		final ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			final List<Future<Void>> results = pool.invokeAll(tasks);
+			for (int i = 0; i < results.size(); i++) {
+				try {
+					results.get(i).get();
+				} catch (final ExecutionException e) {
+					throw new StorageException("Could not " + action + " context " + contexts.get(i), e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+				}
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StorageException("Interrupted while trying to " + action + " contexts", e);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Saves a batch of imported objects on one of the copying threads, after
+	 * waiting until there are few enough batches in transit.
+	 */
+	private void submit(final ExecutorService executor, final Batch batch, final AtomicInteger unfinished, final Semaphore batchesInTransit, final AtomicReference<Exception> failure, final AtomicLong entries) {
+		batchesInTransit.acquireUninterruptibly();
+		unfinished.incrementAndGet();
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					if (failure.get() == null) {
+						batch.save();
+						entries.addAndGet(batch.saved);
+						if (unfinished.decrementAndGet() == 0) {
+							recordProgress(batch.context);
+						}
+					}
+				} catch (final RuntimeException e) {
+					failure.compareAndSet(null, e);
+				} finally {
+					batchesInTransit.release();
+				}
+			}
+		});
+	}
+
+	private Object decodeValue(final byte[] value) {
+		return ValueEncoding.decode(ByteBuffer.wrap(value), codecRegistry);
+	}
+
+	private Set<String> readProgress() throws StorageException {
+		final Set<String> done = new HashSet<String>();
+		if (progressFile == null || !progressFile.exists()) {
+			return done;
+		}
+
+		try {
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(progressFile), ValueEncoding.UTF_8));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (!line.isEmpty()) {
+						done.add(decodeName(line));
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (final IOException e) {
+			throw new StorageException("Could not read progress file " + progressFile, e);
+		}
+		return done;
+	}
+
+	private void recordProgress(final String context) throws StorageException {
+		if (progressFile == null) {
+			return;
+		}
+
+		synchronized (this) {
+			try {
+				final Writer writer = new OutputStreamWriter(new FileOutputStream(progressFile, true), ValueEncoding.UTF_8);
+				try {
+					writer.write(encodeName(context) + "\n");
+				} finally {
+					writer.close();
+				}
+			} catch (final IOException e) {
+				throw new StorageException("Could not write progress file " + progressFile, e);
+			}
+		}
+	}
+
+	/**
+	 * Gets an archive ready for an export: creates it if it does not exist,
+	 * and otherwise cuts off anything after its last complete context.
+	 * 
+	 * @return the contexts that are complete in the archive
+	 */
+	private Set<String> prepareArchive(final File archive) throws IOException {
+		final Set<String> done = new HashSet<String>();
+		if (!archive.exists() || archive.length() == 0) {
+			final Writer writer = new OutputStreamWriter(new FileOutputStream(archive), ValueEncoding.UTF_8);
+			try {
+				writer.write(ARCHIVE_HEADER + "\n");
+			} finally {
+				writer.close();
+			}
+			return done;
+		}
+
+		// Every line is ASCII, so counting characters counts bytes
+		long completeLength = ARCHIVE_HEADER.length() + 1;
+		long length = 0;
+		String context = null;
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(archive), ValueEncoding.UTF_8));
+		try {
+			final String header = reader.readLine();
+			if (!ARCHIVE_HEADER.equals(header)) {
+				throw new IOException(archive + " is not an archive");
+			}
+			length = completeLength;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				length += line.length() + 1;
+				if (line.startsWith("C ")) {
+					context = decodeName(line.substring(2));
+				} else if (line.startsWith("D ") && context != null) {
+					done.add(context);
+					completeLength = length;
+					context = null;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		if (completeLength < archive.length()) {
+			final RandomAccessFile file = new RandomAccessFile(archive, "rw");
+			try {
+				file.setLength(completeLength);
+			} finally {
+				file.close();
+			}
+		}
+		return done;
+	}
+
+	/**
+	 * Writes one context to a part file.
+	 * 
+	 * @return the number of objects written
+	 */
+	private long writePart(final Storage source, final String context, final File part) throws IOException {
+		final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(part), ValueEncoding.UTF_8));
+		try {
+			writer.write("C " + encodeName(context) + "\n");
+			final CRC32 crc = new CRC32();
+			final long[] count = new long[1];
+			final IOException[] failure = new IOException[1];
+			source.forEach(context, new StorageVisitor() {
+				public boolean visit(final String key, final Object value) {
+					final String line = "E " + encodeName(key) + " " + toHex(ValueEncoding.encode(value, codecRegistry)) + "\n";
+					crc.update(line.getBytes(ValueEncoding.UTF_8));
+					try {
+						writer.write(line);
+					} catch (final IOException e) {
+						failure[0] = e;
+						return false;
+					}
+					count[0]++;
+					return true;
+				}
+			});
+			if (failure[0] != null) {
+				throw failure[0];
+			}
+			writer.write("D " + count[0] + " " + Long.toHexString(crc.getValue()) + "\n");
+			return count[0];
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Adds a complete part file to the end of an archive. Only one part is
+	 * added at a time, and it is forced to disk before the next one.
+	 */
+	private synchronized void appendPart(final File archive, final File part) throws IOException {
+		final FileInputStream input = new FileInputStream(part);
+		try {
+			final FileOutputStream output = new FileOutputStream(archive, true);
+			try {
+				final FileChannel source = input.getChannel();
+				final FileChannel target = output.getChannel();
+				long position = 0;
+				final long size = source.size();
+				while (position < size) {
+					position += source.transferTo(position, size - position, target);
+				}
+				target.force(false);
+			} finally {
+				output.close();
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	private static String encodeName(final String name) {
+		try {
+			return URLEncoder.encode(name, "UTF-8");
+		} catch (final UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static String decodeName(final String name) {
+		try {
+			return URLDecoder.decode(name, "UTF-8");
+		} catch (final UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static String toHex(final byte[] bytes) {
+		final char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+			chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+
+	private static byte[] fromHex(final String hex) throws IOException {
+		if (hex.length() % 2 != 0) {
+			throw new IOException("Odd number of hexadecimal digits");
+		}
+		final byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			final int high = Character.digit(hex.charAt(2 * i), 16);
+			final int low = Character.digit(hex.charAt(2 * i + 1), 16);
+			if (high < 0 || low < 0) {
+				throw new IOException("Invalid hexadecimal digit");
+			}
+			bytes[i] = (byte) ((high << 4) | low);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Objects of one context on their way to the target, saved together once
+	 * there are enough of them.
+	 */
+	private final class Batch {
+		final Storage target;
+		final String context;
+		final long maximumWeight;
+		final Map<String, Object> values = new LinkedHashMap<String, Object>();
+		long weight;
+		long saved;
+
+		Batch(final Storage target, final String context, final long maximumWeight) {
+			this.target = target;
+			this.context = context;
+			this.maximumWeight = maximumWeight;
+		}
+
+		void add(final String key, final Object value) {
+			values.put(key, value);
+			weight += CachingStorage.ESTIMATED_BYTES.weigh(context, key, value);
+		}
+
+		boolean isFull() {
+			return values.size() >= batchSize || weight >= maximumWeight;
+		}
+
+		void save() {
+			if (!values.isEmpty()) {
+				target.saveAll(context, values);
+				saved += values.size();
+				values.clear();
+				weight = 0;
+			}
+		}
+	}
+
+	/**
+	 * Compares the objects of a context with a copy, a batch at a time.
+	 */
+	private final class Comparison {
+		final Storage copy;
+		final String context;
+		final long maximumWeight;
+		final Map<String, Object> values = new LinkedHashMap<String, Object>();
+		long weight;
+		long compared;
+		boolean matching = true;
+
+		Comparison(final Storage copy, final String context, final long maximumWeight) {
+			this.copy = copy;
+			this.context = context;
+			this.maximumWeight = maximumWeight;
+		}
+
+		/**
+		 * Adds an object to compare.
+		 * 
+		 * @return <code>false</code> if a difference has been found
+		 */
+		boolean add(final String key, final Object value) {
+			values.put(key, value);
+			weight += CachingStorage.ESTIMATED_BYTES.weigh(context, key, value);
+			if (values.size() >= batchSize || weight >= maximumWeight) {
+				compareBatch();
+			}
+			return matching;
+		}
+
+		/**
+		 * Compares the remaining objects and the number of keys.
+		 * 
+		 * @return <code>true</code> if the copy matches
+		 */
+		boolean finish() {
+			compareBatch();
+			return matching && copy.getKeys(context).size() == compared;
+		}
+
+		private void compareBatch() {
+			if (values.isEmpty()) {
+				return;
+			}
+			final Map<String, Object> copiedValues = copy.loadAll(context, values.keySet());
+			for (final Map.Entry<String, Object> entry : values.entrySet()) {
+				if (!sameValue(entry.getValue(), copiedValues.get(entry.getKey()))) {
+					matching = false;
+				}
+			}
+			compared += values.size();
+			values.clear();
+			weight = 0;
+		}
+
+		private boolean sameValue(final Object value, final Object copiedValue) {
+			if (copiedValue == null) {
+				return false;
+			}
+			return ValueUpdate.valuesEqual(value, copiedValue) || Arrays.equals(ValueEncoding.encode(value, codecRegistry), ValueEncoding.encode(copiedValue, codecRegistry));
+		}
+	}
+
+	/**
+	 * Reads an archive one context and one object at a time, checking the
+	 * number of objects and the checksum of each context.
+	 */
+	private static final class ArchiveReader {
+		private final File archive;
+		private final BufferedReader reader;
+		private final CRC32 crc = new CRC32();
+		private String line;
+		private long count;
+		String context;
+		String key;
+		byte[] value;
+
+		ArchiveReader(final File archive) throws IOException {
+			this.archive = archive;
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(archive), ValueEncoding.UTF_8));
+			if (!ARCHIVE_HEADER.equals(reader.readLine())) {
+				reader.close();
+				throw new IOException(archive + " is not an archive");
+			}
+		}
+
+		/**
+		 * Moves to the next context.
+		 * 
+		 * @return <code>false</code> at the end of the archive
+		 */
+		boolean nextContext() throws IOException {
+			line = reader.readLine();
+			if (line == null) {
+				return false;
+			}
+			if (!line.startsWith("C ")) {
+				throw new IOException("Expected the start of a context in " + archive + ", found " + describe(line));
+			}
+			context = decodeName(line.substring(2));
+			crc.reset();
+			count = 0;
+			return true;
+		}
+
+		/**
+		 * Moves to the next object of the context.
+		 * 
+		 * @return <code>false</code> at the end of the context, once its
+		 *         number of objects and checksum have been checked
+		 */
+		boolean nextEntry() throws IOException {
+			line = reader.readLine();
+			if (line == null) {
+				throw new IOException("Context " + context + " in " + archive + " is incomplete");
+			}
+			if (line.startsWith("E ")) {
+				final int separator = line.indexOf(' ', 2);
+				if (separator < 0) {
+					throw new IOException("Damaged object in context " + context + " in " + archive);
+				}
+				key = decodeName(line.substring(2, separator));
+				value = fromHex(line.substring(separator + 1));
+				crc.update((line + "\n").getBytes(ValueEncoding.UTF_8));
+				count++;
+				return true;
+			}
+			if (line.startsWith("D ")) {
+				final String[] fields = line.split(" ");
+				if (fields.length != 3 || !fields[1].equals(Long.toString(count)) || !fields[2].equals(Long.toHexString(crc.getValue()))) {
+					throw new IOException("Context " + context + " in " + archive + " is damaged");
+				}
+				return false;
+			}
+			throw new IOException("Unexpected line in context " + context + " in " + archive + ": " + describe(line));
+		}
+
+		/**
+		 * Moves to the end of the context without decoding its objects.
+		 */
+		void skipContext() throws IOException {
+			while (nextEntry()) {
+				// Only checked
+			}
+		}
+
+		void close() throws IOException {
+			reader.close();
+		}
+
+		private static String describe(final String line) {
+			return line.length() > 40 ? line.substring(0, 40) + "..." : line;
+		}
+	}
+
+	/**
+	 * What a {@link StorageCopier} did.
+	 */
+	public static final class Result {
+		private final int contexts;
+		private final int skippedContexts;
+		private final long entries;
+		private final Set<String> mismatchedContexts;
+		private final long elapsedNanos;
+
+		Result(final int contexts, final int skippedContexts, final long entries, final Set<String> mismatchedContexts, final long elapsedNanos) {
+			this.contexts = contexts;
+			this.skippedContexts = skippedContexts;
+			this.entries = entries;
+			this.mismatchedContexts = Collections.unmodifiableSet(new HashSet<String>(mismatchedContexts));
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		/**
+		 * Gets the number of contexts that were copied or compared.
+		 * 
+		 * @return the number of contexts
+		 */
+		public int getContexts() {
+			return contexts;
+		}
+
+		/**
+		 * Gets the number of contexts that were skipped because an earlier
+		 * run had already copied them.
+		 * 
+		 * @return the number of skipped contexts
+		 */
+		public int getSkippedContexts() {
+			return skippedContexts;
+		}
+
+		/**
+		 * Gets the number of objects that were copied or compared.
+		 * 
+		 * @return the number of objects
+		 */
+		public long getEntries() {
+			return entries;
+		}
+
+		/**
+		 * Gets the contexts whose copy did not match the original. Only
+		 * verification finds mismatched contexts.
+		 * 
+		 * @return the mismatched contexts
+		 */
+		public Set<String> getMismatchedContexts() {
+			return mismatchedContexts;
+		}
+
+		/**
+		 * Gets the time the copy or comparison took.
+		 * 
+		 * @param unit
+		 *            the unit to get the time in
+		 * @return the elapsed time
+		 */
+		public long getElapsedTime(final TimeUnit unit) {
+			return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d contexts (%d objects) in %.1f ms, skipped %d, mismatched %d", contexts, entries, elapsedNanos / 1e6, skippedContexts, mismatchedContexts.size());
+		}
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+/**
+ * A function that combines the object stored with a key with another object,
+ * given to {@link Storage#merge(String, String, Object, StorageMerger)}.
+ */
+public interface StorageMerger {
+
+	/**
+	 * Combines the stored object with the given object.
+	 * 
+	 * @param currentValue
+	 *            the object currently stored with the key; never
+	 *            <code>null</code>
+	 * @param value
+	 *            the object given to <code>merge()</code>
+	 * @return the object to store instead, or <code>null</code> to delete the
+	 *         key
+	 */
+	Object merge(Object currentValue, Object value);
+}
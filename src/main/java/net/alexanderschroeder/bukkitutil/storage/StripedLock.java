@@ -0,0 +1,70 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A fixed number of read/write locks that keys are spread over by their hash
+ * code. Threads working on different keys usually get different locks and do
+ * not wait for each other, without a lock having to be created and cleaned up
+ * for every key.
+ */
+final class StripedLock {
+
+	private final ReadWriteLock[] locks;
+
+	private final int mask;
+
+	/**
+	 * Creates a striped lock.
+	 * 
+	 * @param stripes
+	 *            the minimum number of locks; rounded up to a power of two
+	 */
+	StripedLock(final int stripes) {
+		if (stripes < 1) {
+			throw new IllegalArgumentException("stripes must be positive");
+		}
+
+		int count = 1;
+		while (count < stripes) {
+			count <<= 1;
+		}
+		locks = new ReadWriteLock[count];
+		for (int i = 0; i < count; i++) {
+			locks[i] = new ReentrantReadWriteLock();
+		}
+		mask = count - 1;
+	}
+
+	/**
+	 * Gets the lock of a key. Equal keys always get the same lock.
+	 * 
+	 * @param key
+	 *            the key to get the lock of
+	 * @return the lock of the key
+	 */
+	ReadWriteLock get(final Object key) {
+		final int hash = key.hashCode();
+		return locks[(hash ^ (hash >>> 16)) & mask];
+	}
+}
@@ -0,0 +1,262 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel, which keeps track of a large number of
+ * deadlines and tells which of them have passed, in constant amortized time
+ * per deadline.
+ * <p>
+ * Time is divided into ticks of a fixed length. The first wheel has a slot
+ * for each of the next 64 ticks, the second a slot for each of the next 64
+ * turns of the first wheel, and so on; deadlines further away than the last
+ * wheel reaches are kept in an overflow list. Whenever a wheel has turned
+ * once, the next slot of the wheel above it is emptied into it. A timer is
+ * moved at most once per wheel, and cancelling it takes constant time.
+ * <p>
+ * The wheel is not thread-safe.
+ * 
+ * @param <E>
+ *            the type of the elements the timers are set for
+ */
+final class TimingWheel<E> {
+
+	private static final int SLOT_BITS = 6;
+
+	private static final int SLOTS = 1 << SLOT_BITS;
+
+	private static final int SLOT_MASK = SLOTS - 1;
+
+	private static final int WHEELS = 4;
+
+	/**
+	 * A deadline set for an element. A timer is linked into the slot it is
+	 * waiting in.
+	 * 
+	 * @param <E>
+	 *            the type of the element
+	 */
+	static final class Timer<E> {
+		final E element;
+		final long deadline;
+		long tick;
+		Timer<E> previous;
+		Timer<E> next;
+
+		Timer(final E element, final long deadline) {
+			this.element = element;
+			this.deadline = deadline;
+		}
+	}
+
+	private final long tickMillis;
+
+	private final Timer<E>[][] slots;
+
+	private final Timer<E> overflow;
+
+	private final Timer<E> due;
+
+	private long currentTick;
+
+	private int size;
+
+	/**
+	 * Creates a timing wheel.
+	 * 
+	 * @param tickMillis
+	 *            the length of a tick in milliseconds; deadlines are reported
+	 *            as passed at most this long after they have passed
+	 * @param now
+	 *            the current time in milliseconds
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	TimingWheel(final long tickMillis, final long now) {
+		if (tickMillis < 1) {
+			throw new IllegalArgumentException("tickMillis must be positive");
+		}
+		this.tickMillis = tickMillis;
+		slots = new Timer[WHEELS][SLOTS];
+		for (final Timer<E>[] wheel : slots) {
+			for (int i = 0; i < SLOTS; i++) {
+				wheel[i] = newList();
+			}
+		}
+		overflow = newList();
+		due = newList();
+		currentTick = now / tickMillis;
+	}
+
+	/**
+	 * Gets the number of timers that are set.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Sets a timer for an element.
+	 * 
+	 * @param element
+	 *            the element
+	 * @param deadline
+	 *            the time in milliseconds the timer goes off at
+	 * @return the timer, which can be given to {@link #cancel(Timer)}
+	 */
+	Timer<E> schedule(final E element, final long deadline) {
+		final Timer<E> timer = new Timer<E>(element, deadline);
+		// Round up, so that a timer never goes off before its deadline
+		timer.tick = deadline / tickMillis + (deadline % tickMillis == 0 ? 0 : 1);
+		place(timer);
+		size++;
+		return timer;
+	}
+
+	/**
+	 * Cancels a timer. Nothing happens if the timer has already gone off or
+	 * been cancelled.
+	 * 
+	 * @param timer
+	 *            the timer to cancel
+	 */
+	void cancel(final Timer<E> timer) {
+		if (timer.next != null) {
+			unlink(timer);
+			size--;
+		}
+	}
+
+	/**
+	 * Turns the wheels up to the given time and takes out the timers that
+	 * have gone off.
+	 * 
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return the timers that have gone off, in no particular order
+	 */
+	List<Timer<E>> advance(final long now) {
+		final List<Timer<E>> expired = new ArrayList<Timer<E>>();
+		drain(due, expired);
+
+		final long targetTick = now / tickMillis;
+		while (currentTick < targetTick && size > expired.size()) {
+			currentTick++;
+			cascade();
+			drain(slots[0][(int) (currentTick & SLOT_MASK)], expired);
+			drain(due, expired);
+		}
+		if (currentTick < targetTick) {
+			// Nothing is left to go off, so the empty ticks can be skipped
+			currentTick = targetTick;
+		}
+
+		size -= expired.size();
+		return expired;
+	}
+
+	/**
+	 * Empties the slots of the upper wheels whose turn has come into the
+	 * wheels below them, starting with the highest one, so that timers moved
+	 * down more than one wheel are moved again if needed.
+	 */
+	private void cascade() {
+		int wheel = 0;
+		while (wheel < WHEELS && (currentTick & ((1L << (SLOT_BITS * (wheel + 1))) - 1)) == 0) {
+			wheel++;
+		}
+		if (wheel == WHEELS) {
+			replace(overflow);
+			wheel--;
+		}
+		for (; wheel > 0; wheel--) {
+			replace(slots[wheel][(int) ((currentTick >>> (SLOT_BITS * wheel)) & SLOT_MASK)]);
+		}
+	}
+
+	/**
+	 * Places every timer of a list again. The list is emptied first, as a
+	 * timer may be placed in the same list again.
+	 */
+	private void replace(final Timer<E> list) {
+		final List<Timer<E>> timers = new ArrayList<Timer<E>>();
+		drain(list, timers);
+		for (final Timer<E> timer : timers) {
+			place(timer);
+		}
+	}
+
+	/**
+	 * Puts a timer in the lowest wheel whose slots are as long as the time
+	 * left until the timer goes off. The wheel is the lowest one in which the
+	 * timer's tick and the current tick share all the bits above the wheel.
+	 */
+	private void place(final Timer<E> timer) {
+		if (timer.tick <= currentTick) {
+			link(due, timer);
+			return;
+		}
+		for (int wheel = 0; wheel < WHEELS; wheel++) {
+			final int shift = SLOT_BITS * (wheel + 1);
+			if ((timer.tick >>> shift) == (currentTick >>> shift)) {
+				link(slots[wheel][(int) ((timer.tick >>> (SLOT_BITS * wheel)) & SLOT_MASK)], timer);
+				return;
+			}
+		}
+		link(overflow, timer);
+	}
+
+	private void drain(final Timer<E> list, final List<Timer<E>> expired) {
+		Timer<E> timer = list.next;
+		while (timer != list) {
+			final Timer<E> next = timer.next;
+			timer.previous = null;
+			timer.next = null;
+			expired.add(timer);
+			timer = next;
+		}
+		list.previous = list;
+		list.next = list;
+	}
+
+	private Timer<E> newList() {
+		final Timer<E> list = new Timer<E>(null, 0);
+		list.previous = list;
+		list.next = list;
+		return list;
+	}
+
+	private static <E> void link(final Timer<E> list, final Timer<E> timer) {
+		timer.previous = list.previous;
+		timer.next = list;
+		list.previous.next = timer;
+		list.previous = timer;
+	}
+
+	private static <E> void unlink(final Timer<E> timer) {
+		timer.previous.next = timer.next;
+		timer.next.previous = timer.previous;
+		timer.previous = null;
+		timer.next = null;
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from {@link java.util.UUID UUIDs}, given as their two halves,
+ * to the location of a record in a file. Everything is kept in primitive
+ * arrays: the map uses open addressing with linear probing, so looking up a
+ * key neither allocates nor follows a pointer, and removing a key shifts the
+ * following keys back instead of leaving a marker behind.
+ * <p>
+ * The map is not thread-safe.
+ */
+final class UuidIndex {
+
+	private static final long EMPTY = -1;
+
+	private static final int MINIMUM_CAPACITY = 16;
+
+	private long[] mostBits;
+
+	private long[] leastBits;
+
+	private long[] positions;
+
+	private int[] lengths;
+
+	private int mask;
+
+	private int size;
+
+	/**
+	 * Creates an empty map.
+	 */
+	UuidIndex() {
+		allocate(MINIMUM_CAPACITY);
+	}
+
+	/**
+	 * Gets the number of keys in the map.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the number of slots, some of which hold keys.
+	 */
+	int capacity() {
+		return positions.length;
+	}
+
+	/**
+	 * Finds the slot of a key.
+	 * 
+	 * @return the slot, or -1 if the key is not in the map
+	 */
+	int find(final long most, final long least) {
+		int slot = hash(most, least) & mask;
+		while (positions[slot] != EMPTY) {
+			if (mostBits[slot] == most && leastBits[slot] == least) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	boolean isUsed(final int slot) {
+		return positions[slot] != EMPTY;
+	}
+
+	long mostBits(final int slot) {
+		return mostBits[slot];
+	}
+
+	long leastBits(final int slot) {
+		return leastBits[slot];
+	}
+
+	long position(final int slot) {
+		return positions[slot];
+	}
+
+	int length(final int slot) {
+		return lengths[slot];
+	}
+
+	/**
+	 * Adds a key, or changes the location of a key that is already in the
+	 * map.
+	 * 
+	 * @return the previous length of the key's record, or -1 if the key was
+	 *         not in the map
+	 */
+	int put(final long most, final long least, final long position, final int length) {
+		if (position < 0) {
+			throw new IllegalArgumentException("position cannot be negative");
+		}
+		if ((size + 1) * 4L > positions.length * 3L) {
+			resize(positions.length * 2);
+		}
+
+		int slot = hash(most, least) & mask;
+		while (positions[slot] != EMPTY) {
+			if (mostBits[slot] == most && leastBits[slot] == least) {
+				final int previousLength = lengths[slot];
+				positions[slot] = position;
+				lengths[slot] = length;
+				return previousLength;
+			}
+			slot = (slot + 1) & mask;
+		}
+		mostBits[slot] = most;
+		leastBits[slot] = least;
+		positions[slot] = position;
+		lengths[slot] = length;
+		size++;
+		return -1;
+	}
+
+	/**
+	 * Removes a key.
+	 * 
+	 * @return the length of the key's record, or -1 if the key was not in the
+	 *         map
+	 */
+	int remove(final long most, final long least) {
+		int slot = find(most, least);
+		if (slot < 0) {
+			return -1;
+		}
+		final int length = lengths[slot];
+		size--;
+
+		// Move back every following key that would not be found past the gap
+		int next = (slot + 1) & mask;
+		while (positions[next] != EMPTY) {
+			final int home = hash(mostBits[next], leastBits[next]) & mask;
+			if (((next - home) & mask) >= ((next - slot) & mask)) {
+				mostBits[slot] = mostBits[next];
+				leastBits[slot] = leastBits[next];
+				positions[slot] = positions[next];
+				lengths[slot] = lengths[next];
+				slot = next;
+			}
+			next = (next + 1) & mask;
+		}
+		positions[slot] = EMPTY;
+		return length;
+	}
+
+	/**
+	 * Removes every key.
+	 */
+	void clear() {
+		allocate(MINIMUM_CAPACITY);
+	}
+
+	private void allocate(final int capacity) {
+		mostBits = new long[capacity];
+		leastBits = new long[capacity];
+		positions = new long[capacity];
+		lengths = new int[capacity];
+		Arrays.fill(positions, EMPTY);
+		mask = capacity - 1;
+		size = 0;
+	}
+
+	private void resize(final int capacity) {
+		final long[] oldMostBits = mostBits;
+		final long[] oldLeastBits = leastBits;
+		final long[] oldPositions = positions;
+		final int[] oldLengths = lengths;
+		allocate(capacity);
+		for (int slot = 0; slot < oldPositions.length; slot++) {
+			if (oldPositions[slot] != EMPTY) {
+				put(oldMostBits[slot], oldLeastBits[slot], oldPositions[slot], oldLengths[slot]);
+			}
+		}
+	}
+
+	private static int hash(final long most, final long least) {
+		long h = (most ^ Long.rotateLeft(least, 32)) * 0x9e3779b97f4a7c15L;
+		h ^= h >>> 29;
+		return (int) (h ^ (h >>> 32));
+	}
+}
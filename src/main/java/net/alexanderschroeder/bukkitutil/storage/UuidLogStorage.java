@@ -0,0 +1,698 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * A {@link UuidStorage} implementation that keeps each context as an
+ * append-only log file, in the manner of {@link LogStructuredStorage}.
+ * 
+ * <p>
+ * Saving or deleting an object appends a single record to the context's log,
+ * and a {@link UuidIndex} maps every key to its latest record, so both
+ * writes and reads cost a single I/O operation. Keys are written as two
+ * <code>long</code>s and indexed as such, so no key is ever turned into a
+ * string.
+ * 
+ * <p>
+ * Records that have been overwritten or deleted are garbage. Once the share
+ * of garbage in a log exceeds {@link #setCompactionThreshold(double) the
+ * compaction threshold}, the next write rewrites the log with only the live
+ * records.
+ * 
+ * <p>
+ * Appended records are handed to the operating system immediately, but are
+ * only forced to disk by {@link #flush()} and {@link #close()}. Opening a
+ * context replays its log, and discards any partially written record at the
+ * end of it.
+ */
+public class UuidLogStorage implements UuidStorage {
+
+	private static final String FILE_EXTENSION = ".ulog";
+
+	private static final String TEMPORARY_FILE_EXTENSION = ".tmp";
+
+	/** CRC32 of the rest of the record, the key's two halves and value length. */
+	private static final int RECORD_HEADER_SIZE = 24;
+
+	private static final int TOMBSTONE = -1;
+
+	/** Contexts with less garbage than this are never compacted. */
+	private static final long MINIMUM_COMPACTION_GARBAGE = 64 * 1024;
+
+	private String storageDirectoryName = "uuid-storage";
+
+	private volatile double compactionThreshold = 0.5;
+
+	private final CodecRegistry codecRegistry = new CodecRegistry();
+
+	private File dataFolder;
+
+	private volatile boolean initialized = false;
+
+	private final ConcurrentMap<String, ContextLog> contexts = new ConcurrentHashMap<String, ContextLog>();
+
+	/**
+	 * Gets the name of the directory where the context logs are saved.
+	 * 
+	 * @return the name of the storage directory
+	 */
+	public String getStorageDirectoryName() {
+		return storageDirectoryName;
+	}
+
+	/**
+	 * Sets the name of the directory where the context logs are saved. This
+	 * directory will be created as a sub-directory of
+	 * {@link JavaPlugin#getDataFolder()}.
+	 * <p>
+	 * The default name for the directory is "uuid-storage".
+	 * 
+	 * @param storageDirectoryName
+	 *            the name of the storage directory
+	 */
+	public void setStorageDirectoryName(String storageDirectoryName) {
+		this.storageDirectoryName = storageDirectoryName;
+	}
+
+	/**
+	 * Gets the share of garbage a log may hold before it is compacted.
+	 * 
+	 * @return the compaction threshold
+	 */
+	public double getCompactionThreshold() {
+		return compactionThreshold;
+	}
+
+	/**
+	 * Sets the share of garbage a log may hold before it is compacted. Logs
+	 * with less than 64 KiB of garbage are never compacted. The default is
+	 * 0.5.
+	 * 
+	 * @param compactionThreshold
+	 *            the compaction threshold, between 0 and 1
+	 */
+	public void setCompactionThreshold(double compactionThreshold) {
+		if (!(compactionThreshold > 0 && compactionThreshold < 1)) {
+			throw new IllegalArgumentException("compactionThreshold must be between 0 and 1");
+		}
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	/**
+	 * Gets the registry of codecs used to store objects in a compact binary
+	 * form.
+	 * 
+	 * @return the codec registry
+	 */
+	public CodecRegistry getCodecRegistry() {
+		return codecRegistry;
+	}
+
+	private void throwExceptionIfNotInitialized() throws StorageException {
+		if (!initialized) {
+			throw new StorageException("Cannot use the UuidLogStorage without calling initialize() first");
+		}
+	}
+
+	public void initialize(JavaPlugin plugin) throws StorageException {
+		try {
+			dataFolder = new File(plugin.getDataFolder(), storageDirectoryName);
+			if (!dataFolder.exists()) {
+				dataFolder.mkdirs();
+			}
+			initialized = true;
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	public void save(String context, UUID key, Object value) throws StorageException {
+		if (value == null) {
+			deleteKey(context, key);
+			return;
+		}
+		throwExceptionIfNotInitialized();
+		try {
+			final byte[] encoded = ValueEncoding.encode(value, codecRegistry);
+			final ContextLog log = lockContext(context, true, true);
+			try {
+				append(log, key.getMostSignificantBits(), key.getLeastSignificantBits(), encoded);
+				compactIfNeeded(log);
+			} finally {
+				log.lock.writeLock().unlock();
+			}
+		} catch (StorageException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	public Object load(String context, UUID key) throws StorageException {
+		final ByteBuffer value = read(context, key);
+		return value == null ? null : ValueEncoding.decode(value, codecRegistry);
+	}
+
+	public <T> T load(String context, UUID key, Class<T> type) throws StorageException {
+		final Object value = load(context, key);
+		if (value == null || type.isInstance(value)) {
+			return type.cast(value);
+		}
+		throw new StorageException("The object stored with key " + key + " in context " + context + " is a " + value.getClass().getName() + ", not a " + type.getName());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Numbers are read without being boxed.
+	 */
+	public int loadInt(String context, UUID key, int defaultValue) throws StorageException {
+		return (int) loadLong(context, key, defaultValue);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Numbers are read without being boxed.
+	 */
+	public long loadLong(String context, UUID key, long defaultValue) throws StorageException {
+		final ByteBuffer value = read(context, key);
+		return value == null ? defaultValue : ValueEncoding.decodeLong(value, codecRegistry, defaultValue);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Numbers are read without being boxed.
+	 */
+	public double loadDouble(String context, UUID key, double defaultValue) throws StorageException {
+		final ByteBuffer value = read(context, key);
+		return value == null ? defaultValue : ValueEncoding.decodeDouble(value, codecRegistry, defaultValue);
+	}
+
+	public boolean exists(String context, UUID key) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final ContextLog log = lockContext(context, false, false);
+			if (log == null) {
+				return false;
+			}
+			try {
+				return log.index.find(key.getMostSignificantBits(), key.getLeastSignificantBits()) >= 0;
+			} finally {
+				log.lock.readLock().unlock();
+			}
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	public void delete(String context) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			// The file is deleted before the lock is released, so getContext()
+			// cannot open the old log again in the meantime
+			synchronized (contexts) {
+				final ContextLog log = contexts.remove(context);
+				if (log != null) {
+					log.lock.writeLock().lock();
+					try {
+						log.close();
+					} finally {
+						log.lock.writeLock().unlock();
+					}
+				}
+				getFile(context).delete();
+			}
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	public void deleteKey(String context, UUID key) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final ContextLog log = lockContext(context, false, true);
+			if (log == null) {
+				return;
+			}
+			try {
+				final long most = key.getMostSignificantBits();
+				final long least = key.getLeastSignificantBits();
+				if (log.index.find(most, least) >= 0) {
+					append(log, most, least, null);
+					compactIfNeeded(log);
+				}
+			} finally {
+				log.lock.writeLock().unlock();
+			}
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	public Set<String> getContexts() throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final String[] fileNames = dataFolder.list(new FilenameFilter() {
+				public boolean accept(final File folder, final String fileName) {
+					return fileName.endsWith(FILE_EXTENSION);
+				}
+			});
+
+			final Set<String> contextSet = new HashSet<String>(contexts.keySet());
+			for (final String fileName : fileNames) {
+				contextSet.add(fileName.substring(0, fileName.length() - FILE_EXTENSION.length()));
+			}
+			return contextSet;
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	public Set<UUID> getKeys(String context) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final ContextLog log = lockContext(context, false, false);
+			if (log == null) {
+				return new HashSet<UUID>();
+			}
+			try {
+				final UuidIndex index = log.index;
+				final Set<UUID> keys = new HashSet<UUID>(index.size() * 2);
+				for (int slot = 0; slot < index.capacity(); slot++) {
+					if (index.isUsed(slot)) {
+						keys.add(new UUID(index.mostBits(slot), index.leastBits(slot)));
+					}
+				}
+				return keys;
+			} finally {
+				log.lock.readLock().unlock();
+			}
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The context is locked for reading while it is visited.
+	 */
+	public void forEach(String context, UuidStorageVisitor visitor) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final ContextLog log = lockContext(context, false, false);
+			if (log == null) {
+				return;
+			}
+			try {
+				final UuidIndex index = log.index;
+				for (int slot = 0; slot < index.capacity(); slot++) {
+					if (index.isUsed(slot)) {
+						final Object value = ValueEncoding.decode(readValue(log, index.position(slot), index.length(slot)), codecRegistry);
+						if (!visitor.visit(new UUID(index.mostBits(slot), index.leastBits(slot)), value)) {
+							return;
+						}
+					}
+				}
+			} finally {
+				log.lock.readLock().unlock();
+			}
+		} catch (StorageException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * Forces every appended record to disk.
+	 */
+	public void flush() throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			for (final ContextLog log : contexts.values()) {
+				log.lock.readLock().lock();
+				try {
+					if (!log.closed) {
+						log.channel.force(false);
+					}
+				} finally {
+					log.lock.readLock().unlock();
+				}
+			}
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * Forces every appended record to disk and closes the logs.
+	 */
+	public void close() throws StorageException {
+		if (!initialized) {
+			return;
+		}
+		initialized = false;
+		try {
+			synchronized (contexts) {
+				for (final ContextLog log : contexts.values()) {
+					log.lock.writeLock().lock();
+					try {
+						log.channel.force(false);
+						log.close();
+					} finally {
+						log.lock.writeLock().unlock();
+					}
+				}
+				contexts.clear();
+			}
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * Compacts a context right away, regardless of how much garbage it
+	 * contains. This is normally done automatically when the context is
+	 * written to.
+	 * 
+	 * @param context
+	 *            the context to compact
+	 * @throws StorageException
+	 *             if there is a problem compacting the context
+	 */
+	public void compact(String context) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final ContextLog log = lockContext(context, false, true);
+			if (log == null) {
+				return;
+			}
+			try {
+				compactLog(log);
+			} finally {
+				log.lock.writeLock().unlock();
+			}
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	private File getFile(String context) {
+		return new File(dataFolder, context + FILE_EXTENSION);
+	}
+
+	/**
+	 * Reads the stored form of the object saved with a key.
+	 * 
+	 * @return the stored form, or <code>null</code> if there is none
+	 */
+	private ByteBuffer read(String context, UUID key) throws StorageException {
+		throwExceptionIfNotInitialized();
+		try {
+			final ContextLog log = lockContext(context, false, false);
+			if (log == null) {
+				return null;
+			}
+			try {
+				final int slot = log.index.find(key.getMostSignificantBits(), key.getLeastSignificantBits());
+				return slot < 0 ? null : readValue(log, log.index.position(slot), log.index.length(slot));
+			} finally {
+				log.lock.readLock().unlock();
+			}
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	private static ByteBuffer readValue(ContextLog log, long position, int length) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(length);
+		final long valuePosition = position + RECORD_HEADER_SIZE;
+		while (buffer.hasRemaining()) {
+			if (log.channel.read(buffer, valuePosition + buffer.position()) < 0) {
+				throw new EOFException("Record at " + position + " of " + log.file + " is cut short");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private ContextLog getContext(String context, boolean create) throws IOException {
+		ContextLog log = contexts.get(context);
+		if (log != null) {
+			return log;
+		}
+
+		synchronized (contexts) {
+			log = contexts.get(context);
+			if (log != null) {
+				return log;
+			}
+
+			final File file = getFile(context);
+			if (!file.exists() && !create) {
+				return null;
+			}
+			log = openContext(file);
+			contexts.put(context, log);
+			return log;
+		}
+	}
+
+	/**
+	 * Gets a context and locks it for reading or writing. If the context is
+	 * deleted while we wait for the lock, we try again with the new one.
+	 */
+	private ContextLog lockContext(String context, boolean create, boolean write) throws IOException {
+		while (true) {
+			final ContextLog log = getContext(context, create);
+			if (log == null) {
+				return null;
+			}
+
+			final Lock lock = write ? log.lock.writeLock() : log.lock.readLock();
+			lock.lock();
+			if (!log.closed) {
+				return log;
+			}
+			lock.unlock();
+		}
+	}
+
+	private static ContextLog openContext(File file) throws IOException {
+		final ContextLog log = new ContextLog(file);
+		log.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		final long size = log.channel.size();
+
+		final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		final CRC32 crc = new CRC32();
+		final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE - 4);
+		long position = 0;
+		try {
+			while (position < size) {
+				final int checksum;
+				final long most;
+				final long least;
+				final int valueLength;
+				final byte[] value;
+				try {
+					checksum = input.readInt();
+					most = input.readLong();
+					least = input.readLong();
+					valueLength = input.readInt();
+					if (valueLength < TOMBSTONE || position + RECORD_HEADER_SIZE + Math.max(valueLength, 0) > size) {
+						break;
+					}
+					value = new byte[Math.max(valueLength, 0)];
+					input.readFully(value);
+				} catch (EOFException e) {
+					break;
+				}
+
+				header.clear();
+				header.putLong(most).putLong(least).putInt(valueLength);
+				crc.reset();
+				crc.update(header.array());
+				crc.update(value);
+				if ((int) crc.getValue() != checksum) {
+					break;
+				}
+
+				log.apply(most, least, position, valueLength);
+				position += RECORD_HEADER_SIZE + value.length;
+			}
+		} finally {
+			input.close();
+		}
+
+		if (position < size) {
+			// A record was only partially written before a crash
+			log.channel.truncate(position);
+		}
+		log.size = position;
+		return log;
+	}
+
+	/**
+	 * Appends a record to a log and points the index at it.
+	 * 
+	 * @param value
+	 *            the stored form of the object, or <code>null</code> to write
+	 *            a tombstone
+	 */
+	private static void append(ContextLog log, long most, long least, byte[] value) throws IOException {
+		final int valueLength = value == null ? TOMBSTONE : value.length;
+		final ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + Math.max(valueLength, 0));
+		buffer.putInt(0);
+		buffer.putLong(most).putLong(least).putInt(valueLength);
+		if (value != null) {
+			buffer.put(value);
+		}
+		final CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 4, buffer.capacity() - 4);
+		buffer.putInt(0, (int) crc.getValue());
+		buffer.flip();
+
+		long position = log.size;
+		while (buffer.hasRemaining()) {
+			position += log.channel.write(buffer, position);
+		}
+		log.apply(most, least, log.size, valueLength);
+		log.size = position;
+	}
+
+	private void compactIfNeeded(ContextLog log) throws IOException {
+		if (log.garbage >= MINIMUM_COMPACTION_GARBAGE && log.garbage > log.size * compactionThreshold) {
+			compactLog(log);
+		}
+	}
+
+	/**
+	 * Rewrites a log with only its live records, and replaces the log with
+	 * the new one in a single step. The caller holds the log's write lock.
+	 */
+	private static void compactLog(ContextLog log) throws IOException {
+		final File temporaryFile = new File(log.file.getPath() + TEMPORARY_FILE_EXTENSION);
+		final UuidIndex index = log.index;
+		final UuidIndex compactedIndex = new UuidIndex();
+		final FileChannel output = FileChannel.open(temporaryFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		long size = 0;
+		try {
+			for (int slot = 0; slot < index.capacity(); slot++) {
+				if (!index.isUsed(slot)) {
+					continue;
+				}
+				final long recordLength = RECORD_HEADER_SIZE + index.length(slot);
+				long copied = 0;
+				while (copied < recordLength) {
+					copied += log.channel.transferTo(index.position(slot) + copied, recordLength - copied, output);
+				}
+				compactedIndex.put(index.mostBits(slot), index.leastBits(slot), size, index.length(slot));
+				size += recordLength;
+			}
+			output.force(false);
+		} finally {
+			output.close();
+		}
+
+		// Windows cannot replace a file that is still open
+		log.channel.close();
+		try {
+			try {
+				Files.move(temporaryFile.toPath(), log.file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temporaryFile.toPath(), log.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			// Carry on with the log as it was
+			temporaryFile.delete();
+			log.channel = FileChannel.open(log.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			throw e;
+		}
+		log.channel = FileChannel.open(log.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		log.index = compactedIndex;
+		log.size = size;
+		log.garbage = 0;
+	}
+
+	private static final class ContextLog {
+		final File file;
+		final ReadWriteLock lock = new ReentrantReadWriteLock();
+		FileChannel channel;
+		UuidIndex index = new UuidIndex();
+		long size;
+		long garbage;
+		boolean closed;
+
+		ContextLog(File file) {
+			this.file = file;
+		}
+
+		/**
+		 * Points the index at a record, and counts the record it replaces as
+		 * garbage; a tombstone is garbage itself.
+		 */
+		void apply(long most, long least, long position, int valueLength) {
+			final int previousLength;
+			if (valueLength == TOMBSTONE) {
+				previousLength = index.remove(most, least);
+				garbage += RECORD_HEADER_SIZE;
+			} else {
+				previousLength = index.put(most, least, position, valueLength);
+			}
+			if (previousLength >= 0) {
+				garbage += RECORD_HEADER_SIZE + previousLength;
+			}
+		}
+
+		void close() throws IOException {
+			closed = true;
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.Set;
+import java.util.UUID;
+
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * A storage system like {@link Storage}, for the common case of contexts
+ * that are keyed by player {@link UUID}. Keys are never turned into strings,
+ * so implementations can keep them as two <code>long</code>s each.
+ * 
+ * <p>
+ * The same objects can be stored as with {@link Storage}. Changes are only
+ * guaranteed to have been written once {@link #flush()} or {@link #close()}
+ * has returned. A {@link UuidStorageAdapter} lets a <code>UuidStorage</code>
+ * be used where a {@link Storage} is expected.
+ */
+public interface UuidStorage {
+
+	/**
+	 * Initializes the storage system. Should be called immediately after
+	 * instantiating the storage implementation.
+	 * 
+	 * @param plugin
+	 *            an instance of your plug-in
+	 * @throws StorageException
+	 *             if there is a problem initializing the storage system
+	 */
+	void initialize(JavaPlugin plugin) throws StorageException;
+
+	/**
+	 * Saves an object in the storage system.
+	 * 
+	 * @param context
+	 *            the context to save the object in
+	 * @param key
+	 *            the key to save the object with
+	 * @param value
+	 *            the object to store, or <code>null</code> to delete the key
+	 * @throws StorageException
+	 *             if there is a problem saving the object in the storage system
+	 */
+	void save(String context, UUID key, Object value) throws StorageException;
+
+	/**
+	 * Loads an object from the storage system.
+	 * 
+	 * @param context
+	 *            the context to load the object from
+	 * @param key
+	 *            the key the object was saved with
+	 * @return the object that was loaded, or <code>null</code> if no object was
+	 *         saved with the given <code>context</code> and <code>key</code>
+	 * @throws StorageException
+	 *             if there is a problem loading the object from the storage
+	 *             system
+	 */
+	Object load(String context, UUID key) throws StorageException;
+
+	/**
+	 * Loads an object of a known type from the storage system.
+	 * 
+	 * @param context
+	 *            the context to load the object from
+	 * @param key
+	 *            the key the object was saved with
+	 * @param type
+	 *            the type of the object
+	 * @return the object that was loaded, or <code>null</code> if no object was
+	 *         saved with the given <code>context</code> and <code>key</code>
+	 * @throws StorageException
+	 *             if there is a problem loading the object from the storage
+	 *             system, or if the object is not of the given type
+	 */
+	<T> T load(String context, UUID key, Class<T> type) throws StorageException;
+
+	/**
+	 * Loads a number from the storage system as an <code>int</code>.
+	 * 
+	 * @param context
+	 *            the context to load the number from
+	 * @param key
+	 *            the key the number was saved with
+	 * @param defaultValue
+	 *            the value to return if no number was saved with the key
+	 * @return the number, or <code>defaultValue</code>
+	 * @throws StorageException
+	 *             if there is a problem loading the number from the storage
+	 *             system
+	 */
+	int loadInt(String context, UUID key, int defaultValue) throws StorageException;
+
+	/**
+	 * Loads a number from the storage system as a <code>long</code>.
+	 * 
+	 * @param context
+	 *            the context to load the number from
+	 * @param key
+	 *            the key the number was saved with
+	 * @param defaultValue
+	 *            the value to return if no number was saved with the key
+	 * @return the number, or <code>defaultValue</code>
+	 * @throws StorageException
+	 *             if there is a problem loading the number from the storage
+	 *             system
+	 */
+	long loadLong(String context, UUID key, long defaultValue) throws StorageException;
+
+	/**
+	 * Loads a number from the storage system as a <code>double</code>.
+	 * 
+	 * @param context
+	 *            the context to load the number from
+	 * @param key
+	 *            the key the number was saved with
+	 * @param defaultValue
+	 *            the value to return if no number was saved with the key
+	 * @return the number, or <code>defaultValue</code>
+	 * @throws StorageException
+	 *             if there is a problem loading the number from the storage
+	 *             system
+	 */
+	double loadDouble(String context, UUID key, double defaultValue) throws StorageException;
+
+	/**
+	 * Checks whether an object is saved with a key.
+	 * 
+	 * @param context
+	 *            the context of the key
+	 * @param key
+	 *            the key
+	 * @return <code>true</code> if an object is saved with the key
+	 * @throws StorageException
+	 *             if there is a problem reading the storage system
+	 */
+	boolean exists(String context, UUID key) throws StorageException;
+
+	/**
+	 * Deletes a context and every object in it.
+	 * 
+	 * @param context
+	 *            the context to delete
+	 * @throws StorageException
+	 *             if there is a problem deleting the context
+	 */
+	void delete(String context) throws StorageException;
+
+	/**
+	 * Deletes the object saved with a key.
+	 * 
+	 * @param context
+	 *            the context of the key
+	 * @param key
+	 *            the key to delete
+	 * @throws StorageException
+	 *             if there is a problem deleting the key
+	 */
+	void deleteKey(String context, UUID key) throws StorageException;
+
+	/**
+	 * Gets the contexts in the storage system.
+	 * 
+	 * @return the contexts
+	 * @throws StorageException
+	 *             if there is a problem reading the storage system
+	 */
+	Set<String> getContexts() throws StorageException;
+
+	/**
+	 * Gets the keys of a context.
+	 * 
+	 * @param context
+	 *            the context
+	 * @return the keys of the context
+	 * @throws StorageException
+	 *             if there is a problem reading the storage system
+	 */
+	Set<UUID> getKeys(String context) throws StorageException;
+
+	/**
+	 * Gives every object of a context to a visitor, one at a time, without
+	 * loading the whole context into memory at once.
+	 * 
+	 * @param context
+	 *            the context
+	 * @param visitor
+	 *            the visitor
+	 * @throws StorageException
+	 *             if there is a problem reading the storage system
+	 */
+	void forEach(String context, UuidStorageVisitor visitor) throws StorageException;
+
+	/**
+	 * Writes all pending changes to the backing medium.
+	 * 
+	 * @throws StorageException
+	 *             if there is a problem writing the changes
+	 */
+	void flush() throws StorageException;
+
+	/**
+	 * Writes all pending changes to the backing medium and releases any
+	 * resources held by the storage system. The storage system cannot be used
+	 * again until it has been re-initialized.
+	 * 
+	 * @throws StorageException
+	 *             if there is a problem writing the changes or releasing the
+	 *             resources
+	 */
+	void close() throws StorageException;
+}
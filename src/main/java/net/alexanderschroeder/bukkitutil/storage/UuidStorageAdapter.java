@@ -0,0 +1,185 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * Exposes a {@link UuidStorage} as a regular {@link Storage}, so code written
+ * against <code>Storage</code> can use contexts kept by a
+ * <code>UuidStorage</code>.
+ * 
+ * <p>
+ * Keys are the string form of a UUID, as returned by
+ * {@link UUID#toString()}. Any other key is treated as a key that has never
+ * been saved: loading it returns <code>null</code> or the default value, and
+ * saving it throws a {@link StorageException}.
+ * 
+ * <p>
+ * Objects are stored using the codecs of the wrapped storage, not those of
+ * {@link #getCodecRegistry()}.
+ */
+public class UuidStorageAdapter extends AbstractStorage implements BufferedStorage {
+
+	private final UuidStorage storage;
+
+	/**
+	 * Creates an adapter for a UUID-keyed storage.
+	 * 
+	 * @param storage
+	 *            the storage to expose
+	 */
+	public UuidStorageAdapter(final UuidStorage storage) {
+		if (storage == null) {
+			throw new IllegalArgumentException("storage cannot be null");
+		}
+		this.storage = storage;
+	}
+
+	/**
+	 * Gets the storage exposed by this adapter.
+	 * 
+	 * @return the UUID-keyed storage
+	 */
+	public UuidStorage getUuidStorage() {
+		return storage;
+	}
+
+	public void initialize(final JavaPlugin plugin) throws StorageException {
+		storage.initialize(plugin);
+	}
+
+	public void save(final String context, final String key, final Object value) throws StorageException {
+		final UUID uuid = toUuid(key);
+		if (uuid == null) {
+			if (value == null) {
+				return;
+			}
+			throw new StorageException("The key " + key + " in context " + context + " is not a UUID");
+		}
+		storage.save(context, uuid, value);
+	}
+
+	public Object load(final String context, final String key) throws StorageException {
+		final UUID uuid = toUuid(key);
+		return uuid == null ? null : storage.load(context, uuid);
+	}
+
+	@Override
+	public <T> T load(final String context, final String key, final Class<T> type) throws StorageException {
+		final UUID uuid = toUuid(key);
+		return uuid == null ? null : storage.load(context, uuid, type);
+	}
+
+	@Override
+	public int loadInt(final String context, final String key, final int defaultValue) throws StorageException {
+		final UUID uuid = toUuid(key);
+		return uuid == null ? defaultValue : storage.loadInt(context, uuid, defaultValue);
+	}
+
+	@Override
+	public long loadLong(final String context, final String key, final long defaultValue) throws StorageException {
+		final UUID uuid = toUuid(key);
+		return uuid == null ? defaultValue : storage.loadLong(context, uuid, defaultValue);
+	}
+
+	@Override
+	public double loadDouble(final String context, final String key, final double defaultValue) throws StorageException {
+		final UUID uuid = toUuid(key);
+		return uuid == null ? defaultValue : storage.loadDouble(context, uuid, defaultValue);
+	}
+
+	public boolean exists(final String context, final String key) throws StorageException {
+		final UUID uuid = toUuid(key);
+		return uuid != null && storage.exists(context, uuid);
+	}
+
+	public void delete(final String context) throws StorageException {
+		storage.delete(context);
+	}
+
+	public void deleteKey(final String context, final String key) throws StorageException {
+		final UUID uuid = toUuid(key);
+		if (uuid != null) {
+			storage.deleteKey(context, uuid);
+		}
+	}
+
+	public Set<String> getContexts() throws StorageException {
+		return storage.getContexts();
+	}
+
+	public Set<String> getKeys(final String context) throws StorageException {
+		final Set<UUID> uuids = storage.getKeys(context);
+		final Set<String> keys = new HashSet<String>(uuids.size() * 2);
+		for (final UUID uuid : uuids) {
+			keys.add(uuid.toString());
+		}
+		return keys;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation calls
+	 * {@link UuidStorage#forEach(String, UuidStorageVisitor)}, so the context
+	 * is visited in a single pass.
+	 */
+	@Override
+	public void forEach(final String context, final StorageVisitor visitor) throws StorageException {
+		storage.forEach(context, new UuidStorageVisitor() {
+			public boolean visit(final UUID key, final Object value) {
+				return visitor.visit(key.toString(), value);
+			}
+		});
+	}
+
+	public void flush() throws StorageException {
+		storage.flush();
+	}
+
+	public void close() throws StorageException {
+		storage.close();
+	}
+
+	/**
+	 * Converts a key to a UUID.
+	 * 
+	 * @return the UUID, or <code>null</code> if the key is not the string form
+	 *         of a UUID
+	 */
+	private static UUID toUuid(final String key) {
+		if (key == null || key.length() != 36) {
+			return null;
+		}
+		try {
+			final UUID uuid = UUID.fromString(key);
+			// fromString() also accepts keys that are not in the canonical form
+			return uuid.toString().equals(key) ? uuid : null;
+		} catch (final IllegalArgumentException e) {
+			return null;
+		}
+	}
+}
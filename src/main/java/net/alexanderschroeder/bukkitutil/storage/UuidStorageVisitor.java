@@ -0,0 +1,42 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.UUID;
+
+/**
+ * A visitor that is given the objects of a context one at a time by
+ * {@link UuidStorage#forEach(String, UuidStorageVisitor)}.
+ */
+public interface UuidStorageVisitor {
+
+	/**
+	 * Visits an object stored in the context.
+	 * 
+	 * @param key
+	 *            the key the object is stored with
+	 * @param value
+	 *            the object
+	 * @return <code>true</code> to continue with the next object,
+	 *         <code>false</code> to stop the iteration
+	 */
+	boolean visit(UUID key, Object value);
+}
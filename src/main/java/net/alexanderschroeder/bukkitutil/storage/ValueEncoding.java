@@ -0,0 +1,337 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/**
+ * Converts values to and from the byte representation used by the binary
+ * {@link Storage} back-ends. Strings and boxed primitives are written in a
+ * compact binary form, as are objects of types with a {@link Codec} in the
+ * storage's {@link CodecRegistry}; everything else is written as a small YAML
+ * document, so the binary back-ends accept exactly the same values as
+ * {@link FileConfigurationStorage}.
+ */
+final class ValueEncoding {
+
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final byte TYPE_STRING = 1;
+	private static final byte TYPE_INTEGER = 2;
+	private static final byte TYPE_LONG = 3;
+	private static final byte TYPE_DOUBLE = 4;
+	private static final byte TYPE_BOOLEAN = 5;
+	private static final byte TYPE_YAML = 6;
+	private static final byte TYPE_CODEC = 7;
+	private static final byte TYPE_DEFLATED = 8;
+
+	/** Encoded values shorter than this are never compressed. */
+	private static final int MINIMUM_COMPRESSED_LENGTH = 128;
+
+	private static final String YAML_KEY = "value";
+
+	private ValueEncoding() {
+	}
+
+	/**
+	 * Encodes a value.
+	 * 
+	 * @param value
+	 *            the value to encode; must not be <code>null</code>
+	 * @param codecs
+	 *            the codecs to encode values of registered types with
+	 * @return the encoded value
+	 * @throws StorageException
+	 *             if a codec fails to encode the value
+	 */
+	static byte[] encode(final Object value, final CodecRegistry codecs) throws StorageException {
+		if (value instanceof String) {
+			final byte[] bytes = ((String) value).getBytes(UTF_8);
+			final byte[] encoded = new byte[bytes.length + 1];
+			encoded[0] = TYPE_STRING;
+			System.arraycopy(bytes, 0, encoded, 1, bytes.length);
+			return encoded;
+		} else if (value instanceof Integer) {
+			return ByteBuffer.allocate(5).put(TYPE_INTEGER).putInt((Integer) value).array();
+		} else if (value instanceof Long) {
+			return ByteBuffer.allocate(9).put(TYPE_LONG).putLong((Long) value).array();
+		} else if (value instanceof Double) {
+			return ByteBuffer.allocate(9).put(TYPE_DOUBLE).putDouble((Double) value).array();
+		} else if (value instanceof Boolean) {
+			return new byte[] { TYPE_BOOLEAN, (byte) ((Boolean) value ? 1 : 0) };
+		}
+
+		final CodecRegistry.Registration<?> registration = codecs.getRegistration(value.getClass());
+		if (registration != null) {
+			return encode(value, registration);
+		}
+
+		final YamlConfiguration yaml = new YamlConfiguration();
+		yaml.set(YAML_KEY, value);
+		final byte[] bytes = yaml.saveToString().getBytes(UTF_8);
+		final byte[] encoded = new byte[bytes.length + 1];
+		encoded[0] = TYPE_YAML;
+		System.arraycopy(bytes, 0, encoded, 1, bytes.length);
+		return encoded;
+	}
+
+	/**
+	 * Decodes a value from the remaining bytes of a buffer. The buffer's
+	 * position is advanced to its limit.
+	 * 
+	 * @param buffer
+	 *            the buffer holding exactly one encoded value
+	 * @param codecs
+	 *            the codecs to decode values of registered types with
+	 * @return the decoded value
+	 * @throws StorageException
+	 *             if the value cannot be decoded
+	 */
+	static Object decode(final ByteBuffer buffer, final CodecRegistry codecs) throws StorageException {
+		final byte type = buffer.get();
+		switch (type) {
+		case TYPE_STRING:
+			return readString(buffer);
+		case TYPE_INTEGER:
+			return buffer.getInt();
+		case TYPE_LONG:
+			return buffer.getLong();
+		case TYPE_DOUBLE:
+			return buffer.getDouble();
+		case TYPE_BOOLEAN:
+			return buffer.get() != 0;
+		case TYPE_YAML:
+			final YamlConfiguration yaml = new YamlConfiguration();
+			try {
+				yaml.loadFromString(readString(buffer));
+			} catch (final InvalidConfigurationException e) {
+				throw new StorageException("Stored value is not valid YAML", e);
+			}
+			return yaml.get(YAML_KEY);
+		case TYPE_CODEC:
+			final int id = buffer.getInt();
+			final CodecRegistry.Registration<?> registration = codecs.getRegistration(id);
+			if (registration == null) {
+				throw new StorageException("No codec is registered with id " + id);
+			}
+			try {
+				return registration.codec.decode(new DataInputStream(new ByteBufferInputStream(buffer)));
+			} catch (final IOException e) {
+				throw new StorageException("Stored value cannot be decoded by the codec for " + registration.type.getName(), e);
+			}
+		case TYPE_DEFLATED:
+			return decode(inflate(buffer), codecs);
+		default:
+			throw new StorageException("Unknown value type " + type);
+		}
+	}
+
+	/**
+	 * Decodes a number from the remaining bytes of a buffer, without boxing
+	 * it if it was stored as a number.
+	 * 
+	 * @param buffer
+	 *            the buffer holding exactly one encoded value
+	 * @param codecs
+	 *            the codecs to decode values of registered types with
+	 * @param defaultValue
+	 *            the value to return if the value is not a number
+	 * @return the decoded number, or <code>defaultValue</code>
+	 * @throws StorageException
+	 *             if the value cannot be decoded
+	 */
+	static long decodeLong(final ByteBuffer buffer, final CodecRegistry codecs, final long defaultValue) throws StorageException {
+		final int position = buffer.position();
+		switch (buffer.get(position)) {
+		case TYPE_INTEGER:
+			return buffer.getInt(position + 1);
+		case TYPE_LONG:
+			return buffer.getLong(position + 1);
+		case TYPE_DOUBLE:
+			return (long) buffer.getDouble(position + 1);
+		default:
+			final Object value = decode(buffer, codecs);
+			return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+		}
+	}
+
+	/**
+	 * Decodes a number from the remaining bytes of a buffer, without boxing
+	 * it if it was stored as a number.
+	 * 
+	 * @param buffer
+	 *            the buffer holding exactly one encoded value
+	 * @param codecs
+	 *            the codecs to decode values of registered types with
+	 * @param defaultValue
+	 *            the value to return if the value is not a number
+	 * @return the decoded number, or <code>defaultValue</code>
+	 * @throws StorageException
+	 *             if the value cannot be decoded
+	 */
+	static double decodeDouble(final ByteBuffer buffer, final CodecRegistry codecs, final double defaultValue) throws StorageException {
+		final int position = buffer.position();
+		switch (buffer.get(position)) {
+		case TYPE_INTEGER:
+			return buffer.getInt(position + 1);
+		case TYPE_LONG:
+			return buffer.getLong(position + 1);
+		case TYPE_DOUBLE:
+			return buffer.getDouble(position + 1);
+		default:
+			final Object value = decode(buffer, codecs);
+			return value instanceof Number ? ((Number) value).doubleValue() : defaultValue;
+		}
+	}
+
+	/**
+	 * Compresses an encoded value, if it is long enough for compression to
+	 * be worthwhile. The compressed value can be given to
+	 * {@link #decode(ByteBuffer, CodecRegistry) decode()} like any other.
+	 * 
+	 * @param encoded
+	 *            the encoded value
+	 * @param level
+	 *            the compression level
+	 * @return the compressed value, or <code>encoded</code> if compressing it
+	 *         would not make it shorter
+	 */
+	static byte[] compress(final byte[] encoded, final int level) {
+		if (encoded.length < MINIMUM_COMPRESSED_LENGTH) {
+			return encoded;
+		}
+
+		final Deflater deflater = new Deflater(level);
+		try {
+			deflater.setInput(encoded);
+			deflater.finish();
+			final byte[] compressed = new byte[encoded.length];
+			int length = 5;
+			while (!deflater.finished() && length < compressed.length) {
+				length += deflater.deflate(compressed, length, compressed.length - length);
+			}
+			if (!deflater.finished()) {
+				return encoded;
+			}
+			compressed[0] = TYPE_DEFLATED;
+			ByteBuffer.wrap(compressed, 1, 4).putInt(encoded.length);
+			final byte[] result = new byte[length];
+			System.arraycopy(compressed, 0, result, 0, length);
+			return result;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static ByteBuffer inflate(final ByteBuffer buffer) throws StorageException {
+		final byte[] inflated = new byte[buffer.getInt()];
+		final byte[] deflated = new byte[buffer.remaining()];
+		buffer.get(deflated);
+
+		final Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(deflated);
+			int length = 0;
+			while (length < inflated.length && !inflater.finished()) {
+				final int inflatedBytes = inflater.inflate(inflated, length, inflated.length - length);
+				if (inflatedBytes == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new StorageException("Stored value is truncated");
+				}
+				length += inflatedBytes;
+			}
+			return ByteBuffer.wrap(inflated);
+		} catch (final DataFormatException e) {
+			throw new StorageException("Stored value cannot be decompressed", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static <T> byte[] encode(final Object value, final CodecRegistry.Registration<T> registration) throws StorageException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+		final DataOutputStream output = new DataOutputStream(bytes);
+		try {
+			output.writeByte(TYPE_CODEC);
+			output.writeInt(registration.id);
+			registration.codec.encode(registration.type.cast(value), output);
+			output.flush();
+		} catch (final IOException e) {
+			throw new StorageException("Value cannot be encoded by the codec for " + registration.type.getName(), e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static String readString(final ByteBuffer buffer) {
+		if (!buffer.hasArray()) {
+			final byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			return new String(bytes, UTF_8);
+		}
+
+		final String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), UTF_8);
+		buffer.position(buffer.limit());
+		return string;
+	}
+
+	/**
+	 * Reads the remaining bytes of a buffer, advancing its position.
+	 */
+	private static final class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(final ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(final byte[] bytes, final int offset, final int length) {
+			if (length == 0) {
+				return 0;
+			} else if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			final int count = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, count);
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+/**
+ * A change to the object stored with a key, computed from the object that is
+ * currently stored. A storage applies it while no other update to the key can
+ * happen, which makes {@link Storage#increment(String, String, long)
+ * increment()}, {@link Storage#compareAndSet(String, String, Object, Object)
+ * compareAndSet()} and {@link Storage#merge(String, String, Object, StorageMerger)
+ * merge()} atomic.
+ */
+abstract class ValueUpdate {
+
+	/** Returned by {@link #apply(Object)} to leave the stored object as it is. */
+	static final Object UNCHANGED = new Object();
+
+	/**
+	 * Computes the new object to store.
+	 * 
+	 * @param currentValue
+	 *            the object currently stored, or <code>null</code> if there is
+	 *            none
+	 * @return the object to store, <code>null</code> to delete the key, or
+	 *         {@link #UNCHANGED}
+	 * @throws StorageException
+	 *             if the update cannot be applied to the current object
+	 */
+	abstract Object apply(Object currentValue) throws StorageException;
+
+	/**
+	 * Creates an update that adds to a number, treating a missing number as
+	 * 0. The new number is stored as a {@link Long}.
+	 */
+	static ValueUpdate increment(final String context, final String key, final long delta) {
+		return new ValueUpdate() {
+			@Override
+			Object apply(final Object currentValue) {
+				if (currentValue == null) {
+					return Long.valueOf(delta);
+				}
+				if (!(currentValue instanceof Number)) {
+					throw new StorageException("The object stored with key " + key + " in context " + context + " is a " + currentValue.getClass().getName() + ", not a number");
+				}
+				return Long.valueOf(((Number) currentValue).longValue() + delta);
+			}
+		};
+	}
+
+	/**
+	 * Creates an update that merges an object into the stored object.
+	 */
+	static ValueUpdate merge(final Object value, final StorageMerger merger) {
+		return new ValueUpdate() {
+			@Override
+			Object apply(final Object currentValue) {
+				return currentValue == null ? value : merger.merge(currentValue, value);
+			}
+		};
+	}
+
+	/**
+	 * An update that replaces the stored object only if it is equal to an
+	 * expected object, and remembers whether it did.
+	 */
+	static final class CompareAndSet extends ValueUpdate {
+		private final Object expectedValue;
+		private final Object newValue;
+		boolean swapped;
+
+		CompareAndSet(final Object expectedValue, final Object newValue) {
+			this.expectedValue = expectedValue;
+			this.newValue = newValue;
+		}
+
+		@Override
+		Object apply(final Object currentValue) {
+			swapped = valuesEqual(currentValue, expectedValue);
+			return swapped ? newValue : UNCHANGED;
+		}
+	}
+
+	/**
+	 * Compares two stored objects. Numbers are compared by their value, as a
+	 * number stored as a {@link Long} may well be loaded as an
+	 * {@link Integer}.
+	 */
+	static boolean valuesEqual(final Object first, final Object second) {
+		if (first == null || second == null) {
+			return first == second;
+		}
+		if (first instanceof Number && second instanceof Number) {
+			if (first instanceof Double || first instanceof Float || second instanceof Double || second instanceof Float) {
+				return ((Number) first).doubleValue() == ((Number) second).doubleValue();
+			}
+			return ((Number) first).longValue() == ((Number) second).longValue();
+		}
+		return first.equals(second);
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class AsyncStorageTest extends TestCase {
+
+	private static final long TIMEOUT_MILLIS = 10000;
+
+	private AsyncStorage storage;
+
+	@Override
+	protected void tearDown() throws Exception {
+		storage.shutdown(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	public void testOperationsOnContextRunOneAtATimeInOrder() throws Exception {
+		final List<Object> saved = Collections.synchronizedList(new ArrayList<Object>());
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger overlaps = new AtomicInteger();
+		storage = new AsyncStorage(new MemoryStorage() {
+			@Override
+			public void save(final String context, final String key, final Object value) throws StorageException {
+				if (running.incrementAndGet() > 1) {
+					overlaps.incrementAndGet();
+				}
+				try {
+					super.save(context, key, value);
+					saved.add(value);
+				} finally {
+					running.decrementAndGet();
+				}
+			}
+		}, Executors.newFixedThreadPool(4));
+
+		final List<Object> expected = new ArrayList<Object>();
+		for (int i = 0; i < 200; i++) {
+			storage.save("players", "alice", i);
+			expected.add(i);
+		}
+		assertEquals(199, storage.load("players", "alice").get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+		assertEquals(expected, saved);
+		assertEquals(0, overlaps.get());
+	}
+
+	public void testContextsDoNotWaitForEachOther() throws Exception {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		storage = new AsyncStorage(new MemoryStorage() {
+			@Override
+			public void save(final String context, final String key, final Object value) throws StorageException {
+				if (context.equals("slow")) {
+					blocked.countDown();
+					await(release);
+				}
+				super.save(context, key, value);
+			}
+		}, Executors.newFixedThreadPool(2));
+
+		final Future<Void> slow = storage.save("slow", "alice", 1);
+		await(blocked);
+		storage.save("fast", "bob", 2).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		assertEquals(2, storage.load("fast", "bob").get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+		assertFalse(slow.isDone());
+
+		release.countDown();
+		slow.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		assertEquals(1, storage.load("slow", "alice").get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+	}
+
+	public void testCallbacksReceiveResultsAndFailures() throws Exception {
+		storage = new AsyncStorage(new MemoryStorage() {
+			@Override
+			public Object load(final String context, final String key) throws StorageException {
+				if (key.equals("broken")) {
+					throw new StorageException("Could not read " + key);
+				}
+				return super.load(context, key);
+			}
+		});
+		storage.save("players", "alice", "online");
+
+		final AtomicReference<Object> result = new AtomicReference<Object>();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch done = new CountDownLatch(2);
+		storage.load("players", "alice", new StorageCallback<Object>() {
+			public void onSuccess(final Object value) {
+				result.set(value);
+				done.countDown();
+			}
+
+			public void onFailure(final Throwable cause) {
+				done.countDown();
+			}
+		});
+		final Future<Object> broken = storage.load("players", "broken", new StorageCallback<Object>() {
+			public void onSuccess(final Object value) {
+				done.countDown();
+			}
+
+			public void onFailure(final Throwable cause) {
+				failure.set(cause);
+				done.countDown();
+			}
+		});
+		await(done);
+
+		assertEquals("online", result.get());
+		assertTrue(failure.get() instanceof StorageException);
+		try {
+			broken.get();
+			fail("Expected the load to fail");
+		} catch (final ExecutionException e) {
+			assertSame(failure.get(), e.getCause());
+		}
+	}
+
+	public void testShutdownWaitsForPendingOperations() throws Exception {
+		final MemoryStorage backing = new MemoryStorage();
+		storage = new AsyncStorage(backing, Executors.newFixedThreadPool(2));
+		for (int i = 0; i < 50; i++) {
+			storage.increment("counters", "count", 1);
+			storage.save("players" + i, "alice", i);
+		}
+
+		assertTrue(storage.shutdown(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+		assertEquals(50L, backing.load("counters", "count"));
+		for (int i = 0; i < 50; i++) {
+			assertEquals(i, backing.load("players" + i, "alice"));
+		}
+	}
+
+	private static void await(final CountDownLatch latch) {
+		try {
+			if (!latch.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+				throw new StorageException("Timed out");
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StorageException(e);
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class BloomFilterStorageTest extends TestCase {
+
+	private MemoryStorage backing;
+
+	private BloomFilterStorage storage;
+
+	@Override
+	protected void setUp() throws Exception {
+		backing = new MemoryStorage();
+		storage = new BloomFilterStorage(backing);
+		storage.initialize(null);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		storage.close();
+	}
+
+	public void testMissingKeysAreAnsweredByFilter() {
+		storage.save("players", "alice", "online");
+		storage.increment("players", "logins", 2);
+
+		assertNull(storage.load("players", "bob"));
+		assertFalse(storage.exists("players", "bob"));
+		assertEquals(-1, storage.loadInt("players", "bob", -1));
+		assertEquals("online", storage.load("players", "alice"));
+		assertEquals(2, storage.loadLong("players", "logins", 0));
+		assertEquals(3, storage.getAvoidedLookups());
+		assertEquals(0, storage.getFalsePositives());
+	}
+
+	public void testKeysSavedAfterFilterIsBuiltAreFound() {
+		backing.save("players", "alice", "online");
+		assertNull(storage.load("players", "bob"));
+
+		final Map<String, Object> values = new HashMap<String, Object>();
+		values.put("bob", "away");
+		values.put("carol", 7);
+		storage.saveAll("players", values);
+		storage.save("players", "dave", 1.5);
+
+		assertEquals("online", storage.load("players", "alice"));
+		final Map<String, Object> loaded = storage.loadAll("players", Arrays.asList("bob", "carol", "dave", "erin"));
+		assertEquals("away", loaded.get("bob"));
+		assertEquals(7, loaded.get("carol"));
+		assertEquals(1.5, loaded.get("dave"));
+		assertFalse(loaded.containsKey("erin"));
+	}
+
+	public void testTypedLoadsCountFalsePositives() {
+		storage.save("players", "alice", 5);
+		assertEquals(5, storage.load("players", "alice"));
+		// The filter cannot forget the deleted key
+		storage.deleteKey("players", "alice");
+
+		assertNull(storage.load("players", "alice"));
+		assertNull(storage.load("players", "alice", Integer.class));
+		assertEquals(-1, storage.loadInt("players", "alice", -1));
+		assertEquals(-1L, storage.loadLong("players", "alice", -1L));
+		assertEquals(-1.0, storage.loadDouble("players", "alice", -1.0));
+		assertFalse(storage.exists("players", "alice"));
+		assertEquals(6, storage.getFalsePositives());
+		assertEquals(0, storage.getAvoidedLookups());
+		assertEquals(1.0, storage.getObservedFalsePositiveRate());
+	}
+
+	public void testDeletingContextDiscardsFilter() {
+		storage.save("players", "alice", 5);
+		assertEquals(5, storage.load("players", "alice"));
+		assertFalse(Double.isNaN(storage.getExpectedFalsePositiveRate("players")));
+
+		storage.delete("players");
+		assertTrue(Double.isNaN(storage.getExpectedFalsePositiveRate("players")));
+		assertNull(storage.load("players", "alice"));
+		assertEquals(0, storage.getFalsePositives());
+	}
+}
@@ -0,0 +1,266 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class CachingStorageTest extends TestCase {
+
+	private static final long TIMEOUT_MILLIS = 10000;
+
+	private MemoryStorage backing;
+
+	private CachingStorage storage;
+
+	@Override
+	protected void setUp() throws Exception {
+		backing = new MemoryStorage();
+		storage = new CachingStorage(backing);
+		storage.initialize(null);
+	}
+
+	public void testWriteThroughRoundTrip() {
+		storage.save("players", "alice", "online");
+		assertEquals("online", backing.load("players", "alice"));
+		assertEquals("online", storage.load("players", "alice"));
+
+		storage.deleteKey("players", "alice");
+		assertNull(backing.load("players", "alice"));
+		assertNull(storage.load("players", "alice"));
+	}
+
+	public void testWriteBehindWritesOnFlush() {
+		storage.setWriteMode(CachingStorage.WriteMode.WRITE_BEHIND);
+		backing.save("players", "bob", "offline");
+		storage.save("players", "alice", "online");
+		storage.deleteKey("players", "bob");
+
+		assertNull(backing.load("players", "alice"));
+		assertEquals("offline", backing.load("players", "bob"));
+		assertEquals("online", storage.load("players", "alice"));
+		assertNull(storage.load("players", "bob"));
+
+		storage.flush();
+		assertEquals("online", backing.load("players", "alice"));
+		assertNull(backing.load("players", "bob"));
+	}
+
+	/**
+	 * Invalidating a key with a pending write must not make the older object
+	 * in the wrapped storage visible.
+	 */
+	public void testWriteBehindKeepsPendingEntriesWhenInvalidated() {
+		storage.setWriteMode(CachingStorage.WriteMode.WRITE_BEHIND);
+		backing.save("players", "alice", "old");
+		storage.save("players", "alice", "new");
+
+		storage.invalidate("players", "alice");
+		assertEquals("new", storage.load("players", "alice"));
+		storage.invalidate("players");
+		assertEquals("new", storage.load("players", "alice"));
+		storage.invalidateAll();
+		assertEquals("new", storage.load("players", "alice"));
+		storage.setWeigher(new CachingStorage.Weigher() {
+			public long weigh(final String context, final String key, final Object value) {
+				return 1;
+			}
+		});
+		assertEquals("new", storage.load("players", "alice"));
+		assertEquals(1, storage.getWeight());
+
+		storage.flush();
+		assertEquals("new", backing.load("players", "alice"));
+	}
+
+	/**
+	 * A flush that started earlier must not write its older snapshot over the
+	 * one written by a flush that started later.
+	 */
+	public void testConcurrentFlushesKeepNewestObject() throws Exception {
+		final CountDownLatch firstWriteStarted = new CountDownLatch(1);
+		final CountDownLatch releaseFirstWrite = new CountDownLatch(1);
+		backing = new MemoryStorage() {
+			private boolean blocked;
+
+			@Override
+			public void saveAll(final String context, final Map<String, ?> values) throws StorageException {
+				final boolean block;
+				synchronized (this) {
+					block = !blocked;
+					blocked = true;
+				}
+				if (block) {
+					firstWriteStarted.countDown();
+					await(releaseFirstWrite);
+				}
+				super.saveAll(context, values);
+			}
+		};
+		storage = new CachingStorage(backing);
+		storage.setWriteMode(CachingStorage.WriteMode.WRITE_BEHIND);
+
+		storage.save("players", "alice", "first");
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final Thread firstFlush = startThread(new Runnable() {
+			public void run() {
+				storage.flush();
+			}
+		}, failure);
+		assertTrue(firstWriteStarted.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+		storage.save("players", "alice", "second");
+		final Thread secondFlush = startThread(new Runnable() {
+			public void run() {
+				storage.getKeys("players");
+			}
+		}, failure);
+		// Give the second flush the chance to overtake the first one
+		secondFlush.join(100);
+		releaseFirstWrite.countDown();
+		firstFlush.join(TIMEOUT_MILLIS);
+		secondFlush.join(TIMEOUT_MILLIS);
+
+		assertNull(failure.get());
+		assertEquals("second", backing.load("players", "alice"));
+		storage.invalidateAll();
+		assertEquals("second", storage.load("players", "alice"));
+	}
+
+	/**
+	 * A save made while switching to write-through mode must not be written
+	 * over by the older pending object.
+	 */
+	public void testSwitchingToWriteThroughKeepsNewestObject() throws Exception {
+		final CountDownLatch firstWriteStarted = new CountDownLatch(1);
+		final CountDownLatch releaseFirstWrite = new CountDownLatch(1);
+		backing = new MemoryStorage() {
+			private boolean blocked;
+
+			@Override
+			public void saveAll(final String context, final Map<String, ?> values) throws StorageException {
+				final boolean block;
+				synchronized (this) {
+					block = !blocked;
+					blocked = true;
+				}
+				if (block) {
+					firstWriteStarted.countDown();
+					await(releaseFirstWrite);
+				}
+				super.saveAll(context, values);
+			}
+		};
+		storage = new CachingStorage(backing);
+		storage.setWriteMode(CachingStorage.WriteMode.WRITE_BEHIND);
+		storage.save("players", "alice", "first");
+
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final Thread switcher = startThread(new Runnable() {
+			public void run() {
+				storage.setWriteMode(CachingStorage.WriteMode.WRITE_THROUGH);
+			}
+		}, failure);
+		assertTrue(firstWriteStarted.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+		final Thread saver = startThread(new Runnable() {
+			public void run() {
+				storage.save("players", "alice", "second");
+			}
+		}, failure);
+		saver.join(100);
+		releaseFirstWrite.countDown();
+		switcher.join(TIMEOUT_MILLIS);
+		saver.join(TIMEOUT_MILLIS);
+
+		assertNull(failure.get());
+		assertEquals("second", backing.load("players", "alice"));
+		assertEquals("second", storage.load("players", "alice"));
+	}
+
+	/**
+	 * Writing to one context must not keep a load from another context from
+	 * being cached.
+	 */
+	public void testLoadIsCachedWhileOtherContextIsWritten() throws Exception {
+		final CountDownLatch loading = new CountDownLatch(1);
+		final CountDownLatch releaseLoad = new CountDownLatch(1);
+		final AtomicInteger loads = new AtomicInteger();
+		backing = new MemoryStorage() {
+			@Override
+			public Object load(final String context, final String key) throws StorageException {
+				if (context.equals("players") && loads.incrementAndGet() == 1) {
+					loading.countDown();
+					await(releaseLoad);
+				}
+				return super.load(context, key);
+			}
+		};
+		backing.save("players", "alice", "online");
+		storage = new CachingStorage(backing);
+
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final Thread loader = startThread(new Runnable() {
+			public void run() {
+				assertEquals("online", storage.load("players", "alice"));
+			}
+		}, failure);
+		assertTrue(loading.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+		storage.save("worlds", "world", "loaded");
+		releaseLoad.countDown();
+		loader.join(TIMEOUT_MILLIS);
+		assertNull(failure.get());
+
+		assertEquals("online", storage.load("players", "alice"));
+		assertEquals(1, loads.get());
+		assertEquals(1, storage.getHits());
+	}
+
+	private static Thread startThread(final Runnable runnable, final AtomicReference<Throwable> failure) {
+		final Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					runnable.run();
+				} catch (final Throwable e) {
+					failure.set(e);
+				}
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	private static void await(final CountDownLatch latch) {
+		try {
+			if (!latch.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+				throw new StorageException("Timed out");
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StorageException(e);
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import net.alexanderschroeder.bukkitutil.Database;
+
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.Transaction;
+
+public class DatabaseStorageTest extends TestCase {
+
+	private TestPlugin plugin;
+
+	private DatabaseStorage storage;
+
+	@Override
+	protected void setUp() throws Exception {
+		Class.forName("org.sqlite.JDBC");
+		plugin = new TestPlugin();
+		final String url = "jdbc:sqlite:" + new File(plugin.getDataFolder(), "storage.db").getPath();
+		storage = new DatabaseStorage(new SQLiteDatabase(plugin, url));
+		storage.initialize(plugin);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		plugin.deleteDataFolder();
+	}
+
+	public void testRoundTrip() {
+		final List<String> list = Arrays.asList("a", "b");
+		storage.save("players", "alice", "online");
+		storage.save("players", "bob", 42);
+		storage.save("players", "carol", list);
+		storage.save("worlds", "nether", true);
+
+		assertEquals("online", storage.load("players", "alice"));
+		assertEquals(42, storage.loadInt("players", "bob", -1));
+		assertEquals(list, storage.load("players", "carol"));
+		assertTrue(storage.exists("players", "alice"));
+		assertEquals(new HashSet<String>(Arrays.asList("alice", "bob", "carol")), storage.getKeys("players"));
+		assertEquals(new HashSet<String>(Arrays.asList("players", "worlds")), storage.getContexts());
+
+		storage.save("players", "alice", "offline");
+		assertEquals("offline", storage.load("players", "alice"));
+		storage.deleteKey("players", "alice");
+		assertNull(storage.load("players", "alice"));
+		assertFalse(storage.exists("players", "alice"));
+
+		storage.delete("players");
+		assertTrue(storage.getKeys("players").isEmpty());
+		assertEquals(Collections.singleton("worlds"), storage.getContexts());
+	}
+
+	public void testKeysAreComparedExactly() {
+		storage.save("players", "Alice", 1);
+		storage.save("players", "alice", 2);
+		storage.save("players", "al_ce", 3);
+		storage.save("players", "al%", 4);
+		storage.save("players", "bob", 5);
+
+		assertEquals(1, storage.load("players", "Alice"));
+		assertEquals(2, storage.load("players", "alice"));
+		assertEquals(Arrays.asList("al%", "al_ce", "alice"), new ArrayList<String>(storage.getKeysWithPrefix("players", "al")));
+		assertEquals(Arrays.asList("al_ce"), new ArrayList<String>(storage.getKeysWithPrefix("players", "al_")));
+		assertEquals(Arrays.asList("Alice", "al%"), new ArrayList<String>(storage.getKeysInRange("players", "A", "al_")));
+	}
+
+	public void testBatchOperationsLargerThanOneStatement() {
+		final Map<String, Object> values = new HashMap<String, Object>();
+		final List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < 1200; i++) {
+			values.put("key" + i, i);
+			keys.add("key" + i);
+		}
+		storage.saveAll("numbers", values);
+		keys.add("missing");
+
+		final Map<String, Object> loaded = storage.loadAll("numbers", keys);
+		assertEquals(values, loaded);
+
+		storage.deleteKeys("numbers", keys.subList(0, 1100));
+		assertEquals(new HashSet<String>(keys.subList(1100, 1200)), storage.getKeys("numbers"));
+	}
+
+	public void testUpdatesAndForEach() {
+		assertEquals(3, storage.increment("counters", "logins", 3));
+		assertEquals(5, storage.increment("counters", "logins", 2));
+		assertFalse(storage.compareAndSet("counters", "state", "old", "new"));
+		assertTrue(storage.compareAndSet("counters", "state", null, "old"));
+		assertTrue(storage.compareAndSet("counters", "state", "old", "new"));
+		assertEquals("new", storage.load("counters", "state"));
+
+		final Map<String, Object> visited = new HashMap<String, Object>();
+		storage.forEach("counters", new StorageVisitor() {
+			public boolean visit(final String key, final Object value) {
+				visited.put(key, value);
+				return true;
+			}
+		});
+		assertEquals(5L, ((Number) visited.get("logins")).longValue());
+		assertEquals("new", visited.get("state"));
+		assertEquals(2, visited.size());
+
+		final List<String> stopped = new ArrayList<String>();
+		storage.forEach("counters", new StorageVisitor() {
+			public boolean visit(final String key, final Object value) {
+				stopped.add(key);
+				return false;
+			}
+		});
+		assertEquals(1, stopped.size());
+	}
+
+	/**
+	 * A {@link Database} on an SQLite file, whose Ebean server hands out
+	 * plain JDBC connections, one per transaction.
+	 */
+	private static final class SQLiteDatabase extends Database {
+		private final EbeanServer server;
+
+		SQLiteDatabase(final TestPlugin plugin, final String url) {
+			super(plugin);
+			server = (EbeanServer) Proxy.newProxyInstance(EbeanServer.class.getClassLoader(), new Class<?>[] { EbeanServer.class }, new InvocationHandler() {
+				public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+					if (!method.getName().equals("createTransaction")) {
+						throw new UnsupportedOperationException(method.getName());
+					}
+					final Connection connection = DriverManager.getConnection(url);
+					connection.setAutoCommit(false);
+					return createTransaction(connection);
+				}
+			});
+		}
+
+		@Override
+		public boolean isUsingSQLite() {
+			return true;
+		}
+
+		@Override
+		public EbeanServer getDatabase() {
+			return server;
+		}
+
+		private static Transaction createTransaction(final Connection connection) {
+			return (Transaction) Proxy.newProxyInstance(Transaction.class.getClassLoader(), new Class<?>[] { Transaction.class }, new InvocationHandler() {
+				public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+					final String name = method.getName();
+					if (name.equals("getConnection")) {
+						return connection;
+					} else if (name.equals("commit")) {
+						connection.commit();
+						return null;
+					} else if (name.equals("end")) {
+						if (!connection.isClosed()) {
+							connection.rollback();
+							connection.close();
+						}
+						return null;
+					}
+					throw new UnsupportedOperationException(name);
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+public class ExpiringStorageTest extends TestCase {
+
+	private static final long TIMEOUT_MILLIS = 10000;
+
+	private MemoryStorage backing;
+
+	private ExpiringStorage storage;
+
+	@Override
+	protected void setUp() throws Exception {
+		backing = new MemoryStorage();
+		storage = open();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		storage.close();
+	}
+
+	public void testExpiredKeysDisappearAtOnce() throws Exception {
+		storage.save("cooldowns", "alice", 5, 50, TimeUnit.MILLISECONDS);
+		storage.save("cooldowns", "bob", 7);
+		assertEquals(5, storage.load("cooldowns", "alice"));
+		assertTrue(storage.getTimeToLive("cooldowns", "alice", TimeUnit.MILLISECONDS) > 0);
+		assertEquals(-1, storage.getTimeToLive("cooldowns", "bob", TimeUnit.MILLISECONDS));
+
+		Thread.sleep(80);
+		assertNull(storage.load("cooldowns", "alice"));
+		assertFalse(storage.exists("cooldowns", "alice"));
+		assertEquals(-1, storage.loadInt("cooldowns", "alice", -1));
+		assertFalse(storage.getKeys("cooldowns").contains("alice"));
+		assertEquals(7, storage.load("cooldowns", "bob"));
+
+		storage.sweep();
+		assertNull(backing.load("cooldowns", "alice"));
+		assertTrue(backing.getKeys("cooldowns" + ExpiringStorage.EXPIRY_CONTEXT_SUFFIX).isEmpty());
+		assertEquals(1, storage.getExpirations());
+		assertEquals(7, backing.load("cooldowns", "bob"));
+	}
+
+	public void testSaveWithoutTimeToLiveClearsDeadline() throws Exception {
+		storage.save("cooldowns", "alice", 5, 50, TimeUnit.MILLISECONDS);
+		storage.save("cooldowns", "alice", 6);
+		assertEquals(-1, storage.getTimeToLive("cooldowns", "alice", TimeUnit.MILLISECONDS));
+
+		Thread.sleep(80);
+		storage.sweep();
+		assertEquals(6, storage.load("cooldowns", "alice"));
+		assertEquals(0, storage.getExpirations());
+	}
+
+	public void testIncrementKeepsDeadline() {
+		storage.save("cooldowns", "alice", 1, 1, TimeUnit.HOURS);
+		assertEquals(3, storage.increment("cooldowns", "alice", 2));
+		assertTrue(storage.getTimeToLive("cooldowns", "alice", TimeUnit.MINUTES) > 0);
+	}
+
+	public void testDeadlinesSurviveReopening() throws Exception {
+		storage.save("cooldowns", "alice", 5, 1, TimeUnit.HOURS);
+		storage.save("cooldowns", "bob", 7, 50, TimeUnit.MILLISECONDS);
+		assertEquals(Collections.singleton("cooldowns"), storage.getContexts());
+		storage.close();
+
+		Thread.sleep(80);
+		storage = open();
+		assertTrue(storage.getTimeToLive("cooldowns", "alice", TimeUnit.MINUTES) > 0);
+		assertNull(storage.load("cooldowns", "bob"));
+		storage.sweep();
+		assertNull(backing.load("cooldowns", "bob"));
+		assertEquals(5, backing.load("cooldowns", "alice"));
+	}
+
+	/**
+	 * Holds up the sweeper while it removes an expired key from the wrapped
+	 * storage. The key must stay missing all the while.
+	 */
+	public void testKeysStayMissingWhileBeingRemoved() throws Exception {
+		final CountDownLatch removing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		storage.close();
+		backing = new MemoryStorage() {
+			@Override
+			public void deleteKeys(final String context, final Collection<String> keys) throws StorageException {
+				if (context.equals("cooldowns")) {
+					removing.countDown();
+					try {
+						release.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				super.deleteKeys(context, keys);
+			}
+		};
+		storage = open();
+
+		storage.save("cooldowns", "alice", 5, 20, TimeUnit.MILLISECONDS);
+		assertTrue(removing.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+		try {
+			assertEquals(5, backing.load("cooldowns", "alice"));
+			assertNull(storage.load("cooldowns", "alice"));
+			assertFalse(storage.exists("cooldowns", "alice"));
+			assertFalse(storage.getKeys("cooldowns").contains("alice"));
+			storage.forEach("cooldowns", new StorageVisitor() {
+				public boolean visit(final String key, final Object value) {
+					fail("visited " + key);
+					return true;
+				}
+			});
+		} finally {
+			release.countDown();
+		}
+		waitUntilRemoved("alice");
+		assertEquals(1, storage.getExpirations());
+	}
+
+	public void testFailedRemovalIsRetried() throws Exception {
+		final AtomicBoolean failed = new AtomicBoolean();
+		storage.close();
+		backing = new MemoryStorage() {
+			@Override
+			public void deleteKeys(final String context, final Collection<String> keys) throws StorageException {
+				if (context.equals("cooldowns") && failed.compareAndSet(false, true)) {
+					throw new StorageException("Disk full");
+				}
+				super.deleteKeys(context, keys);
+			}
+		};
+		storage = open();
+
+		storage.save("cooldowns", "alice", 5, 20, TimeUnit.MILLISECONDS);
+		Thread.sleep(40);
+		waitUntilRemoved("alice");
+		assertTrue(failed.get());
+		assertEquals(1, storage.getExpirations());
+	}
+
+	private ExpiringStorage open() {
+		final ExpiringStorage storage = new ExpiringStorage(backing);
+		storage.setSweepInterval(10, TimeUnit.MILLISECONDS);
+		storage.initialize(null);
+		return storage;
+	}
+
+	private void waitUntilRemoved(final String key) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (backing.load("cooldowns", key) != null) {
+			assertNull(storage.load("cooldowns", key));
+			assertTrue("not removed", System.currentTimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+	}
+}
@@ -0,0 +1,290 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class FileConfigurationStorageTest extends TestCase {
+
+	/** The number of stripes of FileConfigurationStorage's context locks. */
+	private static final int LOCK_STRIPES = 64;
+
+	private static final long TIMEOUT_MILLIS = 10000;
+
+	private TestPlugin plugin;
+
+	private FileConfigurationStorage storage;
+
+	@Override
+	protected void setUp() throws Exception {
+		plugin = new TestPlugin();
+		storage = new FileConfigurationStorage();
+		storage.initialize(plugin);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		storage.close();
+		plugin.deleteDataFolder();
+	}
+
+	public void testRoundTrip() {
+		final List<String> list = Arrays.asList("a", "b");
+		storage.save("players", "alice", "online");
+		storage.save("players", "bob", 42);
+		storage.save("players", "carol", list);
+
+		assertEquals("online", storage.load("players", "alice"));
+		assertEquals(42, storage.loadInt("players", "bob", -1));
+		assertEquals(list, storage.load("players", "carol"));
+		assertTrue(storage.exists("players", "alice"));
+		assertEquals(new HashSet<String>(Arrays.asList("alice", "bob", "carol")), storage.getKeys("players"));
+
+		storage.deleteKey("players", "alice");
+		assertNull(storage.load("players", "alice"));
+		assertFalse(storage.exists("players", "alice"));
+
+		storage.delete("players");
+		assertTrue(storage.getKeys("players").isEmpty());
+		assertFalse(storage.getContexts().contains("players"));
+	}
+
+	public void testResidentChangesSurviveReopening() throws Exception {
+		storage.setResident(true);
+		storage.save("players", "alice", "online");
+		storage.increment("players", "logins", 3);
+		storage.close();
+
+		storage = new FileConfigurationStorage();
+		storage.initialize(plugin);
+		assertEquals("online", storage.load("players", "alice"));
+		assertEquals(3, storage.loadLong("players", "logins", 0));
+	}
+
+	public void testCompressedAndPlainFilesAreReadAlike() throws Exception {
+		storage.save("plain", "alice", "online");
+		storage.close();
+		storage = new FileConfigurationStorage();
+		storage.setCompressed(true);
+		storage.initialize(plugin);
+		storage.save("compressed", "bob", 42);
+		assertEquals("online", storage.load("plain", "alice"));
+		storage.close();
+
+		storage = new FileConfigurationStorage();
+		storage.setResident(true);
+		storage.initialize(plugin);
+		final FileConfigurationStorage.PreloadResult result = storage.preload(Arrays.asList("plain", "compressed"));
+		assertEquals(2, result.getPreloadedContexts());
+		assertEquals(42, storage.loadInt("compressed", "bob", -1));
+		assertEquals("online", storage.load("plain", "alice"));
+	}
+
+	public void testContextsFollowWritesAndDeletesWhileWatching() {
+		restartWatching();
+		assertTrue(storage.getContexts().isEmpty());
+
+		storage.save("players", "alice", "online");
+		storage.save("worlds", "nether", true);
+		assertEquals(new HashSet<String>(Arrays.asList("players", "worlds")), storage.getContexts());
+
+		storage.delete("players");
+		assertEquals(Collections.singleton("worlds"), storage.getContexts());
+	}
+
+	public void testContextsCreatedByOthersAreListed() throws Exception {
+		storage.save("players", "alice", "online");
+		assertEquals(Collections.singleton("players"), storage.getContexts());
+
+		createFileBehindStorage("external");
+		assertEquals(new HashSet<String>(Arrays.asList("players", "external")), storage.getContexts());
+	}
+
+	public void testContextsCreatedByOthersAreNoticedWhileWatching() throws Exception {
+		restartWatching();
+		storage.save("players", "alice", "online");
+		assertEquals(Collections.singleton("players"), storage.getContexts());
+
+		createFileBehindStorage("external");
+		final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (!storage.getContexts().contains("external") && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(new HashSet<String>(Arrays.asList("players", "external")), storage.getContexts());
+	}
+
+	public void testForEachVisitsEveryEntryAndStopsEarly() {
+		for (final boolean resident : new boolean[] { false, true }) {
+			storage.setResident(resident);
+			storage.delete("players");
+			for (int i = 0; i < 10; i++) {
+				storage.save("players", "player" + i, i);
+			}
+
+			final Map<String, Object> visited = new HashMap<String, Object>();
+			storage.forEach("players", new StorageVisitor() {
+				public boolean visit(final String key, final Object value) {
+					visited.put(key, value);
+					return true;
+				}
+			});
+			assertEquals(10, visited.size());
+			assertEquals(7, visited.get("player7"));
+
+			final AtomicInteger visits = new AtomicInteger();
+			storage.forEach("players", new StorageVisitor() {
+				public boolean visit(final String key, final Object value) {
+					visits.incrementAndGet();
+					return false;
+				}
+			});
+			assertEquals(1, visits.get());
+		}
+	}
+
+	/**
+	 * In resident mode, a key deleted by the visitor before it was visited is
+	 * skipped.
+	 */
+	public void testForEachSkipsKeysDeletedWhileVisiting() {
+		storage.setResident(true);
+		storage.save("players", "alice", 1);
+		storage.save("players", "bob", 2);
+
+		final Set<String> visited = new HashSet<String>();
+		storage.forEach("players", new StorageVisitor() {
+			public boolean visit(final String key, final Object value) {
+				visited.add(key);
+				storage.deleteKey("players", key.equals("alice") ? "bob" : "alice");
+				return true;
+			}
+		});
+		assertEquals(1, visited.size());
+	}
+
+	/**
+	 * A visitor may write to other contexts, including one that shares the
+	 * visited context's lock stripe.
+	 */
+	public void testForEachVisitorCanWriteToContextOnSameStripe() throws Exception {
+		final String otherContext = findContextOnSameStripe("visited");
+		storage.save("visited", "a", 1);
+		storage.save("visited", "b", 2);
+
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					storage.forEach("visited", new StorageVisitor() {
+						public boolean visit(final String key, final Object value) {
+							storage.save(otherContext, key, value);
+							return true;
+						}
+					});
+				} catch (final Throwable e) {
+					failure.set(e);
+				}
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+		thread.join(TIMEOUT_MILLIS);
+
+		assertFalse("forEach hung", thread.isAlive());
+		assertNull(failure.get());
+		assertEquals(1, storage.loadInt(otherContext, "a", 0));
+		assertEquals(2, storage.loadInt(otherContext, "b", 0));
+	}
+
+	public void testConcurrentIncrements() throws Exception {
+		final int threads = 8;
+		final int increments = 50;
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final String context = "counters" + (i % 2);
+			workers[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int j = 0; j < increments; j++) {
+							storage.increment(context, "count", 1);
+						}
+					} catch (final Throwable e) {
+						failure.set(e);
+					}
+				}
+			});
+			workers[i].start();
+		}
+		for (final Thread worker : workers) {
+			worker.join(TIMEOUT_MILLIS);
+		}
+
+		assertNull(failure.get());
+		assertEquals(threads / 2 * increments, storage.loadLong("counters0", "count", 0));
+		assertEquals(threads / 2 * increments, storage.loadLong("counters1", "count", 0));
+	}
+
+	private void restartWatching() {
+		storage.close();
+		storage = new FileConfigurationStorage();
+		storage.setWatchingFiles(true);
+		storage.initialize(plugin);
+	}
+
+	/**
+	 * Writes a context file the way another program would, keeping the
+	 * directory's modification time as coarse file systems do.
+	 */
+	private void createFileBehindStorage(final String context) throws Exception {
+		final File folder = new File(plugin.getDataFolder(), storage.getStorageDirectoryName());
+		final long lastModified = folder.lastModified();
+		final FileWriter writer = new FileWriter(new File(folder, context + ".yml"));
+		try {
+			writer.write("bob: 42\n");
+		} finally {
+			writer.close();
+		}
+		folder.setLastModified(lastModified);
+	}
+
+	private static String findContextOnSameStripe(final String context) {
+		final StripedLock locks = new StripedLock(LOCK_STRIPES);
+		for (int i = 0;; i++) {
+			final String candidate = "other" + i;
+			if (locks.get(candidate) == locks.get(context)) {
+				return candidate;
+			}
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class IndexedStorageTest extends TestCase {
+
+	private MemoryStorage backing;
+
+	private IndexedStorage storage;
+
+	@Override
+	protected void setUp() throws Exception {
+		backing = new MemoryStorage();
+		storage = new IndexedStorage(backing);
+		storage.initialize(null);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		storage.close();
+	}
+
+	public void testIndexIsBuiltFromExistingObjects() {
+		backing.save("players", "alice", player("nether", 5));
+		backing.save("players", "bob", player("end", 5L));
+		backing.save("players", "carol", player("nether", 7.5));
+		storage.addIndex("players", "world");
+		storage.addIndex("players", "level");
+
+		assertEquals(keys("alice", "carol"), storage.findKeys("players", "world", "nether"));
+		assertEquals(keys("alice", "bob"), storage.findKeys("players", "level", 5));
+		assertEquals(keys("carol"), storage.findKeys("players", "level", 7.5f));
+		assertTrue(storage.findKeys("players", "world", "overworld").isEmpty());
+		assertEquals(keys("level", "world"), storage.getIndexedFields("players"));
+	}
+
+	public void testIndexFollowsChanges() {
+		storage.addIndex("players", "world");
+		storage.save("players", "alice", player("nether", 1));
+		assertEquals(keys("alice"), storage.findKeys("players", "world", "nether"));
+
+		storage.save("players", "alice", player("end", 1));
+		final Map<String, Object> values = new HashMap<String, Object>();
+		values.put("bob", player("nether", 2));
+		values.put("carol", player("end", 3));
+		storage.saveAll("players", values);
+		assertEquals(keys("bob"), storage.findKeys("players", "world", "nether"));
+		assertEquals(keys("alice", "carol"), storage.findKeys("players", "world", "end"));
+
+		storage.deleteKey("players", "alice");
+		storage.deleteKeys("players", Arrays.asList("carol"));
+		assertTrue(storage.findKeys("players", "world", "end").isEmpty());
+
+		storage.delete("players");
+		assertTrue(storage.findKeys("players", "world", "nether").isEmpty());
+	}
+
+	public void testNestedFields() {
+		final Map<String, Object> location = new HashMap<String, Object>();
+		location.put("world", "nether");
+		storage.save("homes", "alice", Collections.singletonMap("location", location));
+		storage.save("homes", "bob", Collections.singletonMap("location", "nowhere"));
+		storage.addIndex("homes", "location.world");
+
+		assertEquals(keys("alice"), storage.findKeys("homes", "location.world", "nether"));
+	}
+
+	public void testUndeclaredIndexCannotBeQueried() {
+		storage.addIndex("players", "world");
+		storage.removeIndex("players", "world");
+		try {
+			storage.findKeys("players", "world", "nether");
+			fail("Expected the index to be missing");
+		} catch (final IllegalArgumentException e) {
+			// Expected
+		}
+		assertTrue(storage.getIndexedFields("players").isEmpty());
+	}
+
+	private static Map<String, Object> player(final String world, final Number level) {
+		final Map<String, Object> player = new HashMap<String, Object>();
+		player.put("world", world);
+		player.put("level", level);
+		return player;
+	}
+
+	private static Set<String> keys(final String... keys) {
+		return new HashSet<String>(Arrays.asList(keys));
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class LogStructuredStorageTest extends TestCase {
+
+	private TestPlugin plugin;
+
+	private LogStructuredStorage storage;
+
+	@Override
+	protected void setUp() throws Exception {
+		plugin = new TestPlugin();
+		storage = open();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		storage.close();
+		plugin.deleteDataFolder();
+	}
+
+	public void testRoundTrip() {
+		storage.save("players", "alice", "online");
+		storage.save("players", "bob", 42);
+		assertEquals("online", storage.load("players", "alice"));
+		assertEquals(42, storage.loadInt("players", "bob", 0));
+
+		storage.deleteKey("players", "alice");
+		assertFalse(storage.exists("players", "alice"));
+		assertNull(storage.load("players", "alice"));
+	}
+
+	public void testReplayAfterReopening() throws Exception {
+		final Map<String, Object> expected = writeRandomly(new Random(3), 2000);
+		storage.close();
+
+		storage = open();
+		assertContents(expected);
+	}
+
+	/**
+	 * Removes the hint files, so the logs have to be replayed, and appends a
+	 * torn record to the newest segment, as a crash in the middle of a write
+	 * would leave it.
+	 */
+	public void testReplayIgnoresTornTail() throws Exception {
+		final Map<String, Object> expected = writeRandomly(new Random(5), 2000);
+		storage.close();
+
+		final File[] segments = segmentFiles("players");
+		for (final File segment : segments) {
+			assertTrue(new File(segment.getPath().replace(".log", ".hint")).delete());
+		}
+		final FileOutputStream output = new FileOutputStream(segments[segments.length - 1], true);
+		try {
+			output.write(new byte[] { 0, 0, 0, 7, 0, 0, 1, 0, 'a', 'l' });
+		} finally {
+			output.close();
+		}
+
+		storage = open();
+		assertContents(expected);
+
+		// Records appended after the torn one must survive another replay
+		storage.save("players", "carol", "late");
+		expected.put("carol", "late");
+		storage.close();
+		for (final File segment : segmentFiles("players")) {
+			new File(segment.getPath().replace(".log", ".hint")).delete();
+		}
+		storage = open();
+		assertContents(expected);
+	}
+
+	public void testCompaction() throws Exception {
+		final Map<String, Object> expected = writeRandomly(new Random(9), 5000);
+		final int segmentsBefore = segmentFiles("players").length;
+		assertTrue(segmentsBefore > 1);
+
+		storage.compact("players");
+		assertContents(expected);
+		assertTrue(segmentFiles("players").length < segmentsBefore);
+
+		// The context stays writable after compaction
+		storage.save("players", "dave", "new");
+		expected.put("dave", "new");
+		storage.close();
+
+		storage = open();
+		assertContents(expected);
+	}
+
+	public void testDeleteContext() {
+		storage.save("players", "alice", "online");
+		storage.save("worlds", "world", "loaded");
+		storage.delete("players");
+		assertFalse(storage.getContexts().contains("players"));
+		assertNull(storage.load("players", "alice"));
+		assertEquals("loaded", storage.load("worlds", "world"));
+	}
+
+	/**
+	 * Deletes a context over and over while it is written to and compacted.
+	 * Whatever the storage shows afterwards must also be what is found on
+	 * disk: no write may go to a deleted segment, and no deleted segment may
+	 * come back.
+	 */
+	public void testDeleteWhileWritingAndCompacting() throws Exception {
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final Thread writer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for (int i = 0; running.get(); i++) {
+						storage.save("players", "key" + i % 50, Integer.valueOf(i));
+					}
+				} catch (final Throwable e) {
+					failure.set(e);
+				}
+			}
+		});
+		final Thread compactor = new Thread(new Runnable() {
+			public void run() {
+				while (running.get()) {
+					try {
+						storage.compact("players");
+					} catch (final StorageException e) {
+						// The context may be deleted while it is compacted
+					}
+				}
+			}
+		});
+		writer.start();
+		compactor.start();
+		for (int i = 0; i < 50; i++) {
+			Thread.sleep(5);
+			storage.delete("players");
+		}
+		Thread.sleep(20);
+		running.set(false);
+		writer.join();
+		compactor.join();
+		assertNull(failure.get());
+
+		final Map<String, Object> expected = new HashMap<String, Object>();
+		for (final String key : storage.getKeys("players")) {
+			expected.put(key, storage.load("players", key));
+		}
+		assertFalse(expected.isEmpty());
+		storage.close();
+
+		storage = open();
+		assertContents(expected);
+	}
+
+	private LogStructuredStorage open() {
+		final LogStructuredStorage storage = new LogStructuredStorage();
+		storage.setMaxSegmentSize(4096);
+		storage.initialize(plugin);
+		return storage;
+	}
+
+	/**
+	 * Saves, overwrites and deletes random keys, mostly in a few hot ones, so
+	 * that the log contains plenty of garbage.
+	 */
+	private Map<String, Object> writeRandomly(final Random random, final int operations) {
+		final Map<String, Object> expected = new HashMap<String, Object>();
+		for (int i = 0; i < operations; i++) {
+			final String key = "key" + random.nextInt(random.nextBoolean() ? 10 : 200);
+			if (random.nextInt(5) == 0) {
+				storage.deleteKey("players", key);
+				expected.remove(key);
+			} else {
+				final Object value = random.nextBoolean() ? "value" + i : Integer.valueOf(i);
+				storage.save("players", key, value);
+				expected.put(key, value);
+			}
+		}
+		assertContents(expected);
+		return expected;
+	}
+
+	private void assertContents(final Map<String, Object> expected) {
+		assertEquals(expected.keySet(), storage.getKeys("players"));
+		for (final Map.Entry<String, Object> entry : expected.entrySet()) {
+			assertEquals(entry.getKey(), entry.getValue(), storage.load("players", entry.getKey()));
+		}
+	}
+
+	private File[] segmentFiles(final String context) throws IOException {
+		final File directory = new File(new File(plugin.getDataFolder(), storage.getStorageDirectoryName()), context);
+		final File[] segments = directory.listFiles(new FileFilter() {
+			public boolean accept(final File file) {
+				return file.getName().endsWith(".log");
+			}
+		});
+		if (segments == null) {
+			throw new IOException("Missing " + directory);
+		}
+		Arrays.sort(segments);
+		return segments;
+	}
+}
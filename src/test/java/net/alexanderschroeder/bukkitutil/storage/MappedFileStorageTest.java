@@ -0,0 +1,143 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class MappedFileStorageTest extends TestCase {
+
+	private TestPlugin plugin;
+
+	private MappedFileStorage storage;
+
+	@Override
+	protected void setUp() throws Exception {
+		plugin = new TestPlugin();
+		storage = open();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		storage.close();
+		plugin.deleteDataFolder();
+	}
+
+	public void testRoundTrip() {
+		storage.save("players", "alice", "online");
+		storage.save("players", "bob", 42L);
+		storage.save("players", "carol", Arrays.asList("a", "b"));
+		assertEquals("online", storage.load("players", "alice"));
+		assertEquals(42, storage.loadLong("players", "bob", 0));
+		assertEquals(Arrays.asList("a", "b"), storage.load("players", "carol"));
+		assertEquals(3, storage.getKeys("players").size());
+
+		storage.deleteKey("players", "alice");
+		assertFalse(storage.exists("players", "alice"));
+		assertNull(storage.load("players", "alice"));
+		assertEquals(-1, storage.loadLong("players", "missing", -1));
+	}
+
+	/**
+	 * Writes enough keys and overwrites to rebuild the file several times.
+	 */
+	public void testRebuildsSurviveReopening() {
+		final Random random = new Random(13);
+		final Map<String, Object> expected = new HashMap<String, Object>();
+		for (int i = 0; i < 20000; i++) {
+			final String key = "key" + random.nextInt(3000);
+			if (random.nextInt(6) == 0) {
+				storage.deleteKey("players", key);
+				expected.remove(key);
+			} else {
+				storage.save("players", key, "value" + i);
+				expected.put(key, "value" + i);
+			}
+		}
+		assertContents(expected);
+		storage.close();
+
+		storage = open();
+		assertContents(expected);
+	}
+
+	public void testIncrementCountsWrittenBytes() {
+		final long before = storage.getBytesWritten();
+		assertEquals(5, storage.increment("counters", "logins", 5));
+		assertEquals(7, storage.increment("counters", "logins", 2));
+		assertTrue(storage.getBytesWritten() > before);
+		assertEquals(7, storage.loadLong("counters", "logins", 0));
+	}
+
+	/**
+	 * A context whose keys were all deleted is still a context.
+	 */
+	public void testEmptiedContextSurvivesReopening() {
+		storage.save("players", "alice", "online");
+		storage.deleteKey("players", "alice");
+		assertTrue(storage.getContexts().contains("players"));
+		storage.close();
+
+		storage = open();
+		assertTrue(storage.getContexts().contains("players"));
+		assertTrue(storage.getKeys("players").isEmpty());
+	}
+
+	public void testDeleteAndRecreate() {
+		storage.save("players", "alice", "online");
+		storage.save("worlds", "world", "loaded");
+		storage.delete("players");
+		assertEquals(Collections.singleton("worlds"), storage.getContexts());
+		assertNull(storage.load("players", "alice"));
+
+		storage.save("players", "bob", "offline");
+		assertEquals(1, storage.getKeys("players").size());
+		storage.close();
+
+		storage = open();
+		assertEquals(2, storage.getContexts().size());
+		assertNull(storage.load("players", "alice"));
+		assertEquals("offline", storage.load("players", "bob"));
+
+		storage.delete("players");
+		storage.close();
+		storage = open();
+		assertEquals(Collections.singleton("worlds"), storage.getContexts());
+	}
+
+	private MappedFileStorage open() {
+		final MappedFileStorage storage = new MappedFileStorage();
+		storage.initialize(plugin);
+		return storage;
+	}
+
+	private void assertContents(final Map<String, Object> expected) {
+		assertEquals(expected.keySet(), storage.getKeys("players"));
+		for (final Map.Entry<String, Object> entry : expected.entrySet()) {
+			assertEquals(entry.getValue(), storage.load("players", entry.getKey()));
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * A {@link Storage} that keeps its objects in memory, for testing the
+ * storages that wrap another storage.
+ */
+class MemoryStorage extends AbstractStorage {
+
+	private final ConcurrentMap<String, ConcurrentMap<String, Object>> contexts = new ConcurrentHashMap<String, ConcurrentMap<String, Object>>();
+
+	public void initialize(final JavaPlugin plugin) throws StorageException {
+	}
+
+	public void save(final String context, final String key, final Object value) throws StorageException {
+		if (value == null) {
+			deleteKey(context, key);
+			return;
+		}
+		ConcurrentMap<String, Object> values = contexts.get(context);
+		if (values == null) {
+			contexts.putIfAbsent(context, new ConcurrentHashMap<String, Object>());
+			values = contexts.get(context);
+		}
+		values.put(key, value);
+	}
+
+	public Object load(final String context, final String key) throws StorageException {
+		final Map<String, Object> values = contexts.get(context);
+		return values == null ? null : values.get(key);
+	}
+
+	public boolean exists(final String context, final String key) throws StorageException {
+		return load(context, key) != null;
+	}
+
+	public void delete(final String context) throws StorageException {
+		contexts.remove(context);
+	}
+
+	public void deleteKey(final String context, final String key) throws StorageException {
+		final Map<String, Object> values = contexts.get(context);
+		if (values != null) {
+			values.remove(key);
+		}
+	}
+
+	public Set<String> getContexts() throws StorageException {
+		return new HashSet<String>(contexts.keySet());
+	}
+
+	public Set<String> getKeys(final String context) throws StorageException {
+		final Map<String, Object> values = contexts.get(context);
+		return values == null ? new HashSet<String>() : new HashSet<String>(values.keySet());
+	}
+}
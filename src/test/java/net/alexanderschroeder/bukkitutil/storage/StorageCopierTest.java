@@ -0,0 +1,115 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import junit.framework.TestCase;
+
+public class StorageCopierTest extends TestCase {
+
+	private MemoryStorage source;
+
+	private StorageCopier copier;
+
+	private TestPlugin plugin;
+
+	private File folder;
+
+	@Override
+	protected void setUp() throws Exception {
+		source = new MemoryStorage();
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 25; j++) {
+				source.save("context" + i, "key" + j, j % 2 == 0 ? "value" + j : Arrays.asList(j, (long) j * i));
+			}
+		}
+		copier = new StorageCopier();
+		copier.setParallelism(2);
+		copier.setBatchSize(10);
+		plugin = new TestPlugin();
+		folder = plugin.getDataFolder();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		plugin.deleteDataFolder();
+	}
+
+	public void testCopyReplacesTargetContexts() {
+		final MemoryStorage target = new MemoryStorage();
+		target.save("context0", "stale", "gone");
+
+		final StorageCopier.Result result = copier.copy(source, target);
+		assertEquals(3, result.getContexts());
+		assertEquals(75, result.getEntries());
+		assertEquals(source.getKeys("context0"), target.getKeys("context0"));
+		assertEquals(Arrays.asList(3, 6L), target.load("context2", "key3"));
+		assertTrue(copier.verify(source, target).getMismatchedContexts().isEmpty());
+
+		target.save("context1", "key4", "changed");
+		target.save("extra", "key", "value");
+		assertEquals(new HashSet<String>(Arrays.asList("context1", "extra")), copier.verify(source, target).getMismatchedContexts());
+	}
+
+	public void testArchiveRoundTrip() {
+		final File archive = new File(folder, "backup.txt");
+		assertEquals(75, copier.exportArchive(source, archive).getEntries());
+
+		final MemoryStorage target = new MemoryStorage();
+		final StorageCopier.Result result = copier.importArchive(archive, target);
+		assertEquals(3, result.getContexts());
+		assertEquals(75, result.getEntries());
+		assertEquals("value8", target.load("context1", "key8"));
+		assertTrue(copier.verify(source, target).getMismatchedContexts().isEmpty());
+		assertTrue(copier.verifyArchive(archive, target).getMismatchedContexts().isEmpty());
+
+		target.deleteKey("context2", "key0");
+		assertEquals(Collections.singleton("context2"), copier.verifyArchive(archive, target).getMismatchedContexts());
+	}
+
+	public void testExportResumesExistingArchive() {
+		final File archive = new File(folder, "backup.txt");
+		copier.exportArchive(source, archive);
+		source.save("context3", "key0", "new");
+
+		final StorageCopier.Result result = copier.exportArchive(source, archive);
+		assertEquals(3, result.getSkippedContexts());
+		assertEquals(1, result.getEntries());
+		final MemoryStorage target = new MemoryStorage();
+		copier.importArchive(archive, target);
+		assertTrue(copier.verify(source, target).getMismatchedContexts().isEmpty());
+	}
+
+	public void testProgressFileSkipsCopiedContexts() {
+		copier.setProgressFile(new File(folder, "progress.txt"));
+		final MemoryStorage target = new MemoryStorage();
+		copier.copy(source, target);
+
+		target.save("context0", "key0", "kept");
+		final StorageCopier.Result result = copier.copy(source, target);
+		assertEquals(3, result.getSkippedContexts());
+		assertEquals(0, result.getEntries());
+		assertEquals("kept", target.load("context0", "key0"));
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * A plug-in for tests, whose data folder is a new temporary directory. The
+ * plug-in is never loaded by a server; only its data folder is used.
+ */
+final class TestPlugin extends JavaPlugin {
+
+	TestPlugin() throws Exception {
+		// The data folder is normally set by the plug-in loader
+		final Field dataFolder = JavaPlugin.class.getDeclaredField("dataFolder");
+		dataFolder.setAccessible(true);
+		dataFolder.set(this, Files.createTempDirectory("bukkitutil-test").toFile());
+	}
+
+	/**
+	 * Deletes the data folder and everything in it.
+	 */
+	void deleteDataFolder() {
+		delete(getDataFolder());
+	}
+
+	private static void delete(final File file) {
+		final File[] children = file.listFiles();
+		if (children != null) {
+			for (final File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class TimingWheelTest extends TestCase {
+
+	/**
+	 * Deadlines around the borders of every wheel and beyond the highest one,
+	 * so that timers have to be cascaded down one or more wheels.
+	 */
+	private static final long[] DEADLINES = { 0, 1, 2, 63, 64, 65, 127, 128, 4095, 4096, 4097, 262143, 262144,
+			262149, 16777215, 16777216, 16777226, 16777216L * 3 + 7 };
+
+	public void testTimersGoOffAtTheirDeadlineWithSingleSteps() {
+		final TimingWheel<Long> wheel = new TimingWheel<Long>(1, 0);
+		for (final long deadline : DEADLINES) {
+			if (deadline <= 300000) {
+				wheel.schedule(deadline, deadline);
+			}
+		}
+		long now = 0;
+		while (wheel.size() > 0) {
+			for (final TimingWheel.Timer<Long> timer : wheel.advance(now)) {
+				assertEquals(Math.max(timer.deadline, 0), now);
+			}
+			now++;
+		}
+		assertTrue(now > 262149);
+	}
+
+	public void testTimersGoOffAtFirstAdvanceAfterTheirDeadline() {
+		final Random random = new Random(42);
+		final TimingWheel<Long> wheel = new TimingWheel<Long>(1, 0);
+		for (final long deadline : DEADLINES) {
+			wheel.schedule(deadline, deadline);
+		}
+		long now = 0;
+		long previous = -1;
+		while (wheel.size() > 0) {
+			for (final TimingWheel.Timer<Long> timer : wheel.advance(now)) {
+				assertTrue("went off too early: " + timer.deadline + " at " + now, timer.deadline <= now);
+				assertTrue("went off too late: " + timer.deadline + " at " + now, timer.deadline > previous);
+			}
+			previous = now;
+			now += 1 + random.nextInt(random.nextBoolean() ? 50 : 500000);
+		}
+	}
+
+	public void testBigJumpFiresEverything() {
+		final TimingWheel<Long> wheel = new TimingWheel<Long>(1, 0);
+		final Set<Long> expected = new HashSet<Long>();
+		for (final long deadline : DEADLINES) {
+			wheel.schedule(deadline + 1000, deadline + 1000);
+			expected.add(deadline + 1000);
+		}
+		assertTrue(wheel.advance(999).isEmpty());
+
+		final Set<Long> fired = new HashSet<Long>();
+		for (final TimingWheel.Timer<Long> timer : wheel.advance(Long.MAX_VALUE / 2)) {
+			fired.add(timer.element);
+		}
+		assertEquals(expected, fired);
+		assertEquals(0, wheel.size());
+	}
+
+	public void testTickRoundsUp() {
+		final TimingWheel<String> wheel = new TimingWheel<String>(50, 0);
+		wheel.schedule("a", 101);
+		assertTrue(wheel.advance(101).isEmpty());
+		assertTrue(wheel.advance(149).isEmpty());
+		assertEquals(1, wheel.advance(150).size());
+	}
+
+	public void testCancel() {
+		final TimingWheel<Long> wheel = new TimingWheel<Long>(1, 0);
+		final List<TimingWheel.Timer<Long>> timers = new ArrayList<TimingWheel.Timer<Long>>();
+		for (final long deadline : DEADLINES) {
+			timers.add(wheel.schedule(deadline, deadline));
+		}
+		final Set<Long> expected = new HashSet<Long>();
+		for (int i = 0; i < timers.size(); i++) {
+			if (i % 2 == 0) {
+				wheel.cancel(timers.get(i));
+			} else {
+				expected.add(timers.get(i).element);
+			}
+		}
+		// Cancelling twice changes nothing
+		wheel.cancel(timers.get(0));
+		assertEquals(expected.size(), wheel.size());
+
+		final Set<Long> fired = new HashSet<Long>();
+		long now = 0;
+		while (wheel.size() > 0) {
+			for (final TimingWheel.Timer<Long> timer : wheel.advance(now)) {
+				fired.add(timer.element);
+			}
+			now += 1000;
+		}
+		assertEquals(expected, fired);
+	}
+
+	public void testRandomSchedulesAndCancels() {
+		final Random random = new Random(7);
+		final TimingWheel<Integer> wheel = new TimingWheel<Integer>(1, 0);
+		final Map<Integer, TimingWheel.Timer<Integer>> pending = new HashMap<Integer, TimingWheel.Timer<Integer>>();
+		long now = 0;
+		for (int i = 0; i < 20000; i++) {
+			final int action = random.nextInt(10);
+			if (action < 6) {
+				final long delay = random.nextBoolean() ? random.nextInt(100) : random.nextInt(20000000);
+				pending.put(i, wheel.schedule(i, now + delay));
+			} else if (action < 7 && !pending.isEmpty()) {
+				final Integer element = pending.keySet().iterator().next();
+				wheel.cancel(pending.remove(element));
+			} else {
+				now += random.nextBoolean() ? random.nextInt(10) : random.nextInt(1000000);
+				for (final TimingWheel.Timer<Integer> timer : wheel.advance(now)) {
+					assertTrue(timer.deadline <= now);
+					assertNotNull("went off twice or after being cancelled", pending.remove(timer.element));
+				}
+				for (final TimingWheel.Timer<Integer> timer : pending.values()) {
+					assertTrue("should have gone off", timer.deadline > now);
+				}
+			}
+			assertEquals(pending.size(), wheel.size());
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class UuidIndexTest extends TestCase {
+
+	public void testPutReturnsPreviousLength() {
+		final UuidIndex index = new UuidIndex();
+		assertEquals(-1, index.put(1, 2, 0, 10));
+		assertEquals(10, index.put(1, 2, 100, 20));
+		assertEquals(1, index.size());
+
+		final int slot = index.find(1, 2);
+		assertTrue(index.isUsed(slot));
+		assertEquals(1, index.mostBits(slot));
+		assertEquals(2, index.leastBits(slot));
+		assertEquals(100, index.position(slot));
+		assertEquals(20, index.length(slot));
+		assertEquals(-1, index.find(2, 1));
+	}
+
+	/**
+	 * Fills the smallest table close to its load limit, so that probe runs
+	 * overlap, and removes each key in turn from a fresh copy. Every other key
+	 * must still be found after the backward shift.
+	 */
+	public void testRemoveKeepsOtherKeysReachable() {
+		final int keys = 12;
+		for (int removed = 0; removed < keys; removed++) {
+			final UuidIndex index = new UuidIndex();
+			for (int i = 0; i < keys; i++) {
+				index.put(i, i * 31, i * 100, i + 1);
+			}
+			final int capacity = index.capacity();
+
+			assertEquals(removed + 1, index.remove(removed, removed * 31));
+			assertEquals(-1, index.remove(removed, removed * 31));
+			assertEquals(keys - 1, index.size());
+			assertEquals(capacity, index.capacity());
+			assertEquals(-1, index.find(removed, removed * 31));
+			for (int i = 0; i < keys; i++) {
+				if (i != removed) {
+					final int slot = index.find(i, i * 31);
+					assertTrue("lost key " + i + " after removing " + removed, slot >= 0);
+					assertEquals(i * 100, index.position(slot));
+					assertEquals(i + 1, index.length(slot));
+				}
+			}
+		}
+	}
+
+	public void testGrowth() {
+		final UuidIndex index = new UuidIndex();
+		for (int i = 0; i < 1000; i++) {
+			index.put(i, -i, i, i);
+		}
+		assertEquals(1000, index.size());
+		assertTrue(index.capacity() * 3L >= 1000 * 4L);
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(i, index.length(index.find(i, -i)));
+		}
+
+		index.clear();
+		assertEquals(0, index.size());
+		assertEquals(-1, index.find(5, -5));
+	}
+
+	public void testRandomOperationsMatchHashMap() {
+		final Random random = new Random(1);
+		final UuidIndex index = new UuidIndex();
+		final Map<List<Long>, Integer> expected = new HashMap<List<Long>, Integer>();
+		for (int i = 0; i < 50000; i++) {
+			// Few distinct keys, so that removes and overwrites are common
+			final long most = random.nextInt(300);
+			final long least = random.nextInt(3);
+			final List<Long> key = key(most, least);
+			if (random.nextInt(3) == 0) {
+				final Integer previous = expected.remove(key);
+				assertEquals(previous == null ? -1 : previous, index.remove(most, least));
+			} else {
+				final int length = random.nextInt(1000);
+				final Integer previous = expected.put(key, length);
+				assertEquals(previous == null ? -1 : previous, index.put(most, least, i, length));
+			}
+			assertEquals(expected.size(), index.size());
+		}
+
+		int used = 0;
+		for (int slot = 0; slot < index.capacity(); slot++) {
+			if (index.isUsed(slot)) {
+				used++;
+				assertEquals(expected.get(key(index.mostBits(slot), index.leastBits(slot))).intValue(),
+						index.length(slot));
+			}
+		}
+		assertEquals(expected.size(), used);
+		for (final Map.Entry<List<Long>, Integer> entry : expected.entrySet()) {
+			final int slot = index.find(entry.getKey().get(0), entry.getKey().get(1));
+			assertTrue(slot >= 0);
+			assertEquals(entry.getValue().intValue(), index.length(slot));
+		}
+	}
+
+	private static List<Long> key(final long most, final long least) {
+		final List<Long> key = new ArrayList<Long>(2);
+		key.add(most);
+		key.add(least);
+		return key;
+	}
+}
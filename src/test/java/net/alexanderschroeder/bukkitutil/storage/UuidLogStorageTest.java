@@ -0,0 +1,195 @@
+/*
+ *  BukkitUtil: Utility classes for Bukkit plugin development
+ *  Copyright © 2013  Alexander Krivács Schrøder
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+
+
+package net.alexanderschroeder.bukkitutil.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class UuidLogStorageTest extends TestCase {
+
+	private TestPlugin plugin;
+
+	private UuidLogStorage storage;
+
+	private UUID[] players;
+
+	@Override
+	protected void setUp() throws Exception {
+		plugin = new TestPlugin();
+		storage = open();
+		final Random random = new Random(11);
+		players = new UUID[100];
+		for (int i = 0; i < players.length; i++) {
+			players[i] = new UUID(random.nextLong(), random.nextLong());
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		storage.close();
+		plugin.deleteDataFolder();
+	}
+
+	public void testRoundTrip() {
+		storage.save("balances", players[0], 100);
+		storage.save("balances", players[1], "frozen");
+		assertEquals(100, storage.loadInt("balances", players[0], 0));
+		assertEquals("frozen", storage.load("balances", players[1]));
+		assertTrue(storage.exists("balances", players[0]));
+		assertEquals(2, storage.getKeys("balances").size());
+
+		storage.deleteKey("balances", players[0]);
+		assertFalse(storage.exists("balances", players[0]));
+		assertEquals(-1, storage.loadInt("balances", players[0], -1));
+	}
+
+	public void testReplayAfterReopening() {
+		final Map<UUID, Object> expected = writeRandomly(new Random(3), 3000);
+		storage.close();
+
+		storage = open();
+		assertContents(expected);
+	}
+
+	public void testReplayIgnoresTornTail() throws Exception {
+		final Map<UUID, Object> expected = writeRandomly(new Random(5), 500);
+		storage.close();
+
+		final FileOutputStream output = new FileOutputStream(getFile("balances"), true);
+		try {
+			output.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+		} finally {
+			output.close();
+		}
+
+		storage = open();
+		assertContents(expected);
+		storage.save("balances", players[7], "late");
+		expected.put(players[7], "late");
+		storage.close();
+
+		storage = open();
+		assertContents(expected);
+	}
+
+	public void testCompaction() {
+		final Map<UUID, Object> expected = writeRandomly(new Random(9), 5000);
+		final long sizeBefore = getFile("balances").length();
+
+		storage.compact("balances");
+		assertContents(expected);
+		assertTrue(getFile("balances").length() < sizeBefore);
+
+		storage.save("balances", players[3], "new");
+		expected.put(players[3], "new");
+		storage.close();
+
+		storage = open();
+		assertContents(expected);
+	}
+
+	/**
+	 * Deletes a context over and over while it is written to. Whatever the
+	 * storage shows afterwards must also be what is found on disk.
+	 */
+	public void testDeleteWhileWriting() throws Exception {
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final Thread[] writers = new Thread[4];
+		for (int w = 0; w < writers.length; w++) {
+			final int offset = w;
+			writers[w] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int i = offset; running.get(); i += writers.length) {
+							storage.save("balances", players[i % players.length], Integer.valueOf(i));
+						}
+					} catch (final Throwable e) {
+						failure.set(e);
+					}
+				}
+			});
+			writers[w].start();
+		}
+		for (int i = 0; i < 500; i++) {
+			Thread.sleep(1);
+			storage.delete("balances");
+		}
+		Thread.sleep(20);
+		running.set(false);
+		for (final Thread writer : writers) {
+			writer.join();
+		}
+		assertNull(failure.get());
+
+		final Map<UUID, Object> expected = new HashMap<UUID, Object>();
+		for (final UUID key : storage.getKeys("balances")) {
+			expected.put(key, storage.load("balances", key));
+		}
+		assertFalse(expected.isEmpty());
+		storage.close();
+
+		storage = open();
+		assertContents(expected);
+	}
+
+	private UuidLogStorage open() {
+		final UuidLogStorage storage = new UuidLogStorage();
+		storage.initialize(plugin);
+		return storage;
+	}
+
+	private File getFile(final String context) {
+		return new File(new File(plugin.getDataFolder(), storage.getStorageDirectoryName()), context + ".ulog");
+	}
+
+	private Map<UUID, Object> writeRandomly(final Random random, final int operations) {
+		final Map<UUID, Object> expected = new HashMap<UUID, Object>();
+		for (int i = 0; i < operations; i++) {
+			final UUID key = players[random.nextInt(random.nextBoolean() ? 10 : players.length)];
+			if (random.nextInt(5) == 0) {
+				storage.deleteKey("balances", key);
+				expected.remove(key);
+			} else {
+				final Object value = random.nextBoolean() ? "value" + i : Integer.valueOf(i);
+				storage.save("balances", key, value);
+				expected.put(key, value);
+			}
+		}
+		assertContents(expected);
+		return expected;
+	}
+
+	private void assertContents(final Map<UUID, Object> expected) {
+		assertEquals(expected.keySet(), storage.getKeys("balances"));
+		for (final Map.Entry<UUID, Object> entry : expected.entrySet()) {
+			assertEquals(entry.getValue(), storage.load("balances", entry.getKey()));
+		}
+	}
+}